@@ -0,0 +1,241 @@
+package com.javmarina.webrtc;
+
+import com.javmarina.webrtc.latency.LatencyRecorder;
+import dev.onvoid.webrtc.RTCDataChannel;
+import dev.onvoid.webrtc.RTCDataChannelBuffer;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Sends messages through a data channel without letting them pile up when the network is congested.<br>
+ * Messages that the channel can't transmit yet are kept in the send buffer (see
+ * {@link RTCDataChannel#getBufferedAmount()}), and delivered late, one after another. For messages where only
+ * the newest one matters, like the controller state, {@link DataChannelSender#sendLatest(ByteBuffer)} stops
+ * writing to the channel while the buffer is above a threshold: the newest message is kept aside, replacing the
+ * previous one, and it's sent as soon as the buffer drains (see
+ * {@link DataChannelSender#onBufferedAmountChange()}).<br>
+ * The time each message spends waiting (aside and in the send buffer) is recorded. Thread-safe.<br>
+ * The channel is never called while holding the monitor of this object. The native send may block until the
+ * signaling thread runs it, and that thread reports buffered amount changes.
+ */
+public final class DataChannelSender {
+
+    /**
+     * A few controller states.
+     */
+    public static final long DEFAULT_THRESHOLD_BYTES = 64;
+    private static final int TIME_IN_BUFFER_HISTORY_SIZE = 1000;
+    private static final int INITIAL_QUEUE_CAPACITY = 64;
+
+    private final RTCDataChannel dataChannel;
+    private final long thresholdBytes;
+    private final LatencyRecorder timeInBuffer = new LatencyRecorder(TIME_IN_BUFFER_HISTORY_SIZE);
+
+    // Newest message kept aside while the buffer is above the threshold, and when it was created
+    @Nullable
+    private ByteBuffer pending;
+    private long pendingSinceNs;
+
+    // Messages in the send buffer: cumulative end offset and time when they were created, as a ring buffer
+    private long[] queueEnds = new long[INITIAL_QUEUE_CAPACITY];
+    private long[] queueTimes = new long[INITIAL_QUEUE_CAPACITY];
+    private int queueHead = 0;
+    private int queueSize = 0;
+    private long queuedBytes = 0;
+
+    private long sentCount = 0;
+    private long coalescedCount = 0;
+
+    // Serializes the sends. The monitor only guards the fields above, and it's never held while calling the channel
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    public DataChannelSender(final RTCDataChannel dataChannel) {
+        this(dataChannel, DEFAULT_THRESHOLD_BYTES);
+    }
+
+    /**
+     * Create a sender.
+     * @param dataChannel the channel.
+     * @param thresholdBytes buffered amount above which {@link DataChannelSender#sendLatest(ByteBuffer)} keeps
+     *                       only the newest message.
+     */
+    public DataChannelSender(final RTCDataChannel dataChannel, final long thresholdBytes) {
+        this.dataChannel = dataChannel;
+        this.thresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Send a message that must be delivered, even if the channel is congested.
+     * @param data the message.
+     * @throws Exception if the channel can't send it.
+     */
+    public void send(final ByteBuffer data) throws Exception {
+        final long now = System.nanoTime();
+        sendLock.lock();
+        try {
+            transmit(data, now);
+            flushPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Send a message that makes the previous ones obsolete. If the channel is congested, it's kept aside until
+     * the buffer drains, and discarded if a newer one arrives before.
+     * @param data the message.
+     * @throws Exception if the channel can't send it.
+     */
+    public void sendLatest(final ByteBuffer data) throws Exception {
+        final long now = System.nanoTime();
+        sendLock.lock();
+        try {
+            final long buffered = dataChannel.getBufferedAmount();
+            synchronized (this) {
+                if (pending != null) {
+                    coalescedCount++;
+                }
+                if (buffered > thresholdBytes) {
+                    pending = data;
+                    pendingSinceNs = now;
+                    return;
+                }
+                // Below the threshold: this message replaces the one kept aside, if any
+                pending = null;
+            }
+            transmit(data, now);
+            flushPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called from {@link dev.onvoid.webrtc.RTCDataChannelObserver#onBufferedAmountChange(long)}.<br>
+     * The channel calls it in the signaling thread, sometimes while another thread is blocked in
+     * {@link RTCDataChannel#send(RTCDataChannelBuffer)} waiting for that same thread. So it never waits for a
+     * sending thread: if one is sending, that thread sends the message kept aside after its own.
+     */
+    public void onBufferedAmountChange() {
+        drain(dataChannel.getBufferedAmount());
+        if (sendLock.tryLock()) {
+            try {
+                flushPending();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the bytes waiting in the send buffer of the channel.
+     * @return the buffered amount.
+     */
+    public long getBufferedAmount() {
+        return dataChannel.getBufferedAmount();
+    }
+
+    /**
+     * Get the number of messages waiting, in the send buffer or kept aside.
+     * @return the queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return queueSize + (pending != null ? 1 : 0);
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Get the number of messages discarded because a newer one replaced them.
+     * @return the number of coalesced messages.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Get the time between the creation of the messages and their transmission, which is 0 if the channel
+     * isn't congested.
+     * @return the recorded times.
+     */
+    public LatencyRecorder getTimeInBuffer() {
+        return timeInBuffer;
+    }
+
+    /**
+     * Send the message kept aside if the buffer is below the threshold. Called with the send lock held.
+     */
+    private void flushPending() throws Exception {
+        final long buffered = dataChannel.getBufferedAmount();
+        final ByteBuffer data;
+        final long createdNs;
+        synchronized (this) {
+            if (pending == null || buffered > thresholdBytes) {
+                return;
+            }
+            data = pending;
+            createdNs = pendingSinceNs;
+            pending = null;
+        }
+        transmit(data, createdNs);
+    }
+
+    /**
+     * Send a message and track it in the send buffer. Called with the send lock held, and never with the monitor
+     * held: the channel may call {@link DataChannelSender#onBufferedAmountChange()} before returning.
+     */
+    private void transmit(final ByteBuffer data, final long createdNs) throws Exception {
+        final int size = data.remaining();
+        dataChannel.send(new RTCDataChannelBuffer(data, true));
+        synchronized (this) {
+            sentCount++;
+            if (queueSize == queueEnds.length) {
+                grow();
+            }
+            queuedBytes += size;
+            final int index = (queueHead + queueSize) % queueEnds.length;
+            queueEnds[index] = queuedBytes;
+            queueTimes[index] = createdNs;
+            queueSize++;
+        }
+        // If it was transmitted right away, it's recorded with no time in the buffer
+        drain(dataChannel.getBufferedAmount());
+    }
+
+    /**
+     * Record the time in the buffer of the messages that left it.
+     * @param buffered current buffered amount.
+     */
+    private synchronized void drain(final long buffered) {
+        // Messages are added to the queue after they are sent, so this can only underestimate
+        final long drained = queuedBytes - buffered;
+        final long now = System.nanoTime();
+        while (queueSize > 0 && queueEnds[queueHead] <= drained) {
+            timeInBuffer.add((now - queueTimes[queueHead]) / 1e6);
+            queueHead = (queueHead + 1) % queueEnds.length;
+            queueSize--;
+        }
+        if (queueSize == 0) {
+            queuedBytes = 0;
+        }
+    }
+
+    private void grow() {
+        final long[] ends = new long[queueEnds.length * 2];
+        final long[] times = new long[queueTimes.length * 2];
+        for (int i = 0; i < queueSize; i++) {
+            ends[i] = queueEnds[(queueHead + i) % queueEnds.length];
+            times[i] = queueTimes[(queueHead + i) % queueTimes.length];
+        }
+        queueEnds = ends;
+        queueTimes = times;
+        queueHead = 0;
+    }
+}
@@ -0,0 +1,235 @@
+package com.javmarina.webrtc;
+
+import dev.onvoid.webrtc.media.video.VideoFrame;
+import dev.onvoid.webrtc.media.video.VideoTrackSink;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * Analyses the timing of a stream of frames: captured frames on the server, presented frames on the client...
+ * The intervals between the last frames are kept in a ring buffer and, at a fixed period, a {@link Report} is
+ * computed with the mean framerate, the high percentiles of the interval, the jitter and the frozen frames. The
+ * percentiles and freezes show stutter that the mean framerate hides.<br>
+ * As in WebRTC, a frame is frozen if it arrives more than max(3 * mean interval, mean interval + 150 ms) after
+ * the previous one.<br>
+ * Frames can be added as a {@link VideoTrackSink} or with {@link FrameTimingAnalyser#onFrame(long)}. Either way,
+ * they are timed with {@link System#nanoTime()}, since the timestamps of the frames don't use the same clock in
+ * all platforms and the report needs the current time to detect an ongoing freeze. Thread-safe.
+ */
+public final class FrameTimingAnalyser implements VideoTrackSink {
+
+    private static final long REPORT_PERIOD_MS = 1000;
+    private static final int DEFAULT_WINDOW_SIZE = 300;
+    private static final long FREEZE_EXTRA_NS = 150_000_000L;
+
+    private final Callback callback;
+    private final long[] intervals;
+    // Scratch array for the percentiles, so that reports don't allocate memory
+    private final long[] sorted;
+    private int next = 0;
+    private int size = 0;
+    private long intervalSum = 0;
+    private long lastFrameNs = -1;
+    private long frameCount = 0;
+    private long totalFrozenFrames = 0;
+
+    private Timer timer;
+
+    /**
+     * Create an analyser with a window of {@value DEFAULT_WINDOW_SIZE} intervals (5 seconds at 60 fps).
+     * @param callback called with the reports, from a timer thread.
+     */
+    public FrameTimingAnalyser(final Callback callback) {
+        this(callback, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create an analyser.
+     * @param callback called with the reports, from a timer thread.
+     * @param windowSize number of intervals used for each report.
+     */
+    public FrameTimingAnalyser(final Callback callback, final int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.callback = callback;
+        this.intervals = new long[windowSize];
+        this.sorted = new long[windowSize + 1];
+    }
+
+    /**
+     * Start reporting every second.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("FrameTimingAnalyser", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                callback.onReport(getReport());
+            }
+        }, REPORT_PERIOD_MS, REPORT_PERIOD_MS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    @Override
+    public void onVideoFrame(final VideoFrame frame) {
+        onFrame(System.nanoTime());
+    }
+
+    /**
+     * Add a frame.
+     * @param timestampNs time of the frame, as returned by {@link System#nanoTime()}.
+     */
+    public synchronized void onFrame(final long timestampNs) {
+        frameCount++;
+        if (lastFrameNs >= 0 && timestampNs > lastFrameNs) {
+            final long interval = timestampNs - lastFrameNs;
+            if (size > 0 && interval > getFreezeThreshold(getMeanInterval())) {
+                totalFrozenFrames++;
+            }
+            if (size == intervals.length) {
+                intervalSum -= intervals[next];
+            } else {
+                size++;
+            }
+            intervals[next] = interval;
+            intervalSum += interval;
+            next = (next + 1) % intervals.length;
+        }
+        lastFrameNs = timestampNs;
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+        intervalSum = 0;
+        lastFrameNs = -1;
+        frameCount = 0;
+        totalFrozenFrames = 0;
+    }
+
+    /**
+     * Compute a report with the current window. If the stream has stopped, the time since the last frame is
+     * included as an interval, so that the report shows the freeze before the next frame arrives.
+     * @return the report.
+     */
+    public synchronized Report getReport() {
+        if (size == 0) {
+            return new Report(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, 0,
+                    totalFrozenFrames, frameCount);
+        }
+
+        final double meanInterval = getMeanInterval();
+        final long freezeThreshold = getFreezeThreshold(meanInterval);
+        int count = size;
+        System.arraycopy(intervals, 0, sorted, 0, size);
+        final long currentGap = System.nanoTime() - lastFrameNs;
+        if (currentGap > freezeThreshold && lastFrameNs >= 0) {
+            sorted[count++] = currentGap;
+        }
+
+        long sum = 0;
+        int frozenFrames = 0;
+        for (int i = 0; i < count; i++) {
+            sum += sorted[i];
+            if (sorted[i] > freezeThreshold) {
+                frozenFrames++;
+            }
+        }
+        final double mean = (double) sum / count;
+        double squaredDeviations = 0;
+        for (int i = 0; i < count; i++) {
+            squaredDeviations += (sorted[i] - mean) * (sorted[i] - mean);
+        }
+        Arrays.sort(sorted, 0, count);
+
+        return new Report(
+                1e9 / mean,
+                mean / 1e6,
+                percentile(count, 95) / 1e6,
+                percentile(count, 99) / 1e6,
+                sorted[count - 1] / 1e6,
+                Math.sqrt(squaredDeviations / count) / 1e6,
+                frozenFrames,
+                totalFrozenFrames,
+                frameCount
+        );
+    }
+
+    private double getMeanInterval() {
+        return (double) intervalSum / size;
+    }
+
+    private static long getFreezeThreshold(final double meanInterval) {
+        return (long) Math.max(3 * meanInterval, meanInterval + FREEZE_EXTRA_NS);
+    }
+
+    /**
+     * Nearest-rank percentile of the first values of {@link FrameTimingAnalyser#sorted}.
+     */
+    private long percentile(final int count, final int percentile) {
+        final int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    public static final class Report {
+
+        public final double meanFps;
+        public final double meanIntervalMs;
+        public final double p95IntervalMs;
+        public final double p99IntervalMs;
+        public final double maxIntervalMs;
+        /**
+         * Standard deviation of the interval, in milliseconds.
+         */
+        public final double jitterMs;
+        /**
+         * Frozen frames in the window.
+         */
+        public final int frozenFrames;
+        /**
+         * Frozen frames since the analyser was created or cleared.
+         */
+        public final long totalFrozenFrames;
+        public final long frameCount;
+
+        private Report(final double meanFps, final double meanIntervalMs, final double p95IntervalMs,
+                       final double p99IntervalMs, final double maxIntervalMs, final double jitterMs,
+                       final int frozenFrames, final long totalFrozenFrames, final long frameCount) {
+            this.meanFps = meanFps;
+            this.meanIntervalMs = meanIntervalMs;
+            this.p95IntervalMs = p95IntervalMs;
+            this.p99IntervalMs = p99IntervalMs;
+            this.maxIntervalMs = maxIntervalMs;
+            this.jitterMs = jitterMs;
+            this.frozenFrames = frozenFrames;
+            this.totalFrozenFrames = totalFrozenFrames;
+            this.frameCount = frameCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%.1f fps, interval p95=%.1f ms p99=%.1f ms max=%.1f ms, jitter=%.1f ms, frozen=%d (total %d)",
+                    meanFps, p95IntervalMs, p99IntervalMs, maxIntervalMs, jitterMs, frozenFrames,
+                    totalFrozenFrames);
+        }
+    }
+
+    public interface Callback {
+        void onReport(final Report report);
+    }
+}
@@ -0,0 +1,287 @@
+package com.javmarina.webrtc;
+
+import dev.onvoid.webrtc.media.FourCC;
+import dev.onvoid.webrtc.media.video.I420Buffer;
+import dev.onvoid.webrtc.media.video.VideoBufferConverter;
+import dev.onvoid.webrtc.media.video.VideoFrameBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Converts I420 frames to BGRA (FourCC.ARGB in libyuv naming, i.e. B, G, R, A in memory), the format used by
+ * JavaFX {@code PixelFormat.getByteBgraPreInstance()}.<br>
+ * {@link VideoBufferConverter} converts a frame in a single thread, which is the bottleneck of the renderer at
+ * high resolutions. For large frames, this class splits the frame into stripes of rows and converts them in
+ * parallel in a {@link ForkJoinPool}. Small frames are still converted by the native code, which is faster when
+ * there's nothing to parallelize.<br>
+ * The Java conversion uses the same fixed-point BT.601 (limited range) coefficients and rounding as the C path
+ * of libyuv, so the output is bit-exact with it. The SIMD paths of libyuv are designed to match the C path, but
+ * {@link I420ConverterBenchmark} reports the maximum difference measured against the native converter.
+ */
+public final class I420Converter {
+
+    /**
+     * Frames with at least this number of pixels are converted in parallel (default: 1280x720).
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1280 * 720;
+
+    // Minimum number of rows of each stripe. Must be even, so that stripes don't split chroma rows
+    private static final int MIN_STRIPE_ROWS = 16;
+
+    // libyuv constants for BT.601 limited range (kYuvI601Constants), in 6 bits of fixed point
+    private static final int YG = 18997; // round(1.164 * 64 * 256 * 256 / 257)
+    private static final int YGB = -1160; // 1.164 * 64 * -16 + 64 / 2
+    private static final int UB = 128; // round(2.018 * 64), clamped to 128
+    private static final int UG = 25; // round(0.391 * 64)
+    private static final int VG = 52; // round(0.813 * 64)
+    private static final int VR = 102; // round(1.596 * 64)
+    private static final int BB = -UB * 128 + YGB;
+    private static final int BG = UG * 128 + VG * 128 + YGB;
+    private static final int BR = -VR * 128 + YGB;
+
+    // Per-component terms, so that each pixel only needs additions and shifts
+    private static final int[] Y_TERM = new int[256];
+    private static final int[] U_TO_B = new int[256];
+    private static final int[] U_TO_G = new int[256];
+    private static final int[] V_TO_G = new int[256];
+    private static final int[] V_TO_R = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TERM[i] = (i * 0x0101 * YG) >>> 16;
+            U_TO_B[i] = UB * i + BB;
+            U_TO_G[i] = -UG * i;
+            V_TO_G[i] = -VG * i + BG;
+            V_TO_R[i] = VR * i + BR;
+        }
+    }
+
+    private static final I420Converter DEFAULT = new I420Converter(ForkJoinPool.commonPool(),
+            DEFAULT_PARALLEL_THRESHOLD);
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    /**
+     * Create a converter.
+     * @param pool pool where the stripes are converted.
+     * @param parallelThreshold frames with this number of pixels or more are converted in parallel. Use
+     *                          {@link Integer#MAX_VALUE} to always use the native converter, and 0 to never use it.
+     */
+    public I420Converter(final ForkJoinPool pool, final int parallelThreshold) {
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Get a converter that uses the common pool and {@link I420Converter#DEFAULT_PARALLEL_THRESHOLD}.
+     * @return the shared converter.
+     */
+    public static I420Converter getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Convert a frame to BGRA.
+     * @param buffer the frame buffer. It's converted to I420 if needed.
+     * @param destination destination buffer, with at least width * height * 4 bytes. Can be a heap or direct buffer.
+     * @throws Exception if the native converter fails.
+     */
+    public void convert(final VideoFrameBuffer buffer, final ByteBuffer destination) throws Exception {
+        if ((long) buffer.getWidth() * buffer.getHeight() < parallelThreshold) {
+            VideoBufferConverter.convertFromI420(buffer, destination, FourCC.ARGB);
+            return;
+        }
+
+        final I420Buffer i420 = buffer instanceof I420Buffer ? (I420Buffer) buffer : buffer.toI420();
+        try {
+            convertParallel(i420, destination);
+        } finally {
+            if (i420 != buffer) {
+                i420.release();
+            }
+        }
+    }
+
+    /**
+     * Convert planes to BGRA, in parallel if they are large enough. Unlike
+     * {@link I420Converter#convert(VideoFrameBuffer, ByteBuffer)}, small frames are converted in the calling
+     * thread, since the native converter only accepts native buffers.
+     * @param planes the planes of the frame.
+     * @param destination destination buffer, with at least width * height * 4 bytes.
+     */
+    public void convert(final Planes planes, final ByteBuffer destination) {
+        if ((long) planes.width * planes.height < parallelThreshold) {
+            convertSequential(planes, destination);
+        } else {
+            convertParallel(planes, destination);
+        }
+    }
+
+    /**
+     * Convert a frame to BGRA in the pool, regardless of its size.
+     * @param buffer the frame buffer.
+     * @param destination destination buffer, with at least width * height * 4 bytes.
+     */
+    public void convertParallel(final I420Buffer buffer, final ByteBuffer destination) {
+        convertParallel(Planes.of(buffer), destination);
+    }
+
+    /**
+     * Convert planes to BGRA in the pool, regardless of their size.
+     * @param planes the planes of the frame.
+     * @param destination destination buffer, with at least width * height * 4 bytes.
+     */
+    public void convertParallel(final Planes planes, final ByteBuffer destination) {
+        final int height = planes.height;
+        final int stripes = Math.max(1, Math.min(pool.getParallelism() * 2, height / MIN_STRIPE_ROWS));
+        // Round up to an even number of rows
+        final int stripeRows = ((height + stripes - 1) / stripes + 1) & ~1;
+        pool.invoke(new StripeTask(planes, destination, 0, height, stripeRows));
+    }
+
+    /**
+     * Convert a frame to BGRA in the calling thread.
+     * @param buffer the frame buffer.
+     * @param destination destination buffer, with at least width * height * 4 bytes.
+     */
+    public static void convertSequential(final I420Buffer buffer, final ByteBuffer destination) {
+        convertSequential(Planes.of(buffer), destination);
+    }
+
+    /**
+     * Convert planes to BGRA in the calling thread.
+     * @param planes the planes of the frame.
+     * @param destination destination buffer, with at least width * height * 4 bytes.
+     */
+    public static void convertSequential(final Planes planes, final ByteBuffer destination) {
+        convertRows(planes, destination, 0, planes.height);
+    }
+
+    /**
+     * Convert a range of rows. The first row must be even.
+     */
+    private static void convertRows(final Planes planes, final ByteBuffer destination,
+                                    final int firstRow, final int lastRow) {
+        final int width = planes.width;
+        final ByteBuffer dataY = planes.dataY;
+        final ByteBuffer dataU = planes.dataU;
+        final ByteBuffer dataV = planes.dataV;
+        final int strideY = planes.strideY;
+        final int strideU = planes.strideU;
+        final int strideV = planes.strideV;
+        // Absolute accesses only, but the byte order is a property of the buffer object, so use a view
+        final ByteBuffer out = destination.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int row = firstRow; row < lastRow; row++) {
+            final int offsetY = row * strideY;
+            final int offsetU = (row >> 1) * strideU;
+            final int offsetV = (row >> 1) * strideV;
+            int offsetOut = row * width * 4;
+
+            for (int x = 0; x < width; x += 2) {
+                final int u = dataU.get(offsetU + (x >> 1)) & 0xFF;
+                final int v = dataV.get(offsetV + (x >> 1)) & 0xFF;
+                final int b = U_TO_B[u];
+                final int g = U_TO_G[u] + V_TO_G[v];
+                final int r = V_TO_R[v];
+
+                out.putInt(offsetOut, pixel(Y_TERM[dataY.get(offsetY + x) & 0xFF], b, g, r));
+                offsetOut += 4;
+                if (x + 1 < width) {
+                    out.putInt(offsetOut, pixel(Y_TERM[dataY.get(offsetY + x + 1) & 0xFF], b, g, r));
+                    offsetOut += 4;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute a pixel as a little-endian int, so that it's stored as B, G, R, A.
+     */
+    private static int pixel(final int y, final int b, final int g, final int r) {
+        return 0xFF000000 | (clamp((y + r) >> 6) << 16) | (clamp((y + g) >> 6) << 8) | clamp((y + b) >> 6);
+    }
+
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static final class StripeTask extends RecursiveAction {
+
+        private final Planes planes;
+        private final ByteBuffer destination;
+        private final int firstRow;
+        private final int lastRow;
+        private final int stripeRows;
+
+        private StripeTask(final Planes planes, final ByteBuffer destination,
+                           final int firstRow, final int lastRow, final int stripeRows) {
+            this.planes = planes;
+            this.destination = destination;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.stripeRows = stripeRows;
+        }
+
+        @Override
+        protected void compute() {
+            final int rows = lastRow - firstRow;
+            if (rows <= stripeRows) {
+                convertRows(planes, destination, firstRow, lastRow);
+                return;
+            }
+            // Split in two halves of a whole number of stripes
+            final int middle = firstRow + ((rows / stripeRows + 1) / 2) * stripeRows;
+            invokeAll(
+                    new StripeTask(planes, destination, firstRow, middle, stripeRows),
+                    new StripeTask(planes, destination, middle, lastRow, stripeRows)
+            );
+        }
+    }
+
+    /**
+     * Planes of an I420 frame. Chroma planes have half the width and height of the luma plane, rounded up.
+     */
+    public static final class Planes {
+
+        public final int width;
+        public final int height;
+        public final ByteBuffer dataY;
+        public final int strideY;
+        public final ByteBuffer dataU;
+        public final int strideU;
+        public final ByteBuffer dataV;
+        public final int strideV;
+
+        public Planes(final int width, final int height,
+                      final ByteBuffer dataY, final int strideY,
+                      final ByteBuffer dataU, final int strideU,
+                      final ByteBuffer dataV, final int strideV) {
+            this.width = width;
+            this.height = height;
+            this.dataY = dataY;
+            this.strideY = strideY;
+            this.dataU = dataU;
+            this.strideU = strideU;
+            this.dataV = dataV;
+            this.strideV = strideV;
+        }
+
+        /**
+         * Get the planes of a buffer. They are only valid while the buffer is retained.
+         * @param buffer the buffer.
+         * @return the planes.
+         */
+        public static Planes of(final I420Buffer buffer) {
+            return new Planes(buffer.getWidth(), buffer.getHeight(),
+                    buffer.getDataY(), buffer.getStrideY(),
+                    buffer.getDataU(), buffer.getStrideU(),
+                    buffer.getDataV(), buffer.getStrideV());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.javmarina.webrtc;
+
+import dev.onvoid.webrtc.media.FourCC;
+import dev.onvoid.webrtc.media.video.I420Buffer;
+import dev.onvoid.webrtc.media.video.NativeI420Buffer;
+import dev.onvoid.webrtc.media.video.VideoBufferConverter;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Micro-benchmark of the I420 to BGRA conversion, comparing the native converter (libyuv) with the sequential
+ * and parallel paths of {@link I420Converter}. Needs the native library.<br>
+ * For each resolution, it first checks the maximum difference between the Java and native outputs, and then
+ * reports the average time per frame.
+ */
+public final class I420ConverterBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+
+    private static final int[][] RESOLUTIONS = {
+            {1280, 720},
+            {1920, 1080},
+            {2560, 1440}
+    };
+
+    public static void main(final String... args) throws Exception {
+        WebRtcLoader.loadLibrary();
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        System.out.println("Parallelism: " + pool.getParallelism());
+
+        for (final int[] resolution : RESOLUTIONS) {
+            final int width = resolution[0];
+            final int height = resolution[1];
+            final NativeI420Buffer buffer = NativeI420Buffer.allocate(width, height);
+            fill(buffer, new Random(width));
+
+            final ByteBuffer expected = ByteBuffer.allocateDirect(width * height * 4);
+            final ByteBuffer actual = ByteBuffer.allocateDirect(width * height * 4);
+            VideoBufferConverter.convertFromI420(buffer, expected, FourCC.ARGB);
+            I420Converter.convertSequential(buffer, actual);
+            final int sequentialDifference = maxDifference(expected, actual);
+            final I420Converter converter = new I420Converter(pool, 0);
+            converter.convertParallel(buffer, actual);
+            final int parallelDifference = maxDifference(expected, actual);
+
+            System.out.printf("%dx%d (max difference: sequential %d, parallel %d)%n",
+                    width, height, sequentialDifference, parallelDifference);
+            run("native", () -> VideoBufferConverter.convertFromI420(buffer, actual, FourCC.ARGB));
+            run("java, sequential", () -> I420Converter.convertSequential(buffer, actual));
+            run("java, parallel", () -> converter.convertParallel(buffer, actual));
+
+            buffer.release();
+        }
+    }
+
+    private static void run(final String name, final Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        final long t1 = System.nanoTime();
+        System.out.printf("    %-20s %8.3f ms/frame%n", name, (t1 - t0) / 1e6 / ITERATIONS);
+    }
+
+    private static void fill(final I420Buffer buffer, final Random random) {
+        final int chromaHeight = (buffer.getHeight() + 1) / 2;
+        fill(buffer.getDataY(), buffer.getStrideY() * buffer.getHeight(), random);
+        fill(buffer.getDataU(), buffer.getStrideU() * chromaHeight, random);
+        fill(buffer.getDataV(), buffer.getStrideV() * chromaHeight, random);
+    }
+
+    private static void fill(final ByteBuffer plane, final int length, final Random random) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        plane.duplicate().put(bytes, 0, Math.min(length, plane.capacity()));
+    }
+
+    private static int maxDifference(final ByteBuffer a, final ByteBuffer b) {
+        int max = 0;
+        for (int i = 0; i < a.capacity(); i++) {
+            max = Math.max(max, Math.abs((a.get(i) & 0xFF) - (b.get(i) & 0xFF)));
+        }
+        return max;
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+}
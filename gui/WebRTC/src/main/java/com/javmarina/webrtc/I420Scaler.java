@@ -0,0 +1,163 @@
+package com.javmarina.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Downscales I420 frames with a box filter (each destination pixel is the average of the source pixels it
+ * covers), before the colour conversion. Converting and uploading a frame at the size it's displayed is much
+ * cheaper than converting it at full resolution and letting the view scale it.<br>
+ * The destination planes are reused between frames and only grow, so changing the target size (e.g. while the
+ * window is being resized) doesn't allocate memory. Rows are processed in parallel in a {@link ForkJoinPool}.<br>
+ * Not thread-safe: the returned planes are overwritten by the next call.
+ */
+public final class I420Scaler {
+
+    // Minimum number of destination rows scaled by each task
+    private static final int MIN_TASK_ROWS = 32;
+
+    private final ForkJoinPool pool;
+
+    private ByteBuffer dataY = ByteBuffer.allocateDirect(0);
+    private ByteBuffer dataU = ByteBuffer.allocateDirect(0);
+    private ByteBuffer dataV = ByteBuffer.allocateDirect(0);
+    // First source column of each destination column, plus the end of the last one
+    private int[] columnsY = new int[0];
+    private int[] columnsUv = new int[0];
+
+    public I420Scaler(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Scale a frame down so that it fits in the given size, keeping the aspect ratio. Frames that already fit
+     * are returned as they are.
+     * @param source planes of the frame.
+     * @param maxWidth maximum width, in pixels. 0 or less means unknown, and the frame is returned as it is.
+     * @param maxHeight maximum height, in pixels. 0 or less means unknown, and the frame is returned as it is.
+     * @return the scaled planes, valid until the next call, or the source planes if no scaling is needed.
+     */
+    public I420Converter.Planes scaleToFit(final I420Converter.Planes source, final int maxWidth, final int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0 || (source.width <= maxWidth && source.height <= maxHeight)) {
+            return source;
+        }
+        final double scale = Math.min((double) maxWidth / source.width, (double) maxHeight / source.height);
+        final int width = Math.max(1, (int) Math.round(source.width * scale));
+        final int height = Math.max(1, (int) Math.round(source.height * scale));
+        return scale(source, width, height);
+    }
+
+    /**
+     * Scale a frame down to the given size. Dimensions larger than the source are clamped to it.
+     * @param source planes of the frame.
+     * @param width destination width.
+     * @param height destination height.
+     * @return the scaled planes, valid until the next call.
+     */
+    public I420Converter.Planes scale(final I420Converter.Planes source, final int width, final int height) {
+        final int dstWidth = Math.min(width, source.width);
+        final int dstHeight = Math.min(height, source.height);
+        final int srcChromaWidth = (source.width + 1) / 2;
+        final int srcChromaHeight = (source.height + 1) / 2;
+        final int dstChromaWidth = (dstWidth + 1) / 2;
+        final int dstChromaHeight = (dstHeight + 1) / 2;
+
+        dataY = ensureCapacity(dataY, dstWidth * dstHeight);
+        dataU = ensureCapacity(dataU, dstChromaWidth * dstChromaHeight);
+        dataV = ensureCapacity(dataV, dstChromaWidth * dstChromaHeight);
+        columnsY = mapColumns(columnsY, source.width, dstWidth);
+        columnsUv = mapColumns(columnsUv, srcChromaWidth, dstChromaWidth);
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(
+                        new PlaneTask(source.dataY, source.strideY, source.height, dataY, dstWidth, dstHeight,
+                                columnsY, 0, dstHeight),
+                        new PlaneTask(source.dataU, source.strideU, srcChromaHeight, dataU, dstChromaWidth,
+                                dstChromaHeight, columnsUv, 0, dstChromaHeight),
+                        new PlaneTask(source.dataV, source.strideV, srcChromaHeight, dataV, dstChromaWidth,
+                                dstChromaHeight, columnsUv, 0, dstChromaHeight)
+                );
+            }
+        });
+
+        return new I420Converter.Planes(dstWidth, dstHeight,
+                dataY, dstWidth, dataU, dstChromaWidth, dataV, dstChromaWidth);
+    }
+
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int capacity) {
+        return buffer.capacity() >= capacity ? buffer : ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static int[] mapColumns(final int[] columns, final int srcWidth, final int dstWidth) {
+        final int[] result = columns.length >= dstWidth + 1 ? columns : new int[dstWidth + 1];
+        for (int x = 0; x <= dstWidth; x++) {
+            result[x] = (int) ((long) x * srcWidth / dstWidth);
+        }
+        return result;
+    }
+
+    /**
+     * Scales a range of rows of a plane.
+     */
+    private static final class PlaneTask extends RecursiveAction {
+
+        private final ByteBuffer src;
+        private final int srcStride;
+        private final int srcHeight;
+        private final ByteBuffer dst;
+        private final int dstWidth;
+        private final int dstHeight;
+        private final int[] columns;
+        private final int firstRow;
+        private final int lastRow;
+
+        private PlaneTask(final ByteBuffer src, final int srcStride, final int srcHeight,
+                          final ByteBuffer dst, final int dstWidth, final int dstHeight,
+                          final int[] columns, final int firstRow, final int lastRow) {
+            this.src = src;
+            this.srcStride = srcStride;
+            this.srcHeight = srcHeight;
+            this.dst = dst;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            this.columns = columns;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow > MIN_TASK_ROWS) {
+                final int middle = (firstRow + lastRow) >>> 1;
+                invokeAll(
+                        new PlaneTask(src, srcStride, srcHeight, dst, dstWidth, dstHeight, columns, firstRow, middle),
+                        new PlaneTask(src, srcStride, srcHeight, dst, dstWidth, dstHeight, columns, middle, lastRow)
+                );
+                return;
+            }
+
+            for (int y = firstRow; y < lastRow; y++) {
+                final int top = (int) ((long) y * srcHeight / dstHeight);
+                final int bottom = Math.max(top + 1, (int) ((long) (y + 1) * srcHeight / dstHeight));
+                final int offset = y * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    final int left = columns[x];
+                    final int right = Math.max(left + 1, columns[x + 1]);
+                    int sum = 0;
+                    for (int row = top; row < bottom; row++) {
+                        final int rowOffset = row * srcStride;
+                        for (int column = left; column < right; column++) {
+                            sum += src.get(rowOffset + column) & 0xFF;
+                        }
+                    }
+                    final int count = (bottom - top) * (right - left);
+                    dst.put(offset + x, (byte) ((sum + count / 2) / count));
+                }
+            }
+        }
+    }
+}
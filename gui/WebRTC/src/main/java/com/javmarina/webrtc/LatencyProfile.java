@@ -0,0 +1,197 @@
+package com.javmarina.webrtc;
+
+import java.util.Locale;
+
+
+/**
+ * Set of SDP parameters that trade quality for latency (see
+ * {@link SdpUtils#applyLatencyProfile(String, LatencyProfile)}). The client chooses it and applies it to its
+ * offer. The server applies its own profile to the answer only if the offer carries one (see
+ * {@link SdpUtils#hasLatencyProfile(String)}), so both ends agree.<br>
+ * Values equal to {@link LatencyProfile#UNSET} (or disabled flags) leave the description untouched, so
+ * {@link LatencyProfile#DEFAULT} keeps the behaviour of libwebrtc. Instances are immutable and created
+ * with a {@link Builder}.
+ */
+public final class LatencyProfile {
+
+    public static final int UNSET = 0;
+
+    /**
+     * Keep the description created by libwebrtc.
+     */
+    public static final LatencyProfile DEFAULT = new Builder().build();
+
+    /**
+     * Tuned for a local network or a good internet connection: high starting bitrate so that the quality ramp-up
+     * is short and 10 ms Opus frames.
+     */
+    public static final LatencyProfile LOW_LATENCY = new Builder()
+            .setVideoMinBitrateKbps(500)
+            .setVideoStartBitrateKbps(4000)
+            .setVideoMaxBitrateKbps(10000)
+            .setOpusPtimeMs(10)
+            .setOpusMinPtimeMs(10)
+            .setOpusStereo(true)
+            .setOpusMaxAverageBitrate(128000)
+            .build();
+
+    private final int videoMinBitrateKbps;
+    private final int videoStartBitrateKbps;
+    private final int videoMaxBitrateKbps;
+    private final int opusPtimeMs;
+    private final int opusMinPtimeMs;
+    private final boolean opusStereo;
+    private final int opusMaxAverageBitrate;
+
+    private LatencyProfile(final Builder builder) {
+        this.videoMinBitrateKbps = builder.videoMinBitrateKbps;
+        this.videoStartBitrateKbps = builder.videoStartBitrateKbps;
+        this.videoMaxBitrateKbps = builder.videoMaxBitrateKbps;
+        this.opusPtimeMs = builder.opusPtimeMs;
+        this.opusMinPtimeMs = builder.opusMinPtimeMs;
+        this.opusStereo = builder.opusStereo;
+        this.opusMaxAverageBitrate = builder.opusMaxAverageBitrate;
+    }
+
+    /**
+     * Lower bound for the bandwidth estimation of the video stream ({@code x-google-min-bitrate}).
+     * @return bitrate in kbps, or {@link LatencyProfile#UNSET}.
+     */
+    public int getVideoMinBitrateKbps() {
+        return videoMinBitrateKbps;
+    }
+
+    /**
+     * Initial bitrate of the video stream ({@code x-google-start-bitrate}).
+     * @return bitrate in kbps, or {@link LatencyProfile#UNSET}.
+     */
+    public int getVideoStartBitrateKbps() {
+        return videoStartBitrateKbps;
+    }
+
+    /**
+     * Maximum bitrate of the video stream ({@code x-google-max-bitrate}, {@code b=AS} and {@code b=TIAS}).
+     * @return bitrate in kbps, or {@link LatencyProfile#UNSET}.
+     */
+    public int getVideoMaxBitrateKbps() {
+        return videoMaxBitrateKbps;
+    }
+
+    /**
+     * Duration of the audio packets ({@code a=ptime}).
+     * @return duration in milliseconds, or {@link LatencyProfile#UNSET}.
+     */
+    public int getOpusPtimeMs() {
+        return opusPtimeMs;
+    }
+
+    /**
+     * Minimum duration of the audio packets ({@code minptime} Opus parameter).
+     * @return duration in milliseconds, or {@link LatencyProfile#UNSET}.
+     */
+    public int getOpusMinPtimeMs() {
+        return opusMinPtimeMs;
+    }
+
+    /**
+     * Whether stereo audio is requested ({@code stereo} and {@code sprop-stereo} Opus parameters).
+     * @return true if stereo is requested.
+     */
+    public boolean isOpusStereo() {
+        return opusStereo;
+    }
+
+    /**
+     * Maximum average audio bitrate ({@code maxaveragebitrate} Opus parameter).
+     * @return bitrate in bps, or {@link LatencyProfile#UNSET}.
+     */
+    public int getOpusMaxAverageBitrate() {
+        return opusMaxAverageBitrate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "LatencyProfile{video=%d/%d/%d kbps, opus=ptime %d ms, minptime %d ms, stereo %b, %d bps}",
+                videoMinBitrateKbps, videoStartBitrateKbps, videoMaxBitrateKbps,
+                opusPtimeMs, opusMinPtimeMs, opusStereo, opusMaxAverageBitrate);
+    }
+
+    public static final class Builder {
+
+        private int videoMinBitrateKbps = UNSET;
+        private int videoStartBitrateKbps = UNSET;
+        private int videoMaxBitrateKbps = UNSET;
+        private int opusPtimeMs = UNSET;
+        private int opusMinPtimeMs = UNSET;
+        private boolean opusStereo = false;
+        private int opusMaxAverageBitrate = UNSET;
+
+        public Builder() {
+        }
+
+        public Builder(final LatencyProfile profile) {
+            this.videoMinBitrateKbps = profile.videoMinBitrateKbps;
+            this.videoStartBitrateKbps = profile.videoStartBitrateKbps;
+            this.videoMaxBitrateKbps = profile.videoMaxBitrateKbps;
+            this.opusPtimeMs = profile.opusPtimeMs;
+            this.opusMinPtimeMs = profile.opusMinPtimeMs;
+            this.opusStereo = profile.opusStereo;
+            this.opusMaxAverageBitrate = profile.opusMaxAverageBitrate;
+        }
+
+        public Builder setVideoMinBitrateKbps(final int kbps) {
+            this.videoMinBitrateKbps = checkNotNegative(kbps);
+            return this;
+        }
+
+        public Builder setVideoStartBitrateKbps(final int kbps) {
+            this.videoStartBitrateKbps = checkNotNegative(kbps);
+            return this;
+        }
+
+        public Builder setVideoMaxBitrateKbps(final int kbps) {
+            this.videoMaxBitrateKbps = checkNotNegative(kbps);
+            return this;
+        }
+
+        public Builder setOpusPtimeMs(final int milliseconds) {
+            this.opusPtimeMs = checkNotNegative(milliseconds);
+            return this;
+        }
+
+        public Builder setOpusMinPtimeMs(final int milliseconds) {
+            this.opusMinPtimeMs = checkNotNegative(milliseconds);
+            return this;
+        }
+
+        public Builder setOpusStereo(final boolean stereo) {
+            this.opusStereo = stereo;
+            return this;
+        }
+
+        public Builder setOpusMaxAverageBitrate(final int bps) {
+            this.opusMaxAverageBitrate = checkNotNegative(bps);
+            return this;
+        }
+
+        public LatencyProfile build() {
+            if (videoMaxBitrateKbps != UNSET) {
+                if (videoMinBitrateKbps > videoMaxBitrateKbps || videoStartBitrateKbps > videoMaxBitrateKbps) {
+                    throw new IllegalArgumentException("Video bitrates must not exceed the maximum bitrate");
+                }
+            }
+            if (videoStartBitrateKbps != UNSET && videoMinBitrateKbps > videoStartBitrateKbps) {
+                throw new IllegalArgumentException("Start bitrate must not be lower than the minimum bitrate");
+            }
+            return new LatencyProfile(this);
+        }
+
+        private static int checkNotNegative(final int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Value must not be negative: " + value);
+            }
+            return value;
+        }
+    }
+}
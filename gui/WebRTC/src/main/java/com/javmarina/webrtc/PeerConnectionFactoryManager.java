@@ -0,0 +1,282 @@
+package com.javmarina.webrtc;
+
+import dev.onvoid.webrtc.PeerConnectionFactory;
+import dev.onvoid.webrtc.PeerConnectionObserver;
+import dev.onvoid.webrtc.RTCConfiguration;
+import dev.onvoid.webrtc.RTCDataChannel;
+import dev.onvoid.webrtc.RTCIceCandidate;
+import dev.onvoid.webrtc.RTCIceConnectionState;
+import dev.onvoid.webrtc.RTCIceGatheringState;
+import dev.onvoid.webrtc.RTCPeerConnection;
+import dev.onvoid.webrtc.RTCPeerConnectionState;
+import dev.onvoid.webrtc.RTCRtpCodecCapability;
+import dev.onvoid.webrtc.RTCRtpTransceiver;
+import dev.onvoid.webrtc.RTCSignalingState;
+import dev.onvoid.webrtc.media.MediaType;
+import dev.onvoid.webrtc.media.audio.AudioDeviceModule;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Process-wide owner of the native objects that are expensive to create: the {@link AudioDeviceModule} and the
+ * {@link PeerConnectionFactory}. Each factory starts its own network, worker and signaling threads and
+ * initialises the audio stack, so a single one is created (in a background thread, see
+ * {@link PeerConnectionFactoryManager#prewarm()}) and shared by all sessions and device previews. Capability
+ * queries are cached.<br>
+ * A peer connection can also be prepared before the session starts (see
+ * {@link PeerConnectionFactoryManager#prewarmPeerConnection(Class, RTCConfiguration, PeerConnectionSetup)}), so
+ * that ICE candidates are already being gathered when the user clicks connect.<br>
+ * The shared objects are never disposed by the sessions, only when the application exits.
+ */
+public final class PeerConnectionFactoryManager {
+
+    private static final PeerConnectionFactoryManager INSTANCE = new PeerConnectionFactoryManager();
+
+    // Native objects are created and prepared in this thread, never in the JavaFX one
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "PeerConnectionFactoryManager");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<MediaType, List<RTCRtpCodecCapability>> receiverCodecs = new ConcurrentHashMap<>();
+    private final Map<MediaType, List<RTCRtpCodecCapability>> senderCodecs = new ConcurrentHashMap<>();
+    // Peer connections prepared in advance, one for each type of peer
+    private final Map<Class<? extends RtcPeer>, CompletableFuture<PreparedPeerConnection>> prepared =
+            new HashMap<>();
+
+    @Nullable
+    private CompletableFuture<Void> initialization;
+    private AudioDeviceModule audioDeviceModule;
+    private PeerConnectionFactory factory;
+
+    private PeerConnectionFactoryManager() {
+    }
+
+    public static PeerConnectionFactoryManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create the audio device module and the factory in a background thread, if not created yet. Call it as
+     * soon as the native library is loaded, so that they are ready when the user starts a session.
+     */
+    public synchronized void prewarm() {
+        if (initialization == null) {
+            initialization = CompletableFuture.runAsync(() -> {
+                final long start = System.nanoTime();
+                audioDeviceModule = new AudioDeviceModule();
+                factory = new PeerConnectionFactory(audioDeviceModule);
+                System.out.println(String.format("WebRTC factory created in %d ms",
+                        (System.nanoTime() - start) / 1000000));
+            }, executor);
+        }
+    }
+
+    /**
+     * Get the shared factory, waiting for it to be created if needed. Don't dispose it.
+     * @return the factory.
+     */
+    public PeerConnectionFactory getFactory() {
+        awaitInitialization();
+        return factory;
+    }
+
+    /**
+     * Get the shared audio device module, waiting for it to be created if needed. Sessions select their device
+     * and start or stop playout and recording, but don't dispose it.
+     * @return the audio device module.
+     */
+    public AudioDeviceModule getAudioDeviceModule() {
+        awaitInitialization();
+        return audioDeviceModule;
+    }
+
+    /**
+     * Get the codecs that can be received, queried only once.
+     * @param mediaType audio or video.
+     * @return the codecs.
+     */
+    public List<RTCRtpCodecCapability> getReceiverCodecs(final MediaType mediaType) {
+        return receiverCodecs.computeIfAbsent(mediaType,
+                type -> List.copyOf(getFactory().getRtpReceiverCapabilities(type).getCodecs()));
+    }
+
+    /**
+     * Get the codecs that can be sent, queried only once.
+     * @param mediaType audio or video.
+     * @return the codecs.
+     */
+    public List<RTCRtpCodecCapability> getSenderCodecs(final MediaType mediaType) {
+        return senderCodecs.computeIfAbsent(mediaType,
+                type -> List.copyOf(getFactory().getRtpSenderCapabilities(type).getCodecs()));
+    }
+
+    /**
+     * Prepare a peer connection in a background thread, to be used by the next peer of the given type. Does
+     * nothing if one is already prepared.<br>
+     * Events that happen before the peer takes the connection are discarded. Without a remote description,
+     * those can only be gathering events, and the gathered candidates are not lost: they are included in the
+     * local description.
+     * @param peerType type of the peer that will take the connection.
+     * @param configuration configuration of the connection. Must be the one used by the peer.
+     * @param setup adds the tracks, transceivers and data channels, and can set a local description so that
+     *              ICE gathering starts.
+     */
+    public synchronized void prewarmPeerConnection(final Class<? extends RtcPeer> peerType,
+                                                   final RTCConfiguration configuration,
+                                                   final PeerConnectionSetup setup) {
+        if (prepared.containsKey(peerType)) {
+            return;
+        }
+        prewarm();
+        prepared.put(peerType, CompletableFuture.supplyAsync(() -> {
+            final ForwardingObserver observer = new ForwardingObserver();
+            final RTCPeerConnection peerConnection = factory.createPeerConnection(configuration, observer);
+            setup.setUp(peerConnection, factory);
+            return new PreparedPeerConnection(peerConnection, observer);
+        }, executor));
+    }
+
+    /**
+     * Take the peer connection prepared for a type of peer, waiting for it if it's still being prepared.
+     * @param peerType type of the peer.
+     * @param observer observer of the connection from now on.
+     * @return the connection, or {@code null} if there isn't any prepared connection for this type of peer.
+     */
+    @Nullable
+    public RTCPeerConnection takePeerConnection(final Class<? extends RtcPeer> peerType,
+                                                final PeerConnectionObserver observer) {
+        final CompletableFuture<PreparedPeerConnection> future;
+        synchronized (this) {
+            future = prepared.remove(peerType);
+        }
+        if (future == null) {
+            return null;
+        }
+        try {
+            final PreparedPeerConnection preparedPeerConnection = future.join();
+            preparedPeerConnection.observer.target = observer;
+            return preparedPeerConnection.peerConnection;
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Dispose the shared objects. Only call it when the application exits.
+     */
+    public synchronized void dispose() {
+        if (initialization != null) {
+            awaitInitialization();
+            factory.dispose();
+            audioDeviceModule.dispose();
+        }
+        executor.shutdown();
+    }
+
+    private void awaitInitialization() {
+        final CompletableFuture<Void> future;
+        synchronized (this) {
+            prewarm();
+            future = initialization;
+        }
+        future.join();
+    }
+
+    public interface PeerConnectionSetup {
+        void setUp(final RTCPeerConnection peerConnection, final PeerConnectionFactory factory);
+    }
+
+    private static final class PreparedPeerConnection {
+
+        private final RTCPeerConnection peerConnection;
+        private final ForwardingObserver observer;
+
+        private PreparedPeerConnection(final RTCPeerConnection peerConnection, final ForwardingObserver observer) {
+            this.peerConnection = peerConnection;
+            this.observer = observer;
+        }
+    }
+
+    /**
+     * Forwards the events to the observer of the peer that took the connection, and discards them until then.
+     */
+    private static final class ForwardingObserver implements PeerConnectionObserver {
+
+        @Nullable
+        private volatile PeerConnectionObserver target;
+
+        @Override
+        public void onSignalingChange(final RTCSignalingState state) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onSignalingChange(state);
+            }
+        }
+
+        @Override
+        public void onConnectionChange(final RTCPeerConnectionState state) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onConnectionChange(state);
+            }
+        }
+
+        @Override
+        public void onIceConnectionChange(final RTCIceConnectionState state) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onIceConnectionChange(state);
+            }
+        }
+
+        @Override
+        public void onIceGatheringChange(final RTCIceGatheringState state) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onIceGatheringChange(state);
+            }
+        }
+
+        @Override
+        public void onIceCandidate(final RTCIceCandidate candidate) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onIceCandidate(candidate);
+            }
+        }
+
+        @Override
+        public void onDataChannel(final RTCDataChannel dataChannel) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onDataChannel(dataChannel);
+            }
+        }
+
+        @Override
+        public void onRenegotiationNeeded() {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onRenegotiationNeeded();
+            }
+        }
+
+        @Override
+        public void onTrack(final RTCRtpTransceiver transceiver) {
+            final PeerConnectionObserver observer = target;
+            if (observer != null) {
+                observer.onTrack(transceiver);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.javmarina.webrtc;
+
+import com.javmarina.webrtc.stats.Metric;
+import com.javmarina.webrtc.stats.StatsSampler;
+import com.javmarina.webrtc.stats.StatsSnapshot;
+import dev.onvoid.webrtc.RTCPeerConnection;
+import dev.onvoid.webrtc.RTCRtpEncodingParameters;
+import dev.onvoid.webrtc.RTCRtpSendParameters;
+import dev.onvoid.webrtc.RTCRtpSender;
+import dev.onvoid.webrtc.RTCStatsReport;
+import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
+import dev.onvoid.webrtc.media.video.VideoDeviceSource;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Control loop that adapts the video stream to the network. Every second, the stats of the peer connection are
+ * sampled (RTT, packet loss, available outgoing bitrate and encoded frames) and the encoding parameters of the
+ * video sender are moved along a quality ladder:
+ * <ul>
+ *     <li>Quality goes down quickly (two bad samples) when latency or losses grow, or when the estimated bandwidth
+ *     is below the current bitrate. This keeps the latency bounded on poor links.</li>
+ *     <li>Quality goes up slowly (several good samples in a row) so that the stream doesn't oscillate.</li>
+ * </ul>
+ * Resolution is reduced before framerate, since a smooth stream is more important than a sharp one when playing.
+ * If the lowest step is still too much for the link, the capture device is switched to a smaller capability
+ * (see {@link VideoCapabilitySelection}), and back to the original one once the link recovers. Stats are delivered
+ * in a native WebRTC thread, so the capture device is restarted in a thread of its own.
+ */
+public final class QualityController {
+
+    private static final long SAMPLE_PERIOD_MS = 1000;
+
+    private static final double RTT_HIGH_MS = 250;
+    private static final double RTT_LOW_MS = 120;
+    private static final double LOSS_HIGH = 0.05;
+    private static final double LOSS_LOW = 0.01;
+    // The estimated bandwidth must be this much higher than the next step to go up
+    private static final double BANDWIDTH_HEADROOM = 1.25;
+
+    private static final int BAD_SAMPLES_TO_STEP_DOWN = 2;
+    private static final int GOOD_SAMPLES_TO_STEP_UP = 5;
+    // Samples to ignore after a change, so that the stats reflect the new parameters
+    private static final int SAMPLES_AFTER_CHANGE = 2;
+
+    private static final Step[] LADDER = {
+            new Step(8_000_000, null, 1.0),
+            new Step(5_000_000, null, 1.0),
+            new Step(3_000_000, null, 1.5),
+            new Step(1_500_000, 30.0, 2.0),
+            new Step(800_000, 30.0, 3.0),
+            new Step(400_000, 20.0, 4.0)
+    };
+    private static final int INITIAL_STEP = 1;
+    private static final int STATS_HISTORY_SIZE = 60;
+    // Time to wait for a pending capture switch when the controller is stopped
+    private static final long CAPTURE_SWITCH_TIMEOUT_MS = 2000;
+
+    private final RTCPeerConnection peerConnection;
+    private final RTCRtpSender videoSender;
+    private final VideoDeviceSource videoSource;
+    @Nullable
+    private final List<VideoCaptureCapability> capabilities;
+    @Nullable
+    private final VideoCaptureCapability originalCapability;
+    private final StatsSampler statsSampler = new StatsSampler(STATS_HISTORY_SIZE);
+
+    private Timer timer;
+    // Restarts the capture device, never from the stats callback
+    private ExecutorService captureExecutor;
+    private int step = INITIAL_STEP;
+    @Nullable
+    private VideoCaptureCapability currentCapability;
+    private int badSamples = 0;
+    private int goodSamples = 0;
+    private int samplesToSkip = 0;
+
+    /**
+     * Create a controller for the video sender of a peer connection.
+     * @param peerConnection the peer connection.
+     * @param videoSender the sender of the video track.
+     * @param videoSource source of the video track.
+     * @param capabilities capabilities of the capture device, or null if capture can't be changed.
+     * @param capability capability currently used by the capture device, or null if unknown.
+     */
+    public QualityController(final RTCPeerConnection peerConnection,
+                             final RTCRtpSender videoSender,
+                             final VideoDeviceSource videoSource,
+                             @Nullable final List<VideoCaptureCapability> capabilities,
+                             @Nullable final VideoCaptureCapability capability) {
+        this.peerConnection = peerConnection;
+        this.videoSender = videoSender;
+        this.videoSource = videoSource;
+        this.capabilities = capabilities;
+        this.originalCapability = capability;
+        this.currentCapability = capability;
+    }
+
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        applyStep(step);
+        captureExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "QualityController-capture");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer = new Timer("QualityController", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    peerConnection.getStats(QualityController.this::onStats);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, SAMPLE_PERIOD_MS, SAMPLE_PERIOD_MS);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        timer.cancel();
+        timer = null;
+        if (originalCapability != null && currentCapability != originalCapability) {
+            // Leave the source as it was for the next session
+            switchCapability(originalCapability);
+        }
+        // Wait for the pending switches, so that the caller can stop the source afterwards
+        captureExecutor.shutdown();
+        try {
+            if (!captureExecutor.awaitTermination(CAPTURE_SWITCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println("Capture switch still running after " + CAPTURE_SWITCH_TIMEOUT_MS + " ms");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the stats sampled by this controller, once per second.
+     * @return the sampler.
+     */
+    public StatsSampler getStatsSampler() {
+        return statsSampler;
+    }
+
+    private synchronized void onStats(final RTCStatsReport report) {
+        if (timer == null) {
+            return;
+        }
+
+        final StatsSnapshot snapshot = statsSampler.onReport(report);
+        if (snapshot.outboundVideo == null || statsSampler.size() < 2) {
+            // No video yet, or no previous sample to compute rates
+            return;
+        }
+
+        final double rttMs = orDefault(statsSampler.getLatest(Metric.RTT_MS), -1);
+        final double loss = orDefault(statsSampler.getLatest(Metric.REMOTE_VIDEO_LOSS_PERCENT), 0) / 100;
+        final double availableKbps = orDefault(statsSampler.getLatest(Metric.AVAILABLE_OUT_KBPS), -1);
+        final double availableBitrate = availableKbps < 0 ? -1 : availableKbps * 1000;
+        final double encodedFps = orDefault(statsSampler.getLatest(Metric.FPS_ENCODED), 0);
+
+        if (samplesToSkip > 0) {
+            samplesToSkip--;
+            return;
+        }
+
+        final boolean bad = rttMs > RTT_HIGH_MS
+                || loss > LOSS_HIGH
+                || (availableBitrate > 0 && availableBitrate < LADDER[step].maxBitrate * 0.8);
+        final boolean good = rttMs >= 0 && rttMs < RTT_LOW_MS
+                && loss < LOSS_LOW
+                && (availableBitrate < 0 || step == 0
+                        || availableBitrate > LADDER[step - 1].maxBitrate * BANDWIDTH_HEADROOM);
+
+        if (bad) {
+            goodSamples = 0;
+            badSamples++;
+            if (badSamples >= BAD_SAMPLES_TO_STEP_DOWN) {
+                badSamples = 0;
+                stepDown(String.format("rtt=%.0f ms, loss=%.1f %%, bwe=%.0f kbps, fps=%.1f",
+                        rttMs, loss * 100, availableBitrate / 1000, encodedFps));
+            }
+        } else if (good) {
+            badSamples = 0;
+            goodSamples++;
+            if (goodSamples >= GOOD_SAMPLES_TO_STEP_UP) {
+                goodSamples = 0;
+                stepUp(String.format("rtt=%.0f ms, loss=%.1f %%, bwe=%.0f kbps, fps=%.1f",
+                        rttMs, loss * 100, availableBitrate / 1000, encodedFps));
+            }
+        } else {
+            badSamples = 0;
+            goodSamples = 0;
+        }
+    }
+
+    private void stepDown(final String reason) {
+        if (step < LADDER.length - 1) {
+            step++;
+            System.out.println("Video quality down to step " + step + " (" + reason + ")");
+            applyStep(step);
+        } else if (capabilities != null && currentCapability != null) {
+            final VideoCaptureCapability smaller = VideoCapabilitySelection.selectSmallerCapability(
+                    capabilities, currentCapability, VideoCapabilitySelection.Policy.BEST_FRAMERATE);
+            if (smaller != null) {
+                System.out.println("Capture switched to " + format(smaller) + " (" + reason + ")");
+                // Stay at the lowest step, each step up will now produce smaller frames than before
+                switchCapability(smaller);
+            }
+        }
+    }
+
+    private void stepUp(final String reason) {
+        if (currentCapability != originalCapability && originalCapability != null && step == 0) {
+            System.out.println("Capture switched back to " + format(originalCapability) + " (" + reason + ")");
+            switchCapability(originalCapability);
+            step = LADDER.length - 1;
+            applyStep(step);
+        } else if (step > 0) {
+            step--;
+            System.out.println("Video quality up to step " + step + " (" + reason + ")");
+            applyStep(step);
+        }
+    }
+
+    private void applyStep(final int index) {
+        final Step target = LADDER[index];
+        try {
+            final RTCRtpSendParameters parameters = videoSender.getParameters();
+            for (final RTCRtpEncodingParameters encoding : parameters.encodings) {
+                encoding.maxBitrate = target.maxBitrate;
+                encoding.maxFramerate = target.maxFramerate;
+                encoding.scaleResolutionDownBy = target.scaleResolutionDownBy;
+            }
+            videoSender.setParameters(parameters);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        samplesToSkip = SAMPLES_AFTER_CHANGE;
+    }
+
+    private void switchCapability(final VideoCaptureCapability capability) {
+        currentCapability = capability;
+        samplesToSkip = SAMPLES_AFTER_CHANGE;
+        captureExecutor.execute(() -> {
+            try {
+                videoSource.stop();
+                videoSource.setVideoCaptureCapability(capability);
+                videoSource.start();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static double orDefault(final double value, final double fallback) {
+        return Double.isNaN(value) ? fallback : value;
+    }
+
+    private static String format(final VideoCaptureCapability capability) {
+        return String.format("%dx%d@%d", capability.width, capability.height, capability.frameRate);
+    }
+
+    private static final class Step {
+
+        private final int maxBitrate;
+        @Nullable
+        private final Double maxFramerate;
+        private final double scaleResolutionDownBy;
+
+        private Step(final int maxBitrate, @Nullable final Double maxFramerate, final double scaleResolutionDownBy) {
+            this.maxBitrate = maxBitrate;
+            this.maxFramerate = maxFramerate;
+            this.scaleResolutionDownBy = scaleResolutionDownBy;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.javmarina.webrtc;
+
+
+/**
+ * What a peer does when the ICE connection is lost after the session was established.<br>
+ * Instead of tearing down the session, both peers keep their media sources, data channel and (on the server)
+ * serial link, and open the signaling channel again with the same session ID. The client then sends an offer
+ * with an ICE restart, which makes both peers gather new candidates without renegotiating the media. If the
+ * connection isn't recovered within the grace period, the session is closed as before.
+ */
+public final class ReconnectionPolicy {
+
+    /**
+     * Try to reconnect for 15 seconds, restarting the signaling every 3 seconds.
+     */
+    public static final ReconnectionPolicy DEFAULT = new ReconnectionPolicy(15000, 3000);
+    /**
+     * Close the session as soon as the connection is lost.
+     */
+    public static final ReconnectionPolicy DISABLED = new ReconnectionPolicy(0, 0);
+
+    /**
+     * Maximum time to recover the connection, in milliseconds.
+     */
+    public final long gracePeriodMs;
+    /**
+     * Time between ICE restart attempts, in milliseconds. An attempt can be lost if the other peer hasn't
+     * registered in the signaling server yet, so the client sends a new one after this time.
+     */
+    public final long retryIntervalMs;
+
+    /**
+     * Create a policy.
+     * @param gracePeriodMs maximum time to recover the connection, in milliseconds. 0 disables reconnection.
+     * @param retryIntervalMs time between ICE restart attempts, in milliseconds.
+     */
+    public ReconnectionPolicy(final long gracePeriodMs, final long retryIntervalMs) {
+        if (gracePeriodMs < 0 || retryIntervalMs < 0 || (gracePeriodMs > 0 && retryIntervalMs == 0)) {
+            throw new IllegalArgumentException("Invalid reconnection policy");
+        }
+        this.gracePeriodMs = gracePeriodMs;
+        this.retryIntervalMs = retryIntervalMs;
+    }
+
+    public boolean isEnabled() {
+        return gracePeriodMs > 0;
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled()
+                ? "grace period " + gracePeriodMs + " ms, retry every " + retryIntervalMs + " ms"
+                : "disabled";
+    }
+}
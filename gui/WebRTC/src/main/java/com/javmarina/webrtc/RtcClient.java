@@ -2,23 +2,27 @@ package com.javmarina.webrtc;
 
 import com.javmarina.util.Packet;
 import com.javmarina.util.StoppableLoop;
+import com.javmarina.webrtc.latency.ClockOffsetEstimator;
 import com.javmarina.webrtc.signaling.SignalingPeer;
 import com.javmarina.webrtc.signaling.SessionId;
 import dev.onvoid.webrtc.CreateSessionDescriptionObserver;
+import dev.onvoid.webrtc.PeerConnectionFactory;
 import dev.onvoid.webrtc.RTCDataChannel;
 import dev.onvoid.webrtc.RTCDataChannelBuffer;
 import dev.onvoid.webrtc.RTCDataChannelInit;
 import dev.onvoid.webrtc.RTCDataChannelObserver;
+import dev.onvoid.webrtc.RTCDataChannelState;
 import dev.onvoid.webrtc.RTCOfferOptions;
+import dev.onvoid.webrtc.RTCPeerConnection;
 import dev.onvoid.webrtc.RTCPriorityType;
 import dev.onvoid.webrtc.RTCRtpTransceiver;
 import dev.onvoid.webrtc.RTCRtpTransceiverDirection;
 import dev.onvoid.webrtc.RTCRtpTransceiverInit;
 import dev.onvoid.webrtc.RTCSessionDescription;
+import dev.onvoid.webrtc.RTCSignalingState;
 import dev.onvoid.webrtc.RTCStatsCollectorCallback;
 import dev.onvoid.webrtc.SetSessionDescriptionObserver;
 import dev.onvoid.webrtc.media.MediaStreamTrack;
-import dev.onvoid.webrtc.media.audio.AudioDeviceModule;
 import dev.onvoid.webrtc.media.audio.AudioOptions;
 import dev.onvoid.webrtc.media.audio.AudioSource;
 import dev.onvoid.webrtc.media.audio.AudioTrack;
@@ -26,6 +30,7 @@ import dev.onvoid.webrtc.media.video.VideoDeviceSource;
 import dev.onvoid.webrtc.media.video.VideoSource;
 import dev.onvoid.webrtc.media.video.VideoTrack;
 import dev.onvoid.webrtc.media.video.VideoTrackSink;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 
@@ -34,38 +39,65 @@ public class RtcClient extends RtcPeer {
 
     private final PacketProvider packetProvider;
     private final SdpUtils.CodecPreference codecPreference;
+    private final LatencyProfile latencyProfile;
     private final RTCDataChannel dataChannel;
+    private final DataChannelSender dataChannelSender;
     private final ClientOut clientOutRunnable;
     private final Thread threadOut;
     private final Callback callback;
+    private final ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator();
+    // ICE restart offer sent while reconnecting and not answered yet
+    @Nullable
+    private volatile RTCSessionDescription restartOffer;
 
     public RtcClient(final SessionId sessionId,
                      final PacketProvider packetProvider,
                      final SdpUtils.CodecPreference codecPreference,
-                     final AudioDeviceModule audioDeviceModule,
+                     final LatencyProfile latencyProfile,
                      final Callback callback) {
-        super(new SignalingPeer(sessionId, SignalingPeer.Role.CLIENT), audioDeviceModule);
+        super(new SignalingPeer(sessionId, SignalingPeer.Role.CLIENT));
         this.packetProvider = packetProvider;
         this.codecPreference = codecPreference;
+        this.latencyProfile = latencyProfile;
         this.callback = callback;
 
+        if (!prewarmed) {
+            createTransceivers(peerConnection, factory);
+        }
+        // Also for prewarmed connections, the offer sent to the server will include it
         final RTCDataChannelInit init = new RTCDataChannelInit();
         init.priority = RTCPriorityType.HIGH;
         dataChannel = peerConnection.createDataChannel(DATA_CHANNEL_NAME, init);
+        dataChannelSender = new DataChannelSender(dataChannel);
         dataChannel.registerObserver(new RTCDataChannelObserver() {
             @Override
             public void onBufferedAmountChange(final long previousAmount) {
+                dataChannelSender.onBufferedAmountChange();
             }
 
             @Override
             public void onStateChange() {
+                if (dataChannel.getState() == RTCDataChannelState.OPEN) {
+                    timeline.mark(SetupTimeline.Phase.DATA_CHANNEL_OPEN);
+                } else if (dataChannel.getState() == RTCDataChannelState.CLOSED) {
+                    // Losing the ICE connection doesn't close the data channel, the server did it
+                    onRemoteClose();
+                }
             }
 
             @Override
             public void onMessage(final RTCDataChannelBuffer buffer) {
                 final byte commandId = buffer.data.get(0);
-                if (commandId == RtcPeer.COMMAND_PING) {
-                    final int rtt = (int) (System.currentTimeMillis() - buffer.data.getLong(1));
+                if (commandId == RtcPeer.COMMAND_BYE) {
+                    onRemoteClose();
+                } else if (commandId == RtcPeer.COMMAND_PING) {
+                    final long now = System.currentTimeMillis();
+                    final long sent = buffer.data.getLong(1);
+                    final int rtt = (int) (now - sent);
+                    if (buffer.data.limit() >= 1 + 2 * Long.BYTES) {
+                        // Newer servers include their time in the reply
+                        clockOffsetEstimator.onPingReply(sent, buffer.data.getLong(1 + Long.BYTES), now);
+                    }
                     callback.onRttReplyReceived(rtt);
                     clientOutRunnable.packetCounter = 0;
                 }
@@ -74,11 +106,22 @@ public class RtcClient extends RtcPeer {
 
         this.clientOutRunnable = new ClientOut();
         this.threadOut = new Thread(this.clientOutRunnable);
+    }
 
-        createTransceivers();
+    /**
+     * Prepare the peer connection of the next client in a background thread, and start gathering ICE
+     * candidates. Call it when the user may start a session soon.
+     */
+    public static void prewarm() {
+        PeerConnectionFactoryManager.getInstance().prewarmPeerConnection(RtcClient.class, defaultConfiguration,
+                (peerConnection, factory) -> {
+                    createTransceivers(peerConnection, factory);
+                    startIceGathering(peerConnection);
+                });
     }
 
-    private void createTransceivers() {
+    private static void createTransceivers(final RTCPeerConnection peerConnection,
+                                           final PeerConnectionFactory factory) {
         final AudioSource audioSource = factory.createAudioSource(new AudioOptions());
         final AudioTrack audioTrack = factory.createAudioTrack(AUDIO_TRACK_NAME, audioSource);
         final RTCRtpTransceiverInit audioTransceiverInit = new RTCRtpTransceiverInit();
@@ -94,15 +137,58 @@ public class RtcClient extends RtcPeer {
         final RTCRtpTransceiver videoTransceiver = peerConnection.addTransceiver(videoTrack, videoTransceiverInit);
     }
 
+    /**
+     * Set a local offer, which starts ICE gathering. The offer is never sent: the session creates a new one
+     * with the data channel and the SDP changes, which keeps the ICE credentials and the gathered candidates.
+     */
+    private static void startIceGathering(final RTCPeerConnection peerConnection) {
+        peerConnection.createOffer(new RTCOfferOptions(), new CreateSessionDescriptionObserver() {
+            @Override
+            public void onSuccess(final RTCSessionDescription description) {
+                peerConnection.setLocalDescription(description, new SetSessionDescriptionObserver() {
+                    @Override
+                    public void onSuccess() {
+                    }
+
+                    @Override
+                    public void onFailure(final String error) {
+                        log(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final String error) {
+                log(error);
+            }
+        });
+    }
+
+    /**
+     * Get the estimation of the offset between the clocks of the server and the client, updated with each RTT
+     * measurement.
+     * @return the estimator.
+     */
+    public ClockOffsetEstimator getClockOffsetEstimator() {
+        return clockOffsetEstimator;
+    }
+
     public void stop() {
+        sendBye(dataChannelSender);
         peerConnection.close(); // will call onDisconnected()
-        factory.dispose();
-        audioDeviceModule.dispose();
+        // The factory and the audio device module are shared (see PeerConnectionFactoryManager)
+        audioDeviceModule.stopPlayout();
         signalingPeer.close();
     }
 
     @Override
     protected void onAnswerReceived(final RTCSessionDescription description) {
+        if (peerConnection.getSignalingState() != RTCSignalingState.HAVE_LOCAL_OFFER) {
+            // The same restart offer may be sent several times, only its first answer is applied
+            System.out.println("Ignoring answer, no offer is outstanding");
+            return;
+        }
+        restartOffer = null;
         peerConnection.setRemoteDescription(description, new SetSessionDescriptionObserver() {
             @Override
             public void onSuccess() {
@@ -121,7 +207,10 @@ public class RtcClient extends RtcPeer {
 
         if (track.getKind().equals(MediaStreamTrack.VIDEO_TRACK_KIND)) {
             final VideoTrack videoTrack = (VideoTrack) track;
-            videoTrack.addSink(callback);
+            videoTrack.addSink(frame -> {
+                timeline.mark(SetupTimeline.Phase.FIRST_VIDEO_FRAME);
+                callback.onVideoFrame(frame);
+            });
         }
     }
 
@@ -132,10 +221,29 @@ public class RtcClient extends RtcPeer {
         callback.onSessionStarted();
     }
 
+    @Override
+    protected void onConnectionInterrupted() {
+        callback.onConnectionInterrupted();
+    }
+
+    @Override
+    protected void onReconnectionRetry() {
+        // Register again, which sends the offer with the ICE restart. It is lost if the server wasn't registered yet
+        restartSignaling();
+    }
+
+    @Override
+    protected void onReconnected(final long recoveryMillis) {
+        restartOffer = null;
+        // The reply to the last ping may have been lost
+        clientOutRunnable.packetCounter = 0;
+        callback.onReconnected(recoveryMillis);
+    }
+
     @Override
     protected void onDisconnected() {
-        // Peer connection is closed when the RtcClient decides (when stop() is called),
-        // so this method is never called
+        // The connection couldn't be recovered. Don't close the peer connection from the observer thread
+        new Thread(this::stop).start();
     }
 
     @Override
@@ -150,16 +258,37 @@ public class RtcClient extends RtcPeer {
 
     @Override
     protected void onValidRegister() {
-        // Create offer
+        final RTCSessionDescription pendingOffer = restartOffer;
+        if (isReconnecting() && pendingOffer != null
+                && peerConnection.getSignalingState() == RTCSignalingState.HAVE_LOCAL_OFFER) {
+            // Send the same offer again instead of a new one, so that whichever answer arrives matches it
+            signalingPeer.sendOffer(pendingOffer);
+            return;
+        }
+        // Create offer. If the connection was lost, gather new ICE candidates but keep the media as they are
         final RTCOfferOptions offerOptions = new RTCOfferOptions();
+        offerOptions.iceRestart = isReconnecting();
         peerConnection.createOffer(offerOptions, new CreateSessionDescriptionObserver() {
             @Override
             public void onSuccess(final RTCSessionDescription description) {
-                final RTCSessionDescription newSessionDescription = SdpUtils.setCodecPreference(description, codecPreference);
+                timeline.mark(SetupTimeline.Phase.OFFER_CREATED);
+                final RTCSessionDescription newSessionDescription = SdpUtils.applyLatencyProfile(
+                        SdpUtils.setCodecPreference(description, codecPreference),
+                        latencyProfile
+                );
+                timeline.mark(SetupTimeline.Phase.SDP_MUNGED);
                 peerConnection.setLocalDescription(newSessionDescription, new SetSessionDescriptionObserver() {
                     @Override
                     public void onSuccess() {
-                        signalingPeer.sendOffer(newSessionDescription);
+                        // The local description includes the candidates gathered so far. With a prewarmed
+                        // connection, those are all of them, and they weren't sent as they were gathered
+                        final RTCSessionDescription localDescription = peerConnection.getLocalDescription();
+                        final RTCSessionDescription offer =
+                                localDescription != null ? localDescription : newSessionDescription;
+                        if (offerOptions.iceRestart) {
+                            restartOffer = offer;
+                        }
+                        signalingPeer.sendOffer(offer);
                     }
 
                     @Override
@@ -176,6 +305,19 @@ public class RtcClient extends RtcPeer {
         });
     }
 
+    @Override
+    protected void onSetupCompleted(final SetupTimeline timeline) {
+        callback.onSetupCompleted(timeline);
+    }
+
+    /**
+     * Get the sender of the data channel, which reports how long the controller states wait to be sent.
+     * @return the sender.
+     */
+    public DataChannelSender getDataChannelSender() {
+        return dataChannelSender;
+    }
+
     public void getStats(final RTCStatsCollectorCallback callback) {
         if (peerConnection != null) {
             peerConnection.getStats(callback);
@@ -197,33 +339,34 @@ public class RtcClient extends RtcPeer {
 
         @Override
         public void loop() {
+            if (System.currentTimeMillis() - millis <= PERIOD_MS) {
+                return;
+            }
+            millis = System.currentTimeMillis();
             try {
-                if (System.currentTimeMillis() - millis > PERIOD_MS) {
-                    final Packet packet = packetProvider.getPacket();
-                    if (packet == null) {
-                        peerConnection.close();
-                        return;
-                    } else {
-                        final byte[] packetBuffer = packet.getBuffer();
-                        final ByteBuffer byteBuffer = ByteBuffer.allocate(1 + packetBuffer.length);
-                        byteBuffer.put(COMMAND_PACKET);
-                        byteBuffer.put(packetBuffer);
-                        final RTCDataChannelBuffer buffer = new RTCDataChannelBuffer(byteBuffer, true);
-                        dataChannel.send(buffer);
-                        millis = System.currentTimeMillis();
-                        if (packetCounter >= 0) {
-                            packetCounter++;
-                        }
-                    }
+                final Packet packet = packetProvider.getPacket();
+                if (packet == null) {
+                    sendBye(dataChannelSender);
+                    peerConnection.close();
+                    return;
+                }
+                final byte[] packetBuffer = packet.getBuffer();
+                final ByteBuffer byteBuffer = ByteBuffer.allocate(1 + packetBuffer.length);
+                byteBuffer.put(COMMAND_PACKET);
+                byteBuffer.put(packetBuffer);
+                byteBuffer.flip();
+                // Only the newest state matters, older ones are discarded if the channel is congested
+                dataChannelSender.sendLatest(byteBuffer);
+                if (packetCounter >= 0) {
+                    packetCounter++;
                 }
 
                 if (packetCounter > RTT_PACKET_COUNTER) {
                     packetCounter = -1;
-                    final ByteBuffer byteBuffer = ByteBuffer.allocate(1 + Long.BYTES);
-                    byteBuffer.put(0, COMMAND_PING);
-                    byteBuffer.putLong(1, System.currentTimeMillis());
-                    final RTCDataChannelBuffer buffer = new RTCDataChannelBuffer(byteBuffer, true);
-                    dataChannel.send(buffer);
+                    final ByteBuffer pingBuffer = ByteBuffer.allocate(1 + Long.BYTES);
+                    pingBuffer.put(0, COMMAND_PING);
+                    pingBuffer.putLong(1, System.currentTimeMillis());
+                    dataChannelSender.send(pingBuffer);
                 }
             } catch (final Exception e) {
                 e.printStackTrace();
@@ -253,6 +396,18 @@ public class RtcClient extends RtcPeer {
          */
         void onSessionStarted();
 
+        /**
+         * Connection with server was lost, trying to recover it (see {@link ReconnectionPolicy}). If it can't be
+         * recovered, {@link Callback#onSessionStopped()} is called.
+         */
+        void onConnectionInterrupted();
+
+        /**
+         * Connection with server recovered after being lost.
+         * @param recoveryMillis time since the connection was lost, in milliseconds.
+         */
+        void onReconnected(final long recoveryMillis);
+
         /**
          * Connection with server successfully closed.
          */
@@ -262,5 +417,11 @@ public class RtcClient extends RtcPeer {
          * Called if the selected session ID is not valid (already in use).
          */
         void onInvalidSessionId();
+
+        /**
+         * Connection setup finished (first video frame received).
+         * @param timeline timestamps of each phase of the setup.
+         */
+        void onSetupCompleted(final SetupTimeline timeline);
     }
 }
@@ -3,6 +3,7 @@ package com.javmarina.webrtc;
 import com.javmarina.webrtc.signaling.SignalingPeer;
 import dev.onvoid.webrtc.PeerConnectionFactory;
 import dev.onvoid.webrtc.PeerConnectionObserver;
+import dev.onvoid.webrtc.RTCBundlePolicy;
 import dev.onvoid.webrtc.RTCConfiguration;
 import dev.onvoid.webrtc.RTCDataChannel;
 import dev.onvoid.webrtc.RTCIceCandidate;
@@ -13,11 +14,15 @@ import dev.onvoid.webrtc.RTCPeerConnectionState;
 import dev.onvoid.webrtc.RTCRtpTransceiver;
 import dev.onvoid.webrtc.RTCSessionDescription;
 import dev.onvoid.webrtc.media.audio.AudioDeviceModule;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.stream.Collectors;
 
 
@@ -26,22 +31,28 @@ public abstract class RtcPeer {
     // Data channel
     protected static final byte COMMAND_PACKET = 0x33;
     protected static final byte COMMAND_PING = 0x44;
+    // Sent before closing the connection on purpose, so that the remote peer doesn't try to reconnect
+    protected static final byte COMMAND_BYE = 0x55;
 
     private enum State {
         READY,
         CONNECTED,
+        // ICE connection lost, trying to recover it (see ReconnectionPolicy)
+        RECONNECTING,
         DISCONNECTED,
         CLOSED
     }
 
-    private State peerState = State.READY;
+    private volatile State peerState = State.READY;
+    // Whether this peer closed the session on purpose, in which case losing the connection is expected
+    private volatile boolean closedLocally = false;
 
     protected static final String AUDIO_TRACK_NAME = "audioTrack";
     protected static final String VIDEO_TRACK_NAME = "videoTrack";
     protected static final String DATA_CHANNEL_NAME = "dataChannel";
     protected static final String STREAM_ID = "stream";
 
-    private static final RTCConfiguration defaultConfiguration;
+    protected static final RTCConfiguration defaultConfiguration;
     static {
         final String[] urls = {
                 "stun:stun.l.google.com:19302",
@@ -58,30 +69,58 @@ public abstract class RtcPeer {
 
         defaultConfiguration = new RTCConfiguration();
         defaultConfiguration.iceServers = iceServers;
+        // Gather candidates for a single transport, so that a prewarmed connection has gathered all of them
+        defaultConfiguration.bundlePolicy = RTCBundlePolicy.MAX_BUNDLE;
     }
 
     protected final SignalingPeer signalingPeer;
     protected final PeerConnectionFactory factory;
     protected final AudioDeviceModule audioDeviceModule;
+    protected final SetupTimeline timeline;
     protected RTCPeerConnection peerConnection;
+    // Whether the peer connection was prepared in advance (see PeerConnectionFactoryManager)
+    protected final boolean prewarmed;
+    private final SignalingPeer.Callback signalingCallback;
+    private ReconnectionPolicy reconnectionPolicy = ReconnectionPolicy.DEFAULT;
+    private Timer reconnectionTimer;
+    private long interruptedAt;
+    private int reconnectionCount = 0;
+    private long lastRecoveryMillis = -1;
 
-    public RtcPeer(final SignalingPeer signalingPeer, final AudioDeviceModule audioDeviceModule) {
+    public RtcPeer(final SignalingPeer signalingPeer) {
         this.signalingPeer = signalingPeer;
-        Objects.requireNonNull(audioDeviceModule);
-        this.audioDeviceModule = audioDeviceModule;
+        final PeerConnectionFactoryManager manager = PeerConnectionFactoryManager.getInstance();
+        this.audioDeviceModule = manager.getAudioDeviceModule();
+        this.timeline = new SetupTimeline(
+                signalingPeer.getRole(),
+                signalingPeer.getSessionId(),
+                this::onSetupCompleted
+        );
 
-        factory = new PeerConnectionFactory(this.audioDeviceModule);
-        peerConnection = factory.createPeerConnection(defaultConfiguration, new PeerConnectionObserver() {
+        factory = manager.getFactory();
+        final PeerConnectionObserver observer = new PeerConnectionObserver() {
             @Override
             public void onIceConnectionChange(final RTCIceConnectionState state) {
-                if (state == RTCIceConnectionState.DISCONNECTED && peerState == State.CONNECTED) {
-                    peerState = State.DISCONNECTED;
-                    onDisconnected();
+                if (state == RTCIceConnectionState.CONNECTED || state == RTCIceConnectionState.COMPLETED) {
+                    timeline.mark(SetupTimeline.Phase.ICE_CONNECTED);
+                    if (peerState == State.RECONNECTING) {
+                        onConnectionRecovered();
+                    }
                 }
-                if (state == RTCIceConnectionState.CLOSED &&
-                        (peerState == State.DISCONNECTED || peerState == State.CONNECTED)) {
+                if ((state == RTCIceConnectionState.DISCONNECTED || state == RTCIceConnectionState.FAILED)
+                        && peerState == State.CONNECTED && !closedLocally) {
+                    if (reconnectionPolicy.isEnabled()) {
+                        startReconnection();
+                    } else {
+                        peerState = State.DISCONNECTED;
+                        onDisconnected();
+                    }
+                }
+                if (state == RTCIceConnectionState.CLOSED && (peerState == State.DISCONNECTED
+                        || peerState == State.CONNECTED || peerState == State.RECONNECTING)) {
                     // peerState can be CONNECTED if this peer explicitly closes the connection, for example
                     // by calling RtcClient.stop()
+                    cancelReconnectionTimer();
                     peerState = State.CLOSED;
                     onClosed();
                 }
@@ -89,6 +128,7 @@ public abstract class RtcPeer {
 
             @Override
             public void onIceCandidate(final RTCIceCandidate candidate) {
+                timeline.mark(SetupTimeline.Phase.FIRST_ICE_CANDIDATE);
                 signalingPeer.sendIceCandidate(candidate);
             }
 
@@ -109,18 +149,29 @@ public abstract class RtcPeer {
             public void onTrack(final RTCRtpTransceiver transceiver) {
                 RtcPeer.this.onTrack(transceiver);
             }
-        });
-    }
+        };
+        final RTCPeerConnection preparedPeerConnection = manager.takePeerConnection(getClass(), observer);
+        prewarmed = preparedPeerConnection != null;
+        timeline.setPrewarmed(prewarmed);
+        peerConnection = prewarmed
+                ? preparedPeerConnection
+                : factory.createPeerConnection(defaultConfiguration, observer);
+
+        signalingCallback = new SignalingPeer.Callback() {
+            @Override
+            public void onConnected() {
+                timeline.mark(SetupTimeline.Phase.SOCKET_CONNECTED);
+            }
 
-    public void start() {
-        signalingPeer.start(new SignalingPeer.Callback() {
             @Override
             public void onOfferReceived(final RTCSessionDescription description) {
+                timeline.mark(SetupTimeline.Phase.OFFER_RECEIVED);
                 RtcPeer.this.onOfferReceived(description);
             }
 
             @Override
             public void onAnswerReceived(final RTCSessionDescription description) {
+                timeline.mark(SetupTimeline.Phase.ANSWER_RECEIVED);
                 RtcPeer.this.onAnswerReceived(description);
             }
 
@@ -131,14 +182,165 @@ public abstract class RtcPeer {
 
             @Override
             public void onInvalidRegister() {
-                RtcPeer.this.onInvalidSessionId();
+                if (peerState == State.RECONNECTING) {
+                    // The previous registration of this session may not have expired yet. Try again later
+                    System.out.println("Session ID not available yet, retrying");
+                    scheduleReconnectionTask(RtcPeer.this::restartSignaling, reconnectionPolicy.retryIntervalMs);
+                } else {
+                    RtcPeer.this.onInvalidSessionId();
+                }
             }
 
             @Override
             public void onValidRegister() {
+                timeline.mark(SetupTimeline.Phase.REGISTER_ACK);
                 RtcPeer.this.onValidRegister();
             }
-        });
+        };
+    }
+
+    public void start() {
+        timeline.start();
+        signalingPeer.start(signalingCallback);
+    }
+
+    /**
+     * Set what to do if the connection is lost after the session was established. By default,
+     * {@link ReconnectionPolicy#DEFAULT}. Must be called before {@link RtcPeer#start()}.
+     * @param reconnectionPolicy the policy.
+     */
+    public void setReconnectionPolicy(final ReconnectionPolicy reconnectionPolicy) {
+        this.reconnectionPolicy = Objects.requireNonNull(reconnectionPolicy);
+    }
+
+    /**
+     * Get the number of times the connection was lost and recovered.
+     * @return the number of reconnections.
+     */
+    public int getReconnectionCount() {
+        return reconnectionCount;
+    }
+
+    /**
+     * Get the time it took to recover the connection the last time it was lost.
+     * @return the recovery time in milliseconds, or -1 if the connection was never lost.
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * Whether the connection is being recovered.
+     * @return true if the ICE connection was lost and the grace period hasn't expired yet.
+     */
+    protected boolean isReconnecting() {
+        return peerState == State.RECONNECTING;
+    }
+
+    /**
+     * Close the signaling channel (if open) and open it again, which registers this peer again.
+     */
+    protected void restartSignaling() {
+        signalingPeer.close();
+        signalingPeer.start(signalingCallback);
+    }
+
+    /**
+     * Tell the remote peer that this session ends on purpose, so that it closes its side right away instead of
+     * trying to reconnect. Must be called before closing the peer connection.
+     * @param sender sender of the data channel, or null if it was never opened.
+     */
+    protected void sendBye(@Nullable final DataChannelSender sender) {
+        closedLocally = true;
+        if (sender == null) {
+            return;
+        }
+        final ByteBuffer bye = ByteBuffer.allocate(1);
+        bye.put(0, COMMAND_BYE);
+        try {
+            sender.send(bye);
+        } catch (final Exception e) {
+            // The data channel is already closed, the remote peer will notice it
+        }
+    }
+
+    /**
+     * Called when the remote peer closed the session on purpose: it sent {@link RtcPeer#COMMAND_BYE}, or the
+     * data channel was closed. The connection is not recovered, even if the reconnection policy allows it.
+     */
+    protected synchronized void onRemoteClose() {
+        if (closedLocally || (peerState != State.CONNECTED && peerState != State.RECONNECTING)) {
+            return;
+        }
+        System.out.println("Session closed by the remote peer");
+        peerState = State.DISCONNECTED;
+        cancelReconnectionTimer();
+        signalingPeer.close();
+        onDisconnected();
+    }
+
+    private synchronized void startReconnection() {
+        if (peerState != State.CONNECTED) {
+            return;
+        }
+        peerState = State.RECONNECTING;
+        interruptedAt = System.nanoTime();
+        System.out.println("Connection lost, reconnecting (" + reconnectionPolicy + ")");
+
+        reconnectionTimer = new Timer("Reconnection", true);
+        scheduleReconnectionTask(this::onReconnectionTimeout, reconnectionPolicy.gracePeriodMs);
+        reconnectionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                onReconnectionRetry();
+            }
+        }, reconnectionPolicy.retryIntervalMs, reconnectionPolicy.retryIntervalMs);
+
+        onConnectionInterrupted();
+        restartSignaling();
+    }
+
+    private synchronized void scheduleReconnectionTask(final Runnable runnable, final long delayMs) {
+        if (reconnectionTimer == null) {
+            return;
+        }
+        reconnectionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        }, delayMs);
+    }
+
+    private synchronized void onConnectionRecovered() {
+        if (peerState != State.RECONNECTING) {
+            return;
+        }
+        peerState = State.CONNECTED;
+        cancelReconnectionTimer();
+        signalingPeer.close();
+        lastRecoveryMillis = (System.nanoTime() - interruptedAt) / 1000000;
+        reconnectionCount++;
+        System.out.println("Connection recovered in " + lastRecoveryMillis + " ms");
+        onReconnected(lastRecoveryMillis);
+    }
+
+    private synchronized void onReconnectionTimeout() {
+        if (peerState != State.RECONNECTING) {
+            return;
+        }
+        System.out.println("Connection could not be recovered");
+        peerState = State.DISCONNECTED;
+        cancelReconnectionTimer();
+        signalingPeer.close();
+        onDisconnected();
+    }
+
+    private synchronized void cancelReconnectionTimer() {
+        if (reconnectionTimer != null) {
+            reconnectionTimer.cancel();
+            reconnectionTimer = null;
+        }
     }
 
     public static void log(final String error) {
@@ -158,8 +360,35 @@ public abstract class RtcPeer {
         signalingPeer.close();
     }
 
+    /**
+     * Called when the ICE connection is lost and this peer starts trying to recover it. Media sources and the
+     * data channel are kept.
+     */
+    protected void onConnectionInterrupted() {}
+
+    /**
+     * Called periodically while the connection is being recovered (see
+     * {@link ReconnectionPolicy#retryIntervalMs}).
+     */
+    protected void onReconnectionRetry() {}
+
+    /**
+     * Called when the connection is recovered after being lost.
+     * @param recoveryMillis time since the connection was lost, in milliseconds.
+     */
+    protected void onReconnected(final long recoveryMillis) {}
+
+    /**
+     * Called when the connection is lost and can't be recovered (see {@link ReconnectionPolicy}).
+     */
     protected abstract void onDisconnected();
     protected abstract void onClosed();
     protected abstract void onInvalidSessionId();
     protected abstract void onValidRegister();
+
+    /**
+     * Called once the setup timeline is complete (first video frame received or captured).
+     * @param timeline the timeline with all the phases of this connection setup.
+     */
+    protected abstract void onSetupCompleted(final SetupTimeline timeline);
 }
@@ -1,57 +1,136 @@
 package com.javmarina.webrtc;
 
 import com.javmarina.util.Packet;
+import com.javmarina.webrtc.latency.TimestampPattern;
+import com.javmarina.webrtc.latency.TimestampStamper;
 import com.javmarina.webrtc.signaling.SignalingPeer;
 import com.javmarina.webrtc.signaling.SessionId;
+import com.javmarina.webrtc.stats.StatsSnapshot;
 import dev.onvoid.webrtc.CreateSessionDescriptionObserver;
 import dev.onvoid.webrtc.RTCAnswerOptions;
 import dev.onvoid.webrtc.RTCDataChannel;
 import dev.onvoid.webrtc.RTCDataChannelBuffer;
 import dev.onvoid.webrtc.RTCDataChannelObserver;
+import dev.onvoid.webrtc.RTCDataChannelState;
 import dev.onvoid.webrtc.RTCRtpSender;
 import dev.onvoid.webrtc.RTCRtpTransceiver;
 import dev.onvoid.webrtc.RTCRtpTransceiverDirection;
 import dev.onvoid.webrtc.RTCSessionDescription;
 import dev.onvoid.webrtc.SetSessionDescriptionObserver;
-import dev.onvoid.webrtc.media.audio.AudioDeviceModule;
 import dev.onvoid.webrtc.media.audio.AudioOptions;
 import dev.onvoid.webrtc.media.audio.AudioSource;
 import dev.onvoid.webrtc.media.audio.AudioTrack;
+import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
 import dev.onvoid.webrtc.media.video.VideoDeviceSource;
 import dev.onvoid.webrtc.media.video.VideoTrack;
+import dev.onvoid.webrtc.media.video.VideoTrackSink;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Timer;
 import java.util.TimerTask;
 
 
 public class RtcServer extends RtcPeer {
 
+    // Spectators poll the stats until the first frame is sent, up to 10 seconds
+    private static final long FIRST_FRAME_POLL_MS = 20;
+    private static final int FIRST_FRAME_MAX_POLLS = 500;
+
     private final VideoDeviceSource videoSource;
+    // Applied to the answer only if the client applied a profile to its offer (see SdpUtils.hasLatencyProfile())
+    private final LatencyProfile latencyProfile;
     private final Callback callback;
+    // Controller session whose tracks are shared, or null if this is the controller
+    @Nullable
+    private final RtcServer controller;
+    private final VideoTrackSink firstFrameSink = frame -> timeline.mark(SetupTimeline.Phase.FIRST_VIDEO_FRAME);
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private AudioTrack audioTrack;
+    private RTCRtpSender videoSender;
+    @Nullable
+    private List<VideoCaptureCapability> videoCapabilities;
+    @Nullable
+    private VideoCaptureCapability videoCapability;
+    private QualityController qualityController;
+    private VideoTrack videoTrack;
+    private FrameTimingAnalyser captureTiming;
+    @Nullable
+    private volatile Timer firstFrameTimer;
+    // DTLS fingerprint of the client, which doesn't change when it restarts ICE to reconnect
+    @Nullable
+    private String remoteFingerprint;
+    @Nullable
+    private volatile DataChannelSender dataChannelSender;
 
     public RtcServer(final SessionId sessionId,
-                     final AudioDeviceModule audioDeviceModule,
                      final VideoDeviceSource videoSource,
+                     final LatencyProfile latencyProfile,
                      final Callback callback) {
-        super(new SignalingPeer(sessionId, SignalingPeer.Role.SERVER), audioDeviceModule);
+        this(sessionId, videoSource, latencyProfile, callback, null);
+    }
+
+    private RtcServer(final SessionId sessionId,
+                      final VideoDeviceSource videoSource,
+                      final LatencyProfile latencyProfile,
+                      final Callback callback,
+                      @Nullable final RtcServer controller) {
+        super(new SignalingPeer(sessionId, SignalingPeer.Role.SERVER));
         this.videoSource = videoSource;
+        this.latencyProfile = latencyProfile;
         this.callback = callback;
+        this.controller = controller;
+        if (controller == null) {
+            createTracks();
+        } else {
+            audioTrack = controller.audioTrack;
+            videoTrack = controller.videoTrack;
+        }
         createTransceivers();
     }
 
-    private void createTransceivers() {
+    /**
+     * Create a peer for a spectator of this session. It sends the same audio and video tracks, so the capture
+     * device is shared, but has its own encoder and adapts the quality to its own network. Messages from the
+     * spectator are ignored, except pings. The capture device is never changed because of a spectator.
+     * @param sessionId session ID the spectator connects to.
+     * @param callback callback of the spectator session.
+     * @return the peer, not started yet.
+     */
+    public RtcServer createSpectator(final SessionId sessionId, final Callback callback) {
+        final RtcServer spectator = new RtcServer(sessionId, videoSource, latencyProfile, callback, this);
+        // A spectator that loses the connection can connect again as a new one
+        spectator.setReconnectionPolicy(ReconnectionPolicy.DISABLED);
+        return spectator;
+    }
+
+    public boolean isSpectator() {
+        return controller != null;
+    }
+
+    private void createTracks() {
         final AudioOptions audioOptions = new AudioOptions();
         audioOptions.echoCancellation = false;
         audioOptions.autoGainControl = false;
         audioOptions.noiseSuppression = false;
         final AudioSource audioSource = factory.createAudioSource(audioOptions);
-        final AudioTrack audioTrack = factory.createAudioTrack(AUDIO_TRACK_NAME, audioSource);
+        audioTrack = factory.createAudioTrack(AUDIO_TRACK_NAME, audioSource);
+
+        videoTrack = factory.createVideoTrack(VIDEO_TRACK_NAME, videoSource);
+        captureTiming = new FrameTimingAnalyser(callback::onCaptureTiming);
+        videoTrack.addSink(captureTiming);
+    }
+
+    private void createTransceivers() {
         final RTCRtpSender audioSender = peerConnection.addTrack(audioTrack, List.of(STREAM_ID));
 
-        // Add video
-        final VideoTrack videoTrack = factory.createVideoTrack(VIDEO_TRACK_NAME, videoSource);
-        final RTCRtpSender videoSender = peerConnection.addTrack(videoTrack, List.of(STREAM_ID));
+        // Add video. The source of a spectator is already running, so its first frame is taken from the stats
+        if (controller == null) {
+            videoTrack.addSink(firstFrameSink);
+        }
+        videoSender = peerConnection.addTrack(videoTrack, List.of(STREAM_ID));
 
         // Block incoming media streams
         for (final RTCRtpTransceiver transceiver : peerConnection.getTransceivers()) {
@@ -59,8 +138,44 @@ public class RtcServer extends RtcPeer {
         }
     }
 
+    /**
+     * Allow the quality controller to change the capture capability when the network is too slow for the
+     * lowest encoding quality. Must be called before {@link RtcServer#start()}.
+     * @param capabilities capabilities supported by the capture device.
+     * @param capability capability currently used by the video source.
+     */
+    public void setVideoCaptureCapabilities(final List<VideoCaptureCapability> capabilities,
+                                            final VideoCaptureCapability capability) {
+        this.videoCapabilities = capabilities;
+        this.videoCapability = capability;
+    }
+
+    /**
+     * Draw the capture time on each frame, so that the client can measure the glass-to-glass latency (see
+     * {@link TimestampPattern}). Must be called before {@link RtcServer#start()}, so that frames are stamped
+     * before they reach the encoder. Whether the encoder actually sees the stamped frames depends on webrtc-java,
+     * so check it with {@code WebRtcPlayground stamping} on each platform.
+     */
+    public void enableTimestampStamping() {
+        videoTrack.addSink(new TimestampStamper());
+    }
+
     @Override
     protected void onOfferReceived(final RTCSessionDescription description) {
+        final String fingerprint = SdpUtils.getFingerprint(description.sdp);
+        if (remoteFingerprint == null) {
+            remoteFingerprint = fingerprint;
+        } else if (isReconnecting() && !remoteFingerprint.equals(fingerprint)) {
+            // Not an ICE restart, but a new peer connection (for example, the client was restarted). It can't be
+            // applied to this one, and the old client won't come back
+            System.out.println("New connection offered while reconnecting, closing the session");
+            onRemoteClose();
+            return;
+        }
+        // The client decides: a default offer gets a default answer, so that both ends use the same settings
+        final LatencyProfile answerProfile = SdpUtils.hasLatencyProfile(description.sdp)
+                ? latencyProfile
+                : LatencyProfile.DEFAULT;
         peerConnection.setRemoteDescription(description, new SetSessionDescriptionObserver() {
             @Override
             public void onSuccess() {
@@ -68,10 +183,14 @@ public class RtcServer extends RtcPeer {
                 peerConnection.createAnswer(answerOptions, new CreateSessionDescriptionObserver() {
                     @Override
                     public void onSuccess(final RTCSessionDescription description) {
-                        peerConnection.setLocalDescription(description, new SetSessionDescriptionObserver() {
+                        timeline.mark(SetupTimeline.Phase.ANSWER_CREATED);
+                        final RTCSessionDescription newSessionDescription =
+                                SdpUtils.applyLatencyProfile(description, answerProfile);
+                        timeline.mark(SetupTimeline.Phase.SDP_MUNGED);
+                        peerConnection.setLocalDescription(newSessionDescription, new SetSessionDescriptionObserver() {
                             @Override
                             public void onSuccess() {
-                                signalingPeer.sendAnswer(description);
+                                signalingPeer.sendAnswer(newSessionDescription);
                             }
 
                             @Override
@@ -97,13 +216,25 @@ public class RtcServer extends RtcPeer {
 
     @Override
     protected void onDataChannel(final RTCDataChannel dataChannel) {
+        if (dataChannel.getState() == RTCDataChannelState.OPEN) {
+            timeline.mark(SetupTimeline.Phase.DATA_CHANNEL_OPEN);
+        }
+        final DataChannelSender sender = new DataChannelSender(dataChannel);
+        dataChannelSender = sender;
         dataChannel.registerObserver(new RTCDataChannelObserver() {
             @Override
             public void onBufferedAmountChange(final long previousAmount) {
+                sender.onBufferedAmountChange();
             }
 
             @Override
             public void onStateChange() {
+                if (dataChannel.getState() == RTCDataChannelState.OPEN) {
+                    timeline.mark(SetupTimeline.Phase.DATA_CHANNEL_OPEN);
+                } else if (dataChannel.getState() == RTCDataChannelState.CLOSED) {
+                    // Losing the ICE connection doesn't close the data channel, the client did it
+                    onRemoteClose();
+                }
             }
 
             @Override
@@ -111,18 +242,29 @@ public class RtcServer extends RtcPeer {
                 final byte commandId = buffer.data.get();
                 switch (commandId) {
                     case COMMAND_PACKET:
+                        if (controller != null) {
+                            // Spectators can't control the console
+                            break;
+                        }
                         final byte[] packetBuffer = new byte[8];
                         buffer.data.get(packetBuffer);
                         callback.onPacketReceived(new Packet(packetBuffer));
                         break;
                     case COMMAND_PING:
-                        // Send same message
+                        // Send same message, plus the server time so that the client can estimate the clock offset
+                        final ByteBuffer reply = ByteBuffer.allocate(1 + 2 * Long.BYTES);
+                        reply.put(0, COMMAND_PING);
+                        reply.putLong(1, buffer.data.getLong(1));
+                        reply.putLong(1 + Long.BYTES, System.currentTimeMillis());
                         try {
-                            dataChannel.send(buffer);
+                            sender.send(reply);
                         } catch (final Exception e) {
                             e.printStackTrace();
                         }
                         break;
+                    case COMMAND_BYE:
+                        onRemoteClose();
+                        break;
                 }
             }
         });
@@ -131,22 +273,112 @@ public class RtcServer extends RtcPeer {
     @Override
     protected void onConnected() {
         super.onConnected();
-        videoSource.start();
+        if (controller == null) {
+            videoSource.start();
+            qualityController = new QualityController(
+                    peerConnection, videoSender, videoSource, videoCapabilities, videoCapability);
+            captureTiming.start();
+        } else {
+            qualityController = new QualityController(peerConnection, videoSender, videoSource, null, null);
+            startFirstFramePolling();
+        }
+        qualityController.start();
         callback.onSessionStarted();
     }
 
+    /**
+     * Mark the first video frame of a spectator when the stats report that it was sent.
+     */
+    private void startFirstFramePolling() {
+        final Timer timer = new Timer("FirstFrame", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            private int polls = 0;
+
+            @Override
+            public void run() {
+                if (++polls > FIRST_FRAME_MAX_POLLS) {
+                    timer.cancel();
+                    return;
+                }
+                try {
+                    peerConnection.getStats(report -> {
+                        final StatsSnapshot.OutboundRtp video = StatsSnapshot.fromReport(report).outboundVideo;
+                        if (video != null && video.framesSent > 0) {
+                            timeline.mark(SetupTimeline.Phase.FIRST_VIDEO_FRAME);
+                            timer.cancel();
+                        }
+                    });
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    timer.cancel();
+                }
+            }
+        }, FIRST_FRAME_POLL_MS, FIRST_FRAME_POLL_MS);
+        firstFrameTimer = timer;
+        if (released.get()) {
+            timer.cancel();
+        }
+    }
+
+    @Override
+    protected void onConnectionInterrupted() {
+        // Capture, encoding and the serial link are kept running
+        callback.onConnectionInterrupted();
+    }
+
+    @Override
+    protected void onReconnected(final long recoveryMillis) {
+        callback.onReconnected(recoveryMillis);
+    }
+
+    /**
+     * Get the quality controller of the video sender, whose stats include the encoder cost.
+     * @return the controller, or null if the session hasn't started.
+     */
+    @Nullable
+    public QualityController getQualityController() {
+        return qualityController;
+    }
+
+    /**
+     * Stop this session, connected or not. Used for spectators, the controller session is stopped by the
+     * client.
+     */
+    public void stop() {
+        release();
+    }
+
     @Override
     protected void onDisconnected() {
-        audioDeviceModule.dispose();
+        release();
+    }
+
+    private void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (qualityController != null) {
+            qualityController.stop();
+        }
+        final Timer timer = firstFrameTimer;
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (controller == null) {
+            videoTrack.removeSink(firstFrameSink);
+            captureTiming.stop();
+            // The factory and the audio device module are shared (see PeerConnectionFactoryManager)
+            audioDeviceModule.stopRecording();
+            videoSource.stop();
+        }
+        sendBye(dataChannelSender);
         signalingPeer.close();
-        videoSource.stop();
         callback.onSessionStopped();
         new Timer().schedule(
                 new TimerTask() {
                     @Override
                     public void run() {
                         peerConnection.close();
-                        factory.dispose();
                     }
                 },
                 50
@@ -167,6 +399,11 @@ public class RtcServer extends RtcPeer {
     protected void onValidRegister() {
     }
 
+    @Override
+    protected void onSetupCompleted(final SetupTimeline timeline) {
+        callback.onSetupCompleted(timeline);
+    }
+
     public interface Callback {
         /**
          * New packet received from client.
@@ -179,6 +416,18 @@ public class RtcServer extends RtcPeer {
          */
         void onSessionStarted();
 
+        /**
+         * Connection with the client was lost, trying to recover it (see {@link ReconnectionPolicy}). If it can't
+         * be recovered, {@link Callback#onSessionStopped()} is called.
+         */
+        void onConnectionInterrupted();
+
+        /**
+         * Connection with the client recovered after being lost.
+         * @param recoveryMillis time since the connection was lost, in milliseconds.
+         */
+        void onReconnected(final long recoveryMillis);
+
         /**
          * Session has been stopped correctly.
          */
@@ -194,5 +443,18 @@ public class RtcServer extends RtcPeer {
          * Called if the selected session ID is not valid (already in use).
          */
         void onInvalidSessionId();
+
+        /**
+         * Connection setup finished (first video frame captured after the connection was established, or sent for
+         * spectators).
+         * @param timeline timestamps of each phase of the setup.
+         */
+        void onSetupCompleted(final SetupTimeline timeline);
+
+        /**
+         * Periodic report of the timing of the captured frames. Called from a timer thread.
+         * @param report the report.
+         */
+        void onCaptureTiming(final FrameTimingAnalyser.Report report);
     }
 }
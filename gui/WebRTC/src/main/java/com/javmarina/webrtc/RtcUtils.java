@@ -21,9 +21,14 @@ public final class RtcUtils {
         void onReady(final List<AudioDevice> audioDevices);
     }
 
+    /**
+     * Get the shared audio device module (see {@link PeerConnectionFactoryManager}), which must not be disposed.
+     * @param callback called from another thread once the module is ready.
+     */
     public static void getAudioDeviceModule(final AudioDeviceModuleCallback callback) {
         new Thread(() -> {
-            final AudioDeviceModule audioDeviceModule = new AudioDeviceModule();
+            final AudioDeviceModule audioDeviceModule =
+                    PeerConnectionFactoryManager.getInstance().getAudioDeviceModule();
             callback.onCreated(audioDeviceModule);
         }).start();
     }
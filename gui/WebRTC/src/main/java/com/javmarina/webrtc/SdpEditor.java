@@ -0,0 +1,452 @@
+package com.javmarina.webrtc;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Line-oriented SDP editor. The description is split into lines in a single pass and grouped by media section.
+ * Lines that are not edited are kept untouched, so {@link SdpEditor#toString()} returns exactly the original
+ * string (same line separators, same attribute order, same SCTP format) if no changes were made.<br>
+ * Only the operations needed for SDP munging are provided: payload type reordering and editing of
+ * {@code a=rtpmap}, {@code a=fmtp}, {@code a=extmap}, {@code b=} and other attribute lines.
+ */
+public final class SdpEditor {
+
+    private static final String CRLF = "\r\n";
+
+    private final String lineSeparator;
+    private final boolean trailingSeparator;
+    private final Section sessionSection;
+    private final ArrayList<Media> mediaSections = new ArrayList<>(4);
+
+    public SdpEditor(final String sdp) {
+        final int firstNewLine = sdp.indexOf('\n');
+        lineSeparator = firstNewLine > 0 && sdp.charAt(firstNewLine - 1) == '\r' ? CRLF : "\n";
+        trailingSeparator = sdp.endsWith("\n");
+
+        Section currentSection = new Section(new ArrayList<>(16));
+        sessionSection = currentSection;
+        int start = 0;
+        final int length = sdp.length();
+        while (start < length) {
+            int end = sdp.indexOf('\n', start);
+            final int next;
+            if (end < 0) {
+                end = length;
+                next = length;
+            } else {
+                next = end + 1;
+            }
+            if (end > start && sdp.charAt(end - 1) == '\r') {
+                end--;
+            }
+            final String line = sdp.substring(start, end);
+            if (line.startsWith("m=")) {
+                final Media media = new Media(new ArrayList<>(32));
+                mediaSections.add(media);
+                currentSection = media;
+            }
+            currentSection.lines.add(line);
+            start = next;
+        }
+    }
+
+    /**
+     * Get all media sections of the given type.
+     * @param type media type, such as "audio", "video" or "application".
+     * @return list of media sections (can be empty).
+     */
+    public List<Media> getMedia(final String type) {
+        final ArrayList<Media> list = new ArrayList<>(mediaSections.size());
+        for (final Media media : mediaSections) {
+            if (media.getType().equals(type)) {
+                list.add(media);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the first media section of the given type.
+     * @param type media type, such as "audio", "video" or "application".
+     * @return the media section, or null if there isn't any.
+     */
+    @Nullable
+    public Media getFirstMedia(final String type) {
+        for (final Media media : mediaSections) {
+            if (media.getType().equals(type)) {
+                return media;
+            }
+        }
+        return null;
+    }
+
+    public List<Media> getAllMedia() {
+        return Collections.unmodifiableList(mediaSections);
+    }
+
+    /**
+     * Add a header extension to a media section. IDs are shared by all bundled sections, so the lowest ID
+     * not used in any section is chosen. Does nothing if the extension is already present in that section.
+     * @param media the media section.
+     * @param uri extension URI.
+     * @return the extension ID.
+     */
+    public int addExtmap(final Media media, final String uri) {
+        final int existing = media.getExtmapId(uri);
+        if (existing >= 0) {
+            return existing;
+        }
+        // Reuse the ID if another section already negotiates the same extension
+        for (final Media other : mediaSections) {
+            final int id = other.getExtmapId(uri);
+            if (id >= 0) {
+                media.insertExtmap(id, uri);
+                return id;
+            }
+        }
+        // One-byte header extension IDs go from 1 to 14
+        final boolean[] used = new boolean[15];
+        for (final Media other : mediaSections) {
+            for (final String line : other.lines) {
+                if (line.startsWith("a=extmap:")) {
+                    final int id = Integer.parseInt(line.substring(9, Media.indexOfAny(line, "/ ", 9)));
+                    if (id < used.length) {
+                        used[id] = true;
+                    }
+                }
+            }
+        }
+        int id = 1;
+        while (id < used.length && used[id]) {
+            id++;
+        }
+        if (id == used.length) {
+            throw new IllegalStateException("No free header extension ID for " + uri);
+        }
+        media.insertExtmap(id, uri);
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(2048);
+        sessionSection.appendTo(builder, lineSeparator);
+        for (final Media media : mediaSections) {
+            media.appendTo(builder, lineSeparator);
+        }
+        if (!trailingSeparator && builder.length() > 0) {
+            builder.setLength(builder.length() - lineSeparator.length());
+        }
+        return builder.toString();
+    }
+
+    private static class Section {
+
+        final ArrayList<String> lines;
+
+        private Section(final ArrayList<String> lines) {
+            this.lines = lines;
+        }
+
+        void appendTo(final StringBuilder builder, final String lineSeparator) {
+            for (final String line : lines) {
+                builder.append(line).append(lineSeparator);
+            }
+        }
+    }
+
+    /**
+     * A media section, from its {@code m=} line to the next one.
+     */
+    public static final class Media extends Section {
+
+        private Media(final ArrayList<String> lines) {
+            super(lines);
+        }
+
+        /**
+         * Get the media type.
+         * @return "audio", "video", "application"...
+         */
+        public String getType() {
+            final String mLine = lines.get(0);
+            final int space = mLine.indexOf(' ');
+            return space < 0 ? mLine.substring(2) : mLine.substring(2, space);
+        }
+
+        /**
+         * Get the payload types (formats) listed in the {@code m=} line, in order of preference.
+         * @return list of payload types as strings.
+         */
+        public List<String> getPayloadTypes() {
+            // m=<media> <port> <proto> <fmt> ...
+            final String[] parts = lines.get(0).split(" ");
+            final ArrayList<String> list = new ArrayList<>(Math.max(0, parts.length - 3));
+            for (int i = 3; i < parts.length; i++) {
+                list.add(parts[i]);
+            }
+            return list;
+        }
+
+        /**
+         * Replace the payload types of the {@code m=} line. Used to change the codec order.
+         * @param payloadTypes new list of payload types.
+         */
+        public void setPayloadTypes(final List<String> payloadTypes) {
+            final String[] parts = lines.get(0).split(" ");
+            final StringBuilder builder = new StringBuilder(lines.get(0).length());
+            builder.append(parts[0]).append(' ').append(parts[1]).append(' ').append(parts[2]);
+            for (final String payloadType : payloadTypes) {
+                builder.append(' ').append(payloadType);
+            }
+            lines.set(0, builder.toString());
+        }
+
+        /**
+         * Get the value of the first attribute with the given name.
+         * @param name attribute name, without "a=" and ":".
+         * @return the attribute value (empty for flag attributes), or null if not present.
+         */
+        @Nullable
+        public String getAttribute(final String name) {
+            final int index = indexOfAttribute(name, null);
+            if (index < 0) {
+                return null;
+            }
+            final String line = lines.get(index);
+            final int valueStart = 2 + name.length();
+            return line.length() > valueStart ? line.substring(valueStart + 1) : "";
+        }
+
+        /**
+         * Check whether this section contains an attribute with the given name.
+         * @param name attribute name, without "a=" and ":".
+         * @return true if present.
+         */
+        public boolean hasAttribute(final String name) {
+            return indexOfAttribute(name, null) >= 0;
+        }
+
+        /**
+         * Append a new attribute line at the end of the section.
+         * @param name attribute name, without "a=".
+         * @param value attribute value, or null for flag attributes.
+         */
+        public void addAttribute(final String name, @Nullable final String value) {
+            lines.add(value == null ? "a=" + name : "a=" + name + ":" + value);
+        }
+
+        /**
+         * Set the value of an attribute, replacing the first line with the same name or appending a new one.
+         * @param name attribute name, without "a=".
+         * @param value attribute value.
+         */
+        public void setAttribute(final String name, final String value) {
+            final String line = "a=" + name + ":" + value;
+            final int index = indexOfAttribute(name, null);
+            if (index >= 0) {
+                lines.set(index, line);
+            } else {
+                lines.add(line);
+            }
+        }
+
+        /**
+         * Get the encoding of a payload type, as specified in its {@code a=rtpmap} line.
+         * @param payloadType the payload type.
+         * @return encoding name, clock rate and parameters (e.g. "opus/48000/2"), or null if not present.
+         */
+        @Nullable
+        public String getRtpmap(final String payloadType) {
+            final int index = indexOfAttribute("rtpmap", payloadType);
+            return index < 0 ? null : payloadValue(lines.get(index), "rtpmap", payloadType);
+        }
+
+        /**
+         * Get the format parameters of a payload type.
+         * @param payloadType the payload type.
+         * @return the parameter list (e.g. "minptime=10;useinbandfec=1"), or null if not present.
+         */
+        @Nullable
+        public String getFmtp(final String payloadType) {
+            final int index = indexOfAttribute("fmtp", payloadType);
+            return index < 0 ? null : payloadValue(lines.get(index), "fmtp", payloadType);
+        }
+
+        /**
+         * Replace the format parameters of a payload type. If there is no {@code a=fmtp} line for it, a new one is
+         * inserted after its {@code a=rtpmap} line.
+         * @param payloadType the payload type.
+         * @param parameters new parameter list.
+         */
+        public void setFmtp(final String payloadType, final String parameters) {
+            final String line = "a=fmtp:" + payloadType + " " + parameters;
+            final int index = indexOfAttribute("fmtp", payloadType);
+            if (index >= 0) {
+                lines.set(index, line);
+            } else {
+                final int rtpmapIndex = indexOfAttribute("rtpmap", payloadType);
+                lines.add(rtpmapIndex < 0 ? lines.size() : rtpmapIndex + 1, line);
+            }
+        }
+
+        /**
+         * Set a single format parameter of a payload type, keeping the rest of them.
+         * @param payloadType the payload type.
+         * @param key parameter name.
+         * @param value new parameter value.
+         */
+        public void setFmtpParameter(final String payloadType, final String key, final String value) {
+            final String current = getFmtp(payloadType);
+            if (current == null || current.isEmpty()) {
+                setFmtp(payloadType, key + "=" + value);
+                return;
+            }
+            final StringBuilder builder = new StringBuilder(current.length() + key.length() + value.length() + 2);
+            boolean replaced = false;
+            int start = 0;
+            while (start < current.length()) {
+                int end = current.indexOf(';', start);
+                if (end < 0) {
+                    end = current.length();
+                }
+                final String parameter = current.substring(start, end);
+                if (builder.length() > 0) {
+                    builder.append(';');
+                }
+                final int equals = parameter.indexOf('=');
+                final String parameterKey = equals < 0 ? parameter.trim() : parameter.substring(0, equals).trim();
+                if (parameterKey.equals(key)) {
+                    builder.append(key).append('=').append(value);
+                    replaced = true;
+                } else {
+                    builder.append(parameter);
+                }
+                start = end + 1;
+            }
+            if (!replaced) {
+                builder.append(';').append(key).append('=').append(value);
+            }
+            setFmtp(payloadType, builder.toString());
+        }
+
+        /**
+         * Find the payload types whose encoding name matches the given one (case insensitive).
+         * @param encodingName encoding name, e.g. "opus" or "VP9".
+         * @return list of matching payload types, in {@code m=} line order.
+         */
+        public List<String> findPayloadTypes(final String encodingName) {
+            final List<String> payloadTypes = getPayloadTypes();
+            final ArrayList<String> list = new ArrayList<>(2);
+            for (final String payloadType : payloadTypes) {
+                final String rtpmap = getRtpmap(payloadType);
+                if (rtpmap != null && rtpmap.regionMatches(true, 0, encodingName, 0, encodingName.length())
+                        && rtpmap.length() > encodingName.length() && rtpmap.charAt(encodingName.length()) == '/') {
+                    list.add(payloadType);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Set a bandwidth line ({@code b=<type>:<value>}), replacing any existing line with the same type.
+         * New lines are placed after the {@code c=} line, as required by the SDP grammar.
+         * @param type bandwidth type, e.g. "AS" (kbps) or "TIAS" (bps).
+         * @param value bandwidth value.
+         */
+        public void setBandwidth(final String type, final long value) {
+            final String prefix = "b=" + type + ":";
+            final String line = prefix + value;
+            int insertIndex = 1;
+            for (int i = 1; i < lines.size(); i++) {
+                final String current = lines.get(i);
+                if (current.startsWith(prefix)) {
+                    lines.set(i, line);
+                    return;
+                }
+                if (current.startsWith("i=") || current.startsWith("c=") || current.startsWith("b=")) {
+                    insertIndex = i + 1;
+                }
+            }
+            lines.add(insertIndex, line);
+        }
+
+        /**
+         * Get the ID of a header extension.
+         * @param uri extension URI.
+         * @return the extension ID, or -1 if not negotiated in this section.
+         */
+        public int getExtmapId(final String uri) {
+            for (final String line : lines) {
+                if (line.startsWith("a=extmap:") && line.endsWith(" " + uri)) {
+                    final int end = indexOfAny(line, "/ ", 9);
+                    return Integer.parseInt(line.substring(9, end));
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Insert a header extension line after the last {@code a=extmap} line of this section.
+         * @param id extension ID.
+         * @param uri extension URI.
+         */
+        private void insertExtmap(final int id, final String uri) {
+            int lastExtmapIndex = -1;
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).startsWith("a=extmap:")) {
+                    lastExtmapIndex = i;
+                }
+            }
+            final String line = "a=extmap:" + id + " " + uri;
+            if (lastExtmapIndex >= 0) {
+                lines.add(lastExtmapIndex + 1, line);
+            } else {
+                lines.add(line);
+            }
+        }
+
+        private int indexOfAttribute(final String name, @Nullable final String payloadType) {
+            for (int i = 1; i < lines.size(); i++) {
+                final String line = lines.get(i);
+                if (line.startsWith("a=") && line.startsWith(name, 2)) {
+                    final int end = 2 + name.length();
+                    if (line.length() == end) {
+                        if (payloadType == null) {
+                            return i;
+                        }
+                    } else if (line.charAt(end) == ':') {
+                        if (payloadType == null) {
+                            return i;
+                        }
+                        if (line.startsWith(payloadType, end + 1)
+                                && line.length() > end + 1 + payloadType.length()
+                                && line.charAt(end + 1 + payloadType.length()) == ' ') {
+                            return i;
+                        }
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static String payloadValue(final String line, final String name, final String payloadType) {
+            // "a=" + name + ":" + payloadType + " "
+            return line.substring(2 + name.length() + 1 + payloadType.length() + 1);
+        }
+
+        private static int indexOfAny(final String string, final String chars, final int from) {
+            for (int i = from; i < string.length(); i++) {
+                if (chars.indexOf(string.charAt(i)) >= 0) {
+                    return i;
+                }
+            }
+            return string.length();
+        }
+    }
+}
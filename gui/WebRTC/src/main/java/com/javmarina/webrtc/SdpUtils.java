@@ -1,29 +1,20 @@
 package com.javmarina.webrtc;
 
-import dev.onvoid.webrtc.PeerConnectionFactory;
 import dev.onvoid.webrtc.RTCRtpCodecCapability;
 import dev.onvoid.webrtc.RTCSessionDescription;
 import dev.onvoid.webrtc.media.MediaType;
-import net.sourceforge.jsdp.Attribute;
-import net.sourceforge.jsdp.Media;
-import net.sourceforge.jsdp.MediaDescription;
-import net.sourceforge.jsdp.SDPException;
-import net.sourceforge.jsdp.SDPFactory;
-import net.sourceforge.jsdp.SessionDescription;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 
 public final class SdpUtils {
 
-    private static final Pattern SPLIT = Pattern.compile("\\r?\\n");
-
     public static RTCSessionDescription setCodecPreference(final RTCSessionDescription sessionDescription,
                                                            final CodecPreference codecPreference) {
         return new RTCSessionDescription(
@@ -49,163 +40,180 @@ public final class SdpUtils {
     }
 
     /**
-     * Convert SCTP SDP v21 format to SCTP SDP v5.
-     * webrtc-java generates a v21 SDP string, but jsdp doesn't accept it.
-     * The v5 string should be handled correctly by WebRTC endpoints.
-     * See https://blog.mozilla.org/webrtc/how-to-avoid-data-channel-breaking/
-     * @param sdp SDP v21 string
-     * @return SDP v5 string
+     * Reorder the video payload types so that the preferred codec is negotiated. The rest of the description
+     * (including the SCTP format of the data channel section) is kept unchanged.
+     * @param sdp SDP string.
+     * @param codecPreference preferred video codec.
+     * @return the new SDP string.
      */
-    private static String v21tov5format(final String sdp) {
-        final String[] lines = SPLIT.split(sdp);
-        int mIndex = -1;
-        int port = -1;
-        int sctpPort = -1;
-        int sctpIndex = -1;
-        String protocol = "";
-        for (int i = 0; i < lines.length; i++) {
-            final String line = lines[i];
-            if (line.startsWith("m=application") && line.contains("webrtc-datachannel")) {
-                // Expected something like: "m=application 54111 UDP/DTLS/SCTP webrtc-datachannel"
-                mIndex = i;
-                final String[] parts = line.split(" ");
-                port = Integer.parseInt(parts[1]);
-                protocol = parts[2];
-            } else if (mIndex >= 0) {
-                if (line.startsWith("a=sctp-port")) {
-                    sctpPort = Integer.parseInt(line.split(":")[1]);
-                    sctpIndex = i;
-                    break;
-                }
-            }
-        }
-        if (mIndex < 0 || sctpIndex < 0) {
-            // Seems like already using the old format
+    public static String setCodecPreference(final String sdp, final CodecPreference codecPreference) {
+        final SdpEditor editor = new SdpEditor(sdp);
+        final SdpEditor.Media videoDescription = editor.getFirstMedia("video");
+        if (videoDescription == null) {
             return sdp;
-        } else {
-            lines[mIndex] = "m=application " + port + " " + protocol + " " + sctpPort;
-            lines[sctpIndex] = "a=sctpmap:" + sctpPort + " webrtc-datachannel 256";
-            return String.join("\r\n", lines);
         }
+
+        final List<String> formats = videoDescription.getPayloadTypes();
+        final List<CodecInfo> codecs = new ArrayList<>(formats.size());
+        for (final String format : formats) {
+            final String rtpmap = videoDescription.getRtpmap(format);
+            codecs.add(new CodecInfo(
+                    format,
+                    rtpmap != null ? rtpmap : "",
+                    videoDescription.getFmtp(format)
+            ));
+        }
+        codecs.sort(getCodecComparator(codecPreference));
+
+        videoDescription.setPayloadTypes(codecs.stream()
+                .map(codecInfo -> codecInfo.format)
+                .collect(Collectors.toList())
+        );
+        return editor.toString();
+    }
+
+    public static RTCSessionDescription applyLatencyProfile(final RTCSessionDescription sessionDescription,
+                                                            final LatencyProfile latencyProfile) {
+        return new RTCSessionDescription(
+                sessionDescription.sdpType,
+                applyLatencyProfile(sessionDescription.sdp, latencyProfile)
+        );
     }
 
     /**
-     * Convert SCTP SDP v5 format to SCTP SDP v21.
-     * @param sdp SDP v5 string
-     * @return SDP v21 string
-     * @see SdpUtils#v21tov5format(String)
+     * Apply the bitrate and Opus settings of a {@link LatencyProfile}. Settings that are not set in the profile
+     * are left as they are.
+     * @param sdp SDP string.
+     * @param latencyProfile the profile to apply.
+     * @return the new SDP string.
      */
-    private static String v5tov21format(final String sdp) {
-        final String[] lines = SPLIT.split(sdp);
-        int mIndex = -1;
-        int port = -1;
-        int sctpPort = -1;
-        int sctpIndex = -1;
-        String protocol = "";
-        for (int i = 0; i < lines.length; i++) {
-            final String line = lines[i];
-            if (line.startsWith("m=application")) {
-                // Expected something like: "m=application 63743 UDP/DTLS/SCTP 5000"
-                mIndex = i;
-                final String[] parts = line.split(" ");
-                port = Integer.parseInt(parts[1]);
-                protocol = parts[2];
-                sctpPort = Integer.parseInt(parts[3]);
-            } else if (mIndex >= 0) {
-                if (line.startsWith("a=sctpmap")) {
-                    // "a=sctpmap:5000 webrtc-datachannel 256"
-                    sctpIndex = i;
-                    break;
-                }
-            }
-        }
-        if (mIndex < 0 || sctpIndex < 0) {
-            // Seems like already using the new format
+    public static String applyLatencyProfile(final String sdp, final LatencyProfile latencyProfile) {
+        if (latencyProfile == LatencyProfile.DEFAULT) {
             return sdp;
-        } else {
-            lines[mIndex] = "m=application " + port + " " + protocol + " webrtc-datachannel";
-            lines[sctpIndex] = "a=sctp-port:" + sctpPort;
-            return String.join("\r\n", lines);
         }
-    }
+        final SdpEditor editor = new SdpEditor(sdp);
 
-    public static String setCodecPreference(final String sdp, final CodecPreference codecPreference) {
-        final String newSdp = v21tov5format(sdp);
-        try {
-            final SessionDescription sessionDescription = SDPFactory.parseSessionDescription(newSdp);
-            final MediaDescription[] mediaDescriptions = sessionDescription.getMediaDescriptions();
-            MediaDescription videoDescription = null;
-            for (final MediaDescription mediaDescription : mediaDescriptions) {
-                final Media media = mediaDescription.getMedia();
-                if (media.getMediaType().equals("video")) {
-                    videoDescription = mediaDescription;
-                    break;
+        for (final SdpEditor.Media video : editor.getMedia("video")) {
+            final int maxBitrate = latencyProfile.getVideoMaxBitrateKbps();
+            if (maxBitrate != LatencyProfile.UNSET) {
+                video.setBandwidth("AS", maxBitrate);
+                video.setBandwidth("TIAS", maxBitrate * 1000L);
+            }
+            for (final String payloadType : video.getPayloadTypes()) {
+                final String rtpmap = video.getRtpmap(payloadType);
+                if (rtpmap == null || isAuxiliaryVideoCodec(rtpmap)) {
+                    continue;
+                }
+                if (latencyProfile.getVideoMinBitrateKbps() != LatencyProfile.UNSET) {
+                    video.setFmtpParameter(payloadType, "x-google-min-bitrate",
+                            String.valueOf(latencyProfile.getVideoMinBitrateKbps()));
+                }
+                if (latencyProfile.getVideoStartBitrateKbps() != LatencyProfile.UNSET) {
+                    video.setFmtpParameter(payloadType, "x-google-start-bitrate",
+                            String.valueOf(latencyProfile.getVideoStartBitrateKbps()));
+                }
+                if (maxBitrate != LatencyProfile.UNSET) {
+                    video.setFmtpParameter(payloadType, "x-google-max-bitrate", String.valueOf(maxBitrate));
                 }
             }
+        }
 
-            if (videoDescription == null) {
-                return sdp;
+        for (final SdpEditor.Media audio : editor.getMedia("audio")) {
+            final List<String> opusPayloadTypes = audio.findPayloadTypes("opus");
+            if (opusPayloadTypes.isEmpty()) {
+                continue;
             }
-
-            final String[] formats = videoDescription.getMedia().getMediaFormats();
-
-            final Attribute[] rtpMapAttrs = videoDescription.getAttributes("rtpmap");
-            final HashMap<String, String> rtpMap = new HashMap<>(rtpMapAttrs.length);
-            for (final Attribute attr : rtpMapAttrs) {
-                final String[] split = attr.getValue().split(" ");
-                rtpMap.put(split[0], split[1]);
+            if (latencyProfile.getOpusPtimeMs() != LatencyProfile.UNSET) {
+                audio.setAttribute("ptime", String.valueOf(latencyProfile.getOpusPtimeMs()));
             }
+            for (final String payloadType : opusPayloadTypes) {
+                if (latencyProfile.getOpusMinPtimeMs() != LatencyProfile.UNSET) {
+                    audio.setFmtpParameter(payloadType, "minptime",
+                            String.valueOf(latencyProfile.getOpusMinPtimeMs()));
+                }
+                if (latencyProfile.isOpusStereo()) {
+                    audio.setFmtpParameter(payloadType, "stereo", "1");
+                    audio.setFmtpParameter(payloadType, "sprop-stereo", "1");
+                }
+                if (latencyProfile.getOpusMaxAverageBitrate() != LatencyProfile.UNSET) {
+                    audio.setFmtpParameter(payloadType, "maxaveragebitrate",
+                            String.valueOf(latencyProfile.getOpusMaxAverageBitrate()));
+                }
+            }
+        }
+        return editor.toString();
+    }
 
-            final Attribute[] fmtp = videoDescription.getAttributes("fmtp");
-            final HashMap<String, String> fmtpMap = new HashMap<>(fmtp.length);
-            for (final Attribute attr : fmtp) {
-                final String[] split = attr.getValue().split(" ");
-                fmtpMap.put(split[0], split[1]);
+    /**
+     * Check whether a {@link LatencyProfile} with video bitrates was applied to a description. libwebrtc never
+     * adds the {@code x-google-*-bitrate} parameters by itself, so their presence means that the remote peer asked
+     * for it.
+     * @param sdp SDP string.
+     * @return true if any video format has an {@code x-google-min-bitrate}, {@code x-google-start-bitrate} or
+     * {@code x-google-max-bitrate} parameter.
+     */
+    public static boolean hasLatencyProfile(final String sdp) {
+        for (final SdpEditor.Media video : new SdpEditor(sdp).getMedia("video")) {
+            for (final String payloadType : video.getPayloadTypes()) {
+                final String fmtp = video.getFmtp(payloadType);
+                if (fmtp != null && (fmtp.contains("x-google-min-bitrate=")
+                        || fmtp.contains("x-google-start-bitrate=") || fmtp.contains("x-google-max-bitrate="))) {
+                    return true;
+                }
             }
+        }
+        return false;
+    }
 
-            final List<CodecInfo> codecs = new ArrayList<>(formats.length);
-            for (final String format : formats) {
-                codecs.add(new CodecInfo(
-                        format,
-                        rtpMap.get(format),
-                        fmtpMap.getOrDefault(format, null)
-                ));
+    /**
+     * Get the DTLS certificate fingerprint of a description. It stays the same on ICE restarts, so a different
+     * one means that the description comes from a new peer connection.
+     * @param sdp SDP string.
+     * @return the fingerprint of the first media section that has one, or null if there isn't any.
+     */
+    @Nullable
+    public static String getFingerprint(final String sdp) {
+        for (final SdpEditor.Media media : new SdpEditor(sdp).getAllMedia()) {
+            final String fingerprint = media.getAttribute("fingerprint");
+            if (fingerprint != null) {
+                return fingerprint;
             }
-            codecs.sort(getCodecComparator(codecPreference));
-
-            videoDescription.getMedia().setMediaFormats(codecs.stream()
-                    .map(codecInfo -> codecInfo.format)
-                    .toArray(String[]::new)
-            );
-            // TODO: v5tov21format(sessionDescription.toString())
-            return sessionDescription.toString();
-        } catch (final SDPException e) {
-            return sdp;
         }
+        return null;
+    }
+
+    private static boolean isAuxiliaryVideoCodec(final String rtpmap) {
+        // Retransmission and error correction formats don't have their own bitrate
+        final String name = rtpmap.substring(0, Math.max(0, rtpmap.indexOf('/'))).toLowerCase(Locale.ROOT);
+        return name.equals("rtx") || name.equals("red") || name.equals("ulpfec") || name.startsWith("flexfec");
     }
 
     private static final class CodecInfo {
 
         private final String format;
         private final String name;
+        @Nullable
         private final String attr;
 
-        private CodecInfo(final String format, final String name, final String attr) {
+        private CodecInfo(final String format, final String name, @Nullable final String attr) {
             this.format = format;
             this.name = name;
             this.attr = attr;
         }
+
+        private int getVp9Profile() {
+            if (attr == null || !attr.contains("profile-id=")) {
+                return 0;
+            }
+            return Integer.parseInt(attr.split("profile-id=")[1].substring(0, 1));
+        }
     }
 
     public enum CodecPreference {
         // The order in which values are declared is the order in which it will be presented to the user
         H264("H264", (o1, o2) -> 0),
         VP8("VP8", (o1, o2) -> 0),
-        VP9("VP9", (o1, o2) -> {
-            final int profile1 = Integer.parseInt(o1.attr.split("profile-id=")[1].substring(0, 1));
-            final int profile2 = Integer.parseInt(o2.attr.split("profile-id=")[1].substring(0, 1));
-            return -Integer.compare(profile1, profile2);
-        }),
+        VP9("VP9", (o1, o2) -> -Integer.compare(o1.getVp9Profile(), o2.getVp9Profile())),
         AV1("AV1", (o1, o2) -> 0);
 
         private final String name;
@@ -218,7 +226,7 @@ public final class SdpUtils {
 
         public static List<CodecPreference> getAvailablePreferences() {
             final List<RTCRtpCodecCapability> codecCapabilities =
-                    new PeerConnectionFactory().getRtpReceiverCapabilities(MediaType.VIDEO).getCodecs();
+                    PeerConnectionFactoryManager.getInstance().getReceiverCodecs(MediaType.VIDEO);
             return Arrays.stream(CodecPreference.values())
                     .filter(codecPreference ->
                             codecCapabilities.stream().anyMatch(rtcRtpCodecCapability ->
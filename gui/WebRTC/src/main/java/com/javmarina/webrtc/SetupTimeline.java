@@ -0,0 +1,164 @@
+package com.javmarina.webrtc;
+
+import com.javmarina.webrtc.signaling.SessionId;
+import com.javmarina.webrtc.signaling.SignalingPeer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+
+/**
+ * Timestamps of the different phases of a connection setup, from the moment the signaling socket is opened
+ * until the first video frame arrives. Only the first occurrence of each phase is recorded, so it's safe to
+ * call {@link SetupTimeline#mark(Phase)} from any thread and as many times as needed.<br>
+ * Once the last phase is reached, the timeline is reported as a structured (JSON) record, which tells whether
+ * signaling, SDP handling or ICE dominates the setup time.
+ */
+public final class SetupTimeline {
+
+    public enum Phase {
+        // The order in which values are declared is the order in which they are expected to happen
+        SOCKET_CONNECTED,
+        REGISTER_ACK,
+        OFFER_CREATED,
+        OFFER_RECEIVED,
+        SDP_MUNGED,
+        ANSWER_CREATED,
+        ANSWER_RECEIVED,
+        FIRST_ICE_CANDIDATE,
+        ICE_CONNECTED,
+        DATA_CHANNEL_OPEN,
+        FIRST_VIDEO_FRAME
+    }
+
+    private static final long NOT_REACHED = Long.MIN_VALUE;
+    private static final Phase LAST_PHASE = Phase.FIRST_VIDEO_FRAME;
+
+    private final SignalingPeer.Role role;
+    private final SessionId sessionId;
+    private final Callback callback;
+    private final AtomicLongArray timestamps = new AtomicLongArray(Phase.values().length);
+    private final AtomicBoolean reported = new AtomicBoolean(false);
+    private volatile long startNanos = NOT_REACHED;
+    private volatile boolean prewarmed = false;
+
+    public SetupTimeline(final SignalingPeer.Role role, final SessionId sessionId, final Callback callback) {
+        this.role = role;
+        this.sessionId = sessionId;
+        this.callback = callback;
+        for (int i = 0; i < timestamps.length(); i++) {
+            timestamps.set(i, NOT_REACHED);
+        }
+    }
+
+    /**
+     * Set the origin of the timeline. Called when the setup process starts.
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Set whether the peer connection was prepared before the session started, so that setup times of prewarmed
+     * and cold sessions can be told apart in the record.
+     * @param prewarmed true if the connection was prewarmed.
+     */
+    public void setPrewarmed(final boolean prewarmed) {
+        this.prewarmed = prewarmed;
+    }
+
+    /**
+     * Record that a phase has been reached. Subsequent calls for the same phase are ignored.
+     * @param phase the phase that was just reached.
+     */
+    public void mark(final Phase phase) {
+        final int index = phase.ordinal();
+        if (timestamps.get(index) != NOT_REACHED) {
+            // Fast path, this is called for every video frame
+            return;
+        }
+        if (timestamps.compareAndSet(index, NOT_REACHED, System.nanoTime())
+                && phase == LAST_PHASE && reported.compareAndSet(false, true)) {
+            callback.onSetupCompleted(this);
+        }
+    }
+
+    /**
+     * Get the time at which a phase was reached.
+     * @param phase the phase.
+     * @return milliseconds since {@link SetupTimeline#start()}, or -1 if the phase was not reached.
+     */
+    public long getElapsedMillis(final Phase phase) {
+        final long timestamp = timestamps.get(phase.ordinal());
+        if (timestamp == NOT_REACHED || startNanos == NOT_REACHED) {
+            return -1;
+        }
+        return (timestamp - startNanos) / 1000000;
+    }
+
+    /**
+     * Convert this timeline to a JSON record. Each reached phase includes the time since the start and the
+     * time since the previous reached phase.
+     * @return the JSON object.
+     */
+    public JSONObject toJson() {
+        final JSONObject jo = new JSONObject();
+        jo.put("role", role.toString().toLowerCase(Locale.ROOT));
+        jo.put("sessionId", sessionId.toString());
+        jo.put("prewarmed", prewarmed);
+
+        // Phases don't always happen in declaration order (e.g. ICE candidates can be gathered before the answer
+        // arrives), so sort them chronologically
+        final List<Phase> reachedPhases = Arrays.stream(Phase.values())
+                .filter(phase -> getElapsedMillis(phase) >= 0)
+                .sorted(Comparator.comparingLong(this::getElapsedMillis))
+                .collect(Collectors.toList());
+
+        final JSONArray phases = new JSONArray();
+        long previous = 0;
+        long total = 0;
+        String slowestPhase = null;
+        long slowestDelta = -1;
+        for (final Phase phase : reachedPhases) {
+            final long elapsed = getElapsedMillis(phase);
+            final long delta = elapsed - previous;
+            final JSONObject entry = new JSONObject();
+            entry.put("phase", phase.toString());
+            entry.put("atMs", elapsed);
+            entry.put("deltaMs", delta);
+            phases.put(entry);
+            if (delta > slowestDelta) {
+                slowestDelta = delta;
+                slowestPhase = phase.toString();
+            }
+            previous = elapsed;
+            total = elapsed;
+        }
+        jo.put("phases", phases);
+        jo.put("totalMs", total);
+        if (slowestPhase != null) {
+            jo.put("slowestPhase", slowestPhase);
+        }
+        return jo;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    public interface Callback {
+        /**
+         * All phases up to the first video frame have been reached.
+         * @param timeline the completed timeline.
+         */
+        void onSetupCompleted(final SetupTimeline timeline);
+    }
+}
@@ -0,0 +1,335 @@
+package com.javmarina.webrtc;
+
+import com.javmarina.util.Packet;
+import com.javmarina.webrtc.signaling.SessionId;
+import com.javmarina.webrtc.stats.Metric;
+import com.javmarina.webrtc.stats.StatsSampler;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * Serves the spectators of a session: peers that receive the same audio and video as the controller client,
+ * but can't control the console.<br>
+ * The signaling server pairs a single client with each server, so spectators connect to their own session ID
+ * (see {@link SessionId#getSpectatorSessionId()}), one at a time: a peer waits for a spectator on that ID and,
+ * once it connects, another one is registered for the next spectator, up to the viewer cap.<br>
+ * All spectators share the tracks of the controller session (see {@link RtcServer#createSpectator}), so the
+ * capture device isn't opened again. Each peer connection has its own encoder and quality controller, so a
+ * spectator on a slow network doesn't lower the quality for the others. That has a cost for each added viewer,
+ * which is reported periodically.
+ */
+public final class SpectatorFanOut {
+
+    private static final long REPORT_PERIOD_MS = 5000;
+    // Time before registering again if the spectator session ID is not available
+    private static final long RETRY_DELAY_MS = 2000;
+
+    private final RtcServer controllerServer;
+    private final SessionId spectatorSessionId;
+    private final int maxViewers;
+    private final Callback callback;
+    private final List<RtcServer> viewers = new ArrayList<>();
+    @Nullable
+    private final com.sun.management.OperatingSystemMXBean operatingSystem;
+
+    @Nullable
+    private RtcServer listening;
+    private Timer timer;
+    // Process CPU load without spectators, to compute the cost of each one
+    private double baselineCpuPercent = Double.NaN;
+
+    /**
+     * Create the fan-out for a session.
+     * @param controllerServer peer of the controller client, whose tracks are shared.
+     * @param spectatorSessionId session ID that spectators connect to.
+     * @param maxViewers maximum number of spectators connected at the same time.
+     * @param callback called from other threads.
+     */
+    public SpectatorFanOut(final RtcServer controllerServer, final SessionId spectatorSessionId,
+                           final int maxViewers, final Callback callback) {
+        if (maxViewers <= 0) {
+            throw new IllegalArgumentException("At least one viewer must be allowed");
+        }
+        this.controllerServer = controllerServer;
+        this.spectatorSessionId = spectatorSessionId;
+        this.maxViewers = maxViewers;
+        this.callback = callback;
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        this.operatingSystem = bean instanceof com.sun.management.OperatingSystemMXBean
+                ? (com.sun.management.OperatingSystemMXBean) bean
+                : null;
+    }
+
+    /**
+     * Start accepting spectators. Call it once the controller session has started.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("SpectatorFanOut", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, REPORT_PERIOD_MS, REPORT_PERIOD_MS);
+        scheduleListen(0);
+    }
+
+    /**
+     * Disconnect all the spectators and stop accepting new ones.
+     */
+    public void stop() {
+        final List<RtcServer> peers;
+        synchronized (this) {
+            if (timer == null) {
+                return;
+            }
+            timer.cancel();
+            timer = null;
+            peers = new ArrayList<>(viewers);
+            if (listening != null) {
+                peers.add(listening);
+                listening = null;
+            }
+            viewers.clear();
+        }
+        // Outside the lock, stopping a peer calls the callbacks below
+        for (final RtcServer peer : peers) {
+            peer.stop();
+        }
+    }
+
+    public synchronized int getViewerCount() {
+        return viewers.size();
+    }
+
+    public int getMaxViewers() {
+        return maxViewers;
+    }
+
+    public SessionId getSpectatorSessionId() {
+        return spectatorSessionId;
+    }
+
+    private synchronized void scheduleListen(final long delayMs) {
+        if (timer == null) {
+            return;
+        }
+        // Peer connections are created in the timer thread, never in a WebRTC callback
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }, delayMs);
+    }
+
+    private synchronized void listen() {
+        if (timer == null || listening != null || viewers.size() >= maxViewers) {
+            return;
+        }
+        final Viewer viewer = new Viewer();
+        listening = controllerServer.createSpectator(spectatorSessionId, viewer);
+        viewer.server = listening;
+        listening.start();
+    }
+
+    private void onViewerConnected(final RtcServer server) {
+        final int count;
+        synchronized (this) {
+            if (server != listening) {
+                return;
+            }
+            listening = null;
+            viewers.add(server);
+            count = viewers.size();
+            scheduleListen(0);
+        }
+        System.out.println("Spectator connected (" + count + "/" + maxViewers + ")");
+        callback.onViewerCountChanged(count);
+    }
+
+    private void onViewerStopped(final RtcServer server) {
+        final int count;
+        synchronized (this) {
+            if (server == listening) {
+                listening = null;
+                scheduleListen(RETRY_DELAY_MS);
+                return;
+            }
+            if (!viewers.remove(server)) {
+                return;
+            }
+            count = viewers.size();
+            scheduleListen(0);
+        }
+        System.out.println("Spectator disconnected (" + count + "/" + maxViewers + ")");
+        callback.onViewerCountChanged(count);
+    }
+
+    private void report() {
+        final List<RtcServer> peers;
+        synchronized (this) {
+            peers = new ArrayList<>(viewers);
+        }
+
+        double viewerEncodeMs = 0;
+        for (final RtcServer peer : peers) {
+            viewerEncodeMs += orZero(getEncodeMsPerSecond(peer));
+        }
+        final double cpuPercent = getProcessCpuPercent();
+        if (peers.isEmpty() && !Double.isNaN(cpuPercent)) {
+            baselineCpuPercent = cpuPercent;
+        }
+
+        final int count = peers.size();
+        final CostReport report = new CostReport(
+                count,
+                getEncodeMsPerSecond(controllerServer),
+                count == 0 ? Double.NaN : viewerEncodeMs / count,
+                cpuPercent,
+                count == 0 || Double.isNaN(baselineCpuPercent)
+                        ? Double.NaN
+                        : (cpuPercent - baselineCpuPercent) / count
+        );
+        callback.onCostReport(report);
+    }
+
+    /**
+     * Time spent encoding video each second, in milliseconds.
+     */
+    private static double getEncodeMsPerSecond(final RtcServer server) {
+        final QualityController qualityController = server.getQualityController();
+        if (qualityController == null) {
+            return Double.NaN;
+        }
+        final StatsSampler statsSampler = qualityController.getStatsSampler();
+        return statsSampler.getLatest(Metric.ENCODE_MS_PER_FRAME) * statsSampler.getLatest(Metric.FPS_ENCODED);
+    }
+
+    private double getProcessCpuPercent() {
+        if (operatingSystem == null) {
+            return Double.NaN;
+        }
+        final double load = operatingSystem.getProcessCpuLoad();
+        return load < 0 ? Double.NaN : load * 100;
+    }
+
+    private static double orZero(final double value) {
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    /**
+     * Callback of each spectator peer.
+     */
+    private final class Viewer implements RtcServer.Callback {
+
+        private RtcServer server;
+
+        @Override
+        public void onPacketReceived(final Packet packet) {
+            // Never called for spectators
+        }
+
+        @Override
+        public void onSessionStarted() {
+            onViewerConnected(server);
+        }
+
+        @Override
+        public void onConnectionInterrupted() {
+            // Spectators don't reconnect
+        }
+
+        @Override
+        public void onReconnected(final long recoveryMillis) {
+        }
+
+        @Override
+        public void onSessionStopped() {
+            onViewerStopped(server);
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            e.printStackTrace();
+            server.stop();
+        }
+
+        @Override
+        public void onInvalidSessionId() {
+            // The previous registration may not have expired yet
+            server.stop();
+        }
+
+        @Override
+        public void onSetupCompleted(final SetupTimeline timeline) {
+            System.out.println("Spectator connection setup: " + timeline);
+        }
+
+        @Override
+        public void onCaptureTiming(final FrameTimingAnalyser.Report report) {
+            // Only reported by the controller session
+        }
+    }
+
+    /**
+     * Cost of the spectators, sampled every few seconds.
+     */
+    public static final class CostReport {
+
+        public final int viewers;
+        /**
+         * Milliseconds spent each second encoding the video of the controller session.
+         */
+        public final double controllerEncodeMsPerSecond;
+        /**
+         * Milliseconds spent each second encoding the video of each spectator, on average. NaN without
+         * spectators.
+         */
+        public final double encodeMsPerSecondPerViewer;
+        /**
+         * CPU load of the whole process, as a percentage of all cores.
+         */
+        public final double processCpuPercent;
+        /**
+         * Increase of the process CPU load for each spectator, compared to the last sample without spectators.
+         * NaN if unknown.
+         */
+        public final double cpuPercentPerViewer;
+
+        private CostReport(final int viewers, final double controllerEncodeMsPerSecond,
+                           final double encodeMsPerSecondPerViewer, final double processCpuPercent,
+                           final double cpuPercentPerViewer) {
+            this.viewers = viewers;
+            this.controllerEncodeMsPerSecond = controllerEncodeMsPerSecond;
+            this.encodeMsPerSecondPerViewer = encodeMsPerSecondPerViewer;
+            this.processCpuPercent = processCpuPercent;
+            this.cpuPercentPerViewer = cpuPercentPerViewer;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d viewers, encoding %.1f ms/s (controller) and %.1f ms/s per viewer, CPU %.1f %% "
+                            + "(%.1f %% per viewer)",
+                    viewers, controllerEncodeMsPerSecond, encodeMsPerSecondPerViewer, processCpuPercent,
+                    cpuPercentPerViewer);
+        }
+    }
+
+    public interface Callback {
+        void onViewerCountChanged(final int viewers);
+        void onCostReport(final CostReport report);
+    }
+}
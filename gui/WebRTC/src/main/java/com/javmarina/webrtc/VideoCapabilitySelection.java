@@ -1,8 +1,10 @@
 package com.javmarina.webrtc;
 
 import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 
 public final class VideoCapabilitySelection {
@@ -52,6 +54,24 @@ public final class VideoCapabilitySelection {
         return bestCapability;
     }
 
+    /**
+     * Select a capability with less pixels than the given one.
+     * @param capabilities available capabilities.
+     * @param reference the capability currently in use.
+     * @param selectionPolicy policy used to choose among the smaller capabilities.
+     * @return the selected capability, or null if there isn't any smaller capability.
+     */
+    @Nullable
+    public static VideoCaptureCapability selectSmallerCapability(final List<VideoCaptureCapability> capabilities,
+                                                                 final VideoCaptureCapability reference,
+                                                                 final Policy selectionPolicy) {
+        final int referencePixels = VideoCapabilitySelection.getNumberOfPixels(reference);
+        final List<VideoCaptureCapability> smaller = capabilities.stream()
+                .filter(capability -> VideoCapabilitySelection.getNumberOfPixels(capability) < referencePixels)
+                .collect(Collectors.toList());
+        return smaller.isEmpty() ? null : selectCapability(smaller, selectionPolicy);
+    }
+
     private static int getNumberOfPixels(final VideoCaptureCapability capability) {
         return capability.height * capability.width;
     }
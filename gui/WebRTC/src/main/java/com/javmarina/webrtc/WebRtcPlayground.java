@@ -1,12 +1,37 @@
 package com.javmarina.webrtc;
 
+import com.javmarina.webrtc.latency.LatencyRecorder;
+import com.javmarina.webrtc.latency.TimestampPattern;
+import com.javmarina.webrtc.latency.TimestampStamper;
+import com.javmarina.webrtc.synthetic.SyntheticAudioSource;
+import com.javmarina.webrtc.synthetic.SyntheticVideoSource;
+import dev.onvoid.webrtc.CreateSessionDescriptionObserver;
+import dev.onvoid.webrtc.PeerConnectionFactory;
+import dev.onvoid.webrtc.PeerConnectionObserver;
+import dev.onvoid.webrtc.RTCAnswerOptions;
+import dev.onvoid.webrtc.RTCConfiguration;
+import dev.onvoid.webrtc.RTCIceCandidate;
+import dev.onvoid.webrtc.RTCOfferOptions;
+import dev.onvoid.webrtc.RTCPeerConnection;
+import dev.onvoid.webrtc.RTCRtpTransceiver;
+import dev.onvoid.webrtc.RTCSessionDescription;
+import dev.onvoid.webrtc.SetSessionDescriptionObserver;
 import dev.onvoid.webrtc.media.MediaDevices;
+import dev.onvoid.webrtc.media.MediaStreamTrack;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
+import dev.onvoid.webrtc.media.video.I420Buffer;
 import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
 import dev.onvoid.webrtc.media.video.VideoDevice;
 import dev.onvoid.webrtc.media.video.VideoDeviceSource;
+import dev.onvoid.webrtc.media.video.VideoFrameBuffer;
+import dev.onvoid.webrtc.media.video.VideoTrack;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 
 // https://webrtc.org/getting-started/peer-connections-advanced
@@ -18,9 +43,172 @@ import java.util.List;
 // https://webrtc.github.io/webrtc-org/native-code/native-apis/
 public class WebRtcPlayground {
 
+    private static final int SYNTHETIC_DURATION_MS = 5000;
+    private static final int STAMPING_DURATION_MS = 10000;
+
+    /**
+     * Run the playground.
+     * @param args "synthetic" to use synthetic sources instead of the capture devices, "stamping" to check that
+     *             the timestamp pattern reaches the decoder.
+     */
     public static void main(final String... args) {
         WebRtcLoader.loadLibrary();
-        testDevices();
+        if (args.length > 0 && args[0].equals("synthetic")) {
+            testSyntheticSources();
+        } else if (args.length > 0 && args[0].equals("stamping")) {
+            testTimestampStamping();
+        } else {
+            testDevices();
+        }
+    }
+
+    /**
+     * Render synthetic video the same way as the client (scale, convert and read timestamps) and consume
+     * synthetic audio, reporting the throughput of each path.
+     */
+    private static void testSyntheticSources() {
+        final SyntheticVideoSource videoSource = new SyntheticVideoSource(
+                1920, 1080, 60, SyntheticVideoSource.Motion.SCROLLING);
+        videoSource.setTimestampStamping(true);
+        final I420Scaler scaler = new I420Scaler(ForkJoinPool.commonPool());
+        final ByteBuffer bgra = ByteBuffer.allocateDirect(1920 * 1080 * 4);
+        final AtomicLong renderNanos = new AtomicLong();
+        final LatencyRecorder latency = new LatencyRecorder(1000);
+        videoSource.addSink(frame -> {
+            final long t0 = System.nanoTime();
+            final I420Converter.Planes planes = I420Converter.Planes.of((I420Buffer) frame.buffer);
+            final long timestamp = TimestampPattern.read(planes);
+            final I420Converter.Planes scaled = scaler.scaleToFit(planes, 1280, 720);
+            I420Converter.getDefault().convert(scaled, bgra);
+            renderNanos.addAndGet(System.nanoTime() - t0);
+            if (timestamp >= 0) {
+                latency.add(TimestampPattern.elapsedMs(System.currentTimeMillis(), timestamp));
+            }
+        });
+
+        final SyntheticAudioSource audioSource = new SyntheticAudioSource(
+                48000, 2, SyntheticAudioSource.Waveform.TONE, 440);
+        final AtomicLong squaredSum = new AtomicLong();
+        final AtomicLong samples = new AtomicLong();
+        audioSource.addSink((data, bitsPerSample, sampleRate, channels, frames) -> {
+            long sum = 0;
+            for (int i = 0; i < data.length; i += 2) {
+                final int sample = (short) ((data[i] & 0xFF) | (data[i + 1] << 8));
+                sum += (long) sample * sample;
+            }
+            squaredSum.addAndGet(sum);
+            samples.addAndGet(data.length / 2);
+        });
+
+        videoSource.start();
+        audioSource.start();
+        try {
+            Thread.sleep(SYNTHETIC_DURATION_MS);
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+        }
+        videoSource.stop();
+        audioSource.stop();
+
+        final long frames = videoSource.getFramesGenerated();
+        System.out.printf("Video: %d frames (%.1f fps), %.2f ms per frame to render, latency %s%n",
+                frames, frames * 1000.0 / SYNTHETIC_DURATION_MS,
+                frames == 0 ? 0 : renderNanos.get() / 1e6 / frames, latency);
+        System.out.printf("Audio: %d chunks, RMS %.0f%n", audioSource.getChunksGenerated(),
+                samples.get() == 0 ? 0 : Math.sqrt((double) squaredSum.get() / samples.get()));
+    }
+
+    /**
+     * Send the first capture device through two connected peers, stamping the frames with {@link TimestampStamper}
+     * as {@link RtcServer#enableTimestampStamping()} does, and check that the decoded frames carry the pattern.
+     * @throws IllegalStateException if no frame is decoded, or if none of them has the pattern (the encoder
+     * doesn't see the stamped buffer, so the client would never get latency samples).
+     */
+    private static void testTimestampStamping() {
+        final PeerConnectionFactoryManager manager = PeerConnectionFactoryManager.getInstance();
+        manager.prewarm();
+        final PeerConnectionFactory factory = manager.getFactory();
+
+        final VideoDevice device = MediaDevices.getVideoCaptureDevices().get(0);
+        final VideoDeviceSource videoSource = new VideoDeviceSource();
+        videoSource.setVideoCaptureDevice(device);
+        videoSource.setVideoCaptureCapability(VideoCapabilitySelection.selectCapability(
+                MediaDevices.getVideoCaptureCapabilities(device),
+                VideoCapabilitySelection.Policy.BEST_RESOLUTION
+        ));
+        final VideoTrack videoTrack = factory.createVideoTrack("videoTrack", videoSource);
+        final TimestampStamper stamper = new TimestampStamper();
+        videoTrack.addSink(stamper);
+
+        final AtomicLong decodedFrames = new AtomicLong();
+        final LatencyRecorder latency = new LatencyRecorder(1000);
+        final AtomicReference<RTCPeerConnection> sender = new AtomicReference<>();
+        final RTCPeerConnection receiver = factory.createPeerConnection(new RTCConfiguration(),
+                new PeerConnectionObserver() {
+                    @Override
+                    public void onIceCandidate(final RTCIceCandidate candidate) {
+                        sender.get().addIceCandidate(candidate);
+                    }
+
+                    @Override
+                    public void onTrack(final RTCRtpTransceiver transceiver) {
+                        final MediaStreamTrack track = transceiver.getReceiver().getTrack();
+                        if (!track.getKind().equals(MediaStreamTrack.VIDEO_TRACK_KIND)) {
+                            return;
+                        }
+                        ((VideoTrack) track).addSink(frame -> {
+                            final VideoFrameBuffer buffer = frame.buffer;
+                            final I420Buffer i420 = buffer instanceof I420Buffer
+                                    ? (I420Buffer) buffer : buffer.toI420();
+                            final long timestamp = TimestampPattern.read(I420Converter.Planes.of(i420));
+                            if (i420 != buffer) {
+                                i420.release();
+                            }
+                            decodedFrames.incrementAndGet();
+                            if (timestamp >= 0) {
+                                latency.add(TimestampPattern.elapsedMs(System.currentTimeMillis(), timestamp));
+                            }
+                        });
+                    }
+                });
+        sender.set(factory.createPeerConnection(new RTCConfiguration(), receiver::addIceCandidate));
+        sender.get().addTrack(videoTrack, List.of("stream"));
+
+        videoSource.start();
+        negotiate(sender.get(), receiver);
+        try {
+            Thread.sleep(STAMPING_DURATION_MS);
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+        }
+        videoSource.stop();
+        sender.get().close();
+        receiver.close();
+
+        final long decoded = decodedFrames.get();
+        System.out.printf("Stamped %d frames, decoded %d, latency %s%n",
+                stamper.getStampedFrames(), decoded, latency);
+        if (decoded == 0) {
+            throw new IllegalStateException("No frames were decoded, the peers didn't connect");
+        }
+        if (stamper.isDisabled() || stamper.getStampedFrames() == 0) {
+            throw new IllegalStateException("The captured frames couldn't be stamped");
+        }
+        if (latency.getCount() == 0) {
+            throw new IllegalStateException("None of the decoded frames has the timestamp pattern: "
+                    + "the encoder doesn't see the frames modified by TimestampStamper");
+        }
+    }
+
+    private static void negotiate(final RTCPeerConnection offerer, final RTCPeerConnection answerer) {
+        offerer.createOffer(new RTCOfferOptions(), new SessionDescriptionObserver(offer -> {
+            offerer.setLocalDescription(offer, new SessionDescriptionObserver(() ->
+                    answerer.setRemoteDescription(offer, new SessionDescriptionObserver(() ->
+                            answerer.createAnswer(new RTCAnswerOptions(), new SessionDescriptionObserver(answer -> {
+                                answerer.setLocalDescription(answer, new SessionDescriptionObserver(() -> {}));
+                                offerer.setRemoteDescription(answer, new SessionDescriptionObserver(() -> {}));
+                            }))))));
+        }));
     }
 
     private static void testDevices() {
@@ -61,4 +249,40 @@ public class WebRtcPlayground {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Observer for both steps of the negotiation that fails loudly, so that a broken loopback isn't mistaken for
+     * missing timestamps.
+     */
+    private static final class SessionDescriptionObserver
+            implements CreateSessionDescriptionObserver, SetSessionDescriptionObserver {
+
+        private final Consumer<RTCSessionDescription> onCreated;
+        private final Runnable onSet;
+
+        private SessionDescriptionObserver(final Consumer<RTCSessionDescription> onCreated) {
+            this.onCreated = onCreated;
+            this.onSet = null;
+        }
+
+        private SessionDescriptionObserver(final Runnable onSet) {
+            this.onCreated = null;
+            this.onSet = onSet;
+        }
+
+        @Override
+        public void onSuccess(final RTCSessionDescription description) {
+            onCreated.accept(description);
+        }
+
+        @Override
+        public void onSuccess() {
+            onSet.run();
+        }
+
+        @Override
+        public void onFailure(final String error) {
+            System.out.println("Negotiation failed: " + error);
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package com.javmarina.webrtc.latency;
+
+
+/**
+ * Estimates the offset between the local clock and the clock of the remote peer, from ping replies that include
+ * the remote time. As in NTP, the remote time is assumed to be taken halfway through the round trip, so the
+ * error of each sample is at most half its RTT. Of the last {@link ClockOffsetEstimator#WINDOW} samples, the one
+ * with the lowest RTT is used.
+ */
+public final class ClockOffsetEstimator {
+
+    private static final int WINDOW = 16;
+
+    private final long[] offsets = new long[WINDOW];
+    private final long[] rtts = new long[WINDOW];
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * Add a sample.
+     * @param sentMs local time when the ping was sent.
+     * @param remoteMs remote time when the ping was answered.
+     * @param receivedMs local time when the reply was received.
+     */
+    public synchronized void onPingReply(final long sentMs, final long remoteMs, final long receivedMs) {
+        final long rtt = receivedMs - sentMs;
+        if (rtt < 0) {
+            return;
+        }
+        offsets[next] = remoteMs - (sentMs + rtt / 2);
+        rtts[next] = rtt;
+        next = (next + 1) % WINDOW;
+        if (size < WINDOW) {
+            size++;
+        }
+    }
+
+    public synchronized boolean hasEstimate() {
+        return size > 0;
+    }
+
+    /**
+     * Get the estimated offset.
+     * @return remote time minus local time, in milliseconds, or 0 if there isn't any sample yet.
+     */
+    public synchronized long getOffsetMs() {
+        int best = -1;
+        for (int i = 0; i < size; i++) {
+            if (best < 0 || rtts[i] < rtts[best]) {
+                best = i;
+            }
+        }
+        return best < 0 ? 0 : offsets[best];
+    }
+
+    /**
+     * Get the maximum error of the estimated offset.
+     * @return half the RTT of the sample used for the estimation, in milliseconds, or -1 if there isn't any.
+     */
+    public synchronized long getErrorMs() {
+        long min = -1;
+        for (int i = 0; i < size; i++) {
+            if (min < 0 || rtts[i] < min) {
+                min = rtts[i];
+            }
+        }
+        return min < 0 ? -1 : min / 2;
+    }
+
+    /**
+     * Convert a local time to the remote clock.
+     * @param localMs local time, in milliseconds.
+     * @return the estimated remote time.
+     */
+    public long toRemoteTime(final long localMs) {
+        return localMs + getOffsetMs();
+    }
+}
@@ -0,0 +1,120 @@
+package com.javmarina.webrtc.latency;
+
+import com.javmarina.webrtc.I420Converter;
+import com.javmarina.webrtc.I420Scaler;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Offline test of the latency measurement, with synthetic frames. Doesn't need the native library.<br>
+ * Checks that timestamps survive downscaling and noise (as a rough model of lossy encoding), and simulates a
+ * session with a known clock offset and latency to check the estimated percentiles.
+ */
+public final class LatencyPlayground {
+
+    private static final int[][] RESOLUTIONS = {
+            {1920, 1080},
+            {1280, 720},
+            {640, 360}
+    };
+    private static final int[] DOWNSCALE_FACTORS = {1, 2, 4};
+    private static final int NOISE = 24;
+    private static final int FRAMES = 50;
+
+    private static final long CLOCK_OFFSET_MS = 12345;
+    private static final int NETWORK_DELAY_MS = 20;
+    private static final int LATENCY_MS = 80;
+    private static final int LATENCY_JITTER_MS = 30;
+
+    public static void main(final String... args) {
+        final Random random = new Random(0);
+        final I420Scaler scaler = new I420Scaler(ForkJoinPool.commonPool());
+
+        for (final int[] resolution : RESOLUTIONS) {
+            for (final int factor : DOWNSCALE_FACTORS) {
+                int decoded = 0;
+                for (int i = 0; i < FRAMES; i++) {
+                    final I420Converter.Planes planes = createFrame(resolution[0], resolution[1], random);
+                    final long timestamp = random.nextLong() & 0xFFFFFFFFL;
+                    TimestampPattern.stamp(planes, timestamp);
+                    final I420Converter.Planes scaled = scaler.scale(planes,
+                            resolution[0] / factor, resolution[1] / factor);
+                    addNoise(scaled, random);
+                    if (TimestampPattern.read(scaled) == timestamp) {
+                        decoded++;
+                    }
+                }
+                System.out.printf("%dx%d, downscaled x%d: %d/%d timestamps decoded%n",
+                        resolution[0], resolution[1], factor, decoded, FRAMES);
+            }
+        }
+
+        if (TimestampPattern.read(createFrame(1280, 720, random)) >= 0) {
+            throw new IllegalStateException("Pattern detected in a frame without pattern");
+        }
+
+        simulateSession(random);
+    }
+
+    /**
+     * Simulate a session: the remote clock is ahead by {@link LatencyPlayground#CLOCK_OFFSET_MS}, pings have a
+     * random RTT and frames have a random latency.
+     */
+    private static void simulateSession(final Random random) {
+        final ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        final LatencyRecorder recorder = new LatencyRecorder(1000);
+        long localTime = 1_000_000;
+
+        for (int i = 0; i < 20; i++) {
+            final int uplink = NETWORK_DELAY_MS + random.nextInt(20);
+            final int downlink = NETWORK_DELAY_MS + random.nextInt(20);
+            estimator.onPingReply(localTime, localTime + uplink + CLOCK_OFFSET_MS, localTime + uplink + downlink);
+            localTime += 1000;
+        }
+
+        final I420Converter.Planes planes = createFrame(1280, 720, random);
+        double expectedSum = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            final long captureRemoteTime = localTime + CLOCK_OFFSET_MS;
+            TimestampPattern.stamp(planes, captureRemoteTime);
+            final int latency = LATENCY_MS + random.nextInt(LATENCY_JITTER_MS);
+            expectedSum += latency;
+            final long renderLocalTime = localTime + latency;
+            recorder.add(TimestampPattern.elapsedMs(estimator.toRemoteTime(renderLocalTime),
+                    TimestampPattern.read(planes)));
+            localTime += 16;
+        }
+
+        System.out.printf("Clock offset: estimated %d ms (error <= %d ms), actual %d ms%n",
+                estimator.getOffsetMs(), estimator.getErrorMs(), CLOCK_OFFSET_MS);
+        System.out.printf("Latency: mean %.1f ms, measured %s%n", expectedSum / FRAMES, recorder);
+    }
+
+    private static I420Converter.Planes createFrame(final int width, final int height, final Random random) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final ByteBuffer dataY = ByteBuffer.allocateDirect(width * height);
+        final ByteBuffer dataU = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        final ByteBuffer dataV = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        final byte[] bytes = new byte[width * height];
+        random.nextBytes(bytes);
+        dataY.put(bytes).clear();
+        random.nextBytes(bytes);
+        dataU.put(bytes, 0, dataU.capacity()).clear();
+        dataV.put(bytes, dataU.capacity(), dataV.capacity()).clear();
+        return new I420Converter.Planes(width, height, dataY, width, dataU, chromaWidth, dataV, chromaWidth);
+    }
+
+    private static void addNoise(final I420Converter.Planes planes, final Random random) {
+        for (int y = 0; y < planes.height; y++) {
+            for (int x = 0; x < planes.width; x++) {
+                final int index = y * planes.strideY + x;
+                final int value = (planes.dataY.get(index) & 0xFF) + random.nextInt(2 * NOISE + 1) - NOISE;
+                planes.dataY.put(index, (byte) Math.max(0, Math.min(255, value)));
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.javmarina.webrtc.latency;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Keeps the last latency samples and computes their percentiles. Thread-safe.
+ */
+public final class LatencyRecorder {
+
+    private final double[] samples;
+    private int next = 0;
+    private int size = 0;
+    private long count = 0;
+
+    /**
+     * Create a recorder.
+     * @param capacity number of samples used for the percentiles. Older samples are discarded.
+     */
+    public LatencyRecorder(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.samples = new double[capacity];
+    }
+
+    /**
+     * Add a sample.
+     * @param latencyMs latency in milliseconds.
+     */
+    public synchronized void add(final double latencyMs) {
+        samples[next] = latencyMs;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+        count++;
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+        count = 0;
+    }
+
+    /**
+     * Number of samples used for the percentiles.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of samples added since the recorder was created or cleared.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Compute percentiles of the stored samples (nearest-rank method).
+     * @param percentiles the percentiles, between 0 and 100.
+     * @return one value per percentile, in milliseconds, or {@link Double#NaN} if there aren't samples.
+     */
+    public synchronized double[] getPercentiles(final double... percentiles) {
+        final double[] result = new double[percentiles.length];
+        if (size == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+        final double[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            final int rank = (int) Math.ceil(percentiles[i] / 100 * size);
+            result[i] = sorted[Math.min(size - 1, Math.max(0, rank - 1))];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final double[] values = getPercentiles(50, 90, 99, 100);
+        return String.format(Locale.ROOT, "p50=%.1f ms, p90=%.1f ms, p99=%.1f ms, max=%.1f ms (%d samples)",
+                values[0], values[1], values[2], values[3], size());
+    }
+}
@@ -0,0 +1,146 @@
+package com.javmarina.webrtc.latency;
+
+import com.javmarina.webrtc.I420Converter;
+
+
+/**
+ * Machine-readable timestamp drawn on video frames, used to measure the glass-to-glass latency.<br>
+ * The pattern is a strip at the top of the frame, divided into {@link TimestampPattern#CELLS} cells that are
+ * either black or white: 4 sync cells (white, black, white, black), the 32 lower bits of the timestamp (most
+ * significant bit first) and a 4-bit checksum (XOR of the nibbles of the timestamp). Cells are sized relative
+ * to the frame, so the pattern survives scaling, and each one is large enough to survive lossy encoding. Only
+ * the centre of each cell is read.
+ */
+public final class TimestampPattern {
+
+    static final int CELLS = 40;
+    private static final int SYNC = 0b1010;
+    private static final int SYNC_BITS = 4;
+    private static final int DATA_BITS = 32;
+    // Height of the strip, relative to the height of the frame
+    private static final int STRIP_HEIGHT_DIVISOR = 24;
+    private static final int MIN_STRIP_HEIGHT = 2;
+
+    private static final byte WHITE = (byte) 235;
+    private static final byte BLACK = 16;
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+    // Averages between these values can't be decided as black or white
+    private static final int BLACK_THRESHOLD = 100;
+    private static final int WHITE_THRESHOLD = 150;
+
+    private TimestampPattern() {
+    }
+
+    /**
+     * Draw a timestamp on a frame, in place.
+     * @param planes the planes of the frame. Must be writable.
+     * @param timestampMs the timestamp, in milliseconds. Only the 32 lower bits are drawn.
+     * @return true if it was drawn, false if the frame is too small.
+     */
+    public static boolean stamp(final I420Converter.Planes planes, final long timestampMs) {
+        if (planes.width < CELLS || planes.height < MIN_STRIP_HEIGHT * STRIP_HEIGHT_DIVISOR) {
+            return false;
+        }
+        final long bits = encode(timestampMs);
+        final int stripHeight = getStripHeight(planes.height);
+
+        for (int y = 0; y < stripHeight; y++) {
+            final int rowOffset = y * planes.strideY;
+            for (int cell = 0; cell < CELLS; cell++) {
+                final byte value = ((bits >>> (CELLS - 1 - cell)) & 1) != 0 ? WHITE : BLACK;
+                final int end = getCellStart(planes.width, cell + 1);
+                for (int x = getCellStart(planes.width, cell); x < end; x++) {
+                    planes.dataY.put(rowOffset + x, value);
+                }
+            }
+        }
+        // Grey chroma, so that the pattern is the same after the conversion to RGB
+        final int chromaWidth = (planes.width + 1) / 2;
+        for (int y = 0; y < (stripHeight + 1) / 2; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                planes.dataU.put(y * planes.strideU + x, NEUTRAL_CHROMA);
+                planes.dataV.put(y * planes.strideV + x, NEUTRAL_CHROMA);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the timestamp drawn on a frame.
+     * @param planes the planes of the frame.
+     * @return the 32 lower bits of the timestamp, or -1 if the frame doesn't have a valid pattern.
+     */
+    public static long read(final I420Converter.Planes planes) {
+        if (planes.width < CELLS || planes.height < MIN_STRIP_HEIGHT * STRIP_HEIGHT_DIVISOR) {
+            return -1;
+        }
+        final int stripHeight = getStripHeight(planes.height);
+        final int firstRow = stripHeight / 4;
+        final int lastRow = Math.max(firstRow + 1, stripHeight - stripHeight / 4);
+
+        long bits = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            final int start = getCellStart(planes.width, cell);
+            final int end = getCellStart(planes.width, cell + 1);
+            final int margin = (end - start) / 4;
+            final int firstColumn = start + margin;
+            final int lastColumn = Math.max(firstColumn + 1, end - margin);
+
+            int sum = 0;
+            for (int y = firstRow; y < lastRow; y++) {
+                final int rowOffset = y * planes.strideY;
+                for (int x = firstColumn; x < lastColumn; x++) {
+                    sum += planes.dataY.get(rowOffset + x) & 0xFF;
+                }
+            }
+            final int average = sum / ((lastRow - firstRow) * (lastColumn - firstColumn));
+            if (average >= WHITE_THRESHOLD) {
+                bits = (bits << 1) | 1;
+            } else if (average <= BLACK_THRESHOLD) {
+                bits <<= 1;
+            } else {
+                return -1;
+            }
+
+            // Most frames won't have a pattern, fail as soon as possible
+            if (cell == SYNC_BITS - 1 && bits != SYNC) {
+                return -1;
+            }
+        }
+
+        final long timestamp = (bits >>> SYNC_BITS) & 0xFFFFFFFFL;
+        return (bits & 0xF) == checksum(timestamp) ? timestamp : -1;
+    }
+
+    /**
+     * Compute the time elapsed since a timestamp read by {@link TimestampPattern#read(I420Converter.Planes)}.
+     * @param nowMs current time in the clock used to draw the timestamp, in milliseconds.
+     * @param timestamp the timestamp read from the frame.
+     * @return elapsed time in milliseconds. Can be negative if the clocks are not well synchronized.
+     */
+    public static long elapsedMs(final long nowMs, final long timestamp) {
+        // Only the lower bits are sent, the difference is valid as long as it fits in an int
+        return (int) (nowMs - timestamp);
+    }
+
+    private static long encode(final long timestampMs) {
+        final long timestamp = timestampMs & 0xFFFFFFFFL;
+        return ((long) SYNC << (DATA_BITS + 4)) | (timestamp << 4) | checksum(timestamp);
+    }
+
+    private static long checksum(final long timestamp) {
+        long checksum = 0;
+        for (int i = 0; i < DATA_BITS; i += 4) {
+            checksum ^= (timestamp >>> i) & 0xF;
+        }
+        return checksum;
+    }
+
+    private static int getStripHeight(final int height) {
+        return Math.max(MIN_STRIP_HEIGHT, height / STRIP_HEIGHT_DIVISOR);
+    }
+
+    private static int getCellStart(final int width, final int cell) {
+        return cell * width / CELLS;
+    }
+}
@@ -0,0 +1,61 @@
+package com.javmarina.webrtc.latency;
+
+import com.javmarina.webrtc.I420Converter;
+import dev.onvoid.webrtc.media.video.I420Buffer;
+import dev.onvoid.webrtc.media.video.VideoFrame;
+import dev.onvoid.webrtc.media.video.VideoTrackSink;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sink that draws the capture time on each frame with {@link TimestampPattern}.<br>
+ * The frame is modified in place, so the sink must be added to the source before any other consumer of the
+ * frames (in particular, before the track is connected to the encoder). The pattern only reaches the encoder if
+ * it reads the same native buffer after this sink, which webrtc-java doesn't guarantee: check it with
+ * {@code WebRtcPlayground stamping}. Frames that are not I420 would have to be converted to a copy, where the
+ * pattern would be lost, so stamping is disabled (and reported) when the first one arrives.
+ */
+public final class TimestampStamper implements VideoTrackSink {
+
+    private final AtomicLong stampedFrames = new AtomicLong();
+    private volatile boolean disabled = false;
+    private boolean tooSmallReported = false;
+
+    @Override
+    public void onVideoFrame(final VideoFrame frame) {
+        if (disabled) {
+            return;
+        }
+        if (!(frame.buffer instanceof I420Buffer)) {
+            disabled = true;
+            System.out.println("Timestamp stamping disabled: frames are " + frame.buffer.getClass().getSimpleName()
+                    + ", not I420, and the pattern can't be drawn on the buffer sent to the encoder");
+            return;
+        }
+        final I420Converter.Planes planes = I420Converter.Planes.of((I420Buffer) frame.buffer);
+        if (TimestampPattern.stamp(planes, System.currentTimeMillis())) {
+            stampedFrames.incrementAndGet();
+        } else if (!tooSmallReported) {
+            // Sinks are called from the capture thread only
+            tooSmallReported = true;
+            System.out.println("Frames too small for the timestamp pattern: " + planes.width + "x" + planes.height);
+        }
+    }
+
+    /**
+     * Get the number of frames the timestamp was drawn on.
+     * @return the number of frames.
+     */
+    public long getStampedFrames() {
+        return stampedFrames.get();
+    }
+
+    /**
+     * Whether stamping was disabled because the frames are not I420.
+     * @return true if disabled.
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+}
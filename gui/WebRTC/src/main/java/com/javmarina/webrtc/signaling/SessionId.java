@@ -20,6 +20,15 @@ public class SessionId {
         this.id = id;
     }
 
+    /**
+     * Get the session ID that spectators of this session connect to. Spectators use their own ID since the
+     * signaling server pairs a single client with each server.
+     * @return the spectator session ID.
+     */
+    public SessionId getSpectatorSessionId() {
+        return new SessionId((short) (id ^ 0x4000));
+    }
+
     public static SessionId fromString(final String hex) {
         return new SessionId(Short.parseShort(hex, 16));
     }
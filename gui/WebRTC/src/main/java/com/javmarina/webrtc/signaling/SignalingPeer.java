@@ -23,7 +23,8 @@ public class SignalingPeer {
 
     private final SessionId sessionId;
     private final Role role;
-    private Socket socket;
+    // Null until start() is called
+    private volatile Socket socket;
 
     public enum Role {
         CLIENT, SERVER;
@@ -47,9 +48,10 @@ public class SignalingPeer {
                 .build();
         final URI uri = URI.create(SIGNALING_SERVER);
         socket = IO.socket(uri, options);
-        socket.on(Socket.EVENT_CONNECT, args ->
-                        socket.emit(role.getRegisterCommand(), sessionId.toString()
-        )).on(Socket.EVENT_CONNECT_ERROR, arg0 ->
+        socket.on(Socket.EVENT_CONNECT, args -> {
+            callback.onConnected();
+            socket.emit(role.getRegisterCommand(), sessionId.toString());
+        }).on(Socket.EVENT_CONNECT_ERROR, arg0 ->
                 System.out.println("EVENT_CONNECT_ERROR " +  arg0[0].toString()
         )).on(COMMAND_OFFER, args -> {
             final JSONObject jo = new JSONObject((String) args[0]);
@@ -71,7 +73,17 @@ public class SignalingPeer {
     }
 
     public void close() {
-        socket.close();
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    public SessionId getSessionId() {
+        return sessionId;
+    }
+
+    public Role getRole() {
+        return role;
     }
 
     public void sendOffer(final RTCSessionDescription description) {
@@ -88,7 +100,15 @@ public class SignalingPeer {
         );
     }
 
+    /**
+     * Send a local ICE candidate to the remote peer. A prewarmed peer connection can gather candidates before
+     * {@link SignalingPeer#start(Callback)} is called: those are dropped, because the offer already includes them.
+     * @param candidate the candidate.
+     */
     public void sendIceCandidate(final RTCIceCandidate candidate) {
+        if (socket == null) {
+            return;
+        }
         sendCommand(
                 COMMAND_NEW_ICE_CANDIDATE,
                 JsonCodec.encode(candidate)
@@ -100,6 +120,7 @@ public class SignalingPeer {
     }
 
     public interface Callback {
+        void onConnected();
         void onOfferReceived(final RTCSessionDescription description);
         void onAnswerReceived(final RTCSessionDescription description);
         void onCandidateReceived(final RTCIceCandidate candidate);
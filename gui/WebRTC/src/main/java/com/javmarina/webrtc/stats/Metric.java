@@ -0,0 +1,41 @@
+package com.javmarina.webrtc.stats;
+
+
+/**
+ * Values computed by {@link StatsSampler} for each sample. Rates and averages are computed over the interval
+ * between two consecutive reports.
+ */
+public enum Metric {
+    VIDEO_IN_KBPS("videoInKbps"),
+    AUDIO_IN_KBPS("audioInKbps"),
+    VIDEO_OUT_KBPS("videoOutKbps"),
+    AUDIO_OUT_KBPS("audioOutKbps"),
+    FPS_DECODED("fpsDecoded"),
+    FPS_ENCODED("fpsEncoded"),
+    VIDEO_LOSS_PERCENT("videoLossPercent"),
+    REMOTE_VIDEO_LOSS_PERCENT("remoteVideoLossPercent"),
+    DECODE_MS_PER_FRAME("decodeMsPerFrame"),
+    ENCODE_MS_PER_FRAME("encodeMsPerFrame"),
+    JITTER_BUFFER_DELAY_MS("jitterBufferDelayMs"),
+    RTT_MS("rttMs"),
+    AVAILABLE_OUT_KBPS("availableOutKbps"),
+    AVAILABLE_IN_KBPS("availableInKbps"),
+    DATA_CHANNEL_MESSAGES_OUT_PER_S("dataChannelMessagesOutPerS"),
+    DATA_CHANNEL_MESSAGES_IN_PER_S("dataChannelMessagesInPerS"),
+    FRAME_WIDTH("frameWidth"),
+    FRAME_HEIGHT("frameHeight");
+
+    private final String key;
+
+    Metric(final String key) {
+        this.key = key;
+    }
+
+    /**
+     * Name used for the CSV columns and JSON fields.
+     * @return the key.
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,89 @@
+package com.javmarina.webrtc.stats;
+
+import java.util.Arrays;
+
+
+/**
+ * Fixed-size ring buffer of samples. Each sample has a timestamp and one value per {@link Metric}. Everything is
+ * stored in two primitive arrays that are allocated once, so adding a sample doesn't allocate memory.<br>
+ * Not thread-safe, {@link StatsSampler} synchronizes the access.
+ */
+final class MetricRingBuffer {
+
+    private static final int METRIC_COUNT = Metric.values().length;
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] values;
+    private int next = 0;
+    private int size = 0;
+
+    MetricRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity * METRIC_COUNT];
+    }
+
+    /**
+     * Reserve the slot for a new sample, overwriting the oldest one if the buffer is full. All the values of
+     * the slot are set to {@link Double#NaN}.
+     * @param timestampMs timestamp of the new sample.
+     * @return the slot, to be used with {@link MetricRingBuffer#set(int, Metric, double)}.
+     */
+    int add(final long timestampMs) {
+        final int slot = next;
+        timestamps[slot] = timestampMs;
+        Arrays.fill(values, slot * METRIC_COUNT, (slot + 1) * METRIC_COUNT, Double.NaN);
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+        return slot;
+    }
+
+    void set(final int slot, final Metric metric, final double value) {
+        values[slot * METRIC_COUNT + metric.ordinal()] = value;
+    }
+
+    void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the timestamp of a sample.
+     * @param index index of the sample, 0 being the oldest one.
+     * @return timestamp in milliseconds.
+     */
+    long getTimestamp(final int index) {
+        return timestamps[slotOf(index)];
+    }
+
+    /**
+     * Get a value of a sample.
+     * @param index index of the sample, 0 being the oldest one.
+     * @param metric the metric.
+     * @return the value, or {@link Double#NaN} if not available.
+     */
+    double get(final int index, final Metric metric) {
+        return values[slotOf(index) * METRIC_COUNT + metric.ordinal()];
+    }
+
+    private int slotOf(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return (next - size + index + capacity) % capacity;
+    }
+}
@@ -0,0 +1,275 @@
+package com.javmarina.webrtc.stats;
+
+import dev.onvoid.webrtc.RTCStatsReport;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+
+
+/**
+ * Keeps the history of the stats of a peer connection. Each report is converted to a {@link StatsSnapshot} and
+ * compared with the previous one to compute the per-interval {@link Metric} values (bitrates, framerates, loss,
+ * decode time per frame, jitter buffer delay...), which are stored in a fixed-size ring buffer.<br>
+ * The history can be read without parsing the reports again (e.g. for charts) and exported as CSV or JSON.
+ * All methods are thread-safe: reports usually arrive on a WebRTC thread and are read from the UI thread.
+ */
+public final class StatsSampler {
+
+    private final MetricRingBuffer buffer;
+    @Nullable
+    private StatsSnapshot previous;
+
+    /**
+     * Create a sampler.
+     * @param capacity maximum number of samples to keep. Older samples are discarded.
+     */
+    public StatsSampler(final int capacity) {
+        this.buffer = new MetricRingBuffer(capacity);
+    }
+
+    /**
+     * Add a new report.
+     * @param report the report returned by {@code RTCPeerConnection.getStats()}.
+     * @return the typed snapshot of the report.
+     */
+    public StatsSnapshot onReport(final RTCStatsReport report) {
+        final StatsSnapshot snapshot = StatsSnapshot.fromReport(report);
+        add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Add a new snapshot. Rates can't be computed for the first one, so they are stored as {@link Double#NaN}.
+     * @param snapshot the snapshot.
+     */
+    public synchronized void add(final StatsSnapshot snapshot) {
+        final StatsSnapshot last = previous;
+        previous = snapshot;
+        final int slot = buffer.add(snapshot.timestampUs / 1000);
+
+        if (snapshot.candidatePair != null) {
+            buffer.set(slot, Metric.RTT_MS, snapshot.candidatePair.currentRoundTripTime * 1000);
+            buffer.set(slot, Metric.AVAILABLE_OUT_KBPS, snapshot.candidatePair.availableOutgoingBitrate / 1000);
+            buffer.set(slot, Metric.AVAILABLE_IN_KBPS, snapshot.candidatePair.availableIncomingBitrate / 1000);
+        }
+        if (snapshot.inboundVideo != null && snapshot.inboundVideo.frameWidth >= 0) {
+            buffer.set(slot, Metric.FRAME_WIDTH, snapshot.inboundVideo.frameWidth);
+            buffer.set(slot, Metric.FRAME_HEIGHT, snapshot.inboundVideo.frameHeight);
+        } else if (snapshot.outboundVideo != null && snapshot.outboundVideo.frameWidth >= 0) {
+            buffer.set(slot, Metric.FRAME_WIDTH, snapshot.outboundVideo.frameWidth);
+            buffer.set(slot, Metric.FRAME_HEIGHT, snapshot.outboundVideo.frameHeight);
+        }
+        if (snapshot.remoteInboundVideo != null && snapshot.candidatePair == null) {
+            buffer.set(slot, Metric.RTT_MS, snapshot.remoteInboundVideo.roundTripTime * 1000);
+        }
+
+        if (last == null) {
+            return;
+        }
+        final double seconds = (snapshot.timestampUs - last.timestampUs) / 1e6;
+        if (seconds <= 0) {
+            return;
+        }
+
+        final StatsSnapshot.InboundRtp inVideo = snapshot.inboundVideo;
+        final StatsSnapshot.InboundRtp lastInVideo = last.inboundVideo;
+        if (inVideo != null && lastInVideo != null) {
+            buffer.set(slot, Metric.VIDEO_IN_KBPS,
+                    rate(inVideo.bytesReceived, lastInVideo.bytesReceived, seconds) * 8 / 1000);
+            buffer.set(slot, Metric.FPS_DECODED, rate(inVideo.framesDecoded, lastInVideo.framesDecoded, seconds));
+            buffer.set(slot, Metric.VIDEO_LOSS_PERCENT, lossPercent(
+                    delta(inVideo.packetsLost, lastInVideo.packetsLost),
+                    delta(inVideo.packetsReceived, lastInVideo.packetsReceived)));
+            buffer.set(slot, Metric.DECODE_MS_PER_FRAME, ratio(
+                    inVideo.totalDecodeTime - lastInVideo.totalDecodeTime,
+                    delta(inVideo.framesDecoded, lastInVideo.framesDecoded)) * 1000);
+            buffer.set(slot, Metric.JITTER_BUFFER_DELAY_MS, ratio(
+                    inVideo.jitterBufferDelay - lastInVideo.jitterBufferDelay,
+                    delta(inVideo.jitterBufferEmittedCount, lastInVideo.jitterBufferEmittedCount)) * 1000);
+        }
+        if (snapshot.inboundAudio != null && last.inboundAudio != null) {
+            buffer.set(slot, Metric.AUDIO_IN_KBPS,
+                    rate(snapshot.inboundAudio.bytesReceived, last.inboundAudio.bytesReceived, seconds) * 8 / 1000);
+        }
+
+        final StatsSnapshot.OutboundRtp outVideo = snapshot.outboundVideo;
+        final StatsSnapshot.OutboundRtp lastOutVideo = last.outboundVideo;
+        if (outVideo != null && lastOutVideo != null) {
+            buffer.set(slot, Metric.VIDEO_OUT_KBPS,
+                    rate(outVideo.bytesSent, lastOutVideo.bytesSent, seconds) * 8 / 1000);
+            buffer.set(slot, Metric.FPS_ENCODED, rate(outVideo.framesEncoded, lastOutVideo.framesEncoded, seconds));
+            buffer.set(slot, Metric.ENCODE_MS_PER_FRAME, ratio(
+                    outVideo.totalEncodeTime - lastOutVideo.totalEncodeTime,
+                    delta(outVideo.framesEncoded, lastOutVideo.framesEncoded)) * 1000);
+            if (snapshot.remoteInboundVideo != null && last.remoteInboundVideo != null) {
+                buffer.set(slot, Metric.REMOTE_VIDEO_LOSS_PERCENT, sentLossPercent(
+                        delta(snapshot.remoteInboundVideo.packetsLost, last.remoteInboundVideo.packetsLost),
+                        delta(outVideo.packetsSent, lastOutVideo.packetsSent)));
+            }
+        }
+        if (snapshot.outboundAudio != null && last.outboundAudio != null) {
+            buffer.set(slot, Metric.AUDIO_OUT_KBPS,
+                    rate(snapshot.outboundAudio.bytesSent, last.outboundAudio.bytesSent, seconds) * 8 / 1000);
+        }
+
+        if (snapshot.dataChannel != null && last.dataChannel != null) {
+            buffer.set(slot, Metric.DATA_CHANNEL_MESSAGES_OUT_PER_S,
+                    rate(snapshot.dataChannel.messagesSent, last.dataChannel.messagesSent, seconds));
+            buffer.set(slot, Metric.DATA_CHANNEL_MESSAGES_IN_PER_S,
+                    rate(snapshot.dataChannel.messagesReceived, last.dataChannel.messagesReceived, seconds));
+        }
+    }
+
+    /**
+     * Discard all samples, for example when a new session starts.
+     */
+    public synchronized void clear() {
+        previous = null;
+        buffer.clear();
+    }
+
+    public synchronized int size() {
+        return buffer.size();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Get the last snapshot added to the sampler.
+     * @return the snapshot, or null if there isn't any.
+     */
+    @Nullable
+    public synchronized StatsSnapshot getLastSnapshot() {
+        return previous;
+    }
+
+    /**
+     * Get the value of a metric in the last sample.
+     * @param metric the metric.
+     * @return the value, or {@link Double#NaN} if not available.
+     */
+    public synchronized double getLatest(final Metric metric) {
+        final int size = buffer.size();
+        return size == 0 ? Double.NaN : buffer.get(size - 1, metric);
+    }
+
+    /**
+     * Get the value of a metric in a given sample.
+     * @param index index of the sample, 0 being the oldest one.
+     * @param metric the metric.
+     * @return the value, or {@link Double#NaN} if not available.
+     */
+    public synchronized double get(final int index, final Metric metric) {
+        return buffer.get(index, metric);
+    }
+
+    /**
+     * Get the timestamp of a given sample.
+     * @param index index of the sample, 0 being the oldest one.
+     * @return timestamp in milliseconds.
+     */
+    public synchronized long getTimestampMillis(final int index) {
+        return buffer.getTimestamp(index);
+    }
+
+    /**
+     * Copy the history of a metric into an array, from the oldest sample to the newest one.
+     * @param metric the metric.
+     * @param destination destination array. If it's smaller than {@link StatsSampler#size()}, only the newest
+     *                    samples are copied.
+     * @return number of copied values.
+     */
+    public synchronized int copySeries(final Metric metric, final double[] destination) {
+        final int size = buffer.size();
+        final int count = Math.min(size, destination.length);
+        final int first = size - count;
+        for (int i = 0; i < count; i++) {
+            destination[i] = buffer.get(first + i, metric);
+        }
+        return count;
+    }
+
+    /**
+     * Write the history as CSV, with a header row. Missing values are left empty.
+     * @param out destination.
+     * @throws IOException if the destination can't be written.
+     */
+    public synchronized void writeCsv(final Appendable out) throws IOException {
+        out.append("timestampMs");
+        for (final Metric metric : Metric.values()) {
+            out.append(',').append(metric.getKey());
+        }
+        out.append('\n');
+        for (int i = 0; i < buffer.size(); i++) {
+            out.append(String.valueOf(buffer.getTimestamp(i)));
+            for (final Metric metric : Metric.values()) {
+                out.append(',');
+                final double value = buffer.get(i, metric);
+                if (!Double.isNaN(value)) {
+                    out.append(String.format(Locale.ROOT, "%.3f", value));
+                }
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Convert the history to JSON. Each sample is an object with a timestamp and the available values.
+     * @return the JSON array, from the oldest sample to the newest one.
+     */
+    public synchronized JSONArray toJson() {
+        final JSONArray array = new JSONArray();
+        for (int i = 0; i < buffer.size(); i++) {
+            final JSONObject jo = new JSONObject();
+            jo.put("timestampMs", buffer.getTimestamp(i));
+            for (final Metric metric : Metric.values()) {
+                final double value = buffer.get(i, metric);
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    jo.put(metric.getKey(), value);
+                }
+            }
+            array.put(jo);
+        }
+        return array;
+    }
+
+    private static long delta(final long current, final long last) {
+        // Counters are -1 when not available, and can go back if a stream is recreated
+        if (current < 0 || last < 0 || current < last) {
+            return -1;
+        }
+        return current - last;
+    }
+
+    private static double rate(final long current, final long last, final double seconds) {
+        final long delta = delta(current, last);
+        return delta < 0 ? Double.NaN : delta / seconds;
+    }
+
+    private static double ratio(final double numerator, final long denominator) {
+        return denominator <= 0 || Double.isNaN(numerator) ? Double.NaN : numerator / denominator;
+    }
+
+    private static double lossPercent(final long lost, final long received) {
+        if (lost < 0 || received < 0 || lost + received == 0) {
+            return Double.NaN;
+        }
+        return 100.0 * lost / (lost + received);
+    }
+
+    /**
+     * Loss reported by the receiver of the packets sent by this peer. Lost packets are part of the sent ones, and
+     * the receiver reports lag behind the sender counters, so the result is limited to 100%.
+     */
+    private static double sentLossPercent(final long lost, final long sent) {
+        if (lost < 0 || sent <= 0) {
+            return Double.NaN;
+        }
+        return 100.0 * Math.min(lost, sent) / sent;
+    }
+}
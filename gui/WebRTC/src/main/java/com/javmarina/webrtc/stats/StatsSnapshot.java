@@ -0,0 +1,347 @@
+package com.javmarina.webrtc.stats;
+
+import dev.onvoid.webrtc.RTCStats;
+import dev.onvoid.webrtc.RTCStatsReport;
+import dev.onvoid.webrtc.media.MediaStreamTrack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+
+/**
+ * Typed view of the records of a {@link RTCStatsReport} that are relevant for this application. The report is
+ * scanned once and every member is read with its proper type, so that the rest of the code doesn't need to deal
+ * with the string keys of the stats map.<br>
+ * Counters that are not present in the report are set to -1, and gauges to {@link Double#NaN}. Records that
+ * are not present (for example, outbound RTP on the client) are null.
+ */
+public final class StatsSnapshot {
+
+    /**
+     * Timestamp of the report, in microseconds.
+     */
+    public final long timestampUs;
+    @Nullable
+    public final InboundRtp inboundVideo;
+    @Nullable
+    public final InboundRtp inboundAudio;
+    @Nullable
+    public final OutboundRtp outboundVideo;
+    @Nullable
+    public final OutboundRtp outboundAudio;
+    @Nullable
+    public final RemoteInboundRtp remoteInboundVideo;
+    @Nullable
+    public final Transport transport;
+    @Nullable
+    public final CandidatePair candidatePair;
+    @Nullable
+    public final DataChannel dataChannel;
+
+    private StatsSnapshot(final long timestampUs,
+                          @Nullable final InboundRtp inboundVideo,
+                          @Nullable final InboundRtp inboundAudio,
+                          @Nullable final OutboundRtp outboundVideo,
+                          @Nullable final OutboundRtp outboundAudio,
+                          @Nullable final RemoteInboundRtp remoteInboundVideo,
+                          @Nullable final Transport transport,
+                          @Nullable final CandidatePair candidatePair,
+                          @Nullable final DataChannel dataChannel) {
+        this.timestampUs = timestampUs;
+        this.inboundVideo = inboundVideo;
+        this.inboundAudio = inboundAudio;
+        this.outboundVideo = outboundVideo;
+        this.outboundAudio = outboundAudio;
+        this.remoteInboundVideo = remoteInboundVideo;
+        this.transport = transport;
+        this.candidatePair = candidatePair;
+        this.dataChannel = dataChannel;
+    }
+
+    /**
+     * Extract the typed records from a report.
+     * @param report the report returned by {@code RTCPeerConnection.getStats()}.
+     * @return the snapshot.
+     */
+    public static StatsSnapshot fromReport(final RTCStatsReport report) {
+        final Map<String, RTCStats> map = report.getStats();
+
+        InboundRtp inboundVideo = null;
+        InboundRtp inboundAudio = null;
+        OutboundRtp outboundVideo = null;
+        OutboundRtp outboundAudio = null;
+        RemoteInboundRtp remoteInboundVideo = null;
+        Transport transport = null;
+        CandidatePair nominatedPair = null;
+        DataChannel dataChannel = null;
+        RTCStats remoteVideoTrack = null;
+
+        for (final RTCStats stats : map.values()) {
+            if (stats.getType() == null) {
+                continue;
+            }
+            final Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case INBOUND_RTP:
+                    if (isVideo(members)) {
+                        inboundVideo = new InboundRtp(members, map);
+                    } else {
+                        inboundAudio = new InboundRtp(members, map);
+                    }
+                    break;
+                case OUTBOUND_RTP:
+                    if (isVideo(members)) {
+                        outboundVideo = new OutboundRtp(members, map);
+                    } else {
+                        outboundAudio = new OutboundRtp(members, map);
+                    }
+                    break;
+                case REMOTE_INBOUND_RTP:
+                    if (isVideo(members)) {
+                        remoteInboundVideo = new RemoteInboundRtp(members);
+                    }
+                    break;
+                case TRANSPORT:
+                    transport = new Transport(members);
+                    break;
+                case CANDIDATE_PAIR:
+                    if (Boolean.TRUE.equals(members.get("nominated"))) {
+                        nominatedPair = new CandidatePair(stats.getId(), members);
+                    }
+                    break;
+                case DATA_CHANNEL:
+                    dataChannel = new DataChannel(members);
+                    break;
+                case TRACK:
+                    if (isVideo(members) && Boolean.TRUE.equals(members.get("remoteSource"))) {
+                        remoteVideoTrack = stats;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Prefer the pair selected by the transport, there can be several nominated pairs
+        CandidatePair candidatePair = nominatedPair;
+        if (transport != null && transport.selectedCandidatePairId != null) {
+            final RTCStats selected = map.get(transport.selectedCandidatePairId);
+            if (selected != null) {
+                candidatePair = new CandidatePair(selected.getId(), selected.getMembers());
+            }
+        }
+
+        // Older versions of libwebrtc only report the frame size in the track stats
+        if (inboundVideo != null && inboundVideo.frameWidth < 0 && remoteVideoTrack != null) {
+            inboundVideo = inboundVideo.withFrameSize(
+                    getLong(remoteVideoTrack.getMembers(), "frameWidth"),
+                    getLong(remoteVideoTrack.getMembers(), "frameHeight")
+            );
+        }
+
+        return new StatsSnapshot(report.getTimestamp(), inboundVideo, inboundAudio, outboundVideo, outboundAudio,
+                remoteInboundVideo, transport, candidatePair, dataChannel);
+    }
+
+    public static final class InboundRtp {
+
+        @Nullable
+        public final String codec;
+        public final long packetsReceived;
+        public final long packetsLost;
+        public final long bytesReceived;
+        public final long framesDecoded;
+        public final long framesDropped;
+        public final long frameWidth;
+        public final long frameHeight;
+        /**
+         * Seconds.
+         */
+        public final double totalDecodeTime;
+        /**
+         * Seconds.
+         */
+        public final double jitterBufferDelay;
+        public final long jitterBufferEmittedCount;
+        /**
+         * Seconds.
+         */
+        public final double jitter;
+
+        private InboundRtp(final Map<String, Object> members, final Map<String, RTCStats> map) {
+            this.codec = getCodec(members, map);
+            this.packetsReceived = getLong(members, "packetsReceived");
+            this.packetsLost = getLong(members, "packetsLost");
+            this.bytesReceived = getLong(members, "bytesReceived");
+            this.framesDecoded = getLong(members, "framesDecoded");
+            this.framesDropped = getLong(members, "framesDropped");
+            this.frameWidth = getLong(members, "frameWidth");
+            this.frameHeight = getLong(members, "frameHeight");
+            this.totalDecodeTime = getDouble(members, "totalDecodeTime");
+            this.jitterBufferDelay = getDouble(members, "jitterBufferDelay");
+            this.jitterBufferEmittedCount = getLong(members, "jitterBufferEmittedCount");
+            this.jitter = getDouble(members, "jitter");
+        }
+
+        private InboundRtp(final InboundRtp other, final long frameWidth, final long frameHeight) {
+            this.codec = other.codec;
+            this.packetsReceived = other.packetsReceived;
+            this.packetsLost = other.packetsLost;
+            this.bytesReceived = other.bytesReceived;
+            this.framesDecoded = other.framesDecoded;
+            this.framesDropped = other.framesDropped;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.totalDecodeTime = other.totalDecodeTime;
+            this.jitterBufferDelay = other.jitterBufferDelay;
+            this.jitterBufferEmittedCount = other.jitterBufferEmittedCount;
+            this.jitter = other.jitter;
+        }
+
+        private InboundRtp withFrameSize(final long frameWidth, final long frameHeight) {
+            return new InboundRtp(this, frameWidth, frameHeight);
+        }
+    }
+
+    public static final class OutboundRtp {
+
+        @Nullable
+        public final String codec;
+        public final long packetsSent;
+        public final long bytesSent;
+        public final long retransmittedPacketsSent;
+        public final long framesEncoded;
+        public final long framesSent;
+        public final long frameWidth;
+        public final long frameHeight;
+        /**
+         * Seconds.
+         */
+        public final double totalEncodeTime;
+        @Nullable
+        public final String qualityLimitationReason;
+
+        private OutboundRtp(final Map<String, Object> members, final Map<String, RTCStats> map) {
+            this.codec = getCodec(members, map);
+            this.packetsSent = getLong(members, "packetsSent");
+            this.bytesSent = getLong(members, "bytesSent");
+            this.retransmittedPacketsSent = getLong(members, "retransmittedPacketsSent");
+            this.framesEncoded = getLong(members, "framesEncoded");
+            this.framesSent = getLong(members, "framesSent");
+            this.frameWidth = getLong(members, "frameWidth");
+            this.frameHeight = getLong(members, "frameHeight");
+            this.totalEncodeTime = getDouble(members, "totalEncodeTime");
+            this.qualityLimitationReason = getString(members, "qualityLimitationReason");
+        }
+    }
+
+    /**
+     * Reception statistics reported by the remote peer (through RTCP) for a stream sent by this peer.
+     */
+    public static final class RemoteInboundRtp {
+
+        public final long packetsLost;
+        /**
+         * Seconds.
+         */
+        public final double roundTripTime;
+        public final double fractionLost;
+
+        private RemoteInboundRtp(final Map<String, Object> members) {
+            this.packetsLost = getLong(members, "packetsLost");
+            this.roundTripTime = getDouble(members, "roundTripTime");
+            this.fractionLost = getDouble(members, "fractionLost");
+        }
+    }
+
+    public static final class Transport {
+
+        public final long bytesSent;
+        public final long bytesReceived;
+        @Nullable
+        public final String selectedCandidatePairId;
+
+        private Transport(final Map<String, Object> members) {
+            this.bytesSent = getLong(members, "bytesSent");
+            this.bytesReceived = getLong(members, "bytesReceived");
+            this.selectedCandidatePairId = getString(members, "selectedCandidatePairId");
+        }
+    }
+
+    public static final class CandidatePair {
+
+        public final String id;
+        /**
+         * Seconds.
+         */
+        public final double currentRoundTripTime;
+        /**
+         * Bits per second.
+         */
+        public final double availableOutgoingBitrate;
+        /**
+         * Bits per second.
+         */
+        public final double availableIncomingBitrate;
+        public final long bytesSent;
+        public final long bytesReceived;
+
+        private CandidatePair(final String id, final Map<String, Object> members) {
+            this.id = id;
+            this.currentRoundTripTime = getDouble(members, "currentRoundTripTime");
+            this.availableOutgoingBitrate = getDouble(members, "availableOutgoingBitrate");
+            this.availableIncomingBitrate = getDouble(members, "availableIncomingBitrate");
+            this.bytesSent = getLong(members, "bytesSent");
+            this.bytesReceived = getLong(members, "bytesReceived");
+        }
+    }
+
+    public static final class DataChannel {
+
+        @Nullable
+        public final String label;
+        public final long messagesSent;
+        public final long messagesReceived;
+        public final long bytesSent;
+        public final long bytesReceived;
+
+        private DataChannel(final Map<String, Object> members) {
+            this.label = getString(members, "label");
+            this.messagesSent = getLong(members, "messagesSent");
+            this.messagesReceived = getLong(members, "messagesReceived");
+            this.bytesSent = getLong(members, "bytesSent");
+            this.bytesReceived = getLong(members, "bytesReceived");
+        }
+    }
+
+    private static boolean isVideo(final Map<String, Object> members) {
+        return MediaStreamTrack.VIDEO_TRACK_KIND.equals(members.get("kind"));
+    }
+
+    @Nullable
+    private static String getCodec(final Map<String, Object> members, final Map<String, RTCStats> map) {
+        final Object codecId = members.get("codecId");
+        if (codecId == null) {
+            return null;
+        }
+        final RTCStats codecStats = map.get(codecId.toString());
+        return codecStats == null ? null : getString(codecStats.getMembers(), "mimeType");
+    }
+
+    private static long getLong(final Map<String, Object> members, final String key) {
+        // Depending on the member, values can be Integer, Long or BigInteger
+        final Object value = members.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : -1;
+    }
+
+    private static double getDouble(final Map<String, Object> members, final String key) {
+        final Object value = members.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    @Nullable
+    private static String getString(final Map<String, Object> members, final String key) {
+        final Object value = members.get(key);
+        return value == null ? null : value.toString();
+    }
+}
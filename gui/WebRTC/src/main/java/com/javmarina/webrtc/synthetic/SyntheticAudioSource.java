@@ -0,0 +1,142 @@
+package com.javmarina.webrtc.synthetic;
+
+import dev.onvoid.webrtc.media.audio.AudioTrackSink;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Generates 16-bit PCM audio without a capture device, for benchmarks and tests of the audio path. Audio is
+ * pushed to the registered sinks in chunks of 10 ms, as WebRTC does. Pure Java, it doesn't need the native
+ * library.<br>
+ * As with {@link SyntheticVideoSource}, webrtc-java doesn't allow to feed this audio to a native audio source,
+ * so it can't be sent through a peer connection.
+ */
+public final class SyntheticAudioSource {
+
+    /**
+     * Generated signal.
+     */
+    public enum Waveform {
+        /**
+         * Sine wave of the configured frequency.
+         */
+        TONE,
+        /**
+         * White noise.
+         */
+        NOISE
+    }
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int CHUNK_MS = 10;
+    // -6 dBFS
+    private static final double AMPLITUDE = 0.5 * Short.MAX_VALUE;
+
+    private final int sampleRate;
+    private final int channels;
+    private final Waveform waveform;
+    private final double frequency;
+    private final int framesPerChunk;
+    private final List<AudioTrackSink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicLong chunksGenerated = new AtomicLong();
+    private final Random random = new Random();
+
+    private ScheduledExecutorService executor;
+    private long sampleIndex = 0;
+
+    /**
+     * Create a source.
+     * @param sampleRate sample rate, in Hz. Must be a multiple of 100.
+     * @param channels number of channels. All of them have the same signal.
+     * @param waveform the signal.
+     * @param frequency frequency of the tone, in Hz. Ignored for noise.
+     */
+    public SyntheticAudioSource(final int sampleRate, final int channels,
+                                final Waveform waveform, final double frequency) {
+        if (sampleRate <= 0 || sampleRate % (1000 / CHUNK_MS) != 0 || channels <= 0) {
+            throw new IllegalArgumentException("Invalid format: " + sampleRate + " Hz, " + channels + " channels");
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.waveform = waveform;
+        this.frequency = frequency;
+        this.framesPerChunk = sampleRate * CHUNK_MS / 1000;
+    }
+
+    public void addSink(final AudioTrackSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(final AudioTrackSink sink) {
+        sinks.remove(sink);
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "SyntheticAudioSource");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::generateChunk, 0, CHUNK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            }
+            executor = null;
+        }
+    }
+
+    public long getChunksGenerated() {
+        return chunksGenerated.get();
+    }
+
+    private void generateChunk() {
+        try {
+            // Sinks may keep the array, so use a new one for each chunk
+            final byte[] data = new byte[framesPerChunk * channels * BITS_PER_SAMPLE / 8];
+            int index = 0;
+            for (int i = 0; i < framesPerChunk; i++) {
+                final short sample = nextSample();
+                for (int channel = 0; channel < channels; channel++) {
+                    // Little endian, as in WebRTC
+                    data[index++] = (byte) sample;
+                    data[index++] = (byte) (sample >> 8);
+                }
+            }
+            for (final AudioTrackSink sink : sinks) {
+                sink.onData(data, BITS_PER_SAMPLE, sampleRate, channels, framesPerChunk);
+            }
+            chunksGenerated.incrementAndGet();
+        } catch (final Exception e) {
+            // An exception would cancel the scheduled task
+            e.printStackTrace();
+        }
+    }
+
+    private short nextSample() {
+        final double value;
+        if (waveform == Waveform.TONE) {
+            value = AMPLITUDE * Math.sin(2 * Math.PI * frequency * sampleIndex / sampleRate);
+        } else {
+            value = AMPLITUDE * (2 * random.nextDouble() - 1);
+        }
+        sampleIndex++;
+        return (short) Math.round(value);
+    }
+}
@@ -0,0 +1,226 @@
+package com.javmarina.webrtc.synthetic;
+
+import com.javmarina.webrtc.I420Converter;
+import com.javmarina.webrtc.latency.TimestampPattern;
+import dev.onvoid.webrtc.media.video.NativeI420Buffer;
+import dev.onvoid.webrtc.media.video.VideoFrame;
+import dev.onvoid.webrtc.media.video.VideoTrackSink;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Generates video frames without a capture device, for benchmarks and tests of the video path. Frames are
+ * native I420 buffers (so the native library must be loaded), delivered at a fixed rate to the registered sinks
+ * in the same way as a {@link dev.onvoid.webrtc.media.video.VideoTrack} does: sinks must retain the frame if
+ * they keep it after {@link VideoTrackSink#onVideoFrame(VideoFrame)} returns.<br>
+ * The content depends on the {@link Motion}, which goes from a static image to random noise.<br>
+ * Note that webrtc-java doesn't allow to feed frames to a native video source, so this can't be connected to
+ * the encoder of a peer connection. It can drive everything that consumes frames as a sink: the client
+ * renderer, the server preview, the latency measurement...
+ */
+public final class SyntheticVideoSource {
+
+    /**
+     * Complexity of the generated content.
+     */
+    public enum Motion {
+        /**
+         * The same gradient in every frame.
+         */
+        STATIC,
+        /**
+         * A gradient that scrolls horizontally, with a box moving across it. Similar to a game with camera movement.
+         */
+        SCROLLING,
+        /**
+         * Random noise in every frame. Worst case for encoders and scalers.
+         */
+        NOISE
+    }
+
+    // Pixels per frame
+    private static final int SCROLL_SPEED = 8;
+
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private final Motion motion;
+    private final List<VideoTrackSink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicLong framesGenerated = new AtomicLong();
+    private final Random random = new Random();
+
+    // Templates, twice as wide as the frame so that any horizontal offset is a single copy per row
+    private final byte[] templateY;
+    private final byte[] templateU;
+    private final byte[] templateV;
+    private final byte[] row;
+
+    private ScheduledExecutorService executor;
+    private volatile boolean timestampStamping = false;
+    private long frameIndex = 0;
+
+    /**
+     * Create a source.
+     * @param width width of the frames.
+     * @param height height of the frames.
+     * @param frameRate frames per second.
+     * @param motion complexity of the content.
+     */
+    public SyntheticVideoSource(final int width, final int height, final int frameRate, final Motion motion) {
+        if (width <= 0 || height <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("Invalid format: " + width + "x" + height + "@" + frameRate);
+        }
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.motion = motion;
+
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        templateY = new byte[2 * width * height];
+        templateU = new byte[2 * chromaWidth * chromaHeight];
+        templateV = new byte[2 * chromaWidth * chromaHeight];
+        row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < 2 * width; x++) {
+                templateY[y * 2 * width + x] = (byte) (16 + (x + y) * 219 / (width + height));
+            }
+        }
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < 2 * chromaWidth; x++) {
+                templateU[y * 2 * chromaWidth + x] = (byte) (x * 255 / (2 * chromaWidth));
+                templateV[y * 2 * chromaWidth + x] = (byte) (y * 255 / chromaHeight);
+            }
+        }
+    }
+
+    public void addSink(final VideoTrackSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(final VideoTrackSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Draw the generation time on each frame with {@link TimestampPattern}, as the server does when measuring the
+     * latency.
+     * @param enabled true to draw the timestamps.
+     */
+    public void setTimestampStamping(final boolean enabled) {
+        this.timestampStamping = enabled;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "SyntheticVideoSource");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::generateFrame, 0, 1_000_000_000L / frameRate, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            }
+            executor = null;
+        }
+    }
+
+    public long getFramesGenerated() {
+        return framesGenerated.get();
+    }
+
+    private void generateFrame() {
+        try {
+            final NativeI420Buffer buffer = NativeI420Buffer.allocate(width, height);
+            final I420Converter.Planes planes = I420Converter.Planes.of(buffer);
+            draw(planes);
+            if (timestampStamping) {
+                TimestampPattern.stamp(planes, System.currentTimeMillis());
+            }
+
+            final VideoFrame frame = new VideoFrame(buffer, 0, System.nanoTime());
+            for (final VideoTrackSink sink : sinks) {
+                sink.onVideoFrame(frame);
+            }
+            frame.release();
+            frameIndex++;
+            framesGenerated.incrementAndGet();
+        } catch (final Exception e) {
+            // An exception would cancel the scheduled task
+            e.printStackTrace();
+        }
+    }
+
+    private void draw(final I420Converter.Planes planes) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        switch (motion) {
+            case STATIC:
+                copy(templateY, planes.dataY, planes.strideY, width, height, 0);
+                copy(templateU, planes.dataU, planes.strideU, chromaWidth, chromaHeight, 0);
+                copy(templateV, planes.dataV, planes.strideV, chromaWidth, chromaHeight, 0);
+                break;
+            case SCROLLING:
+                final int offset = (int) (frameIndex * SCROLL_SPEED % width);
+                copy(templateY, planes.dataY, planes.strideY, width, height, offset);
+                copy(templateU, planes.dataU, planes.strideU, chromaWidth, chromaHeight, offset / 2);
+                copy(templateV, planes.dataV, planes.strideV, chromaWidth, chromaHeight, offset / 2);
+                drawBox(planes, offset);
+                break;
+            case NOISE:
+                noise(planes.dataY, planes.strideY, width, height);
+                noise(planes.dataU, planes.strideU, chromaWidth, chromaHeight);
+                noise(planes.dataV, planes.strideV, chromaWidth, chromaHeight);
+                break;
+        }
+    }
+
+    private static void copy(final byte[] template, final ByteBuffer plane, final int stride,
+                             final int planeWidth, final int planeHeight, final int offset) {
+        final ByteBuffer destination = plane.duplicate();
+        for (int y = 0; y < planeHeight; y++) {
+            destination.position(y * stride);
+            destination.put(template, y * 2 * planeWidth + offset, planeWidth);
+        }
+    }
+
+    private void drawBox(final I420Converter.Planes planes, final int offset) {
+        final int size = Math.max(2, height / 4);
+        final int left = (width - size) - offset * (width - size) / width;
+        final int top = (height - size) / 2;
+        final ByteBuffer destination = planes.dataY.duplicate();
+        Arrays.fill(row, 0, size, (byte) 235);
+        for (int y = top; y < top + size; y++) {
+            destination.position(y * planes.strideY + left);
+            destination.put(row, 0, size);
+        }
+    }
+
+    private void noise(final ByteBuffer plane, final int stride, final int planeWidth, final int planeHeight) {
+        final ByteBuffer destination = plane.duplicate();
+        for (int y = 0; y < planeHeight; y++) {
+            random.nextBytes(row);
+            destination.position(y * stride);
+            destination.put(row, 0, planeWidth);
+        }
+    }
+}
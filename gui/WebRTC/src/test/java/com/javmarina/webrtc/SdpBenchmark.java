@@ -0,0 +1,341 @@
+package com.javmarina.webrtc;
+
+import net.sourceforge.jsdp.Attribute;
+import net.sourceforge.jsdp.Media;
+import net.sourceforge.jsdp.MediaDescription;
+import net.sourceforge.jsdp.SDPException;
+import net.sourceforge.jsdp.SDPFactory;
+import net.sourceforge.jsdp.SessionDescription;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * Micro-benchmark for SDP munging. Doesn't need the native library, so it can run on any machine.<br>
+ * Reports time and allocated bytes per operation for a typical offer generated by webrtc-java, both with
+ * {@link SdpEditor} and with the jsdp implementation it replaced (kept below as {@link JsdpBaseline}, jsdp is
+ * a test dependency). Also checks that an unmodified description is serialized exactly as the original one.
+ */
+public final class SdpBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final String SAMPLE_OFFER = "v=0\r\n" +
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n" +
+            "s=-\r\n" +
+            "t=0 0\r\n" +
+            "a=group:BUNDLE 0 1 2\r\n" +
+            "a=extmap-allow-mixed\r\n" +
+            "a=msid-semantic: WMS\r\n" +
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 103 104 9 0 8 106 105 13 110 112 113 126\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=rtcp:9 IN IP4 0.0.0.0\r\n" +
+            "a=ice-ufrag:Fj2x\r\n" +
+            "a=ice-pwd:Y4hA0cQ7xu7eWQ6hFfR+3l9o\r\n" +
+            "a=ice-options:trickle\r\n" +
+            "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D:D3:F3:8E:E6:80:28:19:FC:55:AD:58:5D:B9:3D:A8:DE:45:4A:E7:87:02:F8:3C:0B:3B:B3\r\n" +
+            "a=setup:actpass\r\n" +
+            "a=mid:0\r\n" +
+            "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n" +
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n" +
+            "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n" +
+            "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n" +
+            "a=recvonly\r\n" +
+            "a=rtcp-mux\r\n" +
+            "a=rtpmap:111 opus/48000/2\r\n" +
+            "a=rtcp-fb:111 transport-cc\r\n" +
+            "a=fmtp:111 minptime=10;useinbandfec=1\r\n" +
+            "a=rtpmap:63 red/48000/2\r\n" +
+            "a=fmtp:63 111/111\r\n" +
+            "a=rtpmap:103 ISAC/16000\r\n" +
+            "a=rtpmap:104 ISAC/32000\r\n" +
+            "a=rtpmap:9 G722/8000\r\n" +
+            "a=rtpmap:0 PCMU/8000\r\n" +
+            "a=rtpmap:8 PCMA/8000\r\n" +
+            "a=rtpmap:106 CN/32000\r\n" +
+            "a=rtpmap:105 CN/16000\r\n" +
+            "a=rtpmap:13 CN/8000\r\n" +
+            "a=rtpmap:110 telephone-event/48000\r\n" +
+            "a=rtpmap:112 telephone-event/32000\r\n" +
+            "a=rtpmap:113 telephone-event/16000\r\n" +
+            "a=rtpmap:126 telephone-event/8000\r\n" +
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102 121 127 120 125 107 108 109 35 36 124 119 123\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=rtcp:9 IN IP4 0.0.0.0\r\n" +
+            "a=ice-ufrag:Fj2x\r\n" +
+            "a=ice-pwd:Y4hA0cQ7xu7eWQ6hFfR+3l9o\r\n" +
+            "a=ice-options:trickle\r\n" +
+            "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D:D3:F3:8E:E6:80:28:19:FC:55:AD:58:5D:B9:3D:A8:DE:45:4A:E7:87:02:F8:3C:0B:3B:B3\r\n" +
+            "a=setup:actpass\r\n" +
+            "a=mid:1\r\n" +
+            "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset\r\n" +
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n" +
+            "a=extmap:13 urn:3gpp:video-orientation\r\n" +
+            "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n" +
+            "a=extmap:5 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay\r\n" +
+            "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type\r\n" +
+            "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-timing\r\n" +
+            "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/color-space\r\n" +
+            "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n" +
+            "a=recvonly\r\n" +
+            "a=rtcp-mux\r\n" +
+            "a=rtcp-rsize\r\n" +
+            "a=rtpmap:96 VP8/90000\r\n" +
+            "a=rtcp-fb:96 goog-remb\r\n" +
+            "a=rtcp-fb:96 transport-cc\r\n" +
+            "a=rtcp-fb:96 ccm fir\r\n" +
+            "a=rtcp-fb:96 nack\r\n" +
+            "a=rtcp-fb:96 nack pli\r\n" +
+            "a=rtpmap:97 rtx/90000\r\n" +
+            "a=fmtp:97 apt=96\r\n" +
+            "a=rtpmap:98 VP9/90000\r\n" +
+            "a=rtcp-fb:98 goog-remb\r\n" +
+            "a=rtcp-fb:98 transport-cc\r\n" +
+            "a=rtcp-fb:98 ccm fir\r\n" +
+            "a=rtcp-fb:98 nack\r\n" +
+            "a=rtcp-fb:98 nack pli\r\n" +
+            "a=fmtp:98 profile-id=0\r\n" +
+            "a=rtpmap:99 rtx/90000\r\n" +
+            "a=fmtp:99 apt=98\r\n" +
+            "a=rtpmap:100 VP9/90000\r\n" +
+            "a=rtcp-fb:100 goog-remb\r\n" +
+            "a=rtcp-fb:100 transport-cc\r\n" +
+            "a=rtcp-fb:100 ccm fir\r\n" +
+            "a=rtcp-fb:100 nack\r\n" +
+            "a=rtcp-fb:100 nack pli\r\n" +
+            "a=fmtp:100 profile-id=2\r\n" +
+            "a=rtpmap:101 rtx/90000\r\n" +
+            "a=fmtp:101 apt=100\r\n" +
+            "a=rtpmap:102 H264/90000\r\n" +
+            "a=rtcp-fb:102 goog-remb\r\n" +
+            "a=rtcp-fb:102 transport-cc\r\n" +
+            "a=rtcp-fb:102 ccm fir\r\n" +
+            "a=rtcp-fb:102 nack\r\n" +
+            "a=rtcp-fb:102 nack pli\r\n" +
+            "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f\r\n" +
+            "a=rtpmap:121 rtx/90000\r\n" +
+            "a=fmtp:121 apt=102\r\n" +
+            "a=rtpmap:127 H264/90000\r\n" +
+            "a=rtcp-fb:127 goog-remb\r\n" +
+            "a=rtcp-fb:127 transport-cc\r\n" +
+            "a=rtcp-fb:127 ccm fir\r\n" +
+            "a=rtcp-fb:127 nack\r\n" +
+            "a=rtcp-fb:127 nack pli\r\n" +
+            "a=fmtp:127 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42001f\r\n" +
+            "a=rtpmap:120 rtx/90000\r\n" +
+            "a=fmtp:120 apt=127\r\n" +
+            "a=rtpmap:125 H264/90000\r\n" +
+            "a=rtcp-fb:125 goog-remb\r\n" +
+            "a=rtcp-fb:125 transport-cc\r\n" +
+            "a=rtcp-fb:125 ccm fir\r\n" +
+            "a=rtcp-fb:125 nack\r\n" +
+            "a=rtcp-fb:125 nack pli\r\n" +
+            "a=fmtp:125 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n" +
+            "a=rtpmap:107 rtx/90000\r\n" +
+            "a=fmtp:107 apt=125\r\n" +
+            "a=rtpmap:108 H264/90000\r\n" +
+            "a=rtcp-fb:108 goog-remb\r\n" +
+            "a=rtcp-fb:108 transport-cc\r\n" +
+            "a=rtcp-fb:108 ccm fir\r\n" +
+            "a=rtcp-fb:108 nack\r\n" +
+            "a=rtcp-fb:108 nack pli\r\n" +
+            "a=fmtp:108 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f\r\n" +
+            "a=rtpmap:109 rtx/90000\r\n" +
+            "a=fmtp:109 apt=108\r\n" +
+            "a=rtpmap:35 AV1/90000\r\n" +
+            "a=rtcp-fb:35 goog-remb\r\n" +
+            "a=rtcp-fb:35 transport-cc\r\n" +
+            "a=rtcp-fb:35 ccm fir\r\n" +
+            "a=rtcp-fb:35 nack\r\n" +
+            "a=rtcp-fb:35 nack pli\r\n" +
+            "a=rtpmap:36 rtx/90000\r\n" +
+            "a=fmtp:36 apt=35\r\n" +
+            "a=rtpmap:124 red/90000\r\n" +
+            "a=rtpmap:119 rtx/90000\r\n" +
+            "a=fmtp:119 apt=124\r\n" +
+            "a=rtpmap:123 ulpfec/90000\r\n" +
+            "m=application 9 UDP/DTLS/SCTP webrtc-datachannel\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=ice-ufrag:Fj2x\r\n" +
+            "a=ice-pwd:Y4hA0cQ7xu7eWQ6hFfR+3l9o\r\n" +
+            "a=ice-options:trickle\r\n" +
+            "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D:D3:F3:8E:E6:80:28:19:FC:55:AD:58:5D:B9:3D:A8:DE:45:4A:E7:87:02:F8:3C:0B:3B:B3\r\n" +
+            "a=setup:actpass\r\n" +
+            "a=mid:2\r\n" +
+            "a=sctp-port:5000\r\n" +
+            "a=max-message-size:262144\r\n";
+
+    public static void main(final String... args) {
+        if (!new SdpEditor(SAMPLE_OFFER).toString().equals(SAMPLE_OFFER)) {
+            throw new IllegalStateException("SdpEditor doesn't preserve the original description");
+        }
+
+        for (final SdpUtils.CodecPreference codecPreference : SdpUtils.CodecPreference.values()) {
+            run("setCodecPreference(" + codecPreference + ")",
+                    () -> SdpUtils.setCodecPreference(SAMPLE_OFFER, codecPreference));
+            run("jsdp setCodecPreference(" + codecPreference + ")",
+                    () -> JsdpBaseline.setCodecPreference(SAMPLE_OFFER, codecPreference.toString()));
+        }
+        run("parse + serialize", () -> new SdpEditor(SAMPLE_OFFER).toString());
+        run("jsdp parse + serialize", () -> JsdpBaseline.parseAndSerialize(SAMPLE_OFFER));
+    }
+
+    private static void run(final String name, final Operation operation) {
+        int checksum = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            checksum += operation.run().length();
+        }
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final long allocatedBefore = getAllocatedBytes(threadBean);
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            checksum += operation.run().length();
+        }
+        final long t1 = System.nanoTime();
+        final long allocatedAfter = getAllocatedBytes(threadBean);
+
+        final String allocated = allocatedBefore < 0 ? "n/a" :
+                String.valueOf((allocatedAfter - allocatedBefore) / ITERATIONS);
+        System.out.printf("%-35s %8.2f us/op %10s B/op (checksum %d)%n",
+                name, (t1 - t0) / 1000.0 / ITERATIONS, allocated, checksum);
+    }
+
+    private static long getAllocatedBytes(final ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Operation {
+        String run();
+    }
+
+    /**
+     * SdpUtils.setCodecPreference() as it was before SdpEditor: the data channel section is converted to the
+     * old SCTP format that jsdp accepts, and the whole description is parsed into jsdp objects.
+     */
+    private static final class JsdpBaseline {
+
+        private static final Pattern SPLIT = Pattern.compile("\\r?\\n");
+
+        private JsdpBaseline() {
+        }
+
+        static String parseAndSerialize(final String sdp) {
+            try {
+                return SDPFactory.parseSessionDescription(v21tov5format(sdp)).toString();
+            } catch (final SDPException e) {
+                return sdp;
+            }
+        }
+
+        static String setCodecPreference(final String sdp, final String codecName) {
+            final String newSdp = v21tov5format(sdp);
+            try {
+                final SessionDescription sessionDescription = SDPFactory.parseSessionDescription(newSdp);
+                MediaDescription videoDescription = null;
+                for (final MediaDescription mediaDescription : sessionDescription.getMediaDescriptions()) {
+                    final Media media = mediaDescription.getMedia();
+                    if (media.getMediaType().equals("video")) {
+                        videoDescription = mediaDescription;
+                        break;
+                    }
+                }
+                if (videoDescription == null) {
+                    return sdp;
+                }
+
+                final String[] formats = videoDescription.getMedia().getMediaFormats();
+
+                final Attribute[] rtpMapAttrs = videoDescription.getAttributes("rtpmap");
+                final HashMap<String, String> rtpMap = new HashMap<>(rtpMapAttrs.length);
+                for (final Attribute attr : rtpMapAttrs) {
+                    final String[] split = attr.getValue().split(" ");
+                    rtpMap.put(split[0], split[1]);
+                }
+
+                final Attribute[] fmtp = videoDescription.getAttributes("fmtp");
+                final HashMap<String, String> fmtpMap = new HashMap<>(fmtp.length);
+                for (final Attribute attr : fmtp) {
+                    final String[] split = attr.getValue().split(" ");
+                    fmtpMap.put(split[0], split[1]);
+                }
+
+                final List<String[]> codecs = new ArrayList<>(formats.length);
+                for (final String format : formats) {
+                    codecs.add(new String[]{format, rtpMap.get(format), fmtpMap.getOrDefault(format, null)});
+                }
+                codecs.sort(getCodecComparator(codecName));
+
+                videoDescription.getMedia().setMediaFormats(codecs.stream()
+                        .map(codec -> codec[0])
+                        .toArray(String[]::new)
+                );
+                return sessionDescription.toString();
+            } catch (final SDPException e) {
+                return sdp;
+            }
+        }
+
+        private static Comparator<String[]> getCodecComparator(final String codecName) {
+            return (o1, o2) -> {
+                if (o1[1].contains(codecName)) {
+                    if (o2[1].contains(codecName)) {
+                        return codecName.equals("VP9") ? -Integer.compare(getVp9Profile(o1), getVp9Profile(o2)) : 0;
+                    } else {
+                        return -1;
+                    }
+                }
+                if (o2[1].contains(codecName)) {
+                    return 1;
+                }
+                return 0;
+            };
+        }
+
+        private static int getVp9Profile(final String[] codec) {
+            return Integer.parseInt(codec[2].split("profile-id=")[1].substring(0, 1));
+        }
+
+        private static String v21tov5format(final String sdp) {
+            final String[] lines = SPLIT.split(sdp);
+            int mIndex = -1;
+            int port = -1;
+            int sctpPort = -1;
+            int sctpIndex = -1;
+            String protocol = "";
+            for (int i = 0; i < lines.length; i++) {
+                final String line = lines[i];
+                if (line.startsWith("m=application") && line.contains("webrtc-datachannel")) {
+                    mIndex = i;
+                    final String[] parts = line.split(" ");
+                    port = Integer.parseInt(parts[1]);
+                    protocol = parts[2];
+                } else if (mIndex >= 0) {
+                    if (line.startsWith("a=sctp-port")) {
+                        sctpPort = Integer.parseInt(line.split(":")[1]);
+                        sctpIndex = i;
+                        break;
+                    }
+                }
+            }
+            if (mIndex < 0 || sctpIndex < 0) {
+                return sdp;
+            } else {
+                lines[mIndex] = "m=application " + port + " " + protocol + " " + sctpPort;
+                lines[sctpIndex] = "a=sctpmap:" + sctpPort + " webrtc-datachannel 256";
+                return String.join("\r\n", lines);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.javmarina.webrtc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class SdpEditorTest {
+
+    private static final String OFFER = "v=0\r\n" +
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n" +
+            "s=-\r\n" +
+            "t=0 0\r\n" +
+            "a=group:BUNDLE 0 1 2\r\n" +
+            "a=msid-semantic: WMS\r\n" +
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 0\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D\r\n" +
+            "a=mid:0\r\n" +
+            "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n" +
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n" +
+            "a=recvonly\r\n" +
+            "a=rtcp-mux\r\n" +
+            "a=rtpmap:111 opus/48000/2\r\n" +
+            "a=fmtp:111 minptime=10;useinbandfec=1\r\n" +
+            "a=rtpmap:63 red/48000/2\r\n" +
+            "a=fmtp:63 111/111\r\n" +
+            "a=rtpmap:0 PCMU/8000\r\n" +
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 102\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=mid:1\r\n" +
+            "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset\r\n" +
+            "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n" +
+            "a=extmap:3/recvonly urn:3gpp:video-orientation\r\n" +
+            "a=recvonly\r\n" +
+            "a=rtpmap:96 VP8/90000\r\n" +
+            "a=rtcp-fb:96 nack\r\n" +
+            "a=rtpmap:97 rtx/90000\r\n" +
+            "a=fmtp:97 apt=96\r\n" +
+            "a=rtpmap:98 VP9/90000\r\n" +
+            "a=fmtp:98 profile-id=0\r\n" +
+            "a=rtpmap:102 H264/90000\r\n" +
+            "m=application 9 UDP/DTLS/SCTP webrtc-datachannel\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=mid:2\r\n" +
+            "a=sctp-port:5000\r\n" +
+            "a=max-message-size:262144\r\n";
+
+    @Test
+    void unmodifiedDescriptionIsKept() {
+        final String lf = OFFER.replace("\r\n", "\n");
+        for (final String sdp : List.of(OFFER, lf, trimEnd(OFFER), trimEnd(lf), "", "v=0", "v=0\n\n")) {
+            assertEquals(sdp, new SdpEditor(sdp).toString());
+        }
+    }
+
+    @Test
+    void mediaSections() {
+        final SdpEditor editor = new SdpEditor(OFFER);
+        assertEquals(3, editor.getAllMedia().size());
+        assertEquals(1, editor.getMedia("video").size());
+        assertNull(editor.getFirstMedia("text"));
+
+        final SdpEditor.Media audio = editor.getFirstMedia("audio");
+        assertEquals(List.of("111", "63", "0"), audio.getPayloadTypes());
+        assertEquals("opus/48000/2", audio.getRtpmap("111"));
+        assertEquals("minptime=10;useinbandfec=1", audio.getFmtp("111"));
+        assertNull(audio.getFmtp("0"));
+        assertEquals("0", audio.getAttribute("mid"));
+        assertEquals("", audio.getAttribute("rtcp-mux"));
+        assertTrue(audio.hasAttribute("recvonly"));
+        assertFalse(audio.hasAttribute("rtcp"));
+        assertNull(audio.getAttribute("sendonly"));
+
+        final SdpEditor.Media video = editor.getFirstMedia("video");
+        assertEquals(List.of("98"), video.findPayloadTypes("vp9"));
+        assertEquals(List.of("102"), video.findPayloadTypes("H264"));
+        assertEquals(List.of(), video.findPayloadTypes("VP"));
+        assertEquals(3, video.getExtmapId("urn:3gpp:video-orientation"));
+        assertEquals(-1, video.getExtmapId("urn:ietf:params:rtp-hdrext:ssrc-audio-level"));
+    }
+
+    @Test
+    void editsOnlyTouchTheirLines() {
+        final SdpEditor editor = new SdpEditor(OFFER);
+        final SdpEditor.Media audio = editor.getFirstMedia("audio");
+        final SdpEditor.Media video = editor.getFirstMedia("video");
+
+        audio.setFmtpParameter("111", "useinbandfec", "0");
+        audio.setFmtpParameter("111", "stereo", "1");
+        audio.setFmtpParameter("0", "ptime", "20");
+        video.setPayloadTypes(List.of("102", "96", "97", "98"));
+        video.setBandwidth("AS", 5000);
+        video.setBandwidth("AS", 8000);
+        video.setAttribute("mid", "video");
+        video.addAttribute("x-google-flag", null);
+
+        final String expected = OFFER
+                .replace("a=fmtp:111 minptime=10;useinbandfec=1\r\n",
+                        "a=fmtp:111 minptime=10;useinbandfec=0;stereo=1\r\n")
+                .replace("a=rtpmap:0 PCMU/8000\r\n", "a=rtpmap:0 PCMU/8000\r\na=fmtp:0 ptime=20\r\n")
+                .replace("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 102\r\nc=IN IP4 0.0.0.0\r\na=mid:1\r\n",
+                        "m=video 9 UDP/TLS/RTP/SAVPF 102 96 97 98\r\nc=IN IP4 0.0.0.0\r\nb=AS:8000\r\n" +
+                                "a=mid:video\r\n")
+                .replace("a=rtpmap:102 H264/90000\r\n", "a=rtpmap:102 H264/90000\r\na=x-google-flag\r\n");
+        assertEquals(expected, editor.toString());
+        assertEquals("minptime=10;useinbandfec=0;stereo=1", audio.getFmtp("111"));
+    }
+
+    @Test
+    void extmapIdsAreSharedBetweenSections() {
+        final SdpEditor editor = new SdpEditor(OFFER);
+        final SdpEditor.Media audio = editor.getFirstMedia("audio");
+        final SdpEditor.Media video = editor.getFirstMedia("video");
+
+        // Already present in this section
+        assertEquals(2, editor.addExtmap(video, "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time"));
+        // Present in another section, same ID
+        assertEquals(1, editor.addExtmap(video, "urn:ietf:params:rtp-hdrext:ssrc-audio-level"));
+        // New extension, lowest unused ID
+        assertEquals(4, editor.addExtmap(audio, "urn:ietf:params:rtp-hdrext:sdes:mid"));
+        assertEquals(4, editor.addExtmap(video, "urn:ietf:params:rtp-hdrext:sdes:mid"));
+
+        final String expected = OFFER
+                .replace("a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\na=recvonly\r\n" +
+                                "a=rtcp-mux\r\n",
+                        "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n" +
+                                "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\na=recvonly\r\na=rtcp-mux\r\n")
+                .replace("a=extmap:3/recvonly urn:3gpp:video-orientation\r\n",
+                        "a=extmap:3/recvonly urn:3gpp:video-orientation\r\n" +
+                                "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n" +
+                                "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n");
+        assertEquals(expected, editor.toString());
+    }
+
+    private static String trimEnd(final String sdp) {
+        return sdp.substring(0, sdp.lastIndexOf(sdp.endsWith("\r\n") ? "\r\n" : "\n"));
+    }
+}
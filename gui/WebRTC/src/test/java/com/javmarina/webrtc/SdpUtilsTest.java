@@ -0,0 +1,41 @@
+package com.javmarina.webrtc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class SdpUtilsTest {
+
+    private static final String OFFER = "v=0\r\n" +
+            "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n" +
+            "s=-\r\n" +
+            "t=0 0\r\n" +
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=rtpmap:111 opus/48000/2\r\n" +
+            "a=fmtp:111 minptime=10;useinbandfec=1\r\n" +
+            "m=video 9 UDP/TLS/RTP/SAVPF 96 97\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=rtpmap:96 VP8/90000\r\n" +
+            "a=rtpmap:97 rtx/90000\r\n" +
+            "a=fmtp:97 apt=96\r\n";
+
+    @Test
+    void latencyProfileIsDetected() {
+        assertFalse(SdpUtils.hasLatencyProfile(OFFER));
+        assertEquals(OFFER, SdpUtils.applyLatencyProfile(OFFER, LatencyProfile.DEFAULT));
+
+        final String lowLatency = SdpUtils.applyLatencyProfile(OFFER, LatencyProfile.LOW_LATENCY);
+        assertTrue(SdpUtils.hasLatencyProfile(lowLatency));
+        assertTrue(lowLatency.contains("a=fmtp:96 x-google-min-bitrate=500;x-google-start-bitrate=4000;" +
+                "x-google-max-bitrate=10000\r\n"));
+        // Retransmission formats are left as they are
+        assertTrue(lowLatency.contains("a=fmtp:97 apt=96\r\n"));
+
+        final LatencyProfile audioOnly = new LatencyProfile.Builder().setOpusPtimeMs(10).build();
+        assertFalse(SdpUtils.hasLatencyProfile(SdpUtils.applyLatencyProfile(OFFER, audioOnly)));
+    }
+}
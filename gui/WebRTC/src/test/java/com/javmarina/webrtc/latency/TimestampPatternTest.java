@@ -0,0 +1,150 @@
+package com.javmarina.webrtc.latency;
+
+import com.javmarina.webrtc.I420Converter;
+import com.javmarina.webrtc.I420Scaler;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class TimestampPatternTest {
+
+    private static final long[] TIMESTAMPS = {0, 1, 0xF, 123_456_789, 0xFFFFFFFFL, 0x80000000L};
+
+    @Test
+    void stampAndRead() {
+        final Random random = new Random(0);
+        for (final int[] size : new int[][] {{1280, 720}, {640, 360}, {40, 48}, {1001, 563}}) {
+            for (final long timestamp : TIMESTAMPS) {
+                final I420Converter.Planes planes = createFrame(size[0], size[1], size[0], random);
+                assertTrue(TimestampPattern.stamp(planes, timestamp));
+                assertEquals(timestamp, TimestampPattern.read(planes), size[0] + "x" + size[1]);
+            }
+        }
+    }
+
+    @Test
+    void onlyLowerBitsAreDrawn() {
+        final I420Converter.Planes planes = createFrame(640, 360, 640, new Random(0));
+        final long timestamp = 1_700_000_000_000L;
+        TimestampPattern.stamp(planes, timestamp);
+        assertEquals(timestamp & 0xFFFFFFFFL, TimestampPattern.read(planes));
+        assertEquals(25, TimestampPattern.elapsedMs(timestamp + 25, TimestampPattern.read(planes)));
+    }
+
+    @Test
+    void strideIsRespected() {
+        final Random random = new Random(0);
+        final I420Converter.Planes planes = createFrame(320, 240, 384, random);
+        TimestampPattern.stamp(planes, 987_654_321);
+        assertEquals(987_654_321, TimestampPattern.read(planes));
+        // Padding is left untouched
+        final I420Converter.Planes reference = createFrame(320, 240, 384, new Random(0));
+        assertEquals(reference.dataY.get(320), planes.dataY.get(320));
+        assertEquals(reference.dataY.get(383), planes.dataY.get(383));
+    }
+
+    @Test
+    void survivesScalingAndNoise() {
+        final Random random = new Random(0);
+        final I420Scaler scaler = new I420Scaler(ForkJoinPool.commonPool());
+        for (final long timestamp : TIMESTAMPS) {
+            final I420Converter.Planes planes = createFrame(1920, 1080, 1920, random);
+            TimestampPattern.stamp(planes, timestamp);
+            addNoise(planes, random, 40);
+            final I420Converter.Planes scaled = scaler.scale(planes, 640, 360);
+            assertEquals(timestamp, TimestampPattern.read(scaled));
+        }
+    }
+
+    @Test
+    void framesWithoutPatternAreRejected() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, TimestampPattern.read(createFrame(320, 240, 320, random)));
+        }
+        // Uniform frames fail the sync cells
+        final I420Converter.Planes black = createFrame(320, 240, 320, random);
+        fill(black, 16);
+        assertEquals(-1, TimestampPattern.read(black));
+        fill(black, 235);
+        assertEquals(-1, TimestampPattern.read(black));
+    }
+
+    @Test
+    void corruptedBitsAreRejected() {
+        final Random random = new Random(0);
+        for (int cell = 0; cell < TimestampPattern.CELLS; cell++) {
+            final I420Converter.Planes planes = createFrame(400, 240, 400, random);
+            TimestampPattern.stamp(planes, 123_456_789);
+            invertCell(planes, cell);
+            assertEquals(-1, TimestampPattern.read(planes), "cell " + cell);
+        }
+    }
+
+    @Test
+    void smallFramesAreSkipped() {
+        final Random random = new Random(0);
+        final I420Converter.Planes narrow = createFrame(39, 240, 39, random);
+        assertFalse(TimestampPattern.stamp(narrow, 1));
+        assertEquals(-1, TimestampPattern.read(narrow));
+        final I420Converter.Planes low = createFrame(320, 47, 320, random);
+        assertFalse(TimestampPattern.stamp(low, 1));
+        assertEquals(-1, TimestampPattern.read(low));
+    }
+
+    @Test
+    void elapsedTimeWrapsAround() {
+        assertEquals(0, TimestampPattern.elapsedMs(0x1_0000_0000L, 0));
+        assertEquals(16, TimestampPattern.elapsedMs(0x1_0000_0005L, 0xFFFFFFF5L));
+        assertEquals(-10, TimestampPattern.elapsedMs(0x2_0000_0000L + 90, 100));
+    }
+
+    private static I420Converter.Planes createFrame(final int width, final int height, final int stride,
+                                                    final Random random) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final byte[] bytes = new byte[stride * height];
+        random.nextBytes(bytes);
+        final ByteBuffer dataY = ByteBuffer.allocateDirect(bytes.length);
+        dataY.put(bytes).clear();
+        final ByteBuffer dataU = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        dataU.put(bytes, 0, dataU.capacity()).clear();
+        final ByteBuffer dataV = ByteBuffer.allocateDirect(chromaWidth * chromaHeight);
+        dataV.put(bytes, dataU.capacity(), dataV.capacity()).clear();
+        return new I420Converter.Planes(width, height, dataY, stride, dataU, chromaWidth, dataV, chromaWidth);
+    }
+
+    private static void fill(final I420Converter.Planes planes, final int value) {
+        for (int i = 0; i < planes.dataY.capacity(); i++) {
+            planes.dataY.put(i, (byte) value);
+        }
+    }
+
+    private static void addNoise(final I420Converter.Planes planes, final Random random, final int noise) {
+        for (int y = 0; y < planes.height; y++) {
+            for (int x = 0; x < planes.width; x++) {
+                final int index = y * planes.strideY + x;
+                final int value = (planes.dataY.get(index) & 0xFF) + random.nextInt(2 * noise + 1) - noise;
+                planes.dataY.put(index, (byte) Math.max(0, Math.min(255, value)));
+            }
+        }
+    }
+
+    private static void invertCell(final I420Converter.Planes planes, final int cell) {
+        final int start = cell * planes.width / TimestampPattern.CELLS;
+        final int end = (cell + 1) * planes.width / TimestampPattern.CELLS;
+        for (int y = 0; y < planes.height; y++) {
+            for (int x = start; x < end; x++) {
+                final int index = y * planes.strideY + x;
+                planes.dataY.put(index, (byte) (251 - (planes.dataY.get(index) & 0xFF)));
+            }
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package com.javmarina.client;
 
+import com.javmarina.client.services.CompositeService;
 import com.javmarina.client.services.ControllerService;
 import com.javmarina.client.services.DefaultJamepadService;
 import com.javmarina.client.services.KeyboardService;
+import com.javmarina.client.services.Keymap;
 import com.javmarina.client.services.bot.DiscordService;
+import com.javmarina.client.services.bot.IrcService;
+import com.javmarina.client.services.recording.Recording;
+import com.javmarina.client.services.recording.RecordingService;
+import com.javmarina.client.services.recording.ReplayService;
+import com.javmarina.client.services.script.Script;
+import com.javmarina.client.services.script.ScriptService;
+import com.javmarina.webrtc.LatencyProfile;
+import com.javmarina.webrtc.RtcClient;
 import com.javmarina.webrtc.RtcUtils;
 import com.javmarina.webrtc.SdpUtils;
 import com.javmarina.webrtc.WebRtcLoader;
 import com.javmarina.webrtc.signaling.SessionId;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
+import discord4j.core.object.util.Snowflake;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Rectangle2D;
@@ -21,6 +32,10 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Properties;
@@ -34,6 +49,8 @@ public final class Client extends Application {
 
     public static void main(final String[] args) {
         WebRtcLoader.loadLibrary();
+        // Create the native objects and start gathering ICE candidates while the user fills the form
+        RtcClient.prewarm();
         launch(args);
     }
 
@@ -46,17 +63,27 @@ public final class Client extends Application {
 
         final ClientController clientController = loader.getController();
 
-        final ArrayList<ControllerService> services = getAvailableServices();
-        clientController.setControllerServices(services);
+        clientController.setControllerServices(getAvailableServices());
         clientController.setAudioOutputDevices(RtcUtils.getAudioRenderDevicesBlocking());
         clientController.setButtonAction(() -> {
-            final ControllerService service = clientController.getSelectedControllerService();
+            final ControllerService selectedService = clientController.getSelectedControllerService();
+            final Path recordingDirectory = getRecordingDirectory();
+            final ControllerService service = recordingDirectory != null
+                    ? new RecordingService(selectedService, recordingDirectory.resolve(
+                            "recording-" + System.currentTimeMillis() + ".rec"))
+                    : selectedService;
             final SdpUtils.CodecPreference codecPreference = clientController.getPreferredVideoCodec();
+            final LatencyProfile latencyProfile = clientController.getLatencyProfile();
             final AudioDevice audioDevice = clientController.getSelectedAudioDevice();
             final SessionId sessionId = clientController.getSessionId();
 
             final ConnectionFrame connectionFrame = new ConnectionFrame(
-                    service, sessionId, codecPreference, audioDevice, primaryStage::show
+                    service, sessionId, codecPreference, latencyProfile, audioDevice, () -> {
+                        RtcClient.prewarm();
+                        // The services of the previous list may have run
+                        clientController.setControllerServices(getAvailableServices());
+                        primaryStage.show();
+                    }
             );
             try {
                 connectionFrame.show();
@@ -84,29 +111,58 @@ public final class Client extends Application {
     }
 
     /**
-     * Gets a list of available {@link ControllerService}. Keyboard and Discord bot are always
-     * available. Additional {@link DefaultJamepadService} are added if there are connected controllers.
+     * Gets a list of available {@link ControllerService}. Keyboard is always available, and the Discord and IRC
+     * bots, the script player and the replay of a recording if configured. Additional
+     * {@link DefaultJamepadService} are added if there are connected controllers. Each of the latter ones is
+     * also offered combined with the keyboard and the controllers (see {@link CompositeService}). Those share
+     * their children with the other entries, and services can only run once, so a new list must be created
+     * for each session.
      * @return list of available services.
      */
     private static ArrayList<ControllerService> getAvailableServices() {
         final ArrayList<DefaultJamepadService> jamepadServiceList = JamepadManager.getAvailableJamepadServices();
-        final ArrayList<ControllerService> allServices = new ArrayList<>(2 + jamepadServiceList.size());
-        allServices.add(new KeyboardService());
-        final String token = getDiscordToken();
-        if (token != null) {
-            allServices.add(new DiscordService(token));
+        final ArrayList<ControllerService> inputs = new ArrayList<>(1 + jamepadServiceList.size());
+        inputs.add(new KeyboardService(getKeymap()));
+        inputs.addAll(jamepadServiceList);
+
+        // Services without a human at the controller
+        final ArrayList<ControllerService> layers = new ArrayList<>(4);
+        final DiscordService discordService = getDiscordService();
+        if (discordService != null) {
+            layers.add(discordService);
+        }
+        final IrcService ircService = getIrcService();
+        if (ircService != null) {
+            layers.add(ircService);
+        }
+        final Script script = getScript();
+        if (script != null) {
+            layers.add(new ScriptService(script, script.hasEnd(), 1));
+        }
+        final ReplayService replayService = getReplayService();
+        if (replayService != null) {
+            layers.add(replayService);
         }
-        allServices.addAll(jamepadServiceList);
 
+        final ArrayList<ControllerService> allServices = new ArrayList<>(
+                inputs.size() + layers.size() + inputs.size() * layers.size());
+        allServices.addAll(inputs);
+        allServices.addAll(layers);
+        for (final ControllerService input : inputs) {
+            for (final ControllerService layer : layers) {
+                allServices.add(new CompositeService(input, layer));
+            }
+        }
         return allServices;
     }
 
     /**
-     * Create a 'discord.properties' file inside /resources with a field called DiscordBotToken
-     * @return the Discord token or null if not found
+     * Create a 'discord.properties' file inside /resources with a field called DiscordBotToken, and optionally
+     * DiscordModeratorRoleId with the ID of the role that can change the vote mode (besides the bot owner)
+     * @return the Discord service or null if not found or not valid
      */
     @Nullable
-    private static String getDiscordToken() {
+    private static DiscordService getDiscordService() {
         try (final InputStream input
                      = Client.class.getClassLoader().getResourceAsStream("discord.properties")) {
 
@@ -120,8 +176,130 @@ public final class Client extends Application {
             prop.load(input);
 
             //get the property value and print it out
-            return prop.getProperty("DiscordBotToken", null);
+            final String token = prop.getProperty("DiscordBotToken", null);
+            if (token == null) {
+                return null;
+            }
+            final String moderatorRoleId = prop.getProperty("DiscordModeratorRoleId");
+            return new DiscordService(token, moderatorRoleId == null ? null : Snowflake.of(moderatorRoleId));
+        } catch (final IOException ex) {
+            return null;
+        } catch (final NumberFormatException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Create a 'keymap.properties' file inside /resources to change the keyboard bindings (see
+     * {@link Keymap#fromProperties(Properties)})
+     * @return the keymap in the file, or the default one if not found or not valid
+     */
+    private static Keymap getKeymap() {
+        try (final InputStream input
+                     = Client.class.getClassLoader().getResourceAsStream("keymap.properties")) {
+            if (input == null) {
+                return Keymap.DEFAULT;
+            }
+            final Properties prop = new Properties();
+            prop.load(input);
+            return Keymap.fromProperties(prop);
+        } catch (final IOException | IllegalArgumentException ex) {
+            ex.printStackTrace();
+            return Keymap.DEFAULT;
+        }
+    }
+
+    /**
+     * Create an 'irc.properties' file inside /resources with the fields IrcHost, IrcPort (optional, 6667 by
+     * default), IrcNick, IrcPassword (optional) and IrcChannel. For Twitch, the host is irc.chat.twitch.tv and
+     * the password is "oauth:" followed by the token
+     * @return the IRC service or null if not found or not valid
+     */
+    @Nullable
+    private static IrcService getIrcService() {
+        try (final InputStream input
+                     = Client.class.getClassLoader().getResourceAsStream("irc.properties")) {
+            if (input == null) {
+                return null;
+            }
+            final Properties prop = new Properties();
+            prop.load(input);
+            final String host = prop.getProperty("IrcHost");
+            final String nick = prop.getProperty("IrcNick");
+            final String channel = prop.getProperty("IrcChannel");
+            if (host == null || nick == null || channel == null) {
+                return null;
+            }
+            final int port = Integer.parseInt(prop.getProperty("IrcPort", "6667"));
+            return new IrcService(host, port, nick, prop.getProperty("IrcPassword"), channel);
+        } catch (final IOException | NumberFormatException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Create a 'script.txt' file inside /resources to play it, in a loop if it has an "end" line (see {@link Script}
+     * for the format)
+     * @return the compiled script or null if not found or not valid
+     */
+    @Nullable
+    private static Script getScript() {
+        try (final InputStream input
+                     = Client.class.getClassLoader().getResourceAsStream("script.txt")) {
+            if (input == null) {
+                return null;
+            }
+            return Script.parse(new InputStreamReader(input, StandardCharsets.UTF_8));
+        } catch (final IOException | IllegalArgumentException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Create a 'recording.properties' file inside /resources with a field called RecordingDirectory to record
+     * every session there, and/or a field called ReplayFile to replay a recording
+     * @return the properties or null if not found
+     */
+    @Nullable
+    private static Properties getRecordingProperties() {
+        try (final InputStream input
+                     = Client.class.getClassLoader().getResourceAsStream("recording.properties")) {
+            if (input == null) {
+                return null;
+            }
+            final Properties prop = new Properties();
+            prop.load(input);
+            return prop;
+        } catch (final IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Path getRecordingDirectory() {
+        final Properties prop = getRecordingProperties();
+        final String directory = prop != null ? prop.getProperty("RecordingDirectory") : null;
+        return directory != null ? Paths.get(directory) : null;
+    }
+
+    @Nullable
+    private static ReplayService getReplayService() {
+        final Properties prop = getRecordingProperties();
+        final String file = prop != null ? prop.getProperty("ReplayFile") : null;
+        if (file == null) {
+            return null;
+        }
+        final Path path = Paths.get(file);
+        try {
+            // Check that it's a valid recording, the service opens it again when it starts
+            Recording.open(path).close();
+            return new ReplayService(path, false);
         } catch (final IOException ex) {
+            ex.printStackTrace();
             return null;
         }
     }
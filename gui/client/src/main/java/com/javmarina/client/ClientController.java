@@ -1,6 +1,7 @@
 package com.javmarina.client;
 
 import com.javmarina.client.services.ControllerService;
+import com.javmarina.webrtc.LatencyProfile;
 import com.javmarina.webrtc.SdpUtils;
 import com.javmarina.webrtc.signaling.SessionId;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
@@ -10,6 +11,7 @@ import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.TextField;
 import javafx.util.StringConverter;
@@ -31,6 +33,8 @@ public class ClientController {
     @FXML
     private ChoiceBox<SdpUtils.CodecPreference> codecPreference;
     @FXML
+    private CheckBox lowLatency;
+    @FXML
     private ChoiceBox<AudioDevice> audioOutput;
     @FXML
     private Button startButton;
@@ -79,8 +83,18 @@ public class ClientController {
     public void setControllerServices(final List<ControllerService> controllerServices) {
         final ObservableList<ControllerService> observableList = FXCollections.observableList(controllerServices);
         FXCollections.sort(observableList, Comparator.comparing(ControllerService::toString));
+        // Keep the selection if the list is replaced with new instances of the same services
+        final ControllerService selected = controllerInput.getValue();
         controllerInput.setItems(observableList);
-        controllerInput.getSelectionModel().selectFirst();
+        if (selected != null) {
+            observableList.stream()
+                    .filter(service -> service.toString().equals(selected.toString()))
+                    .findFirst()
+                    .ifPresent(controllerInput::setValue);
+        }
+        if (controllerInput.getValue() == null) {
+            controllerInput.getSelectionModel().selectFirst();
+        }
     }
 
     public void setAudioOutputDevices(final List<AudioDevice> audioDevices) {
@@ -102,6 +116,10 @@ public class ClientController {
         return codecPreference.getValue();
     }
 
+    public LatencyProfile getLatencyProfile() {
+        return lowLatency.isSelected() ? LatencyProfile.LOW_LATENCY : LatencyProfile.DEFAULT;
+    }
+
     public AudioDevice getSelectedAudioDevice() {
         return audioOutput.getValue();
     }
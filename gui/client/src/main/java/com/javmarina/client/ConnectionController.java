@@ -1,10 +1,16 @@
 package com.javmarina.client;
 
-import dev.onvoid.webrtc.RTCStats;
+import com.javmarina.webrtc.DataChannelSender;
+import com.javmarina.webrtc.FrameTimingAnalyser;
+import com.javmarina.webrtc.latency.LatencyRecorder;
+import com.javmarina.webrtc.stats.Metric;
+import com.javmarina.webrtc.stats.StatsSampler;
+import com.javmarina.webrtc.stats.StatsSnapshot;
 import dev.onvoid.webrtc.RTCStatsReport;
-import dev.onvoid.webrtc.media.MediaStreamTrack;
 import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
 import javafx.fxml.FXML;
+import javafx.scene.Scene;
 import javafx.scene.chart.LineChart;
 import javafx.scene.chart.NumberAxis;
 import javafx.scene.chart.XYChart;
@@ -14,7 +20,7 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.Pane;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -35,8 +41,19 @@ public class ConnectionController {
     private ImageView frames;
 
     private static final int MAX_ITEMS = 16;
+    // Stats are requested every second
+    private static final int STATS_HISTORY_SIZE = 600;
+    // About 10 seconds at 60 fps
+    private static final int LATENCY_HISTORY_SIZE = 600;
 
     private final XYChart.Series<Number, Integer> series = new XYChart.Series<>();
+    private final StatsSampler statsSampler = new StatsSampler(STATS_HISTORY_SIZE);
+    private final LatencyRecorder videoLatency = new LatencyRecorder(LATENCY_HISTORY_SIZE);
+    private volatile int reconnections = 0;
+    private volatile long lastRecoveryMillis = -1;
+    private volatile DataChannelSender dataChannelSender;
+    private volatile LatencyRecorder pollJitter;
+    private volatile LatencyRecorder scriptTimingError;
 
     @FXML
     private void initialize() {
@@ -54,8 +71,9 @@ public class ConnectionController {
         closeButton.setDisable(!enabled);
     }
 
-    public void setFramerateValue(final double framerateValue) {
-        framerate.setText(String.format("%.2f fps", framerateValue));
+    public void setRenderTiming(final FrameTimingAnalyser.Report report) {
+        framerate.setText(String.format(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.renderTiming"),
+                report.meanFps, report.p95IntervalMs, report.p99IntervalMs, report.jitterMs, report.frozenFrames));
     }
 
     public void newRtt(final int rtt) {
@@ -79,96 +97,74 @@ public class ConnectionController {
         frames.setImage(image);
     }
 
+    /**
+     * Listen to changes of the size available for the video, in physical pixels (i.e. taking the output scale
+     * of the screen into account). The listener is called immediately with the current size.
+     * @param listener the listener.
+     */
+    public void setRenderSizeListener(final RenderSizeListener listener) {
+        final ChangeListener<Number> sizeListener = (observable, oldValue, newValue) -> {
+            final Scene scene = container.getScene();
+            final double scale = scene == null || scene.getWindow() == null ? 1 : scene.getWindow().getRenderScaleX();
+            listener.onRenderSizeChanged(
+                    (int) Math.ceil(container.getWidth() * scale),
+                    (int) Math.ceil(container.getHeight() * scale)
+            );
+        };
+        container.widthProperty().addListener(sizeListener);
+        container.heightProperty().addListener(sizeListener);
+        sizeListener.changed(null, null, null);
+    }
+
     public void newStats(final RTCStatsReport report) {
-        final Map<String, String> displayInfo = new HashMap<>(10);
-
-        final Map<String, RTCStats> map = report.getStats();
-        final String videoStreamKey = map.keySet().stream()
-                .filter(s -> s.startsWith("RTCInboundRTPVideoStream_"))
-                .findFirst().orElse(null);
-        if (videoStreamKey != null) {
-            final RTCStats videoStats = map.get(videoStreamKey);
-            // https://www.w3.org/TR/webrtc-stats/#dom-rtcinboundrtpstreamstats
-            // timestamp, type: INBOUND_RTP, qpSum, decoderImplementation,
-            // lastPacketReceivedTimestamp, transportId, kind: "video",
-            // trackId: "RTCMediaStreamTrack_receiver_2", ssrc, isRemote,
-            // ackCount, mediaType: "video", headerBytesReceived, codecId,
-            // bytesReceived, firCount, packetsReceived, pliCount, packetsLost,
-            // keyFramesDecoded, totalDecodeTime, framesDecoded, totalSquaredInterFrameDelay,
-            // totalInterFrameDelay
-            if (videoStats.getMembers().containsKey("codecId")) {
-                final RTCStats codecStats = map.get(videoStats.getMembers().get("codecId"));
-                final String codec = (String) codecStats.getMembers().get("mimeType");
-                final long clockRate = (long) codecStats.getMembers().get("clockRate");
-                displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.videoCodec"),
-                        String.format("%s (%d kHz)", codec, clockRate/1000));
+        final StatsSnapshot snapshot = statsSampler.onReport(report);
+        final Map<String, String> displayInfo = new LinkedHashMap<>(8);
+
+        final StatsSnapshot.InboundRtp video = snapshot.inboundVideo;
+        if (video != null) {
+            if (video.codec != null) {
+                displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.videoCodec"), video.codec);
             }
-            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.framesDecoded"),
-                    videoStats.getMembers().get("framesDecoded").toString());
-            if (videoStats.getMembers().containsKey("framesPerSecond")) {
-                displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.fps"),
-                        videoStats.getMembers().get("framesPerSecond").toString());
+            if (video.frameWidth >= 0) {
+                displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.frameSize"),
+                        String.format("%d x %d", video.frameWidth, video.frameHeight));
             }
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.framesDecoded"),
+                    String.valueOf(video.framesDecoded));
         }
-
-        final String audioStreamKey = map.keySet().stream()
-                .filter(s -> s.startsWith("RTCInboundRTPAudioStream_"))
-                .findFirst().orElse(null);
-        if (audioStreamKey != null) {
-            final RTCStats audioStats = map.get(audioStreamKey);
-            // https://www.w3.org/TR/webrtc-stats/#dom-rtcinboundrtpstreamstats
-            // timestamp, type: INBOUND_RTP, qpSum, decoderImplementation,
-            // lastPacketReceivedTimestamp, transportId, kind: "video",
-            // trackId: "RTCMediaStreamTrack_receiver_2", ssrc, isRemote,
-            // ackCount, mediaType: "video", headerBytesReceived, codecId,
-            // bytesReceived, firCount, packetsReceived, pliCount, packetsLost,
-            // eyFramesDecoded, totalDecodeTime, framesDecoded, totalSquaredInterFrameDelay,
-            // totalInterFrameDelay
+        putMetric(displayInfo, "connection.fps", Metric.FPS_DECODED, "%.1f");
+        putMetric(displayInfo, "connection.videoBitrate", Metric.VIDEO_IN_KBPS, "%.0f kbps");
+        putMetric(displayInfo, "connection.packetLoss", Metric.VIDEO_LOSS_PERCENT, "%.1f %%");
+        putMetric(displayInfo, "connection.decodeTime", Metric.DECODE_MS_PER_FRAME, "%.1f ms");
+        putMetric(displayInfo, "connection.jitterBuffer", Metric.JITTER_BUFFER_DELAY_MS, "%.0f ms");
+        if (videoLatency.size() > 0) {
+            final double[] percentiles = videoLatency.getPercentiles(50, 95);
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.videoLatency"),
+                    String.format("%.0f / %.0f ms", percentiles[0], percentiles[1]));
         }
-
-        final String dataChannelKey = map.keySet().stream()
-                .filter(s -> s.startsWith("RTCDataChannel_"))
-                .findFirst().orElse(null);
-        if (dataChannelKey != null) {
-            final RTCStats dataChannelStats = map.get(dataChannelKey);
-            // timestamp, type: DATA_CHANNEL, protocol = null,
-            // bytesReceived, messagesSent, messagesReceived, datachannelid,
-            // label, state, bytesSent
+        final DataChannelSender sender = dataChannelSender;
+        if (sender != null && sender.getTimeInBuffer().size() > 0) {
+            final double[] percentiles = sender.getTimeInBuffer().getPercentiles(95);
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.inputQueue"),
+                    String.format(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.inputQueueValue"),
+                            sender.getBufferedAmount(), percentiles[0], sender.getCoalescedCount()));
         }
-
-        final String transportKey = map.keySet().stream()
-                .filter(s -> s.startsWith("RTCTransport_"))
-                .findFirst().orElse(null);
-        if (transportKey != null) {
-            final RTCStats transportStats = map.get(transportKey);
-            // timestamp, type: TRANSPORT, bytesReceived,
-            // dtlsState, localCertificateId, tlsVersion,
-            // selectedCandidatePairChanges, bytesSent, selectedCandidatePairId,
-            // dtlsCipher, srtpCipher, remoteCertificateId
-            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.bytesSent"),
-                    transportStats.getMembers().get("bytesSent").toString());
+        final LatencyRecorder jitter = pollJitter;
+        if (jitter != null && jitter.size() > 0) {
+            final double[] percentiles = jitter.getPercentiles(50, 99);
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.pollJitter"),
+                    String.format("%.2f / %.2f ms", percentiles[0], percentiles[1]));
         }
-
-        final String streamKey = map.keySet().stream()
-                .filter(s -> s.startsWith("RTCMediaStream_"))
-                .findFirst().orElse(null);
-        if (streamKey != null) {
-            final RTCStats streamStats = map.get(streamKey);
-            final String[] trackIds = (String[]) streamStats.getMembers().get("trackIds");
-            for (final String trackId : trackIds) {
-                final RTCStats trackStats = map.get(trackId);
-                // timestamp, type: TRACK, detached,
-                // kind ("audio" o "video"), ended, remoteSource, trackIdentifier,
-                // mediaSourceId
-                final String kind = (String) trackStats.getMembers().get("kind");
-                final boolean remote = (boolean) trackStats.getMembers().get("remoteSource");
-                if (kind.equals(MediaStreamTrack.VIDEO_TRACK_KIND) && remote) {
-                    final long width = (long) trackStats.getMembers().get("frameWidth");
-                    final long height = (long) trackStats.getMembers().get("frameHeight");
-                    displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.frameSize"),
-                            String.format("%d x %d", width, height));
-                }
-            }
+        final LatencyRecorder timingError = scriptTimingError;
+        if (timingError != null && timingError.size() > 0) {
+            final double[] percentiles = timingError.getPercentiles(50, 99);
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.scriptTiming"),
+                    String.format("%.2f / %.2f ms", percentiles[0], percentiles[1]));
+        }
+        if (reconnections > 0) {
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.reconnections"),
+                    String.format(ConnectionFrame.RESOURCE_BUNDLE.getString("connection.reconnectionsValue"),
+                            reconnections, lastRecoveryMillis));
         }
 
         Platform.runLater(() -> stats.setText(displayInfo.entrySet()
@@ -177,4 +173,61 @@ public class ConnectionController {
                 .collect(Collectors.joining("\r\n"))
         ));
     }
+
+    public StatsSampler getStatsSampler() {
+        return statsSampler;
+    }
+
+    /**
+     * Get the glass-to-glass latency measured with the timestamps drawn by the server, if enabled.
+     * @return the latency samples.
+     */
+    public LatencyRecorder getVideoLatency() {
+        return videoLatency;
+    }
+
+    /**
+     * Set the sender of the controller states, to show its queue with the stats.
+     * @param dataChannelSender the sender.
+     */
+    public void setDataChannelSender(final DataChannelSender dataChannelSender) {
+        this.dataChannelSender = dataChannelSender;
+    }
+
+    /**
+     * Set the poll jitter of the controller, to show it with the stats.
+     * @param pollJitter the jitter samples.
+     */
+    public void setPollJitter(final LatencyRecorder pollJitter) {
+        this.pollJitter = pollJitter;
+    }
+
+    /**
+     * Set the timing error of the script being played, to show it with the stats.
+     * @param scriptTimingError the error samples.
+     */
+    public void setScriptTimingError(final LatencyRecorder scriptTimingError) {
+        this.scriptTimingError = scriptTimingError;
+    }
+
+    /**
+     * Record that the connection was lost and recovered, to show it with the stats.
+     * @param recoveryMillis time it took to recover the connection, in milliseconds.
+     */
+    public void onReconnected(final long recoveryMillis) {
+        lastRecoveryMillis = recoveryMillis;
+        reconnections++;
+    }
+
+    private void putMetric(final Map<String, String> displayInfo, final String key,
+                           final Metric metric, final String format) {
+        final double value = statsSampler.getLatest(metric);
+        if (!Double.isNaN(value)) {
+            displayInfo.put(ConnectionFrame.RESOURCE_BUNDLE.getString(key), String.format(format, value));
+        }
+    }
+
+    public interface RenderSizeListener {
+        void onRenderSizeChanged(final int width, final int height);
+    }
 }
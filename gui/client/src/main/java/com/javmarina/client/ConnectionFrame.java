@@ -1,16 +1,25 @@
 package com.javmarina.client;
 
+import com.javmarina.client.services.CompositeService;
 import com.javmarina.client.services.ControllerService;
+import com.javmarina.client.services.DefaultJamepadService;
 import com.javmarina.client.services.KeyboardService;
+import com.javmarina.client.services.recording.RecordingService;
+import com.javmarina.client.services.script.ScriptService;
 import com.javmarina.util.StoppableLoop;
-import com.javmarina.webrtc.FramerateEstimator;
+import com.javmarina.webrtc.FrameTimingAnalyser;
+import com.javmarina.webrtc.I420Converter;
+import com.javmarina.webrtc.I420Scaler;
+import com.javmarina.webrtc.LatencyProfile;
 import com.javmarina.webrtc.RtcClient;
 import com.javmarina.webrtc.RtcUtils;
 import com.javmarina.webrtc.SdpUtils;
+import com.javmarina.webrtc.SetupTimeline;
+import com.javmarina.webrtc.latency.ClockOffsetEstimator;
+import com.javmarina.webrtc.latency.TimestampPattern;
 import com.javmarina.webrtc.signaling.SessionId;
-import dev.onvoid.webrtc.media.FourCC;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
-import dev.onvoid.webrtc.media.video.VideoBufferConverter;
+import dev.onvoid.webrtc.media.video.I420Buffer;
 import dev.onvoid.webrtc.media.video.VideoFrame;
 import dev.onvoid.webrtc.media.video.VideoFrameBuffer;
 import javafx.animation.Animation;
@@ -31,8 +40,17 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class ConnectionFrame implements RtcClient.Callback {
@@ -43,12 +61,12 @@ public class ConnectionFrame implements RtcClient.Callback {
     private final ControllerService service;
     private final SessionId sessionId;
     private final SdpUtils.CodecPreference codecPreference;
+    private final LatencyProfile latencyProfile;
     private final AudioDevice audioDevice;
     private final Callback callback;
 
     private RtcClient rtcClient;
     private Timeline timeline;
-    private Thread thread;
     private FrameProcessing frameProcessing;
     private ConnectionController connectionController;
     private Stage stage;
@@ -56,11 +74,13 @@ public class ConnectionFrame implements RtcClient.Callback {
     public ConnectionFrame(final ControllerService service,
                            final SessionId sessionId,
                            final SdpUtils.CodecPreference codecPreference,
+                           final LatencyProfile latencyProfile,
                            final AudioDevice audioDevice,
                            final Callback callback) {
         this.service = service;
         this.sessionId = sessionId;
         this.codecPreference = codecPreference;
+        this.latencyProfile = latencyProfile;
         this.audioDevice = audioDevice;
         this.callback = callback;
     }
@@ -78,8 +98,16 @@ public class ConnectionFrame implements RtcClient.Callback {
         });
         connectionController.setButtonEnabled(false);
 
-        if (service instanceof KeyboardService) {
-            ((KeyboardService) service).setScene(scene);
+        for (final ControllerService input : getInputServices(service)) {
+            if (input instanceof KeyboardService) {
+                ((KeyboardService) input).setScene(scene);
+            }
+            if (input instanceof DefaultJamepadService) {
+                connectionController.setPollJitter(((DefaultJamepadService) input).getPollJitter());
+            }
+            if (input instanceof ScriptService) {
+                connectionController.setScriptTimingError(((ScriptService) input).getTimingError());
+            }
         }
 
         frameProcessing = new FrameProcessing(new FrameProcessing.Callback() {
@@ -89,11 +117,20 @@ public class ConnectionFrame implements RtcClient.Callback {
             }
 
             @Override
-            public void onFramerate(final double framerate) {
-                Platform.runLater(() -> connectionController.setFramerateValue(framerate));
+            public void onRenderTiming(final FrameTimingAnalyser.Report report) {
+                Platform.runLater(() -> connectionController.setRenderTiming(report));
+            }
+
+            @Override
+            public void onStampedFramePresented(final long timestamp) {
+                final ClockOffsetEstimator clockOffsetEstimator = rtcClient.getClockOffsetEstimator();
+                if (clockOffsetEstimator.hasEstimate()) {
+                    final long serverTime = clockOffsetEstimator.toRemoteTime(System.currentTimeMillis());
+                    connectionController.getVideoLatency().add(TimestampPattern.elapsedMs(serverTime, timestamp));
+                }
             }
         });
-        thread = new Thread(frameProcessing);
+        connectionController.setRenderSizeListener(frameProcessing::setRenderSize);
 
         timeline = new Timeline(new KeyFrame(
                 Duration.seconds(1),
@@ -109,9 +146,10 @@ public class ConnectionFrame implements RtcClient.Callback {
                     sessionId,
                     service::getControllerStatus,
                     codecPreference,
-                    audioDeviceModule,
+                    latencyProfile,
                     this
             );
+            connectionController.setDataChannelSender(rtcClient.getDataChannelSender());
             rtcClient.start(); // onSessionStarted() will be called if successful
         });
 
@@ -131,16 +169,29 @@ public class ConnectionFrame implements RtcClient.Callback {
     @Override
     public void onSessionStarted() {
         service.start();
-        thread.start();
+        frameProcessing.start();
         timeline.play();
         connectionController.setButtonEnabled(true);
     }
 
+    @Override
+    public void onConnectionInterrupted() {
+        System.out.println(RESOURCE_BUNDLE.getString("connection.reconnecting"));
+    }
+
+    @Override
+    public void onReconnected(final long recoveryMillis) {
+        connectionController.onReconnected(recoveryMillis);
+    }
+
     @Override
     public void onSessionStopped() {
         timeline.stop();
+        if (connectionController.getVideoLatency().getCount() > 0) {
+            System.out.println("Video latency: " + connectionController.getVideoLatency());
+        }
         service.finish();
-        frameProcessing.stop(() -> Platform.runLater(this::close));
+        frameProcessing.finish(() -> Platform.runLater(this::close));
     }
 
     @Override
@@ -155,6 +206,11 @@ public class ConnectionFrame implements RtcClient.Callback {
         });
     }
 
+    @Override
+    public void onSetupCompleted(final SetupTimeline timeline) {
+        System.out.println("Connection setup: " + timeline);
+    }
+
     @Override
     public void onVideoFrame(final VideoFrame frame) {
         frameProcessing.newFrame(frame);
@@ -165,68 +221,234 @@ public class ConnectionFrame implements RtcClient.Callback {
         callback.onClosed();
     }
 
+    /**
+     * Get the services that actually take input: the recorded service, and the children of a composite one.
+     */
+    private static List<ControllerService> getInputServices(final ControllerService service) {
+        if (service instanceof RecordingService) {
+            return getInputServices(((RecordingService) service).getDelegate());
+        }
+        if (service instanceof CompositeService) {
+            final List<ControllerService> inputs = new ArrayList<>();
+            for (final ControllerService child : ((CompositeService) service).getChildren()) {
+                inputs.addAll(getInputServices(child));
+            }
+            return inputs;
+        }
+        return Collections.singletonList(service);
+    }
+
+    /**
+     * Converts the received frames to BGRA images, in its own thread.<br>
+     * Frames are handed off through a single slot: if a new frame arrives before the previous one was converted,
+     * the previous one is dropped. The thread is parked while there isn't any frame, so it doesn't use CPU when
+     * idle.<br>
+     * Converted images are triple-buffered: the processing thread writes into the back buffer, publishes it as
+     * the ready buffer, and the FX thread swaps the ready buffer with the front buffer. The FX thread never reads
+     * a buffer that is being written, and the processing thread never waits for it. The front buffer is then
+     * copied into the {@link PixelBuffer} being shown inside {@link PixelBuffer#updateBuffer}, the only place
+     * where Prism allows writing it, so a half-written image is never uploaded.<br>
+     * Frames larger than the view are scaled down to its size in I420, before the colour conversion.<br>
+     * If the server draws timestamps on the frames (see {@link TimestampPattern}), they are read here and
+     * reported when the frame is presented.
+     */
     private static final class FrameProcessing extends StoppableLoop {
 
-        private final Object lock = new Object();
-        private final Callback callback;
-        private final FramerateEstimator framerateEstimator;
+        private static final int BUFFER_COUNT = 3;
+        // State of the ready buffer: index in the two lower bits, plus a flag if it hasn't been shown yet
+        private static final int INDEX_MASK = 0b011;
+        private static final int FRESH = 0b100;
+        // The render size is rounded up to a multiple of this, so that resizing the window doesn't change the
+        // size of the images on every frame
+        private static final int RENDER_SIZE_STEP = 16;
 
+        private final Callback callback;
+        // Timing of the presented frames, which is what the user sees
+        private final FrameTimingAnalyser renderTiming;
+        private final Thread thread;
+        private final I420Scaler scaler = new I420Scaler(ForkJoinPool.commonPool());
+        // Width in the upper 32 bits, height in the lower ones. 0 if unknown
+        private volatile long renderSize = 0;
+
+        private final AtomicReference<VideoFrame> nextFrame = new AtomicReference<>();
+        private final ImageBuffer[] buffers = new ImageBuffer[BUFFER_COUNT];
+        private final AtomicInteger readyState = new AtomicInteger(1);
+        private final AtomicBoolean presentScheduled = new AtomicBoolean(false);
+        // Only accessed by the processing thread
+        private int backIndex = 0;
+        // Only accessed by the FX thread
+        private int frontIndex = 2;
         @Nullable
-        private VideoFrame nextFrame = null;
-        private PixelBuffer<ByteBuffer> pixelBuffer;
-        private ByteBuffer byteBuffer;
+        private PixelBuffer<ByteBuffer> shownBuffer = null;
+
+        private final AtomicLong framesReceived = new AtomicLong();
+        private final AtomicLong framesDroppedBeforeConversion = new AtomicLong();
+        private final AtomicLong framesDroppedBeforePresentation = new AtomicLong();
+        private final AtomicLong framesPresented = new AtomicLong();
 
         private FrameProcessing(final Callback callback) {
             this.callback = callback;
-            this.framerateEstimator = new FramerateEstimator(callback::onFramerate);
+            this.renderTiming = new FrameTimingAnalyser(callback::onRenderTiming);
+            this.thread = new Thread(this, "FrameProcessing");
+        }
+
+        private void setRenderSize(final int width, final int height) {
+            final long roundedWidth = roundUp(width);
+            final long roundedHeight = roundUp(height);
+            renderSize = (roundedWidth << 32) | roundedHeight;
+        }
+
+        private static int roundUp(final int size) {
+            return (Math.max(size, 0) + RENDER_SIZE_STEP - 1) / RENDER_SIZE_STEP * RENDER_SIZE_STEP;
+        }
+
+        private void start() {
+            thread.start();
+            renderTiming.start();
+        }
+
+        private void finish(final StoppedCallback stoppedCallback) {
+            renderTiming.stop();
+            stop(() -> {
+                final VideoFrame pending = nextFrame.getAndSet(null);
+                if (pending != null) {
+                    pending.release();
+                }
+                System.out.println(String.format(
+                        "Frames received: %d, dropped before conversion: %d, dropped before presentation: %d, "
+                                + "presented: %d",
+                        framesReceived.get(), framesDroppedBeforeConversion.get(),
+                        framesDroppedBeforePresentation.get(), framesPresented.get()));
+                stoppedCallback.onStopped();
+            });
+            LockSupport.unpark(thread);
         }
 
         @Override
         public void loop() {
-            final VideoFrame currentFrame;
-            synchronized (lock) {
-                currentFrame = nextFrame;
-                nextFrame = null;
+            final VideoFrame currentFrame = nextFrame.getAndSet(null);
+            if (currentFrame == null) {
+                // newFrame() and finish() unpark the thread. Spurious wake-ups just go through the loop again
+                LockSupport.park(this);
+                return;
             }
-            if (currentFrame != null) {
-                final VideoFrameBuffer buffer = currentFrame.buffer;
-                final int width = buffer.getWidth();
-                final int height = buffer.getHeight();
-
-                if (pixelBuffer == null || pixelBuffer.getWidth() != width || pixelBuffer.getHeight() != height) {
-                    byteBuffer = ByteBuffer.allocate(width * height * 4);
-                    pixelBuffer = new PixelBuffer<>(width, height, byteBuffer, PixelFormat.getByteBgraPreInstance());
 
-                    callback.onImage(new WritableImage(pixelBuffer));
-                }
+            final VideoFrameBuffer buffer = currentFrame.buffer;
+            final I420Buffer i420 = buffer instanceof I420Buffer ? (I420Buffer) buffer : buffer.toI420();
+            final long size = renderSize;
+            final I420Converter.Planes planes = I420Converter.Planes.of(i420);
+            final long timestamp = TimestampPattern.read(planes);
+            final I420Converter.Planes scaled = scaler.scaleToFit(planes, (int) (size >>> 32), (int) size);
+            final int width = scaled.width;
+            final int height = scaled.height;
+
+            ImageBuffer back = buffers[backIndex];
+            if (back == null || back.width != width || back.height != height) {
+                // Each buffer is resized when it becomes the back buffer, so the others can still be shown
+                back = new ImageBuffer(width, height, back);
+                buffers[backIndex] = back;
+            }
+            back.timestamp = timestamp;
 
-                try {
-                    VideoBufferConverter.convertFromI420(buffer, byteBuffer, FourCC.ARGB);
-                } catch (final Exception e) {
-                    e.printStackTrace();
+            try {
+                if (scaled == planes) {
+                    I420Converter.getDefault().convert(i420, back.byteBuffer);
+                } else {
+                    I420Converter.getDefault().convert(scaled, back.byteBuffer);
                 }
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+            if (i420 != buffer) {
+                i420.release();
+            }
+            currentFrame.release();
 
-                Platform.runLater(() -> pixelBuffer.updateBuffer(pixBuffer -> null));
+            final int previous = readyState.getAndSet(backIndex | FRESH);
+            if ((previous & FRESH) != 0) {
+                framesDroppedBeforePresentation.incrementAndGet();
+            }
+            backIndex = previous & INDEX_MASK;
 
-                framerateEstimator.onVideoFrame(currentFrame);
+            // Coalesce the updates: a single runLater() is pending at any time
+            if (presentScheduled.compareAndSet(false, true)) {
+                Platform.runLater(this::present);
+            }
+        }
 
-                currentFrame.release();
+        private void present() {
+            presentScheduled.set(false);
+            if ((readyState.get() & FRESH) == 0) {
+                return;
+            }
+            frontIndex = readyState.getAndSet(frontIndex) & INDEX_MASK;
+            final ImageBuffer front = buffers[frontIndex];
+            if (shownBuffer == null || shownBuffer.getWidth() != front.width
+                    || shownBuffer.getHeight() != front.height) {
+                shownBuffer = new PixelBuffer<>(front.width, front.height,
+                        ByteBuffer.allocateDirect(front.width * front.height * 4),
+                        PixelFormat.getByteBgraPreInstance());
+                callback.onImage(new WritableImage(shownBuffer));
+            }
+            shownBuffer.updateBuffer(pixelBuffer -> {
+                pixelBuffer.getBuffer().duplicate().put(front.byteBuffer.duplicate());
+                // Whole image
+                return null;
+            });
+            renderTiming.onFrame(System.nanoTime());
+            framesPresented.incrementAndGet();
+            if (front.timestamp >= 0) {
+                callback.onStampedFramePresented(front.timestamp);
             }
         }
 
         private void newFrame(final VideoFrame frame) {
-            synchronized (lock) {
-                if (nextFrame != null) {
-                    nextFrame.release();
+            framesReceived.incrementAndGet();
+            frame.retain();
+            final VideoFrame previous = nextFrame.getAndSet(frame);
+            if (previous != null) {
+                previous.release();
+                framesDroppedBeforeConversion.incrementAndGet();
+            }
+            LockSupport.unpark(thread);
+        }
+
+        private static final class ImageBuffer {
+
+            private final int width;
+            private final int height;
+            // Memory of the buffer, which can be larger than needed if it was reused from a larger image
+            private final ByteBuffer storage;
+            // BGRA pixels
+            private final ByteBuffer byteBuffer;
+            // Timestamp drawn by the server on the frame, or -1. Written before the buffer is published
+            private long timestamp = -1;
+
+            /**
+             * Create a buffer for an image.
+             * @param width width of the image.
+             * @param height height of the image.
+             * @param previous previous buffer in the same slot, whose memory is reused if it's large enough.
+             *                 Must not be in use.
+             */
+            private ImageBuffer(final int width, final int height, @Nullable final ImageBuffer previous) {
+                this.width = width;
+                this.height = height;
+                final int length = width * height * 4;
+                if (previous != null && previous.storage.capacity() >= length) {
+                    this.storage = previous.storage;
+                } else {
+                    // Direct buffers are converted in place by the native code, heap buffers need an extra copy
+                    this.storage = ByteBuffer.allocateDirect(length);
                 }
-                frame.retain();
-                nextFrame = frame;
+                this.byteBuffer = storage.duplicate().limit(length).slice();
             }
         }
 
         private interface Callback {
             void onImage(final Image image);
-            void onFramerate(final double framerate);
+            void onRenderTiming(final FrameTimingAnalyser.Report report);
+            void onStampedFramePresented(final long timestamp);
         }
     }
 
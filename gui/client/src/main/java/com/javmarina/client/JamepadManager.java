@@ -21,12 +21,15 @@ public final class JamepadManager {
         Runtime.getRuntime().addShutdownHook(new Thread(manager::quitSDLGamepad));
     }
 
-    public static void update() {
+    /**
+     * Pump the SDL events. Called from the polling threads and the JavaFX thread.
+     */
+    public static synchronized void update() {
         manager.update();
     }
 
     public static ArrayList<DefaultJamepadService> getAvailableJamepadServices() {
-        manager.update();
+        update();
         final int size = manager.getNumControllers();
         final ArrayList<DefaultJamepadService> services = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
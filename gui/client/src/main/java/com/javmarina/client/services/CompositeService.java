@@ -0,0 +1,158 @@
+package com.javmarina.client.services;
+
+import com.javmarina.util.Packet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+
+/**
+ * Subclass of {@link ControllerService} that merges the input of several services, for example a controller and a
+ * bot. Each part of the packet is merged with its own policy:
+ * <ul>
+ *   <li>Buttons: pressed in any service ({@link Policy#MERGE}), or those of the first service pressing any.</li>
+ *   <li>Joysticks: summed and clamped ({@link Policy#MERGE}), or those of the first service moving each one.</li>
+ *   <li>DPAD: combined into a direction ({@link Policy#MERGE}), or that of the first service pressing it.</li>
+ * </ul>
+ * Merging uses the same rules as the bot commands (see {@link PacketAccumulator}). Children are read in order, so
+ * the first ones have priority. A new packet is only created when the merged state changes.
+ */
+public class CompositeService extends ControllerService {
+
+    public enum Policy {
+        /**
+         * Combine the input of all the services.
+         */
+        MERGE,
+        /**
+         * Take the input of the first service that uses that part of the controller.
+         */
+        PRIORITY
+    }
+
+    private static final int STATE_SIZE = 8;
+
+    private final ControllerService[] children;
+    private final Policy buttonPolicy;
+    private final Policy joystickPolicy;
+    private final Policy dpadPolicy;
+
+    // Only accessed from getPacket()
+    private final PacketAccumulator accumulator = new PacketAccumulator();
+    private final byte[] buffer = new byte[STATE_SIZE];
+    private long lastState = -1;
+    private Packet lastPacket = Packet.Companion.getEMPTY_PACKET();
+
+    /**
+     * Merge several services with the {@link Policy#MERGE} policy.
+     * @param children the services, in priority order.
+     */
+    public CompositeService(final ControllerService... children) {
+        this(Arrays.asList(children), Policy.MERGE, Policy.MERGE, Policy.MERGE);
+    }
+
+    /**
+     * Merge several services.
+     * @param children the services, in priority order.
+     * @param buttonPolicy how buttons are merged.
+     * @param joystickPolicy how joysticks are merged.
+     * @param dpadPolicy how the DPAD is merged.
+     */
+    public CompositeService(final List<ControllerService> children, final Policy buttonPolicy,
+                            final Policy joystickPolicy, final Policy dpadPolicy) {
+        if (children.isEmpty()) {
+            throw new IllegalArgumentException("At least one service is needed");
+        }
+        this.children = children.toArray(new ControllerService[0]);
+        this.buttonPolicy = buttonPolicy;
+        this.joystickPolicy = joystickPolicy;
+        this.dpadPolicy = dpadPolicy;
+    }
+
+    public List<ControllerService> getChildren() {
+        return Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    @Override
+    protected void onStart() {
+        for (final ControllerService child : children) {
+            child.start();
+        }
+    }
+
+    @Override
+    protected void onFinish() {
+        for (final ControllerService child : children) {
+            child.finish();
+        }
+    }
+
+    @Override
+    protected Packet getPacket() {
+        accumulator.clear();
+        // Buffers chosen by the priority policies, null if no service uses that part
+        byte[] buttons = null;
+        byte[] dpad = null;
+        byte[] leftJoystick = null;
+        byte[] rightJoystick = null;
+        for (final ControllerService child : children) {
+            final Packet packet = child.getControllerStatus();
+            if (packet == null) {
+                continue;
+            }
+            final byte[] childBuffer = packet.getBuffer();
+            accumulator.add(childBuffer);
+            if (buttons == null && (childBuffer[0] != 0 || childBuffer[1] != 0)) {
+                buttons = childBuffer;
+            }
+            if (dpad == null && childBuffer[2] != Packet.Dpad.CENTER) {
+                dpad = childBuffer;
+            }
+            if (leftJoystick == null
+                    && (childBuffer[3] != Packet.Joystick.CENTER || childBuffer[4] != Packet.Joystick.CENTER)) {
+                leftJoystick = childBuffer;
+            }
+            if (rightJoystick == null
+                    && (childBuffer[5] != Packet.Joystick.CENTER || childBuffer[6] != Packet.Joystick.CENTER)) {
+                rightJoystick = childBuffer;
+            }
+        }
+        accumulator.writeTo(buffer);
+
+        if (buttonPolicy == Policy.PRIORITY) {
+            copy(buttons, 0, 2);
+        }
+        if (dpadPolicy == Policy.PRIORITY) {
+            copy(dpad, 2, 1);
+        }
+        if (joystickPolicy == Policy.PRIORITY) {
+            copy(leftJoystick, 3, 2);
+            copy(rightJoystick, 5, 2);
+        }
+
+        long state = 0;
+        for (int i = 0; i < STATE_SIZE; i++) {
+            state = state << 8 | (buffer[i] & 0xFF);
+        }
+        if (state != lastState) {
+            lastState = state;
+            lastPacket = new Packet(buffer.clone());
+        }
+        return lastPacket;
+    }
+
+    /**
+     * Copy part of the chosen buffer, or the empty state if there is none.
+     */
+    private void copy(final byte[] source, final int offset, final int length) {
+        System.arraycopy(source != null ? source : Packet.Companion.getEMPTY_PACKET_BUFFER(),
+                offset, buffer, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.stream(children).map(ControllerService::toString).collect(Collectors.joining(" + "));
+    }
+}
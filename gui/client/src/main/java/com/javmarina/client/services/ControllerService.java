@@ -23,7 +23,8 @@ public abstract class ControllerService {
         FINISHED
     }
 
-    private Status status = Status.READY;
+    // Subclasses may finish from their own threads
+    private volatile Status status = Status.READY;
 
     /**
      * Subclasses must override this method to provide a valid packet.
@@ -3,22 +3,43 @@ package com.javmarina.client.services;
 import com.javmarina.client.Client;
 import com.javmarina.client.JamepadManager;
 import com.javmarina.util.Packet;
+import com.javmarina.util.StoppableLoop;
+import com.javmarina.webrtc.latency.LatencyRecorder;
 import com.studiohartman.jamepad.ControllerAxis;
 import com.studiohartman.jamepad.ControllerButton;
 import com.studiohartman.jamepad.ControllerIndex;
 import com.studiohartman.jamepad.ControllerUnpluggedException;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * Represents a real controller, accessed via Jamepad library (based on DirectInput from DirectX). It has
- * some limitations. For example, the capture button (if using a Pro Controller) is not supported.
+ * some limitations. For example, the capture button (if using a Pro Controller) is not supported.<br>
+ * The controller is polled in its own thread at a fixed rate, so that reading it doesn't delay the packets sent
+ * to the server: {@link DefaultJamepadService#getPacket()} just returns the latest state.
  */
 public class DefaultJamepadService extends ControllerService {
 
+    public static final int DEFAULT_POLL_RATE_HZ = 1000;
+    public static final int MAX_POLL_RATE_HZ = 1000;
+    // About 5 seconds at 1 kHz
+    private static final int JITTER_HISTORY_SIZE = 5000;
+
     private final ControllerIndex controller;
+    private final long pollPeriodNs;
+    private final AtomicReference<Packet> snapshot = new AtomicReference<>(Packet.Companion.getEMPTY_PACKET());
+    private final LatencyRecorder pollJitter = new LatencyRecorder(JITTER_HISTORY_SIZE);
+    private final Poller poller = new Poller();
 
-    DefaultJamepadService(final ControllerIndex controller) {
+    DefaultJamepadService(final ControllerIndex controller, final int pollRateHz) {
+        if (pollRateHz <= 0 || pollRateHz > MAX_POLL_RATE_HZ) {
+            throw new IllegalArgumentException("Poll rate must be between 1 and " + MAX_POLL_RATE_HZ + " Hz");
+        }
         this.controller = controller;
+        this.pollPeriodNs = TimeUnit.SECONDS.toNanos(1) / pollRateHz;
     }
 
     protected static boolean isButtonPressed(final ControllerIndex controller, final Packet.Buttons.Code code)
@@ -44,41 +65,94 @@ public class DefaultJamepadService extends ControllerService {
         }
     }
 
+    @Override
+    protected void onStart() {
+        final Thread thread = new Thread(poller, "JamepadPoller");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    protected void onFinish() {
+        poller.stop();
+    }
+
     @Override
     public final Packet getPacket() {
-        JamepadManager.update();
-        if (!controller.isConnected()) {
-            System.out.println("Controller unplugged");
-            finish();
-        }
-        try {
-            final Packet.Buttons buttons = new Packet.Buttons(buttonCode -> {
-                try {
-                    return DefaultJamepadService.isButtonPressed(controller, buttonCode);
-                } catch (final ControllerUnpluggedException e) {
-                    return false;
-                }
-            });
+        return snapshot.get();
+    }
 
-            final Packet.Dpad dpad = new Packet.Dpad(
-                    controller.isButtonPressed(ControllerButton.DPAD_UP),
-                    controller.isButtonPressed(ControllerButton.DPAD_RIGHT),
-                    controller.isButtonPressed(ControllerButton.DPAD_DOWN),
-                    controller.isButtonPressed(ControllerButton.DPAD_LEFT)
-            );
+    /**
+     * Get the delay of each poll with respect to its scheduled time, in milliseconds.
+     * @return the recorded delays.
+     */
+    public LatencyRecorder getPollJitter() {
+        return pollJitter;
+    }
 
-            final Packet.Joystick leftJoystick = new Packet.Joystick(
-                    controller.getAxisState(ControllerAxis.LEFTX),
-                    controller.getAxisState(ControllerAxis.LEFTY));
+    private Packet readController() throws ControllerUnpluggedException {
+        final Packet.Buttons buttons = new Packet.Buttons(buttonCode -> {
+            try {
+                return DefaultJamepadService.isButtonPressed(controller, buttonCode);
+            } catch (final ControllerUnpluggedException e) {
+                return false;
+            }
+        });
 
-            final Packet.Joystick rightJoystick = new Packet.Joystick(
-                    controller.getAxisState(ControllerAxis.RIGHTX),
-                    controller.getAxisState(ControllerAxis.RIGHTY));
+        final Packet.Dpad dpad = new Packet.Dpad(
+                controller.isButtonPressed(ControllerButton.DPAD_UP),
+                controller.isButtonPressed(ControllerButton.DPAD_RIGHT),
+                controller.isButtonPressed(ControllerButton.DPAD_DOWN),
+                controller.isButtonPressed(ControllerButton.DPAD_LEFT)
+        );
 
-            return new Packet(buttons, dpad, leftJoystick, rightJoystick);
-        } catch (final ControllerUnpluggedException e) {
-            e.printStackTrace();
-            return Packet.Companion.getEMPTY_PACKET();
+        final Packet.Joystick leftJoystick = new Packet.Joystick(
+                controller.getAxisState(ControllerAxis.LEFTX),
+                controller.getAxisState(ControllerAxis.LEFTY));
+
+        final Packet.Joystick rightJoystick = new Packet.Joystick(
+                controller.getAxisState(ControllerAxis.RIGHTX),
+                controller.getAxisState(ControllerAxis.RIGHTY));
+
+        return new Packet(buttons, dpad, leftJoystick, rightJoystick);
+    }
+
+    private final class Poller extends StoppableLoop {
+
+        private long nextPollNs = 0;
+
+        @Override
+        public void loop() {
+            final long now = System.nanoTime();
+            if (nextPollNs != 0) {
+                if (now < nextPollNs) {
+                    LockSupport.parkNanos(nextPollNs - now);
+                    return;
+                }
+                pollJitter.add((now - nextPollNs) / 1e6);
+            }
+            // Keep the schedule, unless a poll was missed entirely
+            nextPollNs = nextPollNs != 0 && now - nextPollNs < pollPeriodNs
+                    ? nextPollNs + pollPeriodNs
+                    : now + pollPeriodNs;
+
+            JamepadManager.update();
+            if (!controller.isConnected()) {
+                System.out.println("Controller unplugged");
+                snapshot.set(Packet.Companion.getEMPTY_PACKET());
+                finish();
+                return;
+            }
+            try {
+                final Packet packet = readController();
+                // Pack it here, not in the sender thread
+                packet.getBuffer();
+                snapshot.set(packet);
+            } catch (final ControllerUnpluggedException e) {
+                e.printStackTrace();
+                snapshot.set(Packet.Companion.getEMPTY_PACKET());
+            }
         }
     }
 
@@ -93,6 +167,11 @@ public class DefaultJamepadService extends ControllerService {
     }
 
     public static DefaultJamepadService fromControllerIndex(final ControllerIndex controllerIndex) {
-        return new DefaultJamepadService(controllerIndex);
+        return fromControllerIndex(controllerIndex, DEFAULT_POLL_RATE_HZ);
+    }
+
+    public static DefaultJamepadService fromControllerIndex(final ControllerIndex controllerIndex,
+                                                            final int pollRateHz) {
+        return new DefaultJamepadService(controllerIndex, pollRateHz);
     }
 }
@@ -3,59 +3,115 @@ package com.javmarina.client.services;
 import com.javmarina.client.Client;
 import com.javmarina.util.Packet;
 import javafx.scene.Scene;
-import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
 
-import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Subclass of {@link ControllerService} that takes input from the computer keyboard. This implementation
- * includes some buttons and the DPAD, but not joysticks.
+ * Subclass of {@link ControllerService} that takes input from the computer keyboard, with the bindings of a
+ * {@link Keymap}. Joysticks are emulated with ramping, so tapping a key tilts the joystick partially.<br>
+ * The JavaFX thread updates the pressed keys, a bit each, in an atomic mask. {@link KeyboardService#getPacket()}
+ * reads it once and only creates a new packet when the output changes.
  */
 public class KeyboardService extends ControllerService {
 
-    private static final EnumSet<KeyCode> pressedKeys = EnumSet.noneOf(KeyCode.class);
+    private static final int AXES = 4;
+    private static final byte[] DPAD_BYTES = new byte[16];
+    static {
+        for (int i = 0; i < DPAD_BYTES.length; i++) {
+            DPAD_BYTES[i] = new Packet.Dpad(
+                    (i & Keymap.DPAD_UP) != 0,
+                    (i & Keymap.DPAD_RIGHT) != 0,
+                    (i & Keymap.DPAD_DOWN) != 0,
+                    (i & Keymap.DPAD_LEFT) != 0
+            ).toByte();
+        }
+    }
+
+    private final Keymap keymap;
+    private final AtomicLong pressedKeys = new AtomicLong();
+    private final float[] axes = new float[AXES];
+    private final long rampNs;
 
     private Scene scene;
+    private long lastUpdateNs = 0;
+    // Packed output of the last packet (bytes 0 to 6 of the buffer)
+    private long lastState = -1;
+    private Packet lastPacket = Packet.Companion.getEMPTY_PACKET();
+
+    public KeyboardService() {
+        this(Keymap.DEFAULT);
+    }
+
+    public KeyboardService(final Keymap keymap) {
+        this.keymap = keymap;
+        this.rampNs = TimeUnit.MILLISECONDS.toNanos(keymap.getStickRampMs());
+    }
 
     public void setScene(final Scene newScene) {
         if (scene != null) {
             scene.setOnKeyReleased(null);
             scene.setOnKeyPressed(null);
         }
-        newScene.setOnKeyPressed(e -> pressedKeys.add(e.getCode()));
-        newScene.setOnKeyReleased(e -> pressedKeys.remove(e.getCode()));
+        pressedKeys.set(0);
+        newScene.setOnKeyPressed(this::onKeyPressed);
+        newScene.setOnKeyReleased(this::onKeyReleased);
         scene = newScene;
     }
 
+    private void onKeyPressed(final KeyEvent event) {
+        final int bit = keymap.getKeyBit(event.getCode());
+        if (bit >= 0) {
+            pressedKeys.accumulateAndGet(1L << bit, (keys, mask) -> keys | mask);
+        }
+    }
+
+    private void onKeyReleased(final KeyEvent event) {
+        final int bit = keymap.getKeyBit(event.getCode());
+        if (bit >= 0) {
+            pressedKeys.accumulateAndGet(1L << bit, (keys, mask) -> keys & ~mask);
+        }
+    }
+
     @Override
     public Packet getPacket() {
-        final Packet.Buttons buttons = new Packet.Buttons(
-                pressedKeys.contains(KeyCode.Y), // Y
-                pressedKeys.contains(KeyCode.B), // B
-                pressedKeys.contains(KeyCode.A) || pressedKeys.contains(KeyCode.ENTER), // A
-                pressedKeys.contains(KeyCode.X), // X
-                pressedKeys.contains(KeyCode.L) && !pressedKeys.contains(KeyCode.SHIFT), // L
-                pressedKeys.contains(KeyCode.R) && !pressedKeys.contains(KeyCode.SHIFT), // R
-                pressedKeys.contains(KeyCode.L) && pressedKeys.contains(KeyCode.SHIFT), // ZL
-                pressedKeys.contains(KeyCode.R) && pressedKeys.contains(KeyCode.SHIFT), // ZR
-                pressedKeys.contains(KeyCode.MINUS), // MINUS
-                pressedKeys.contains(KeyCode.PLUS), // PLUS
-                false,
-                false,
-                pressedKeys.contains(KeyCode.H), // HOME
-                pressedKeys.contains(KeyCode.C) // CAPTURE
-        );
-
-        final Packet.Dpad dpad = new Packet.Dpad(
-                pressedKeys.contains(KeyCode.UP),
-                pressedKeys.contains(KeyCode.RIGHT),
-                pressedKeys.contains(KeyCode.DOWN),
-                pressedKeys.contains(KeyCode.LEFT)
-        );
-
-        // No joystick support
-        return new Packet(buttons, dpad, Packet.Joystick.centered(), Packet.Joystick.centered());
+        final int output = keymap.evaluate(pressedKeys.get());
+
+        final long now = System.nanoTime();
+        final float step = rampNs == 0 || lastUpdateNs == 0 ? 1 : Math.min(1, (float) (now - lastUpdateNs) / rampNs);
+        lastUpdateNs = now;
+
+        final int buttons = Keymap.getButtons(output);
+        long state = (long) (buttons >>> 8 & 0xFF) << 48
+                | (long) (buttons & 0xFF) << 40
+                | (long) (DPAD_BYTES[Keymap.getDpad(output)] & 0xFF) << 32;
+        for (int axis = 0; axis < AXES; axis++) {
+            final float target = Keymap.getAxis(output, axis);
+            final float value = axes[axis];
+            axes[axis] = target > value ? Math.min(target, value + step) : Math.max(target, value - step);
+            state |= (long) (toByte(axes[axis]) & 0xFF) << (8 * (3 - axis));
+        }
+
+        if (state != lastState) {
+            final byte[] buffer = new byte[Packet.Companion.getPACKET_BUFFER_LENGTH()];
+            for (int i = 0; i < 7; i++) {
+                buffer[i] = (byte) (state >>> (8 * (6 - i)));
+            }
+            buffer[7] = Packet.VENDORSPEC;
+            lastPacket = new Packet(buffer);
+            lastState = state;
+        }
+        return lastPacket;
+    }
+
+    /**
+     * Same conversion as {@link Packet.Joystick#toBytes()}.
+     */
+    private static byte toByte(final float value) {
+        final byte b = (byte) (int) ((value + 1.0) / 2.0 * 255);
+        return Math.abs(b - Packet.Joystick.CENTER_INTEGER) < 10 ? Packet.Joystick.CENTER : b;
     }
 
     @Override
@@ -0,0 +1,289 @@
+package com.javmarina.client.services;
+
+import com.javmarina.util.Packet;
+import javafx.scene.input.KeyCode;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+
+/**
+ * Key bindings of {@link KeyboardService}. Each binding maps a key, optionally combined with a modifier (for
+ * example SHIFT + L), to a button, a DPAD direction or a joystick direction. If a key is bound both with and
+ * without a modifier, the plain binding only applies while the modifier is released.<br>
+ * Bindings are compiled once: each key gets a bit in a 64-bit mask (see {@link Keymap#getKeyBit(KeyCode)}), and
+ * {@link Keymap#evaluate(long)} maps a mask of pressed keys to the packet bits with a few operations per binding.
+ */
+public final class Keymap {
+
+    public static final int MAX_KEYS = Long.SIZE;
+    public static final long DEFAULT_STICK_RAMP_MS = 80;
+
+    // Bits of the result of evaluate(): buttons, then DPAD directions, then two bits for each joystick axis
+    public static final int DPAD_UP = 1;
+    public static final int DPAD_RIGHT = 1 << 1;
+    public static final int DPAD_DOWN = 1 << 2;
+    public static final int DPAD_LEFT = 1 << 3;
+    private static final int DPAD_SHIFT = 16;
+    private static final int AXES_SHIFT = 20;
+    public static final int AXIS_POSITIVE = 1;
+    public static final int AXIS_NEGATIVE = 2;
+
+    public static final Keymap DEFAULT = new Builder()
+            .bind(Target.Y, KeyCode.Y)
+            .bind(Target.B, KeyCode.B)
+            .bind(Target.A, KeyCode.A)
+            .bind(Target.A, KeyCode.ENTER)
+            .bind(Target.X, KeyCode.X)
+            .bind(Target.L, KeyCode.L)
+            .bind(Target.R, KeyCode.R)
+            .bind(Target.ZL, KeyCode.SHIFT, KeyCode.L)
+            .bind(Target.ZR, KeyCode.SHIFT, KeyCode.R)
+            .bind(Target.MINUS, KeyCode.MINUS)
+            .bind(Target.PLUS, KeyCode.PLUS)
+            .bind(Target.HOME, KeyCode.H)
+            .bind(Target.CAPTURE, KeyCode.C)
+            .bind(Target.DPAD_UP, KeyCode.UP)
+            .bind(Target.DPAD_RIGHT, KeyCode.RIGHT)
+            .bind(Target.DPAD_DOWN, KeyCode.DOWN)
+            .bind(Target.DPAD_LEFT, KeyCode.LEFT)
+            .bind(Target.LEFT_STICK_UP, KeyCode.NUMPAD8)
+            .bind(Target.LEFT_STICK_RIGHT, KeyCode.NUMPAD6)
+            .bind(Target.LEFT_STICK_DOWN, KeyCode.NUMPAD2)
+            .bind(Target.LEFT_STICK_LEFT, KeyCode.NUMPAD4)
+            .bind(Target.LCLICK, KeyCode.NUMPAD5)
+            .bind(Target.RIGHT_STICK_UP, KeyCode.HOME)
+            .bind(Target.RIGHT_STICK_RIGHT, KeyCode.PAGE_DOWN)
+            .bind(Target.RIGHT_STICK_DOWN, KeyCode.END)
+            .bind(Target.RIGHT_STICK_LEFT, KeyCode.DELETE)
+            .bind(Target.RCLICK, KeyCode.INSERT)
+            .build();
+
+    /**
+     * Everything a key can be bound to. Joystick directions follow the axes of {@link DefaultJamepadService}:
+     * right and up are positive.
+     */
+    public enum Target {
+        Y(Packet.Buttons.Code.Y.getValue(), 0, -1, 0),
+        B(Packet.Buttons.Code.B.getValue(), 0, -1, 0),
+        A(Packet.Buttons.Code.A.getValue(), 0, -1, 0),
+        X(Packet.Buttons.Code.X.getValue(), 0, -1, 0),
+        L(Packet.Buttons.Code.L.getValue(), 0, -1, 0),
+        R(Packet.Buttons.Code.R.getValue(), 0, -1, 0),
+        ZL(Packet.Buttons.Code.ZL.getValue(), 0, -1, 0),
+        ZR(Packet.Buttons.Code.ZR.getValue(), 0, -1, 0),
+        MINUS(Packet.Buttons.Code.MINUS.getValue(), 0, -1, 0),
+        PLUS(Packet.Buttons.Code.PLUS.getValue(), 0, -1, 0),
+        LCLICK(Packet.Buttons.Code.LCLICK.getValue(), 0, -1, 0),
+        RCLICK(Packet.Buttons.Code.RCLICK.getValue(), 0, -1, 0),
+        HOME(Packet.Buttons.Code.HOME.getValue(), 0, -1, 0),
+        CAPTURE(Packet.Buttons.Code.CAPTURE.getValue(), 0, -1, 0),
+        DPAD_UP(0, Keymap.DPAD_UP, -1, 0),
+        DPAD_RIGHT(0, Keymap.DPAD_RIGHT, -1, 0),
+        DPAD_DOWN(0, Keymap.DPAD_DOWN, -1, 0),
+        DPAD_LEFT(0, Keymap.DPAD_LEFT, -1, 0),
+        LEFT_STICK_UP(0, 0, 1, AXIS_POSITIVE),
+        LEFT_STICK_RIGHT(0, 0, 0, AXIS_POSITIVE),
+        LEFT_STICK_DOWN(0, 0, 1, AXIS_NEGATIVE),
+        LEFT_STICK_LEFT(0, 0, 0, AXIS_NEGATIVE),
+        RIGHT_STICK_UP(0, 0, 3, AXIS_POSITIVE),
+        RIGHT_STICK_RIGHT(0, 0, 2, AXIS_POSITIVE),
+        RIGHT_STICK_DOWN(0, 0, 3, AXIS_NEGATIVE),
+        RIGHT_STICK_LEFT(0, 0, 2, AXIS_NEGATIVE);
+
+        private final int output;
+
+        /**
+         * @param buttons button bits (see {@link Packet.Buttons.Code}).
+         * @param dpad DPAD direction bits.
+         * @param axis joystick axis: left X, left Y, right X and right Y, or -1 if none.
+         * @param direction {@link Keymap#AXIS_POSITIVE} or {@link Keymap#AXIS_NEGATIVE}.
+         */
+        Target(final int buttons, final int dpad, final int axis, final int direction) {
+            this.output = buttons | dpad << DPAD_SHIFT | (axis < 0 ? 0 : direction << (AXES_SHIFT + 2 * axis));
+        }
+    }
+
+    private final int[] bitByKey = new int[KeyCode.values().length];
+    private final long[] requiredMasks;
+    private final long[] excludedMasks;
+    private final int[] outputs;
+    private final long stickRampMs;
+
+    private Keymap(final List<Binding> bindings, final long stickRampMs) {
+        Arrays.fill(bitByKey, -1);
+        int keyCount = 0;
+        for (final Binding binding : bindings) {
+            for (final KeyCode key : new KeyCode[]{binding.key, binding.modifier}) {
+                if (key != null && bitByKey[key.ordinal()] < 0) {
+                    if (keyCount == MAX_KEYS) {
+                        throw new IllegalArgumentException("At most " + MAX_KEYS + " different keys can be bound");
+                    }
+                    bitByKey[key.ordinal()] = keyCount++;
+                }
+            }
+        }
+
+        final int size = bindings.size();
+        requiredMasks = new long[size];
+        excludedMasks = new long[size];
+        outputs = new int[size];
+        for (int i = 0; i < size; i++) {
+            final Binding binding = bindings.get(i);
+            requiredMasks[i] = mask(binding.key) | mask(binding.modifier);
+            if (binding.modifier == null) {
+                // Released while a modifier used with the same key is held
+                for (final Binding other : bindings) {
+                    if (other.key == binding.key && other.modifier != null) {
+                        excludedMasks[i] |= mask(other.modifier);
+                    }
+                }
+            }
+            outputs[i] = binding.target.output;
+        }
+        this.stickRampMs = stickRampMs;
+    }
+
+    /**
+     * Get the bit assigned to a key.
+     * @param key the key.
+     * @return the bit index, or -1 if the key isn't bound.
+     */
+    public int getKeyBit(final KeyCode key) {
+        return bitByKey[key.ordinal()];
+    }
+
+    /**
+     * Apply the bindings to a set of pressed keys.
+     * @param pressedKeys mask of pressed keys (see {@link Keymap#getKeyBit(KeyCode)}).
+     * @return the button bits in the lowest 16 bits (see {@link Keymap#getButtons(int)}), the DPAD directions
+     * (see {@link Keymap#getDpad(int)}) and the joystick directions (see {@link Keymap#getAxis(int, int)}).
+     */
+    public int evaluate(final long pressedKeys) {
+        int output = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            if ((pressedKeys & requiredMasks[i]) == requiredMasks[i] && (pressedKeys & excludedMasks[i]) == 0) {
+                output |= outputs[i];
+            }
+        }
+        return output;
+    }
+
+    public static int getButtons(final int output) {
+        return output & 0xFFFF;
+    }
+
+    public static int getDpad(final int output) {
+        return (output >>> DPAD_SHIFT) & 0xF;
+    }
+
+    /**
+     * Get the direction of a joystick axis.
+     * @param output result of {@link Keymap#evaluate(long)}.
+     * @param axis left X, left Y, right X or right Y (0 to 3).
+     * @return 1, -1 or 0 (no direction or both pressed).
+     */
+    public static int getAxis(final int output, final int axis) {
+        switch ((output >>> (AXES_SHIFT + 2 * axis)) & 0x3) {
+            case AXIS_POSITIVE: return 1;
+            case AXIS_NEGATIVE: return -1;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Get the time a joystick takes to move from the center to the edge, so that keys emulate a partial tilt
+     * when tapped.
+     * @return the time in milliseconds, 0 to move it instantly.
+     */
+    public long getStickRampMs() {
+        return stickRampMs;
+    }
+
+    private long mask(@Nullable final KeyCode key) {
+        return key == null ? 0 : 1L << bitByKey[key.ordinal()];
+    }
+
+    /**
+     * Read a keymap with one line per target, each one with a comma-separated list of keys (JavaFX
+     * {@link KeyCode} names) that can include a modifier:
+     * <pre>
+     * A = A, ENTER
+     * ZL = SHIFT+L
+     * LEFT_STICK_UP = W
+     * STICK_RAMP_MS = 80
+     * </pre>
+     * Targets not listed are not bound.
+     * @param properties the keymap.
+     * @return the keymap.
+     * @throws IllegalArgumentException if a target or a key is not valid.
+     */
+    public static Keymap fromProperties(final Properties properties) {
+        final Builder builder = new Builder();
+        for (final String name : properties.stringPropertyNames()) {
+            final String value = properties.getProperty(name).trim();
+            if (name.equalsIgnoreCase("STICK_RAMP_MS")) {
+                builder.setStickRampMs(Long.parseLong(value));
+                continue;
+            }
+            final Target target = Target.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            for (final String combination : value.split(",")) {
+                final String[] keys = combination.split("\\+");
+                if (keys.length == 1) {
+                    builder.bind(target, KeyCode.valueOf(keys[0].trim()));
+                } else if (keys.length == 2) {
+                    builder.bind(target, KeyCode.valueOf(keys[0].trim()), KeyCode.valueOf(keys[1].trim()));
+                } else {
+                    throw new IllegalArgumentException("Invalid key combination: " + combination);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static final class Binding {
+
+        private final Target target;
+        @Nullable
+        private final KeyCode modifier;
+        private final KeyCode key;
+
+        private Binding(final Target target, @Nullable final KeyCode modifier, final KeyCode key) {
+            this.target = target;
+            this.modifier = modifier;
+            this.key = key;
+        }
+    }
+
+    public static final class Builder {
+
+        private final List<Binding> bindings = new ArrayList<>();
+        private long stickRampMs = DEFAULT_STICK_RAMP_MS;
+
+        public Builder bind(final Target target, final KeyCode key) {
+            bindings.add(new Binding(target, null, key));
+            return this;
+        }
+
+        public Builder bind(final Target target, final KeyCode modifier, final KeyCode key) {
+            bindings.add(new Binding(target, modifier, key));
+            return this;
+        }
+
+        public Builder setStickRampMs(final long stickRampMs) {
+            if (stickRampMs < 0) {
+                throw new IllegalArgumentException("Ramp time can't be negative");
+            }
+            this.stickRampMs = stickRampMs;
+            return this;
+        }
+
+        public Keymap build() {
+            return new Keymap(bindings, stickRampMs);
+        }
+    }
+}
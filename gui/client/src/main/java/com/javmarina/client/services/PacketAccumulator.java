@@ -0,0 +1,198 @@
+package com.javmarina.client.services;
+
+import com.javmarina.util.Packet;
+
+import java.util.Arrays;
+
+
+/**
+ * Merges several packets into a single one. For example, if there are two packets (one with A button pressed and
+ * another with the left joystick pointing up) the resulting buffer has both inputs.<br>
+ * Packets can be added and removed (for example, when a bot command starts and ends), and the accumulator keeps
+ * the counts needed to merge them, so the cost of each change doesn't depend on the number of packets.<br>
+ * Rules:<br>
+ * <ul>
+ *   <li>OR operation for buttons.</li>
+ *   <li>Joystick axes' values are accumulated in respect of the center position and later scaled.</li>
+ *   <li>DPAD directions are accumulated and the resulting direction is approximated.</li>
+ * </ul>
+ */
+public final class PacketAccumulator {
+
+    private static final double MAX_MOD = StrictMath.pow(Packet.Joystick.CENTER_INTEGER, 2);
+
+    // Number of packets with each button pressed
+    private final int[] buttonCounts = new int[Short.SIZE];
+    // Number of packets pointing to each DPAD direction (only the even ones: diagonals count as both neighbours)
+    private final int[] dpadCounts = new int[8];
+    private int leftX = 0;
+    private int leftY = 0;
+    private int rightX = 0;
+    private int rightY = 0;
+    private int size = 0;
+
+    public void add(final byte[] packet) {
+        add(packet, 1);
+    }
+
+    public void remove(final byte[] packet) {
+        remove(packet, 1);
+    }
+
+    /**
+     * Add a packet that counts as several ones. The joysticks tilt further in its direction, and its DPAD
+     * direction prevails over the others.
+     * @param packet the packet.
+     * @param weight positive weight.
+     */
+    public void add(final byte[] packet, final int weight) {
+        update(packet, weight);
+    }
+
+    /**
+     * Remove a packet added with {@link PacketAccumulator#add(byte[], int)}.
+     * @param packet the packet.
+     * @param weight the weight used to add it.
+     */
+    public void remove(final byte[] packet, final int weight) {
+        update(packet, -weight);
+    }
+
+    /**
+     * Get the number of packets added and not removed.
+     * @return the number of packets.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all the packets.
+     */
+    public void clear() {
+        Arrays.fill(buttonCounts, 0);
+        Arrays.fill(dpadCounts, 0);
+        leftX = 0;
+        leftY = 0;
+        rightX = 0;
+        rightY = 0;
+        size = 0;
+    }
+
+    private void update(final byte[] packet, final int delta) {
+        if (packet.length != 8) {
+            throw new IllegalArgumentException("Packets must be 8 bytes long");
+        }
+        // Last (empty) byte
+        if (packet[7] != 0) {
+            throw new IllegalArgumentException("Packets must be end with a 0x00 byte");
+        }
+        size += Integer.signum(delta);
+
+        // Buttons
+        int buttons = (packet[0] & 0xFF) << 8 | (packet[1] & 0xFF);
+        while (buttons != 0) {
+            buttonCounts[Integer.numberOfTrailingZeros(buttons)] += delta;
+            buttons &= buttons - 1;
+        }
+
+        // DPAD
+        final byte dpadValue = packet[2];
+        if (dpadValue != Packet.Dpad.CENTER) {
+            if (dpadValue % 2 == 0) {
+                dpadCounts[dpadValue] += delta;
+            } else {
+                dpadCounts[dpadValue-1] += delta;
+                dpadCounts[(dpadValue + 1) % 8] += delta;
+            }
+        }
+
+        // Sticks
+        leftX += delta * ((packet[3] & 0xFF) - Packet.Joystick.CENTER_INTEGER);
+        leftY += delta * ((packet[4] & 0xFF) - Packet.Joystick.CENTER_INTEGER);
+        rightX += delta * ((packet[5] & 0xFF) - Packet.Joystick.CENTER_INTEGER);
+        rightY += delta * ((packet[6] & 0xFF) - Packet.Joystick.CENTER_INTEGER);
+    }
+
+    /**
+     * Write the merged packet.
+     * @param buffer array in which the result will be saved.
+     */
+    public void writeTo(final byte[] buffer) {
+        if (buffer.length != 8) {
+            throw new IllegalArgumentException("Provided buffer must be 8 bytes long");
+        }
+
+        int buttons = 0;
+        for (int i = 0; i < buttonCounts.length; i++) {
+            if (buttonCounts[i] > 0) {
+                buttons |= 1 << i;
+            }
+        }
+        buffer[0] = (byte) (buttons >>> 8);
+        buffer[1] = (byte) buttons;
+
+        buffer[2] = mergeDpad();
+
+        // Analog sticks
+        normalizeAxis(leftX, leftY, 3, buffer);
+        normalizeAxis(rightX, rightY, 5, buffer);
+
+        buffer[7] = Packet.VENDORSPEC;
+    }
+
+    private byte mergeDpad() {
+        // Opposite directions cancel each other
+        final int vertical = Math.min(dpadCounts[0], dpadCounts[4]);
+        final int horizontal = Math.min(dpadCounts[2], dpadCounts[6]);
+        final int up = dpadCounts[0] - vertical;
+        final int down = dpadCounts[4] - vertical;
+        final int right = dpadCounts[2] - horizontal;
+        final int left = dpadCounts[6] - horizontal;
+
+        // At most one vertical and one horizontal direction are left
+        final int verticalDirection = up > 0 ? Packet.Dpad.UP : down > 0 ? Packet.Dpad.DOWN : -1;
+        final int horizontalDirection = right > 0 ? Packet.Dpad.RIGHT : left > 0 ? Packet.Dpad.LEFT : -1;
+        if (verticalDirection < 0 && horizontalDirection < 0) {
+            return Packet.Dpad.CENTER;
+        } else if (verticalDirection < 0) {
+            return (byte) horizontalDirection;
+        } else if (horizontalDirection < 0) {
+            return (byte) verticalDirection;
+        }
+        int max = maxDpad(verticalDirection, horizontalDirection);
+        max--;
+        if (max < 0) {
+            max += 8;
+        }
+        return (byte) max;
+    }
+
+    private static void normalizeAxis(final int x, final int y, final int firstIndex, final byte[] buffer) {
+        final int x2 = normalizeByte(x+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
+        final int y2 = normalizeByte(y+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
+        final double modSq = StrictMath.pow(x2, 2) + StrictMath.pow(y2, 2);
+        final double k = modSq > MAX_MOD ? MAX_MOD/modSq : 1;
+        buffer[firstIndex] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*x2) + Packet.Joystick.CENTER_INTEGER);
+        buffer[firstIndex+1] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*y2) + Packet.Joystick.CENTER_INTEGER);
+    }
+
+    private static int maxDpad(final int val1, final int val2) {
+        if (val1 == val2) {
+            return val1;
+        }
+        return Math.abs(val2-val1) > 4 ? Math.min(val1, val2) : Math.max(val1, val2);
+    }
+
+    private static int normalizeByte(final int src) {
+        return normalize(src, 255, 0);
+    }
+
+    @SuppressWarnings("SameParameterValue")
+    private static int normalize(final int src, final int max, final int min) {
+        if (src > max) {
+            return max;
+        }
+        return Math.max(src, min);
+    }
+}
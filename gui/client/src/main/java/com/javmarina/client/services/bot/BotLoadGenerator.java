@@ -0,0 +1,112 @@
+package com.javmarina.client.services.bot;
+
+import com.javmarina.util.Packet;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Synthetic chat load for {@link BotService}, without Discord. Several threads send random messages as fast as
+ * possible while another one reads packets every 5 ms, like the client does, and the message throughput of each
+ * {@link VoteMode} is printed.<br>
+ * Arguments (optional): number of chat threads and seconds per mode.
+ */
+public final class BotLoadGenerator {
+
+    private static final String[] WORDS = {"a", "b", "x", "y", "zl", "up", "left", "lup", "rright", "a2", "b0.5",
+            "up1,5", "lleft3", "hello", "lol", "gg"};
+    private static final int MESSAGES = 4096;
+    private static final int MAX_WORDS_PER_MESSAGE = 3;
+    private static final long PACKET_PERIOD_MS = 5;
+    private static final long VOTE_WINDOW_MS = 1000;
+
+    public static void main(final String... args) throws InterruptedException {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final Random random = new Random(0);
+        final String[] messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            final StringBuilder builder = new StringBuilder();
+            final int words = 1 + random.nextInt(MAX_WORDS_PER_MESSAGE);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) {
+                    builder.append(' ');
+                }
+                builder.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            messages[i] = builder.toString();
+        }
+
+        for (final VoteMode mode : VoteMode.values()) {
+            run(mode, messages, threads, seconds);
+        }
+    }
+
+    private static void run(final VoteMode mode, final String[] messages, final int threads, final int seconds)
+            throws InterruptedException {
+        final BotService service = new BotService() {
+            @Override
+            public String toString() {
+                return "Load generator";
+            }
+        };
+        service.setVoteMode(mode, VOTE_WINDOW_MS);
+        service.start();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder sent = new LongAdder();
+        final Thread[] chatThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int offset = i * (MESSAGES / threads);
+            chatThreads[i] = new Thread(() -> {
+                int index = offset;
+                while (running.get()) {
+                    service.notifyMessageReceived(messages[index++ % MESSAGES]);
+                    sent.increment();
+                }
+            }, "Chat-" + i);
+            chatThreads[i].start();
+        }
+
+        final LongAdder changes = new LongAdder();
+        final Thread packetThread = new Thread(() -> {
+            Packet last = null;
+            while (running.get()) {
+                final Packet packet = service.getControllerStatus();
+                if (packet != last) {
+                    changes.increment();
+                    last = packet;
+                }
+                try {
+                    Thread.sleep(PACKET_PERIOD_MS);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Packets");
+        packetThread.start();
+
+        // Sample the votes in the middle of each window
+        Thread.sleep(VOTE_WINDOW_MS / 2);
+        long previous = sent.sum();
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            final long total = sent.sum();
+            System.out.printf("%s, %ds: %d messages/s, votes %s%n",
+                    mode, second, total - previous, service.getCurrentVotes());
+            previous = total;
+        }
+        running.set(false);
+        for (final Thread thread : chatThreads) {
+            thread.join();
+        }
+        packetThread.join();
+        service.finish();
+
+        System.out.printf("%s: %.0f messages/s with %d threads, %d packet changes%n%n",
+                mode, sent.sum() * 1000.0 / (seconds * 1000 + VOTE_WINDOW_MS / 2), threads, changes.sum());
+    }
+}
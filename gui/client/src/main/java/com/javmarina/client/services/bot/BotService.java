@@ -1,6 +1,7 @@
 package com.javmarina.client.services.bot;
 
 import com.javmarina.client.services.ControllerService;
+import com.javmarina.client.services.PacketAccumulator;
 import com.javmarina.util.Packet;
 import static com.javmarina.util.Packet.Buttons.Code;
 import org.jetbrains.annotations.Nullable;
@@ -8,17 +9,20 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
  * Template for services that take input from a bot (Discord, Twitch, etc.). Subclasses should override
  * {@link ControllerService#onStart()} and {@link ControllerService#onFinish()} so that they can manage
  * the bot manager lifecycle. They can also provide a constructor where basic initialization happens.<br>
+ * In busy chats, commands can be voted instead of executed one by one (see {@link VoteMode}).<br>
  * See {@link DiscordService} as an example.
  */
 public abstract class BotService extends ControllerService {
@@ -26,16 +30,30 @@ public abstract class BotService extends ControllerService {
     /**
      * Default command duration when user didn't specify one.
      */
-    private static final float DEFAULT_TIME = 0.5f; // 0.5 seconds
+    static final long DEFAULT_TIME_MS = 500;
 
     /**
      * Maximum command duration. Higher values will be clipped.
      */
-    private static final float MAX_COMMAND_TIME = 4.0f; // 4 seconds
+    static final long MAX_COMMAND_TIME_MS = 4000;
 
-    private static final double MAX_MOD = StrictMath.pow(Packet.Joystick.CENTER_INTEGER, 2);
+    public static final long DEFAULT_VOTE_WINDOW_MS = 2000;
 
-    private final ArrayList<Command> currentCommands = new ArrayList<>(20) ; // 20 simultaneous commands
+    /**
+     * In {@link VoteMode#BLEND}, number of most voted commands that are executed.
+     */
+    private static final int BLEND_COMMANDS = 3;
+
+    // Commands received from the bot thread, scheduled in the next call to getPacket()
+    private final Queue<Command> receivedCommands = new ConcurrentLinkedQueue<>();
+    // Start and end of the scheduled commands, earliest first. Only accessed from getPacket()
+    private final PriorityQueue<Event> events = new PriorityQueue<>(Comparator.comparingLong(event -> event.time));
+    private final PacketAccumulator accumulator = new PacketAccumulator();
+    private Packet packet = Packet.Companion.getEMPTY_PACKET();
+    private volatile VoteMode voteMode = VoteMode.ANARCHY;
+    private volatile long voteWindowMs = DEFAULT_VOTE_WINDOW_MS;
+    // End of the current vote window. Only accessed from getPacket()
+    private long voteWindowEnd = 0;
 
     // Custom command providers
     private final ArrayList<CommandProvider> customCommandProviders = new ArrayList<>(10);
@@ -46,282 +64,240 @@ public abstract class BotService extends ControllerService {
             new DefaultDpadCommandProvider(),
             new DefaultJoystickCommandProvider()
     };
-    private static final ArrayList<CommandProvider> defaultCommandProvidersList
-            = new ArrayList<>(Arrays.asList(defaultCommandProviders));
+
+    // Names of all the commands and their votes, rebuilt when the custom providers change
+    private volatile VoteTally voteTally = new VoteTally(compileCommands());
 
     /**
-     * Add a custom command provider. Custom command providers have priority over default providers.
+     * Add a custom command provider. Custom command providers have priority over default providers, and over
+     * the custom providers added later.
      * @param commandProvider the new {@link CommandProvider}.
      */
-    void addCustomCommandProvider(final CommandProvider commandProvider) {
+    synchronized void addCustomCommandProvider(final CommandProvider commandProvider) {
         customCommandProviders.add(commandProvider);
+        voteTally = new VoteTally(compileCommands());
     }
 
     /**
      * Remove all custom command providers and leave only the default ones.
      */
-    void removeAllCustomCommandProviders() {
+    synchronized void removeAllCustomCommandProviders() {
         customCommandProviders.clear();
+        voteTally = new VoteTally(compileCommands());
     }
 
-    /**
-     * Subclasses must call this method when they receive a new message (e.g. via chat).
-     * @param text received string (can be null or empty).
-     */
-    void notifyMessageReceived(final String text) {
-        if (text == null || text.isEmpty()) {
-            return;
-        }
-        final String[] commands = text.split(" ", -1);
-        final HashMap<String, Float> extractedCommands = new HashMap<>(commands.length);
-        for (final String command : commands) {
-            final char[] chars = command.toCharArray();
-            final int size = command.length();
-            int i;
-            for (i = 0; i < size; i++) {
-                if (!Character.isLetter(chars[i])) {
-                    break;
-                }
-            }
-            i--; // i is last index of an alphanumeric character
-            if (i >= 0) {
-                // Letters found
-                final char[] commandArray = new char[i+1];
-                System.arraycopy(chars, 0, commandArray, 0, i+1);
-                final String commandString = new String(commandArray).toLowerCase();
-
-                // Extract time
-                int m;
-                for (m = i+1; m < size; m++) {
-                    if (!(Character.isDigit(chars[m]) || chars[m] == '.' || chars[m] == ',')) {
-                        break;
-                    }
-                }
-                m--;
-                float time;
-                if (m >= i+1) {
-                    // Number found
-                    final char[] number = new char[m-i];
-                    System.arraycopy(chars, i+1, number, 0, m-i);
-                    time = Float.parseFloat(new String(number));
-                    if (time > MAX_COMMAND_TIME) {
-                        time = MAX_COMMAND_TIME;
-                    }
-                } else {
-                    time = DEFAULT_TIME;
-                }
-                extractedCommands.put(commandString, time);
+    private CommandTrie compileCommands() {
+        final CommandTrie trie = new CommandTrie();
+        // First provider wins, so custom providers go first
+        for (final CommandProvider commandProvider : customCommandProviders) {
+            for (final String name : commandProvider.getCommandNames()) {
+                trie.add(name, commandProvider);
             }
         }
-        if (!extractedCommands.isEmpty()) {
-            // Convert Map<String, Float> to List<Command>
-            final List<Command> newCommands = extractedCommands.entrySet().stream()
-                    .map(entry -> createCommandList(entry.getKey(), (long) (entry.getValue() * 1000)))
-                    .filter(Objects::nonNull)
-                    .flatMap(List::stream)
-                    .collect(Collectors.toList());
-            // Add all commands at the same time, so that buffer is recomputed only once
-            currentCommands.addAll(newCommands);
+        for (final CommandProvider commandProvider : defaultCommandProviders) {
+            for (final String name : commandProvider.getCommandNames()) {
+                trie.add(name, commandProvider);
+            }
         }
+        return trie;
     }
 
-    @Nullable
-    private List<Command> createCommandList(final String message, final long millis) {
-        final byte[] emptyBuffer = new byte[8];
-        System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, emptyBuffer, 0, 8);
-        final String text = message.toLowerCase();
-
-        // First check if custom command providers have the specified command
-        final Optional<List<Command>> optional = customCommandProviders.stream()
-                .map(commandProvider -> commandProvider.createCommandList(emptyBuffer, text, millis))
-                .filter(Objects::nonNull)
-                .findFirst();
-
-        //noinspection OptionalIsPresent
-        if (optional.isPresent()) {
-            return optional.get();
+    /**
+     * Set how chat messages are turned into controller input.
+     * @param voteMode the mode.
+     * @param voteWindowMs duration of each vote window, if voting.
+     */
+    public void setVoteMode(final VoteMode voteMode, final long voteWindowMs) {
+        if (voteWindowMs <= 0) {
+            throw new IllegalArgumentException("Vote window must be positive");
         }
+        this.voteWindowMs = voteWindowMs;
+        this.voteMode = voteMode;
+        voteTally.clear();
+    }
 
-        // At this point, no custom command provider had the specified command
-        // Check with default providers
-        return defaultCommandProvidersList.stream()
-                .map(commandProvider -> commandProvider.createCommandList(emptyBuffer, text, millis))
-                .filter(Objects::nonNull)
-                .findFirst()
-                .orElse(null);
+    public VoteMode getVoteMode() {
+        return voteMode;
     }
 
     /**
-     * Merge all commands into a single one. For example, if there are two packets (one with A button
-     * pressed and another with the left joystick pointing up) the resulting buffer has both commands.<br>
-     * Rules:<br>
-     * <ul>
-     *   <li>OR operation for buttons.</li>
-     *   <li>Joystick axes' values are accumulated in respect of the center position and later scaled.</li>
-     *   <li>DPAD directions are accumulated and the resulting direction is approximated.</li>
-     * </ul>
-     * @param packets list of packets to merge. Equivalent to list of active commands.
-     * @param buffer array in which the result will be saved.
+     * Get the votes of the current window, if voting.
+     * @return the voted commands, most voted first.
      */
-    private static void packetOr(final List<byte[]> packets, final byte[] buffer) {
-        if (buffer.length != 8) {
-            throw new IllegalArgumentException("Provided buffer must be 8 bytes long");
+    public Map<String, Integer> getCurrentVotes() {
+        return voteTally.getVotes();
+    }
+
+    /**
+     * Subclasses must call this method when they receive a new message (e.g. via chat). The message is a list
+     * of commands separated by spaces, each one optionally followed by its duration in seconds (e.g. "a1.5").
+     * @param text received string (can be null or empty).
+     */
+    void notifyMessageReceived(final String text) {
+        if (text == null || text.isEmpty()) {
+            return;
         }
-        System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, buffer, 0, 8);
-
-        int leftx = 0;
-        int lefty = 0;
-        int rightx = 0;
-        int righty = 0;
-        final int[] dpad = new int[8];
-        for (final byte[] packet : packets) {
-            if (packet.length != 8) {
-                throw new IllegalArgumentException("Packets must be 8 bytes long");
+        final VoteTally tally = voteTally;
+        final CommandTrie trie = tally.getTrie();
+        final boolean voting = voteMode != VoteMode.ANARCHY;
+        // If a command is repeated, the last duration is used
+        final Map<CommandTrie.Node, Long> extractedCommands = voting ? Collections.emptyMap() : new HashMap<>();
+        final int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = text.indexOf(' ', start);
+            if (end < 0) {
+                end = length;
             }
-            // Last (empty) byte
-            if (packet[7] != 0) {
-                throw new IllegalArgumentException("Packets must be end with a 0x00 byte");
+            int nameEnd = start;
+            while (nameEnd < end && CommandTrie.isNameChar(text.charAt(nameEnd))) {
+                nameEnd++;
             }
-
-            // Buttons
-            buffer[0] |= packet[0];
-            buffer[1] |= packet[1];
-
-            // DPAD
-            final byte dpadValue = packet[2];
-            if (dpadValue != Packet.Dpad.CENTER) {
-                if (dpadValue % 2 == 0) {
-                    dpad[dpadValue]++;
-                } else {
-                    dpad[dpadValue-1]++;
-                    int up = dpadValue + 1;
-                    if (up == 8) {
-                        up = 0;
-                    }
-                    dpad[up]++;
+            if (nameEnd > start) {
+                final CommandTrie.Node node = trie.find(text, start, nameEnd);
+                if (node != null && voting) {
+                    // Each command in the message is a vote
+                    tally.vote(node, parseDuration(text, nameEnd, end));
+                } else if (node != null) {
+                    extractedCommands.put(node, parseDuration(text, nameEnd, end));
                 }
             }
-
-            // Sticks
-            // x and y come in binary format. Use inverted two's complement
-            final int lx = packet[3] < 0 ? packet[3] + 256 : packet[3];
-            final int ly = packet[4] < 0 ? packet[4] + 256 : packet[4];
-            final int rx = packet[5] < 0 ? packet[5] + 256 : packet[5];
-            final int ry = packet[6] < 0 ? packet[6] + 256 : packet[6];
-            leftx += (lx - Packet.Joystick.CENTER_INTEGER);
-            lefty += (ly - Packet.Joystick.CENTER_INTEGER);
-            rightx += (rx - Packet.Joystick.CENTER_INTEGER);
-            righty += (ry - Packet.Joystick.CENTER_INTEGER);
+            start = end + 1;
         }
 
-        assert dpad[1] == 0;
-        assert dpad[3] == 0;
-        assert dpad[5] == 0;
-        assert dpad[7] == 0;
-        while (dpad[0] > 0 && dpad[4] > 0) {
-            dpad[0]--;
-            dpad[4]--;
-        }
-        while (dpad[2] > 0 && dpad[6] > 0) {
-            dpad[2]--;
-            dpad[6]--;
-        }
-        final int[] occurrences = new int[2];
-        int m = 0;
-        for (int i = 0; i <= 6; i += 2) {
-            if (dpad[i] > 0) {
-                dpad[i] = 1;
-                occurrences[m] = i;
-                m++;
+        if (!extractedCommands.isEmpty()) {
+            final List<Command> newCommands = new ArrayList<>(extractedCommands.size());
+            for (final Map.Entry<CommandTrie.Node, Long> entry : extractedCommands.entrySet()) {
+                final CommandTrie.Node node = entry.getKey();
+                final byte[] emptyBuffer = Packet.Companion.getEMPTY_PACKET_BUFFER().clone();
+                final List<Command> commands = node.provider.createCommandList(emptyBuffer, node.name, entry.getValue());
+                if (commands != null) {
+                    newCommands.addAll(commands);
+                }
             }
+            receivedCommands.addAll(newCommands);
         }
-        switch (m) {
-            case 0:
-                buffer[2] = Packet.Dpad.CENTER;
-                break;
-            case 1:
-                buffer[2] = (byte) occurrences[0];
-                break;
-            case 2:
-                int max = maxDpad(occurrences[0], occurrences[1]);
-                max--;
-                if (max < 0) {
-                    max += 8;
+    }
+
+    /**
+     * Parse the duration after a command name, in seconds. Both '.' and ',' are accepted as decimal separator,
+     * and parsing stops at the first character that can't be part of the number.
+     * @return the duration in milliseconds, or the default one if there is no number.
+     */
+    static long parseDuration(final String text, final int start, final int end) {
+        long seconds = 0;
+        long fraction = 0;
+        long divisor = 1;
+        boolean separator = false;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+                if (!separator) {
+                    seconds = Math.min(seconds * 10 + (c - '0'), MAX_COMMAND_TIME_MS);
+                } else if (divisor < 1000) {
+                    fraction = fraction * 10 + (c - '0');
+                    divisor *= 10;
                 }
-                buffer[2] = (byte) max;
+            } else if ((c == '.' || c == ',') && !separator) {
+                separator = true;
+            } else {
                 break;
+            }
         }
-
-        // Analog sticks
-        normalizeAxis(leftx, lefty, 3, buffer);
-        normalizeAxis(rightx, righty, 5, buffer);
-
-        assert buffer[7] != 0;
+        if (!digits) {
+            return DEFAULT_TIME_MS;
+        }
+        return Math.min(seconds * 1000 + fraction * 1000 / divisor, MAX_COMMAND_TIME_MS);
     }
 
-    private static void normalizeAxis(final int x, final int y, final int firstIndex, final byte[] buffer) {
-        final int x2 = normalizeByte(x+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
-        final int y2 = normalizeByte(y+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
-        final double modSq = StrictMath.pow(x2, 2) + StrictMath.pow(y2, 2);
-        final double k = modSq > MAX_MOD ? MAX_MOD/modSq : 1;
-        buffer[firstIndex] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*x2) + Packet.Joystick.CENTER_INTEGER);
-        buffer[firstIndex+1] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*y2) + Packet.Joystick.CENTER_INTEGER);
-    }
+    @Override
+    public Packet getPacket() {
+        final long now = System.currentTimeMillis();
+
+        final VoteMode mode = voteMode;
+        if (mode == VoteMode.ANARCHY) {
+            voteWindowEnd = 0;
+        } else if (now >= voteWindowEnd) {
+            if (voteWindowEnd != 0) {
+                closeVoteWindow(mode);
+            }
+            voteWindowEnd = now + voteWindowMs;
+        }
 
-    private static int maxDpad(final int val1, final int val2) {
-        if (val1 == val2) {
-            return val1;
+        // Schedule the commands received since the last packet
+        Command command;
+        while ((command = receivedCommands.poll()) != null) {
+            events.add(new Event(command.getStartTime(), command.packet, command.getWeight(), true));
+            events.add(new Event(command.getEndTime(), command.packet, command.getWeight(), false));
         }
-        return Math.abs(val2-val1) > 4 ? Math.min(val1, val2) : Math.max(val1, val2);
-    }
 
-    private static int normalizeByte(final int src) {
-        return normalize(src, 255, 0);
-    }
+        // Only the commands that start or end now change the buffer
+        boolean changed = false;
+        while (!events.isEmpty() && events.peek().time <= now) {
+            final Event event = events.poll();
+            if (event.start) {
+                accumulator.add(event.packet, event.weight);
+            } else {
+                accumulator.remove(event.packet, event.weight);
+            }
+            changed = true;
+        }
 
-    @SuppressWarnings("SameParameterValue")
-    private static int normalize(final int src, final int max, final int min) {
-        if (src > max) {
-            return max;
+        if (changed) {
+            final byte[] buffer = new byte[8];
+            accumulator.writeTo(buffer);
+            packet = new Packet(buffer);
         }
-        return Math.max(src, min);
+        return packet;
     }
 
-    private int oldSize = 0;
-    private static final byte[] buffer = new byte[8];
-    static {
-        System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, buffer, 0, 8);
+    /**
+     * Execute the winner of the vote window that just ended, or the most voted commands if blending.
+     */
+    private void closeVoteWindow(final VoteMode mode) {
+        final VoteTally.Result result = voteTally.close();
+        if (mode == VoteMode.DEMOCRACY) {
+            final int[] winner = result.getMostVoted(1);
+            if (winner.length > 0) {
+                scheduleVotedCommand(result, winner[0], 1);
+            }
+        } else {
+            for (final int index : result.getMostVoted(BLEND_COMMANDS)) {
+                scheduleVotedCommand(result, index, result.votes[index]);
+            }
+        }
     }
 
-    @Override
-    public Packet getPacket() {
-        buffer[7] = Packet.VENDORSPEC;
-
-        // Remove expired commands
-        boolean changed = currentCommands.removeIf(Command::hasExpired);
-
-        // Select only running commands and save them in 'runningCommands'
-        final List<Command> runningCommands = currentCommands.parallelStream()
-                .filter(Command::isRunning)
-                .collect(Collectors.toList());
-
-        if (!changed) {
-            // No commands have expired
-            if (oldSize != runningCommands.size()) {
-                changed = true;
+    private void scheduleVotedCommand(final VoteTally.Result result, final int index, final int weight) {
+        final CommandTrie.Node node = result.getCommand(index);
+        final byte[] emptyBuffer = Packet.Companion.getEMPTY_PACKET_BUFFER().clone();
+        final List<Command> commands
+                = node.provider.createCommandList(emptyBuffer, node.name, result.averageDurations[index]);
+        if (commands != null) {
+            for (final Command command : commands) {
+                receivedCommands.add(command.withWeight(weight));
             }
         }
+    }
 
-        if (changed) {
-            // Have to recompute buffer
-            System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, buffer, 0, 8);
-            oldSize = runningCommands.size();
-            packetOr(
-                    runningCommands.stream().map(command -> command.packet).collect(Collectors.toList()),
-                    buffer
-            );
+    /**
+     * Start or end of a command.
+     */
+    private static final class Event {
+
+        private final long time;
+        private final byte[] packet;
+        private final int weight;
+        private final boolean start;
+
+        private Event(final long time, final byte[] packet, final int weight, final boolean start) {
+            this.time = time;
+            this.packet = packet;
+            this.weight = weight;
+            this.start = start;
         }
-        return new Packet(buffer);
     }
 
     /**
@@ -331,7 +307,7 @@ public abstract class BotService extends ControllerService {
 
         private static final String[] buttons = {"a", "b", "x", "y", "l", "r", "zl",
                 "zr", "minus", "plus", "home", "capture", "lstick", "rstick"};
-        private static final ArrayList<String> buttonsList = new ArrayList<>(Arrays.asList(buttons));
+        private static final List<String> buttonsList = Arrays.asList(buttons);
         private static final int[] buttonCodes = {
                 Code.A.getValue(),
                 Code.B.getValue(),
@@ -349,6 +325,11 @@ public abstract class BotService extends ControllerService {
                 Code.RCLICK.getValue()
         };
 
+        @Override
+        public List<String> getCommandNames() {
+            return buttonsList;
+        }
+
         @Nullable
         @Override
         public List<Command> createCommandList(final byte[] emptyBuffer, final String text, final long duration) {
@@ -370,11 +351,16 @@ public abstract class BotService extends ControllerService {
     private static class DefaultDpadCommandProvider implements CommandProvider {
 
         private static final String[] dpad = {"up", "upright", "right", "downright", "down", "downleft", "left", "upleft"};
-        private static final ArrayList<String> dpadList = new ArrayList<>(Arrays.asList(dpad));
+        private static final List<String> dpadList = Arrays.asList(dpad);
         private static final byte[] dpadCodes = {Packet.Dpad.UP, Packet.Dpad.UP_RIGHT, Packet.Dpad.RIGHT,
                 Packet.Dpad.DOWN_RIGHT, Packet.Dpad.DOWN, Packet.Dpad.DOWN_LEFT, Packet.Dpad.LEFT,
                 Packet.Dpad.UP_LEFT};
 
+        @Override
+        public List<String> getCommandNames() {
+            return dpadList;
+        }
+
         @Nullable
         @Override
         public List<Command> createCommandList(final byte[] emptyBuffer, final String text, final long duration) {
@@ -394,7 +380,7 @@ public abstract class BotService extends ControllerService {
     private static class DefaultJoystickCommandProvider implements CommandProvider {
 
         private static final String[] joysticks = {"lup", "lright", "ldown", "lleft", "rup", "rright", "rdown", "rleft"};
-        private static final ArrayList<String> joysticksList = new ArrayList<>(Arrays.asList(joysticks));
+        private static final List<String> joysticksList = Arrays.asList(joysticks);
         private static final int[][] joystickValues = {
                 //LX    LY    RX    RY
                 {0x80, 0x00, 0x80, 0x80},
@@ -408,6 +394,11 @@ public abstract class BotService extends ControllerService {
                 // 0x00: min, 0x80: center, 0xFF: max
         };
 
+        @Override
+        public List<String> getCommandNames() {
+            return joysticksList;
+        }
+
         @Nullable
         @Override
         public List<Command> createCommandList(final byte[] emptyBuffer, final String text, final long duration) {
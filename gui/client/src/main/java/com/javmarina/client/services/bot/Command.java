@@ -6,6 +6,8 @@ public final class Command {
     public final byte[] packet;
     private final long startTime;
     private final long endTime;
+    // Number of times the packet is counted when merged with other commands (see PacketAccumulator)
+    private final int weight;
 
     public Command(final byte[] packet, final long duration) {
         this(packet, duration, 0);
@@ -15,6 +17,38 @@ public final class Command {
         this.packet = packet;
         this.startTime = System.currentTimeMillis() + startDelay;
         this.endTime = this.startTime + duration;
+        this.weight = 1;
+    }
+
+    private Command(final Command command, final int weight) {
+        this.packet = command.packet;
+        this.startTime = command.startTime;
+        this.endTime = command.endTime;
+        this.weight = weight;
+    }
+
+    /**
+     * Get a copy of this command that counts as several ones when merged with other commands.
+     * @param weight positive weight.
+     * @return the weighted command.
+     */
+    Command withWeight(final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+        return new Command(this, weight);
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
     }
 
     public boolean hasExpired() {
@@ -9,10 +9,17 @@ import java.util.List;
  * Provide a set of bot commands.
  */
 public interface CommandProvider {
+    /**
+     * Get the names of all the commands of this provider, in lowercase. They can only contain letters and
+     * underscores, and they are only read when the provider is registered.
+     * @return the command names.
+     */
+    List<String> getCommandNames();
+
     /**
      * Analyze the received command (given by text and duration) and return a list of {@link Command}
      * objects (or null if no match).
-     * @param emptyBuffer buffer with no commands (centered joysticks, no button pressed) that can be modified to createç
+     * @param emptyBuffer buffer with no commands (centered joysticks, no button pressed) that can be modified to create
      *                    the {@link Command} instances.
      * @param text the received text command (always in lowercase).
      * @param duration user specified duration in milliseconds. Can be ignored if a command has a fixed duration.
@@ -0,0 +1,116 @@
+package com.javmarina.client.services.bot;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Maps command names to the {@link CommandProvider} that handles them, so that each chat token is resolved with
+ * a single walk over its characters. Names are matched ignoring case, and only contain letters and underscores
+ * (see {@link CommandTrie#isNameChar(char)}).
+ */
+final class CommandTrie {
+
+    private final Node root = new Node();
+    // Registered commands, by index
+    private final List<Node> commands = new ArrayList<>();
+
+    static boolean isNameChar(final char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    /**
+     * Register a command name. If the name is already registered, the first provider keeps it.
+     * @param name the command name.
+     * @param provider the provider that handles it.
+     */
+    void add(final String name, final CommandProvider provider) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Command names can't be empty");
+        }
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!isNameChar(c)) {
+                throw new IllegalArgumentException("Invalid command name: " + name);
+            }
+            node = node.getOrAddChild(Character.toLowerCase(c));
+        }
+        if (node.provider == null) {
+            node.provider = provider;
+            node.name = name.toLowerCase();
+            node.index = commands.size();
+            commands.add(node);
+        }
+    }
+
+    /**
+     * Get the number of registered commands. Their indices go from 0 to this number (excluded).
+     * @return the number of commands.
+     */
+    int size() {
+        return commands.size();
+    }
+
+    Node get(final int index) {
+        return commands.get(index);
+    }
+
+    /**
+     * Find the command in a range of characters.
+     * @param text the text.
+     * @param start first character of the command name.
+     * @param end index after the last character of the command name.
+     * @return the node of the command, or {@code null} if there is no command with that name.
+     */
+    @Nullable
+    Node find(final CharSequence text, final int start, final int end) {
+        Node node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.getChild(Character.toLowerCase(text.charAt(i)));
+        }
+        return node == null || node.provider == null ? null : node;
+    }
+
+    static final class Node {
+
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        @Nullable
+        CommandProvider provider;
+        // Lowercase name, as passed to the provider
+        @Nullable
+        String name;
+        // Index of the command (see CommandTrie#size())
+        int index = -1;
+
+        @Nullable
+        private Node getChild(final char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAddChild(final char c) {
+            final Node child = getChild(c);
+            if (child != null) {
+                return child;
+            }
+            final int size = labels.length;
+            final char[] newLabels = new char[size + 1];
+            final Node[] newChildren = new Node[size + 1];
+            System.arraycopy(labels, 0, newLabels, 0, size);
+            System.arraycopy(children, 0, newChildren, 0, size);
+            newLabels[size] = c;
+            newChildren[size] = new Node();
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[size];
+        }
+    }
+}
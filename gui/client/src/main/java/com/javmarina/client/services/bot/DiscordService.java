@@ -5,78 +5,316 @@ import discord4j.core.DiscordClient;
 import discord4j.core.DiscordClientBuilder;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.object.entity.ApplicationInfo;
 import discord4j.core.object.entity.GuildMessageChannel;
+import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.Message;
-import discord4j.core.object.entity.MessageChannel;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.util.Snowflake;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Subclass of {@link BotService} that takes input from a Discord bot.
+ * Subclass of {@link BotService} that takes input from a Discord bot.<br>
+ * Messages are processed in a single thread, separate from the Discord event threads, and nothing blocks on the
+ * way. Messages waiting to be processed are bounded (the oldest ones are dropped), each user can only send a few
+ * messages per second (token bucket), and repeated messages from the same user are collapsed, so a spammer can't
+ * monopolise the controller. Replies are sent in the background, and only a few at a time (the rest are
+ * dropped), so a slow Discord API never delays the input.<br>
+ * Only the owner of the bot application, and the members with the moderator role (if configured), can change
+ * the vote mode.
  */
 public class DiscordService extends BotService {
 
+    // Messages waiting to be processed, the oldest ones are dropped after this
+    private static final int MAX_QUEUED_MESSAGES = 1024;
+    private static final int PREFETCH = 32;
+    // Token bucket of each user
+    private static final double USER_BURST = 5;
+    private static final double USER_MESSAGES_PER_SECOND = 2;
+    private static final long DUPLICATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_TRACKED_USERS = 10000;
+    // Replies being sent, the new ones are dropped after this
+    private static final int MAX_PENDING_REPLIES = 8;
+
     private final DiscordClient client;
-    private MessageChannel channel;
+    @Nullable
+    private final Snowflake moderatorRoleId;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong rateLimitedMessages = new AtomicLong();
+    private final AtomicLong collapsedMessages = new AtomicLong();
+    private final AtomicInteger pendingReplies = new AtomicInteger();
+    private final AtomicLong droppedReplies = new AtomicLong();
+    // Only accessed from the processing thread. In access order, so the user idle for the longest time is
+    // forgotten first
+    private final Map<Long, UserState> users = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, UserState> eldest) {
+            return size() > MAX_TRACKED_USERS;
+        }
+    };
+    @Nullable
+    private volatile Snowflake channelId;
+    // Null until logged in
+    @Nullable
+    private volatile Snowflake ownerId;
+    private Scheduler scheduler;
+    private Disposable subscription;
 
     public DiscordService(@NotNull final String token) {
+        this(token, null);
+    }
+
+    /**
+     * Create the service.
+     * @param token token of the bot.
+     * @param moderatorRoleId role whose members can change the vote mode, besides the owner of the bot
+     *                        application, or {@code null} to only allow the owner.
+     */
+    public DiscordService(@NotNull final String token, @Nullable final Snowflake moderatorRoleId) {
+        this.moderatorRoleId = moderatorRoleId;
         client = DiscordClientBuilder.create(token).build();
         client.getEventDispatcher().on(ReadyEvent.class)
-                .subscribe(ready -> System.out.println("Logged in as " + ready.getSelf().getUsername()));
+                .doOnNext(ready -> System.out.println("Logged in as " + ready.getSelf().getUsername()))
+                .flatMap(ready -> client.getApplicationInfo())
+                .map(ApplicationInfo::getOwnerId)
+                .subscribe(id -> ownerId = id, Throwable::printStackTrace);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        client.getEventDispatcher().on(MessageCreateEvent.class)
-                // subscribe is like block, in that it will *request* for action
-                // to be done, but instead of blocking the thread, waiting for it
-                // to finish, it will just execute the results asynchronously.
-                .subscribe(event -> {
-                    final Message message = event.getMessage();
-                    notifyMessageReceived(message.getContent().orElse(null));
-
-                    channel = message.getChannel().block();
-                    if (message.getContent().map(s -> "ping".equals(s.toLowerCase(Locale.getDefault()))).orElse(false)) {
-                        channel.createMessage("Pong!").block();
-                    }
-                    if (message.getContent().map(s -> "!clean".equals(s.toLowerCase(Locale.getDefault()))).orElse(false)) {
-                        removeChannelMessages(channel);
-                    }
-                });
+        scheduler = Schedulers.newSingle("DiscordService", true);
+        subscription = client.getEventDispatcher().on(MessageCreateEvent.class)
+                // Ignore bots, including the replies of this one
+                .filter(event -> event.getMessage().getAuthor().map(user -> !user.isBot()).orElse(false))
+                .doOnNext(event -> queueDepth.incrementAndGet())
+                .onBackpressureBuffer(MAX_QUEUED_MESSAGES, this::onMessageDropped, BufferOverflowStrategy.DROP_OLDEST)
+                .publishOn(scheduler, PREFETCH)
+                .doOnNext(event -> queueDepth.decrementAndGet())
+                .map(this::processMessage)
+                .onErrorContinue((error, message) -> error.printStackTrace())
+                .subscribe(this::sendReply);
         new Thread(() -> client.login().block()).start();
     }
 
     @Override
     public void onFinish() {
         super.onFinish();
-        removeChannelMessages(channel);
-        client.logout().block();
+        if (subscription != null) {
+            subscription.dispose();
+        }
+        if (scheduler != null) {
+            scheduler.dispose();
+        }
+        // Not called from a Discord thread, so it can wait
+        removeChannelMessages(channelId).then(client.logout()).block();
     }
 
     /**
-     * Attempt to remove most recent messages in the channel. Up to 200 messages can be removed (it's
-     * an API limitation).
-     * @param messageChannel the text channel whose messages are going to be removed.
+     * Get the number of messages waiting to be processed.
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Get the number of messages dropped because too many were waiting.
+     * @return the number of dropped messages.
      */
-    private void removeChannelMessages(@Nullable final MessageChannel messageChannel) {
-        if (messageChannel == null) {
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Get the number of messages ignored because their authors sent too many.
+     * @return the number of rate limited messages.
+     */
+    public long getRateLimitedMessages() {
+        return rateLimitedMessages.get();
+    }
+
+    /**
+     * Get the number of messages ignored because their authors had just sent the same one.
+     * @return the number of collapsed messages.
+     */
+    public long getCollapsedMessages() {
+        return collapsedMessages.get();
+    }
+
+    /**
+     * Get the number of replies not sent because too many were being sent.
+     * @return the number of dropped replies.
+     */
+    public long getDroppedReplies() {
+        return droppedReplies.get();
+    }
+
+    private void onMessageDropped(final MessageCreateEvent event) {
+        queueDepth.decrementAndGet();
+        droppedMessages.incrementAndGet();
+    }
+
+    /**
+     * Send a reply without waiting for it, unless too many are being sent.
+     */
+    private void sendReply(final Mono<Void> reply) {
+        if (pendingReplies.incrementAndGet() > MAX_PENDING_REPLIES) {
+            pendingReplies.decrementAndGet();
+            droppedReplies.incrementAndGet();
             return;
         }
-        final GuildMessageChannel guildMessageChannel
-                = client.getChannelById(messageChannel.getId()).ofType(GuildMessageChannel.class).block();
-        if (guildMessageChannel != null) {
-            guildMessageChannel.getLastMessageId().ifPresent(lastMessageId -> guildMessageChannel.bulkDelete(
-                    guildMessageChannel.getMessagesBefore(lastMessageId).map(Message::getId)
-            ).subscribe(System.out::println));
+        reply.doFinally(signal -> pendingReplies.decrementAndGet())
+                .subscribe(null, Throwable::printStackTrace);
+    }
+
+    /**
+     * Called in the processing thread for each message. The message has been applied when this returns.
+     * @return the replies to the message, if any, not sent yet.
+     */
+    private Mono<Void> processMessage(final MessageCreateEvent event) {
+        final Message message = event.getMessage();
+        final String content = message.getContent().orElse(null);
+        final User author = message.getAuthor().orElse(null);
+        if (content == null || author == null || !accept(author.getId().asLong(), content)) {
+            return Mono.empty();
+        }
+        channelId = message.getChannelId();
+        notifyMessageReceived(content);
+
+        final String reply;
+        switch (content.toLowerCase(Locale.getDefault())) {
+            case "ping":
+                reply = "Pong!";
+                break;
+            case "!clean":
+                return removeChannelMessages(message.getChannelId());
+            case "!anarchy":
+                if (canChangeVoteMode(author, event.getMember().orElse(null))) {
+                    setVoteMode(VoteMode.ANARCHY, DEFAULT_VOTE_WINDOW_MS);
+                }
+                return Mono.empty();
+            case "!democracy":
+                if (canChangeVoteMode(author, event.getMember().orElse(null))) {
+                    setVoteMode(VoteMode.DEMOCRACY, DEFAULT_VOTE_WINDOW_MS);
+                }
+                return Mono.empty();
+            case "!blend":
+                if (canChangeVoteMode(author, event.getMember().orElse(null))) {
+                    setVoteMode(VoteMode.BLEND, DEFAULT_VOTE_WINDOW_MS);
+                }
+                return Mono.empty();
+            case "!votes":
+                reply = getVoteMode() + ": " + getCurrentVotes();
+                break;
+            case "!botstats":
+                reply = String.format(Locale.ROOT,
+                        "Queue: %d, dropped: %d, rate limited: %d, duplicates: %d, dropped replies: %d",
+                        getQueueDepth(), getDroppedMessages(), getRateLimitedMessages(), getCollapsedMessages(),
+                        getDroppedReplies());
+                break;
+            default:
+                return Mono.empty();
+        }
+        return message.getChannel()
+                .flatMap(channel -> channel.createMessage(reply))
+                .then();
+    }
+
+    /**
+     * Check whether a user is the owner of the bot application or has the moderator role.
+     * @param member the author as a member of the guild, or null if the message wasn't sent in a guild.
+     */
+    private boolean canChangeVoteMode(final User author, @Nullable final Member member) {
+        if (author.getId().equals(ownerId)) {
+            return true;
+        }
+        return moderatorRoleId != null && member != null && member.getRoleIds().contains(moderatorRoleId);
+    }
+
+    /**
+     * Apply the rate limit and collapse duplicates.
+     * @return true if the message must be processed.
+     */
+    private boolean accept(final long userId, final String content) {
+        final long now = System.nanoTime();
+        final UserState state = users.computeIfAbsent(userId, id -> new UserState(now));
+        if (content.equals(state.lastContent) && now - state.lastMessageNs < DUPLICATE_WINDOW_NS) {
+            collapsedMessages.incrementAndGet();
+            return false;
+        }
+        if (!state.tryConsume(now)) {
+            rateLimitedMessages.incrementAndGet();
+            return false;
         }
+        state.lastContent = content;
+        state.lastMessageNs = now;
+        return true;
+    }
+
+    /**
+     * Attempt to remove most recent messages in the channel. Up to 200 messages can be removed (it's
+     * an API limitation).
+     * @param messageChannelId the text channel whose messages are going to be removed.
+     */
+    private Mono<Void> removeChannelMessages(@Nullable final Snowflake messageChannelId) {
+        if (messageChannelId == null) {
+            return Mono.empty();
+        }
+        return client.getChannelById(messageChannelId)
+                .ofType(GuildMessageChannel.class)
+                .flatMap(guildMessageChannel -> guildMessageChannel.getLastMessageId()
+                        .map(lastMessageId -> guildMessageChannel.bulkDelete(
+                                guildMessageChannel.getMessagesBefore(lastMessageId).map(Message::getId)
+                        ).doOnNext(System.out::println).then())
+                        .orElse(Mono.empty()));
     }
 
     @Override
     public String toString() {
         return Client.RESOURCE_BUNDLE.getString("client.discord");
     }
+
+    private static final class UserState {
+
+        private double tokens = USER_BURST;
+        private long lastRefillNs;
+        @Nullable
+        private String lastContent;
+        private long lastMessageNs;
+
+        private UserState(final long now) {
+            this.lastRefillNs = now;
+        }
+
+        private double getTokens(final long now) {
+            final double refill = (now - lastRefillNs) / 1e9 * USER_MESSAGES_PER_SECOND;
+            return Math.min(USER_BURST, tokens + refill);
+        }
+
+        private boolean tryConsume(final long now) {
+            tokens = getTokens(now);
+            lastRefillNs = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
 }
@@ -10,6 +10,13 @@ import java.util.List;
 
 public class ExampleCommandProvider implements CommandProvider {
 
+    private static final List<String> COMMAND_NAMES = List.of("forward", "shield", "next_weapon");
+
+    @Override
+    public List<String> getCommandNames() {
+        return COMMAND_NAMES;
+    }
+
     @Nullable
     @Override
     public List<Command> createCommandList(final byte[] emptyBuffer, final String text, final long duration) {
@@ -0,0 +1,124 @@
+package com.javmarina.client.services.bot;
+
+import com.javmarina.util.Packet;
+import com.javmarina.webrtc.latency.LatencyRecorder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * End-to-end measurements of {@link IrcService} against a {@link LocalIrcServer}, without network:
+ * <ul>
+ *   <li>Command latency: time from a chat message being sent to the packet with its command being emitted.</li>
+ *   <li>Ingestion throughput: chat messages per second parsed by the service.</li>
+ * </ul>
+ * Arguments (optional): number of latency probes and seconds of throughput test.
+ */
+public final class IrcLoadGenerator {
+
+    private static final String CHANNEL = "#test";
+    private static final String[] WORDS = {"a0.1", "b0.1", "x0.1", "y0.1", "up0.1", "left0.1", "lup0.1",
+            "rright0.1", "hello", "lol", "gg"};
+    private static final int BATCH_SIZE = 256;
+    // Messages sent and not yet received by the service
+    private static final int MAX_IN_FLIGHT = 16 * 1024;
+    private static final long POLL_PERIOD_NS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    public static void main(final String... args) throws IOException, InterruptedException {
+        final int probes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        try (final LocalIrcServer server = new LocalIrcServer()) {
+            server.start();
+            final IrcService service = new IrcService("127.0.0.1", server.getPort(), "bot", null, CHANNEL);
+            service.start();
+            // Wait until the bot has joined: a message gets through
+            final long deadline = System.nanoTime() + TIMEOUT_NS;
+            while (service.getReceivedMessages() == 0) {
+                if (System.nanoTime() > deadline) {
+                    System.out.println("The bot didn't join the channel");
+                    service.finish();
+                    return;
+                }
+                server.sendMessage(CHANNEL, "user", "hello");
+                Thread.sleep(10);
+            }
+
+            measureLatency(server, service, probes);
+            measureThroughput(server, service, seconds);
+            service.finish();
+        }
+    }
+
+    private static void measureLatency(final LocalIrcServer server, final IrcService service, final int probes) {
+        final LatencyRecorder recorder = new LatencyRecorder(probes);
+        for (int i = 0; i < probes; i++) {
+            // Released, then pressed
+            if (!waitFor(service, false)) {
+                break;
+            }
+            final long start = System.nanoTime();
+            server.sendMessage(CHANNEL, "user", "a0.1");
+            if (!waitFor(service, true)) {
+                System.out.println("Command not received");
+                break;
+            }
+            recorder.add((System.nanoTime() - start) / 1e6);
+        }
+        System.out.println("Message to packet latency (ms): " + recorder);
+    }
+
+    /**
+     * Poll the service, like the client does but faster, until button A is in the given state.
+     * @return false if it timed out.
+     */
+    private static boolean waitFor(final IrcService service, final boolean pressed) {
+        final long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (System.nanoTime() < deadline) {
+            final Packet packet = service.getControllerStatus();
+            if (packet.getButtons().getA() == pressed) {
+                return true;
+            }
+            LockSupport.parkNanos(POLL_PERIOD_NS);
+        }
+        return false;
+    }
+
+    private static void measureThroughput(final LocalIrcServer server, final IrcService service,
+                                          final int seconds) {
+        final Random random = new Random(0);
+        final List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(WORDS[random.nextInt(WORDS.length)] + ' ' + WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        final long initial = service.getReceivedMessages();
+        long sent = 0;
+        long previous = initial;
+        long nextReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (int second = 1; second <= seconds; ) {
+            if (sent - (service.getReceivedMessages() - initial) < MAX_IN_FLIGHT) {
+                server.sendMessages(CHANNEL, "user", batch);
+                sent += BATCH_SIZE;
+            } else {
+                // Keep polling packets so that the commands are scheduled and expire
+                service.getControllerStatus();
+                LockSupport.parkNanos(POLL_PERIOD_NS);
+            }
+            if (System.nanoTime() >= nextReport) {
+                final long received = service.getReceivedMessages();
+                System.out.printf("%ds: %d messages/s%n", second, received - previous);
+                previous = received;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+                second++;
+            }
+        }
+        System.out.printf("Throughput: %.0f messages/s%n", (previous - initial) / (double) seconds);
+    }
+}
@@ -0,0 +1,263 @@
+package com.javmarina.client.services.bot;
+
+import com.javmarina.client.Client;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Subclass of {@link BotService} that takes input from an IRC channel, like Twitch chat. The connection uses a
+ * non-blocking socket, served by a single thread that parses the lines as they arrive.<br>
+ * For Twitch, connect to irc.chat.twitch.tv:6667 with the bot account name as nick and "oauth:token" as
+ * password. See {@link LocalIrcServer} for a server without network.
+ */
+public class IrcService extends BotService {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String nick;
+    @Nullable
+    private final String password;
+    private final String channel;
+    private final AtomicLong receivedMessages = new AtomicLong();
+
+    // Only accessed from the connection thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private Selector selector;
+    private SelectionKey key;
+    // True while the rest of an over-long line is dropped
+    private boolean discardingLine = false;
+    private volatile boolean running = false;
+
+    /**
+     * Create the service. The connection is opened when the service starts.
+     * @param host IRC server.
+     * @param port IRC server port (plain text).
+     * @param nick nick of the bot.
+     * @param password server password, or {@code null} if none.
+     * @param channel channel to read, including '#'.
+     */
+    public IrcService(final String host, final int port, final String nick, @Nullable final String password,
+                      final String channel) {
+        this.host = host;
+        this.port = port;
+        this.nick = nick;
+        this.password = password;
+        this.channel = channel;
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        SocketChannel socketChannel = null;
+        try {
+            selector = Selector.open();
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(new InetSocketAddress(host, port));
+            key = socketChannel.register(selector, SelectionKey.OP_CONNECT);
+        } catch (final IOException | RuntimeException e) {
+            // Unresolved host, no network... Don't stay running without input
+            System.out.println("Couldn't connect to " + host + ":" + port);
+            e.printStackTrace();
+            try {
+                if (socketChannel != null) {
+                    socketChannel.close();
+                }
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (final IOException closeException) {
+                closeException.printStackTrace();
+            }
+            finish();
+            return;
+        }
+        running = true;
+        final Thread thread = new Thread(this::run, "IrcService");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    protected void onFinish() {
+        super.onFinish();
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get the number of chat messages received from the channel.
+     * @return the number of messages.
+     */
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey selected = iterator.next();
+                    iterator.remove();
+                    if (selected.isValid() && selected.isConnectable()) {
+                        onConnectable();
+                    }
+                    if (selected.isValid() && selected.isReadable()) {
+                        onReadable();
+                    }
+                    if (selected.isValid() && selected.isWritable()) {
+                        flush();
+                    }
+                }
+            }
+            // Best effort, the socket is closed right after
+            send("QUIT");
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                key.channel().close();
+                selector.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (running) {
+            System.out.println("IRC connection closed");
+            finish();
+        }
+    }
+
+    private void onConnectable() throws IOException {
+        ((SocketChannel) key.channel()).finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        if (password != null) {
+            send("PASS " + password);
+        }
+        send("NICK " + nick);
+        send("USER " + nick + " 0 * :" + nick);
+    }
+
+    private void onReadable() throws IOException {
+        final int read = ((SocketChannel) key.channel()).read(readBuffer);
+        if (read < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        readBuffer.flip();
+        final byte[] array = readBuffer.array();
+        int lineStart = readBuffer.position();
+        if (discardingLine) {
+            while (lineStart < readBuffer.limit() && array[lineStart] != '\n') {
+                lineStart++;
+            }
+            if (lineStart == readBuffer.limit()) {
+                // Still no end of line
+                readBuffer.clear();
+                return;
+            }
+            discardingLine = false;
+            lineStart++;
+        }
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (array[i] == '\n') {
+                final int lineEnd = i > lineStart && array[i - 1] == '\r' ? i - 1 : i;
+                onLine(new String(array, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        readBuffer.position(lineStart);
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            // Line too long for the buffer, discard it up to the next end of line
+            readBuffer.clear();
+            discardingLine = true;
+        }
+    }
+
+    /**
+     * Handle a line from the server: "[@tags] [:prefix] command params [:trailing]".
+     */
+    private void onLine(final String line) throws IOException {
+        int start = 0;
+        if (line.startsWith("@")) {
+            // Message tags (Twitch)
+            start = skipWord(line, start);
+        }
+        if (start >= 0 && line.startsWith(":", start)) {
+            start = skipWord(line, start);
+        }
+        if (start < 0 || start >= line.length()) {
+            // Nothing after the tags or the prefix
+            return;
+        }
+
+        if (line.startsWith("PRIVMSG ", start)) {
+            final int trailing = line.indexOf(" :", start);
+            if (trailing >= 0) {
+                receivedMessages.incrementAndGet();
+                notifyMessageReceived(line.substring(trailing + 2));
+            }
+        } else if (line.startsWith("PING", start)) {
+            send("PONG" + line.substring(start + 4));
+        } else if (line.startsWith("001 ", start)) {
+            // Registration complete
+            System.out.println("Connected to " + host + " as " + nick);
+            send("JOIN " + channel);
+        } else if (line.startsWith("433 ", start)) {
+            System.out.println("Nick " + nick + " already in use");
+        }
+    }
+
+    /**
+     * Get the start of the word after the one at {@code start}.
+     * @return the index, or -1 if there are no more words.
+     */
+    private static int skipWord(final String line, final int start) {
+        final int space = line.indexOf(' ', start);
+        return space < 0 ? -1 : space + 1;
+    }
+
+    private void send(final String line) throws IOException {
+        pendingWrites.add(StandardCharsets.UTF_8.encode(line + "\r\n"));
+        flush();
+    }
+
+    private void flush() throws IOException {
+        final SocketChannel socketChannel = (SocketChannel) key.channel();
+        while (!pendingWrites.isEmpty()) {
+            final ByteBuffer buffer = pendingWrites.peek();
+            socketChannel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // Socket buffer full, wait until it can be written
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public String toString() {
+        return Client.RESOURCE_BUNDLE.getString("client.irc");
+    }
+}
@@ -0,0 +1,340 @@
+package com.javmarina.client.services.bot;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Minimal IRC server that listens on the loopback interface, so that {@link IrcService} can be tested without
+ * network. It only understands what a chat bot needs: registration (NICK and USER), JOIN, PING, PONG, PRIVMSG and
+ * QUIT. Chat messages can be injected with {@link LocalIrcServer#sendMessage(String, String, String)} as if they were
+ * sent by other users, and clients can be pinged with {@link LocalIrcServer#sendPing(String)}.
+ */
+public final class LocalIrcServer implements Closeable {
+
+    private static final String SERVER_NAME = "localhost";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // Lines injected from other threads: channel (null for all clients) and line
+    private final Queue<String[]> injected = new ConcurrentLinkedQueue<>();
+    // Only accessed from the server thread
+    private final Map<String, Set<Connection>> channels = new HashMap<>();
+    private volatile int clientCount = 0;
+    @Nullable
+    private volatile String lastPong = null;
+    private volatile boolean running = false;
+
+    /**
+     * Open the server on an ephemeral port (see {@link LocalIrcServer#getPort()}).
+     * @throws IOException if the socket can't be opened.
+     */
+    public LocalIrcServer() throws IOException {
+        this(0);
+    }
+
+    public LocalIrcServer(final int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the number of connected clients.
+     * @return the number of clients.
+     */
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * Start accepting clients in a new thread.
+     */
+    public void start() {
+        running = true;
+        final Thread thread = new Thread(this::run, "LocalIrcServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Send a chat message to the members of a channel. Can be called from any thread.
+     * @param channel the channel, including '#'.
+     * @param nick nick of the (fake) author.
+     * @param text the message.
+     */
+    public void sendMessage(final String channel, final String nick, final String text) {
+        injected.add(new String[]{channel, privmsg(nick, channel, text)});
+        selector.wakeup();
+    }
+
+    /**
+     * Same as {@link LocalIrcServer#sendMessage(String, String, String)} for several messages, with a single
+     * write to each client.
+     */
+    public void sendMessages(final String channel, final String nick, final Collection<String> texts) {
+        final StringBuilder builder = new StringBuilder();
+        for (final String text : texts) {
+            builder.append(privmsg(nick, channel, text));
+        }
+        injected.add(new String[]{channel, builder.toString()});
+        selector.wakeup();
+    }
+
+    /**
+     * Send a PING to all connected clients. Can be called from any thread.
+     * @param token token that clients must send back in their PONG.
+     */
+    public void sendPing(final String token) {
+        injected.add(new String[]{null, "PING :" + token + "\r\n"});
+        selector.wakeup();
+    }
+
+    /**
+     * Get the parameters of the last PONG received from any client.
+     * @return the parameters (e.g. ":token"), or null if no PONG has been received.
+     */
+    @Nullable
+    public String getLastPong() {
+        return lastPong;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                String[] message;
+                while ((message = injected.poll()) != null) {
+                    broadcast(message[0], null, message[1]);
+                }
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).flush();
+                        }
+                    } catch (final IOException e) {
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (final SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel socketChannel = serverChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setTcpNoDelay(true);
+        final SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key));
+        clientCount++;
+    }
+
+    private void broadcast(@Nullable final String channel, @Nullable final Connection sender, final String lines) {
+        if (channel == null) {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).write(lines);
+                }
+            }
+            return;
+        }
+        // Copy, members that fail to receive are removed
+        final Set<Connection> members = new HashSet<>(channels.getOrDefault(channel, Collections.emptySet()));
+        for (final Connection member : members) {
+            if (member != sender) {
+                member.write(lines);
+            }
+        }
+    }
+
+    private static String privmsg(final String nick, final String channel, final String text) {
+        return ':' + nick + '!' + nick + '@' + SERVER_NAME + " PRIVMSG " + channel + " :" + text + "\r\n";
+    }
+
+    private final class Connection {
+
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private final Set<String> joined = new HashSet<>();
+        private String nick = "*";
+        private boolean registered = false;
+
+        private Connection(final SelectionKey key) {
+            this.key = key;
+        }
+
+        private void read() throws IOException {
+            if (((SocketChannel) key.channel()).read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            final byte[] array = readBuffer.array();
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit(); i++) {
+                if (array[i] == '\n') {
+                    final int lineEnd = i > lineStart && array[i - 1] == '\r' ? i - 1 : i;
+                    onLine(new String(array, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.clear();
+            }
+        }
+
+        private void onLine(final String line) {
+            final int space = line.indexOf(' ');
+            final String command = space < 0 ? line : line.substring(0, space);
+            final String params = space < 0 ? "" : line.substring(space + 1);
+            switch (command.toUpperCase()) {
+                case "NICK":
+                    nick = params;
+                    break;
+                case "USER":
+                    if (!registered) {
+                        registered = true;
+                        write(':' + SERVER_NAME + " 001 " + nick + " :Welcome\r\n");
+                    }
+                    break;
+                case "JOIN":
+                    for (final String channel : params.split(",")) {
+                        channels.computeIfAbsent(channel, c -> new HashSet<>()).add(this);
+                        joined.add(channel);
+                        write(':' + nick + " JOIN " + channel + "\r\n");
+                    }
+                    break;
+                case "PING":
+                    write(':' + SERVER_NAME + " PONG " + SERVER_NAME + ' ' + params + "\r\n");
+                    break;
+                case "PONG":
+                    lastPong = params;
+                    break;
+                case "PRIVMSG":
+                    final int trailing = params.indexOf(" :");
+                    if (trailing > 0) {
+                        broadcast(params.substring(0, trailing), this,
+                                privmsg(nick, params.substring(0, trailing), params.substring(trailing + 2)));
+                    }
+                    break;
+                case "QUIT":
+                    close();
+                    break;
+                default:
+                    // PASS, CAP and the rest are ignored
+                    break;
+            }
+        }
+
+        private void write(final String lines) {
+            pendingWrites.add(StandardCharsets.UTF_8.encode(lines));
+            try {
+                flush();
+            } catch (final IOException e) {
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!key.isValid()) {
+                pendingWrites.clear();
+                return;
+            }
+            final SocketChannel socketChannel = (SocketChannel) key.channel();
+            while (!pendingWrites.isEmpty()) {
+                final ByteBuffer buffer = pendingWrites.peek();
+                socketChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        private void close() {
+            if (!key.isValid()) {
+                return;
+            }
+            for (final String channel : joined) {
+                channels.get(channel).remove(this);
+            }
+            clientCount--;
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.javmarina.client.services.bot;
+
+
+/**
+ * How {@link BotService} turns chat messages into controller input.
+ */
+public enum VoteMode {
+    /**
+     * Every command is executed as soon as it's received.
+     */
+    ANARCHY,
+    /**
+     * Commands are voted during a window, and the most voted one is executed when it closes.
+     */
+    DEMOCRACY,
+    /**
+     * Commands are voted during a window, and the most voted ones are executed together when it closes,
+     * weighted by their votes (see {@link com.javmarina.client.services.PacketAccumulator}).
+     */
+    BLEND
+}
@@ -0,0 +1,120 @@
+package com.javmarina.client.services.bot;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Votes of each command during the current window, in one counter per command (see {@link CommandTrie#size()}).
+ * Votes can be cast from any thread without locking.
+ */
+final class VoteTally {
+
+    private final CommandTrie trie;
+    private final AtomicIntegerArray votes;
+    // Sum of the durations of the votes, to execute the winner with the average duration
+    private final AtomicLongArray durations;
+
+    VoteTally(final CommandTrie trie) {
+        this.trie = trie;
+        this.votes = new AtomicIntegerArray(trie.size());
+        this.durations = new AtomicLongArray(trie.size());
+    }
+
+    CommandTrie getTrie() {
+        return trie;
+    }
+
+    void vote(final CommandTrie.Node node, final long durationMs) {
+        votes.incrementAndGet(node.index);
+        durations.addAndGet(node.index, durationMs);
+    }
+
+    /**
+     * Close the current window and start a new one. A vote cast while closing may count its duration in the
+     * other window, which only changes the average slightly.
+     * @return the votes and average duration of each command in the window that was closed.
+     */
+    Result close() {
+        final int size = votes.length();
+        final int[] closedVotes = new int[size];
+        final long[] averageDurations = new long[size];
+        for (int i = 0; i < size; i++) {
+            closedVotes[i] = votes.getAndSet(i, 0);
+            final long duration = durations.getAndSet(i, 0);
+            averageDurations[i] = closedVotes[i] == 0 ? 0 : duration / closedVotes[i];
+        }
+        return new Result(closedVotes, averageDurations);
+    }
+
+    void clear() {
+        for (int i = 0; i < votes.length(); i++) {
+            votes.set(i, 0);
+            durations.set(i, 0);
+        }
+    }
+
+    /**
+     * Get the votes of the current window.
+     * @return the command names with at least one vote, most voted first.
+     */
+    Map<String, Integer> getVotes() {
+        final Map<Integer, Integer> byIndex = new LinkedHashMap<>();
+        for (int i = 0; i < votes.length(); i++) {
+            final int count = votes.get(i);
+            if (count > 0) {
+                byIndex.put(i, count);
+            }
+        }
+        final Map<String, Integer> result = new LinkedHashMap<>(byIndex.size());
+        byIndex.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed())
+                .forEach(entry -> result.put(trie.get(entry.getKey()).name, entry.getValue()));
+        return result;
+    }
+
+    final class Result {
+
+        final int[] votes;
+        final long[] averageDurations;
+
+        private Result(final int[] votes, final long[] averageDurations) {
+            this.votes = votes;
+            this.averageDurations = averageDurations;
+        }
+
+        /**
+         * Get the most voted commands. Ties go to the command registered first.
+         * @param count maximum number of commands.
+         * @return the indices of the commands with votes, most voted first.
+         */
+        int[] getMostVoted(final int count) {
+            final int[] mostVoted = new int[count];
+            int size = 0;
+            for (int i = 0; i < votes.length; i++) {
+                if (votes[i] == 0) {
+                    continue;
+                }
+                // Insertion into the sorted array
+                int position = size;
+                while (position > 0 && votes[mostVoted[position - 1]] < votes[i]) {
+                    position--;
+                }
+                if (position < count) {
+                    final int moved = Math.min(size, count - 1) - position;
+                    System.arraycopy(mostVoted, position, mostVoted, position + 1, moved);
+                    mostVoted[position] = i;
+                    size = Math.min(size + 1, count);
+                }
+            }
+            return Arrays.copyOf(mostVoted, size);
+        }
+
+        CommandTrie.Node getCommand(final int index) {
+            return trie.get(index);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.javmarina.client.services.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A recording made by {@link RecordingService}, read through memory-mapped segments that are only mapped when
+ * needed, so that the file is never loaded into the heap.<br>
+ * File format (big endian): a header of {@link Recording#HEADER_SIZE} bytes (magic number, version, number of
+ * records, start time as epoch milliseconds and duration in nanoseconds), followed by records of
+ * {@link Recording#RECORD_SIZE} bytes. Each record is the time since the start, in nanoseconds, and the 8-byte
+ * controller state from then on. Records are only written when the state changes, and their times are
+ * increasing, so the state at any time is found with a binary search.
+ */
+public final class Recording implements Closeable {
+
+    static final int MAGIC = 0x4E535243; // "NSRC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 16;
+    // Multiple of the record size and larger than the header, so records never cross segments
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static final int COUNT_OFFSET = 8;
+    static final int START_OFFSET = 16;
+    static final int DURATION_OFFSET = 24;
+
+    private final FileChannel channel;
+    private final long count;
+    private final long startEpochMillis;
+    private final long durationNs;
+    private final MappedByteBuffer[] segments;
+
+    private Recording(final FileChannel channel) throws IOException {
+        this.channel = channel;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a recording");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported recording version " + header.getInt(4));
+        }
+        // Records beyond the end of the file (a recording that wasn't finished properly) are ignored
+        count = Math.min(header.getLong(COUNT_OFFSET), (channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        startEpochMillis = header.getLong(START_OFFSET);
+        segments = new MappedByteBuffer[(int) ((getPosition(count) + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        final long duration = header.getLong(DURATION_OFFSET);
+        durationNs = duration > 0 || count == 0 ? duration : getTimeNs(count - 1);
+    }
+
+    /**
+     * Open a recording.
+     * @param path the file.
+     * @return the recording, which must be closed after use.
+     * @throws IOException if the file can't be read or is not a recording.
+     */
+    public static Recording open(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new Recording(channel);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static long getPosition(final long index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Get the number of records.
+     * @return the number of records.
+     */
+    public long size() {
+        return count;
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    /**
+     * Get the length of the recording, from its start until it finished.
+     * @return the length in nanoseconds.
+     */
+    public long getDurationNs() {
+        return durationNs;
+    }
+
+    public long getTimeNs(final long index) {
+        final long position = getPosition(index);
+        return getSegment(position).getLong((int) (position % SEGMENT_SIZE));
+    }
+
+    /**
+     * Get the state of a record, packed in a long (first byte of the packet in the most significant byte).
+     * @param index the record.
+     * @return the packed state.
+     */
+    public long getState(final long index) {
+        final long position = getPosition(index) + Long.BYTES;
+        return getSegment(position).getLong((int) (position % SEGMENT_SIZE));
+    }
+
+    /**
+     * Find the record active at an instant.
+     * @param timeNs time from the start of the recording.
+     * @return the index of the last record at or before that time, or -1 if there is none.
+     */
+    public long indexAt(final long timeNs) {
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final long time = getTimeNs(middle);
+            if (time <= timeNs) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Check whether a record is active at an instant, which is cheaper than {@link Recording#indexAt(long)}.
+     * @param index the record.
+     * @param timeNs time from the start of the recording.
+     * @return true if the record is active at that time.
+     */
+    public boolean isActive(final long index, final long timeNs) {
+        return getTimeNs(index) <= timeNs && (index + 1 == count || timeNs < getTimeNs(index + 1));
+    }
+
+    private MappedByteBuffer getSegment(final long position) {
+        final int segment = (int) (position / SEGMENT_SIZE);
+        MappedByteBuffer buffer = segments[segment];
+        if (buffer == null) {
+            final long start = (long) segment * SEGMENT_SIZE;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, getPosition(count) - start));
+            } catch (final IOException e) {
+                throw new IllegalStateException("Can't map the recording", e);
+            }
+            segments[segment] = buffer;
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,118 @@
+package com.javmarina.client.services.recording;
+
+import com.javmarina.client.services.ControllerService;
+import com.javmarina.util.Packet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+
+/**
+ * Measures the overhead of {@link RecordingService} with a synthetic service whose state changes on every call,
+ * and the random access to the resulting {@link Recording}. The file is created in the temporary directory and
+ * deleted at the end.<br>
+ * Arguments (optional): number of packets.
+ */
+public final class RecordingBenchmark {
+
+    private static final int DISTINCT_PACKETS = 1024;
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(final String... args) throws IOException {
+        final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        final Random random = new Random(0);
+        final Packet[] source = new Packet[DISTINCT_PACKETS];
+        for (int i = 0; i < DISTINCT_PACKETS; i++) {
+            final byte[] buffer = new byte[Packet.Companion.getPACKET_BUFFER_LENGTH()];
+            random.nextBytes(buffer);
+            buffer[buffer.length - 1] = Packet.VENDORSPEC;
+            source[i] = new Packet(buffer);
+        }
+
+        final Path path = Files.createTempFile("recording", ".rec");
+        try {
+            final long plainNs = run(new SyntheticService(source), packets);
+            final RecordingService recordingService = new RecordingService(new SyntheticService(source), path);
+            final long recordingNs = run(recordingService, packets);
+            System.out.printf("getPacket(): %.1f ns/call without recording, %.1f ns/call recording%n",
+                    plainNs / (double) packets, recordingNs / (double) packets);
+            System.out.printf("File size: %.1f MB%n", Files.size(path) / 1e6);
+
+            try (final Recording recording = Recording.open(path)) {
+                // Dropped changes are skipped, the rest must follow the order of the source
+                long errors = 0;
+                int expectedIndex = 0;
+                for (long i = 0; i < recording.size(); i++) {
+                    final long state = recording.getState(i);
+                    int skipped = 0;
+                    while (skipped < DISTINCT_PACKETS && !matches(source[expectedIndex].getBuffer(), state)) {
+                        expectedIndex = (expectedIndex + 1) % DISTINCT_PACKETS;
+                        skipped++;
+                    }
+                    if (skipped == DISTINCT_PACKETS) {
+                        errors++;
+                    }
+                    expectedIndex = (expectedIndex + 1) % DISTINCT_PACKETS;
+                }
+                System.out.printf("%d records, %d dropped, %.1f s, %d errors%n", recording.size(),
+                        recordingService.getDroppedChanges(), recording.getDurationNs() / 1e9, errors);
+
+                long checksum = 0;
+                final long start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    checksum += recording.indexAt((long) (random.nextDouble() * recording.getDurationNs()));
+                }
+                System.out.printf("indexAt(): %.1f ns/call (%d)%n",
+                        (System.nanoTime() - start) / (double) LOOKUPS, checksum & 1);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static boolean matches(final byte[] expected, final long state) {
+        for (int j = 0; j < expected.length; j++) {
+            if (expected[j] != (byte) (state >>> (8 * (expected.length - 1 - j)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long run(final ControllerService service, final int packets) {
+        service.start();
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            checksum += service.getControllerStatus().hashCode();
+        }
+        final long elapsed = System.nanoTime() - start;
+        service.finish();
+        return elapsed + (checksum & 1);
+    }
+
+    private static final class SyntheticService extends ControllerService {
+
+        private final Packet[] packets;
+        private int index = 0;
+
+        private SyntheticService(final Packet[] packets) {
+            this.packets = packets;
+        }
+
+        @Override
+        protected Packet getPacket() {
+            final Packet packet = packets[index];
+            index = (index + 1) % packets.length;
+            return packet;
+        }
+
+        @Override
+        public String toString() {
+            return "Synthetic";
+        }
+    }
+}
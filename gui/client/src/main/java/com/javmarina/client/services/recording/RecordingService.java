@@ -0,0 +1,234 @@
+package com.javmarina.client.services.recording;
+
+import com.javmarina.client.services.ControllerService;
+import com.javmarina.util.Packet;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Decorator that records the packets of another {@link ControllerService} into a file (see {@link Recording} for
+ * the format), so that the session can be replayed later with {@link ReplayService}.<br>
+ * The file is written through memory-mapped segments, and only when the state changes, so the file grows by 16
+ * bytes per change. {@link RecordingService#getPacket()} doesn't lock or touch the file: it hands the changes to
+ * a writer thread through a bounded lock-free queue. If the writer falls behind and the queue fills up, changes
+ * are dropped (and reported at the end) rather than delaying the input.<br>
+ * Recording errors are printed and stop the recording, but never the wrapped service.
+ */
+public class RecordingService extends ControllerService {
+
+    // Power of two. About a minute of changes at 1 kHz
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final long WRITER_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ControllerService delegate;
+    private final Path path;
+
+    // Changes queued by getPacket(). Sequence number n goes to slot n % QUEUE_CAPACITY, which is published by
+    // setting it to n + 1 in queuePublished
+    private final long[] queueTimes = new long[QUEUE_CAPACITY];
+    private final long[] queueStates = new long[QUEUE_CAPACITY];
+    private final AtomicLongArray queuePublished = new AtomicLongArray(QUEUE_CAPACITY);
+    private final AtomicLong queueClaimed = new AtomicLong();
+    private volatile long queueConsumed = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Packet lastPacket;
+    private volatile boolean recording = false;
+    private volatile boolean stopping = false;
+    private long startNs;
+    private Thread writer;
+
+    // Only accessed from the writer thread, and from onFinish() once it has ended
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private int segmentIndex = -1;
+    private long count = 0;
+    private long lastState;
+    private boolean writeFailed = false;
+
+    /**
+     * Create the decorator. The file is created (or overwritten) when the service starts.
+     * @param delegate the service whose packets are recorded.
+     * @param path the file.
+     */
+    public RecordingService(final ControllerService delegate, final Path path) {
+        this.delegate = delegate;
+        this.path = path;
+    }
+
+    public ControllerService getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Get the number of state changes that weren't recorded because the writer thread fell behind.
+     * @return the number of changes.
+     */
+    public long getDroppedChanges() {
+        return dropped.get();
+    }
+
+    @Override
+    protected void onStart() {
+        delegate.start();
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, Recording.HEADER_SIZE);
+            header.putInt(0, Recording.MAGIC);
+            header.putInt(4, Recording.VERSION);
+            header.putLong(Recording.COUNT_OFFSET, 0);
+            header.putLong(Recording.START_OFFSET, System.currentTimeMillis());
+            header.putLong(Recording.DURATION_OFFSET, 0);
+            startNs = System.nanoTime();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        writer = new Thread(this::write, "RecordingService");
+        writer.setDaemon(true);
+        writer.start();
+        recording = true;
+    }
+
+    @Override
+    protected void onFinish() {
+        delegate.finish();
+        recording = false;
+        if (writer != null) {
+            // The writer empties the queue before it ends
+            stopping = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            if (dropped.get() > 0) {
+                System.out.println("Recording fell behind, " + dropped.get() + " changes were dropped");
+            }
+            header.putLong(Recording.DURATION_OFFSET, System.nanoTime() - startNs);
+            header.force();
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        if (channel != null) {
+            try {
+                // The last segment is only partially used
+                channel.truncate(Recording.getPosition(count));
+            } catch (final IOException e) {
+                // Not possible while mapped in some systems, the reader ignores the extra bytes
+            }
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    protected Packet getPacket() {
+        final Packet packet = delegate.getControllerStatus();
+        if (packet == null) {
+            return Packet.Companion.getEMPTY_PACKET();
+        }
+        // Services usually reuse the packet while the state doesn't change. With concurrent callers the same
+        // packet may be queued twice, and the writer discards the duplicate
+        if (recording && packet != lastPacket) {
+            lastPacket = packet;
+            enqueue(System.nanoTime() - startNs, pack(packet.getBuffer()));
+        }
+        return packet;
+    }
+
+    private void enqueue(final long timeNs, final long state) {
+        long sequence;
+        do {
+            sequence = queueClaimed.get();
+            if (sequence - queueConsumed >= QUEUE_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!queueClaimed.compareAndSet(sequence, sequence + 1));
+        final int slot = (int) (sequence & (QUEUE_CAPACITY - 1));
+        queueTimes[slot] = timeNs;
+        queueStates[slot] = state;
+        queuePublished.set(slot, sequence + 1);
+    }
+
+    /**
+     * Body of the writer thread: write the queued changes until the service finishes and the queue is empty.
+     */
+    private void write() {
+        long next = 0;
+        while (true) {
+            final int slot = (int) (next & (QUEUE_CAPACITY - 1));
+            if (queuePublished.get(slot) == next + 1) {
+                final long timeNs = queueTimes[slot];
+                final long state = queueStates[slot];
+                next++;
+                queueConsumed = next;
+                if (!writeFailed && (state != lastState || count == 0)) {
+                    lastState = state;
+                    record(timeNs, state);
+                }
+            } else if (stopping) {
+                if (queueClaimed.get() == next) {
+                    return;
+                }
+                // Claimed by getPacket() but not published yet
+                Thread.onSpinWait();
+            } else {
+                // Polled rather than woken up, so that getPacket() never makes a system call
+                LockSupport.parkNanos(WRITER_PERIOD_NS);
+            }
+        }
+    }
+
+    private void record(final long timeNs, final long state) {
+        final long position = Recording.getPosition(count);
+        final int index = (int) (position / Recording.SEGMENT_SIZE);
+        if (index != segmentIndex) {
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) index * Recording.SEGMENT_SIZE, Recording.SEGMENT_SIZE);
+            } catch (final IOException e) {
+                e.printStackTrace();
+                writeFailed = true;
+                recording = false;
+                return;
+            }
+            segmentIndex = index;
+        }
+        final int offset = (int) (position % Recording.SEGMENT_SIZE);
+        segment.putLong(offset, timeNs);
+        segment.putLong(offset + Long.BYTES, state);
+        // After the record, so readers of an unfinished recording never see a partial one
+        header.putLong(Recording.COUNT_OFFSET, ++count);
+    }
+
+    private static long pack(final byte[] buffer) {
+        long state = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            state = state << 8 | (buffer[i] & 0xFF);
+        }
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package com.javmarina.client.services.recording;
+
+import com.javmarina.client.Client;
+import com.javmarina.client.services.ControllerService;
+import com.javmarina.util.Packet;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+/**
+ * Subclass of {@link ControllerService} that replays a {@link Recording} with its original timing. Records are
+ * read from the mapped file as playback reaches them, and a new packet is only created when the state changes.
+ * {@link ReplayService#seek(long)} jumps to any time with a binary search over the file. The file is only open
+ * while the service runs.
+ */
+public class ReplayService extends ControllerService {
+
+    private final Path path;
+    private final String name;
+    private final boolean loop;
+
+    // Clock time of the recording start, moved by seek()
+    private volatile long startNs;
+    @Nullable
+    private volatile Recording recording;
+    // Only accessed from getPacket()
+    private long index = -1;
+    // Not a valid state, the last byte is always 0
+    private long lastState = -1;
+    private Packet packet;
+
+    /**
+     * Create the service. The recording is opened when the service starts, and closed when it finishes.
+     * @param path the recording to replay (see {@link Recording}).
+     * @param loop whether to start over after the end of the recording.
+     */
+    public ReplayService(final Path path, final boolean loop) {
+        this.path = path;
+        this.name = path.getFileName().toString();
+        this.loop = loop;
+    }
+
+    @Override
+    protected void onStart() {
+        try {
+            recording = Recording.open(path);
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        startNs = System.nanoTime();
+    }
+
+    @Override
+    protected void onFinish() {
+        final Recording recording = this.recording;
+        if (recording == null) {
+            return;
+        }
+        this.recording = null;
+        try {
+            recording.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Jump to a point of the recording. Can be called from any thread.
+     * @param timeNs time from the start of the recording.
+     */
+    public void seek(final long timeNs) {
+        startNs = System.nanoTime() - timeNs;
+    }
+
+    @Override
+    public Packet getPacket() {
+        final Recording recording = this.recording;
+        if (recording == null) {
+            return Packet.Companion.getEMPTY_PACKET();
+        }
+        long time = System.nanoTime() - startNs;
+        final long durationNs = recording.getDurationNs();
+        if (loop && durationNs > 0) {
+            time %= durationNs;
+        }
+
+        if (index < 0 || !recording.isActive(index, time)) {
+            // Usually the next record, otherwise (seek or loop) search it
+            index = index >= 0 && index + 1 < recording.size() && recording.isActive(index + 1, time)
+                    ? index + 1
+                    : recording.indexAt(time);
+        }
+        if (index < 0) {
+            return Packet.Companion.getEMPTY_PACKET();
+        }
+        final long state = recording.getState(index);
+        if (state != lastState) {
+            lastState = state;
+            final byte[] buffer = new byte[Packet.Companion.getPACKET_BUFFER_LENGTH()];
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = (byte) (state >>> (8 * (buffer.length - 1 - i)));
+            }
+            packet = new Packet(buffer);
+        }
+        return packet;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Client.RESOURCE_BUNDLE.getString("client.replay"), name);
+    }
+}
@@ -0,0 +1,292 @@
+package com.javmarina.client.services.script;
+
+import com.javmarina.util.Packet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * A compiled input script (macro or TAS): a timeline of keyframes, each one with the controller state from its
+ * time until the next keyframe. Times are stored in nanoseconds in a {@code long[]} and states in a single
+ * {@code byte[]}, {@link Script#STATE_SIZE} bytes each, so that the state at any instant is found with a binary
+ * search (see {@link Script#indexAt(long)}).<br>
+ * Script format, one keyframe per line:
+ * <pre>
+ * # Comments start with '#'
+ * # time (seconds) and inputs; the inputs not listed are released
+ * 0       a
+ * 0.1
+ * 0.25    b up lstick=0,1
+ * # '+' means relative to the previous line
+ * +0.1    zl zr rstick=-1,0
+ * # End of the script (length of each loop), everything is released. Required to loop
+ * 2       end
+ * </pre>
+ * Inputs: buttons (y, b, a, x, l, r, zl, zr, minus, plus, lclick, rclick, home, capture), DPAD directions (up,
+ * right, down, left, combined for diagonals) and joysticks (lstick=x,y and rstick=x,y, from -1 to 1, like
+ * {@link Packet.Joystick}). If a keyframe has the same time as the previous one, it replaces it.
+ */
+public final class Script {
+
+    public static final int STATE_SIZE = 8;
+
+    private static final String END = "end";
+
+    private final long[] times;
+    private final byte[] states;
+    private final long durationNs;
+    private final boolean hasEnd;
+
+    private Script(final long[] times, final byte[] states, final long durationNs, final boolean hasEnd) {
+        this.times = times;
+        this.states = states;
+        this.durationNs = durationNs;
+        this.hasEnd = hasEnd;
+    }
+
+    /**
+     * Compile a script file (UTF-8).
+     * @param path the file.
+     * @return the compiled script.
+     * @throws IOException if the file can't be read.
+     * @throws IllegalArgumentException if the script is not valid.
+     */
+    public static Script fromFile(final Path path) throws IOException {
+        try (final Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * Compile a script.
+     * @param reader the script source, see the format in {@link Script}.
+     * @return the compiled script.
+     * @throws IOException if the source can't be read.
+     * @throws IllegalArgumentException if the script is not valid.
+     */
+    public static Script parse(final Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        // The script starts with everything released
+        long[] times = new long[64];
+        byte[] states = new byte[64 * STATE_SIZE];
+        System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, states, 0, STATE_SIZE);
+        int size = 1;
+        long durationNs = -1;
+
+        String line;
+        int lineNumber = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            final String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+            if (durationNs >= 0) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": keyframe after the end of the script");
+            }
+
+            final long previous = times[size - 1];
+            final long time;
+            try {
+                time = tokens[0].startsWith("+")
+                        ? previous + toNanos(tokens[0].substring(1))
+                        : toNanos(tokens[0]);
+            } catch (final ArithmeticException | NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": invalid time " + tokens[0]);
+            }
+            if (time < previous) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": time goes backwards");
+            }
+
+            final byte[] state;
+            if (tokens.length == 2 && tokens[1].equalsIgnoreCase(END)) {
+                durationNs = time;
+                state = Packet.Companion.getEMPTY_PACKET_BUFFER();
+            } else {
+                try {
+                    state = parseState(tokens);
+                } catch (final IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+
+            // Same time as the previous keyframe (or the initial one): replace it
+            final int index = time == previous ? size - 1 : size++;
+            if (size > times.length) {
+                times = Arrays.copyOf(times, times.length * 2);
+                states = Arrays.copyOf(states, states.length * 2);
+            }
+            times[index] = time;
+            System.arraycopy(state, 0, states, index * STATE_SIZE, STATE_SIZE);
+        }
+
+        final boolean hasEnd = durationNs >= 0;
+        if (!hasEnd) {
+            durationNs = times[size - 1];
+        }
+        return new Script(Arrays.copyOf(times, size), Arrays.copyOf(states, size * STATE_SIZE), durationNs, hasEnd);
+    }
+
+    private static long toNanos(final String seconds) {
+        final BigDecimal value = new BigDecimal(seconds);
+        if (value.signum() < 0) {
+            throw new NumberFormatException("Negative time");
+        }
+        return value.movePointRight(9).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    private static byte[] parseState(final String[] tokens) {
+        int buttons = 0;
+        boolean up = false;
+        boolean right = false;
+        boolean down = false;
+        boolean left = false;
+        byte[] leftStick = Packet.Joystick.centered().toBytes();
+        byte[] rightStick = leftStick;
+        for (int i = 1; i < tokens.length; i++) {
+            final String token = tokens[i].toLowerCase(Locale.ROOT);
+            switch (token) {
+                case "up":
+                    up = true;
+                    break;
+                case "right":
+                    right = true;
+                    break;
+                case "down":
+                    down = true;
+                    break;
+                case "left":
+                    left = true;
+                    break;
+                default:
+                    if (token.startsWith("lstick=")) {
+                        leftStick = parseJoystick(token.substring(7));
+                    } else if (token.startsWith("rstick=")) {
+                        rightStick = parseJoystick(token.substring(7));
+                    } else {
+                        buttons |= parseButton(token).getValue();
+                    }
+                    break;
+            }
+        }
+        if ((up && down) || (left && right)) {
+            throw new IllegalArgumentException("opposite DPAD directions");
+        }
+
+        final byte[] state = new byte[STATE_SIZE];
+        state[0] = (byte) (buttons >>> 8);
+        state[1] = (byte) buttons;
+        state[2] = new Packet.Dpad(up, right, down, left).toByte();
+        state[3] = leftStick[0];
+        state[4] = leftStick[1];
+        state[5] = rightStick[0];
+        state[6] = rightStick[1];
+        state[7] = Packet.VENDORSPEC;
+        return state;
+    }
+
+    private static Packet.Buttons.Code parseButton(final String token) {
+        final Packet.Buttons.Code code;
+        try {
+            code = Packet.Buttons.Code.valueOf(token.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown input " + token);
+        }
+        if (code == Packet.Buttons.Code.NONE) {
+            throw new IllegalArgumentException("unknown input " + token);
+        }
+        return code;
+    }
+
+    private static byte[] parseJoystick(final String value) {
+        final String[] coordinates = value.split(",");
+        if (coordinates.length != 2) {
+            throw new IllegalArgumentException("invalid joystick " + value);
+        }
+        final float x;
+        final float y;
+        try {
+            x = Float.parseFloat(coordinates[0]);
+            y = Float.parseFloat(coordinates[1]);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("invalid joystick " + value);
+        }
+        if (!(Math.abs(x) <= Packet.Joystick.MAX) || !(Math.abs(y) <= Packet.Joystick.MAX)) {
+            throw new IllegalArgumentException("joystick out of range " + value);
+        }
+        return new Packet.Joystick(x, y).toBytes();
+    }
+
+    /**
+     * Get the number of keyframes. The first one is at time 0.
+     * @return the number of keyframes.
+     */
+    public int size() {
+        return times.length;
+    }
+
+    public long getTimeNs(final int index) {
+        return times[index];
+    }
+
+    /**
+     * Get the length of the script, which is the time of the "end" line or, if there isn't one, the time of
+     * the last keyframe.
+     * @return the length in nanoseconds.
+     */
+    public long getDurationNs() {
+        return durationNs;
+    }
+
+    /**
+     * Whether the script has an "end" line. Without it, the last keyframe has no length, so the script can only
+     * be played once (the last state is kept).
+     * @return true if the script ends with an "end" line, which is then its last keyframe.
+     */
+    public boolean hasEnd() {
+        return hasEnd;
+    }
+
+    /**
+     * Find the keyframe active at an instant.
+     * @param timeNs time from the start of the script, not negative.
+     * @return the index of the last keyframe at or before that time.
+     */
+    public int indexAt(final long timeNs) {
+        final int index = Arrays.binarySearch(times, timeNs);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Check whether a keyframe is active at an instant, which is cheaper than {@link Script#indexAt(long)}.
+     * @param index the keyframe.
+     * @param timeNs time from the start of the script.
+     * @return true if the keyframe is active at that time.
+     */
+    public boolean isActive(final int index, final long timeNs) {
+        return times[index] <= timeNs && (index + 1 == times.length || timeNs < times[index + 1]);
+    }
+
+    /**
+     * Copy the state of a keyframe.
+     * @param index the keyframe.
+     * @param buffer destination, with at least {@link Script#STATE_SIZE} bytes from the offset.
+     * @param offset position of the state in the buffer.
+     */
+    public void copyState(final int index, final byte[] buffer, final int offset) {
+        System.arraycopy(states, index * STATE_SIZE, buffer, offset, STATE_SIZE);
+    }
+}
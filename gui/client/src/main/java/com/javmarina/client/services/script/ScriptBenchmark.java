@@ -0,0 +1,79 @@
+package com.javmarina.client.services.script;
+
+import com.javmarina.util.Packet;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Measures {@link Script} compilation, the cost of {@link ScriptService#getPacket()} and the timing error of the
+ * playback with packets requested every 5 ms, like the client does, for a random script.<br>
+ * Arguments (optional): number of keyframes and seconds of playback.
+ */
+public final class ScriptBenchmark {
+
+    private static final String[] INPUTS = {"a", "b", "x", "y", "l", "r", "zl", "zr", "up", "right", "down left",
+            "lstick=0,1", "lstick=-1,0.5", "rstick=1,0"};
+    // Keyframes last from 1 to 50 ms
+    private static final int MAX_KEYFRAME_MS = 50;
+    private static final int LOOKUPS = 10_000_000;
+    private static final long PACKET_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public static void main(final String... args) throws IOException {
+        final int keyframes = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final Random random = new Random(0);
+        final StringBuilder source = new StringBuilder();
+        for (int i = 0; i < keyframes; i++) {
+            source.append('+').append((1 + random.nextInt(MAX_KEYFRAME_MS)) / 1000.0).append(' ');
+            if (random.nextBoolean()) {
+                source.append(INPUTS[random.nextInt(INPUTS.length)]);
+            }
+            source.append('\n');
+        }
+        // Needed to loop
+        source.append("+0.001 end\n");
+
+        long start = System.nanoTime();
+        final Script script = Script.parse(new StringReader(source.toString()));
+        System.out.printf("Compiled %d keyframes (%.1f s) in %.1f ms%n", script.size(),
+                script.getDurationNs() / 1e9, (System.nanoTime() - start) / 1e6);
+
+        // Random seeks: binary search on every call
+        final ScriptService service = new ScriptService(script, true, 1);
+        service.start();
+        int checksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if ((i & 0xFF) == 0) {
+                service.seek((long) (random.nextDouble() * script.getDurationNs()));
+            }
+            checksum += service.getControllerStatus().hashCode();
+        }
+        System.out.printf("getPacket(): %.1f ns/call (%d)%n", (System.nanoTime() - start) / (double) LOOKUPS,
+                checksum & 1);
+        service.finish();
+
+        for (final double speed : new double[]{1, 2}) {
+            final ScriptService playback = new ScriptService(script, true, speed);
+            playback.start();
+            long next = System.nanoTime();
+            final long end = next + TimeUnit.SECONDS.toNanos(seconds);
+            long packets = 0;
+            while (next < end) {
+                final Packet packet = playback.getControllerStatus();
+                packets += packet != null ? 1 : 0;
+                next += PACKET_PERIOD_NS;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            playback.finish();
+            System.out.printf("Speed %.0fx: %d packets, timing error %s, %d keyframes skipped%n",
+                    speed, packets, playback.getTimingError(), playback.getSkippedKeyframes());
+        }
+    }
+}
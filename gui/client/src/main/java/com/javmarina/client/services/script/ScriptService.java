@@ -0,0 +1,134 @@
+package com.javmarina.client.services.script;
+
+import com.javmarina.client.Client;
+import com.javmarina.client.services.ControllerService;
+import com.javmarina.util.Packet;
+import com.javmarina.webrtc.latency.LatencyRecorder;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Subclass of {@link ControllerService} that plays a {@link Script}. The script time is computed from the clock
+ * on each call to {@link ScriptService#getPacket()}, so the inputs keep their timing no matter how often packets
+ * are requested. The packets of all the keyframes are created beforehand, and finding the current one is a
+ * binary search at most, so playback doesn't allocate.<br>
+ * Packets are requested periodically, so each keyframe is seen a bit after its scheduled time (and short ones can
+ * be missed entirely). That delay is recorded in {@link ScriptService#getTimingError()}.
+ */
+public class ScriptService extends ControllerService {
+
+    private static final int TIMING_HISTORY_SIZE = 1000;
+
+    private final Script script;
+    private final Packet[] packets;
+    private final boolean loop;
+    private final double speed;
+    private final LatencyRecorder timingError = new LatencyRecorder(TIMING_HISTORY_SIZE);
+    private volatile long skippedKeyframes = 0;
+
+    // Clock time of the script start, moved by seek()
+    private volatile long startNs;
+    // Only accessed from getPacket()
+    private long currentStartNs;
+    private int index = -1;
+
+    /**
+     * Create the service.
+     * @param script the script to play.
+     * @param loop whether to start over after the end of the script (see {@link Script#getDurationNs()}). The
+     *             script must have an "end" line (see {@link Script#hasEnd()}).
+     * @param speed playback speed, 1 being real time.
+     */
+    public ScriptService(final Script script, final boolean loop, final double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        if (loop && (!script.hasEnd() || script.getDurationNs() == 0)) {
+            throw new IllegalArgumentException("A looping script needs an end line after time 0");
+        }
+        this.script = script;
+        this.loop = loop;
+        this.speed = speed;
+        packets = new Packet[script.size()];
+        for (int i = 0; i < packets.length; i++) {
+            final byte[] buffer = new byte[Script.STATE_SIZE];
+            script.copyState(i, buffer, 0);
+            packets[i] = new Packet(buffer);
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        startNs = System.nanoTime();
+    }
+
+    /**
+     * Jump to a point of the script. Can be called from any thread.
+     * @param scriptTimeNs time from the start of the script, in script time (not affected by the speed).
+     */
+    public void seek(final long scriptTimeNs) {
+        startNs = System.nanoTime() - (long) (scriptTimeNs / speed);
+    }
+
+    /**
+     * Get the current position in the script.
+     * @return the time from the start of the script, in script time.
+     */
+    public long getScriptTimeNs() {
+        return getScriptTimeNs(System.nanoTime(), startNs);
+    }
+
+    private long getScriptTimeNs(final long now, final long start) {
+        final long time = Math.max(0, (long) ((now - start) * speed));
+        final long durationNs = script.getDurationNs();
+        return loop ? time % durationNs : time;
+    }
+
+    @Override
+    public Packet getPacket() {
+        final long now = System.nanoTime();
+        final long start = startNs;
+        if (start != currentStartNs) {
+            // Started or seeked, the first keyframe doesn't count for the timing
+            currentStartNs = start;
+            index = -1;
+        }
+        final long time = getScriptTimeNs(now, start);
+        if (index >= 0 && script.isActive(index, time)) {
+            return packets[index];
+        }
+
+        final int newIndex = script.indexAt(time);
+        if (index >= 0 && newIndex != index) {
+            // Keyframes between the previous one and this one (wrapping around if looping) were not sent. The end
+            // marker is never active when looping, so it doesn't count
+            skippedKeyframes += newIndex > index ? newIndex - index - 1 : script.size() - index - 2 + newIndex;
+            timingError.add((time - script.getTimeNs(newIndex)) / speed / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        index = newIndex;
+        return packets[index];
+    }
+
+    /**
+     * Get the delay between the time of each keyframe in the script and the time its packet was sent, in
+     * real milliseconds.
+     * @return the recorded delays.
+     */
+    public LatencyRecorder getTimingError() {
+        return timingError;
+    }
+
+    /**
+     * Get the number of keyframes that were never sent, because they were shorter than the packet period.
+     * @return the number of skipped keyframes.
+     */
+    public long getSkippedKeyframes() {
+        return skippedKeyframes;
+    }
+
+    @Override
+    public String toString() {
+        return Client.RESOURCE_BUNDLE.getString("client.script");
+    }
+}
@@ -0,0 +1,274 @@
+package com.javmarina.client.services;
+
+import com.javmarina.util.Packet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Checks that {@link PacketAccumulator} merges packets exactly like the list-based merge it replaced (kept below
+ * as {@link PacketAccumulatorTest#packetOr(List, byte[])}).
+ */
+class PacketAccumulatorTest {
+
+    private static final byte CENTER = Packet.Joystick.CENTER;
+
+    @Test
+    void emptyAccumulatorIsEmptyPacket() {
+        final PacketAccumulator accumulator = new PacketAccumulator();
+        final byte[] buffer = new byte[8];
+        accumulator.writeTo(buffer);
+        assertArrayEquals(Packet.Companion.getEMPTY_PACKET_BUFFER(), buffer);
+        assertEquals(0, accumulator.size());
+    }
+
+    @Test
+    void buttonsAreMerged() {
+        assertParity(
+                state(Packet.Buttons.Code.A.getValue(), Packet.Dpad.CENTER, CENTER, CENTER, CENTER, CENTER),
+                state(Packet.Buttons.Code.ZR.getValue() | Packet.Buttons.Code.HOME.getValue(), Packet.Dpad.CENTER,
+                        CENTER, CENTER, CENTER, CENTER),
+                state(Packet.Buttons.Code.A.getValue(), Packet.Dpad.CENTER, CENTER, CENTER, CENTER, CENTER)
+        );
+    }
+
+    @Test
+    void oppositeDpadDirectionsCancel() {
+        assertParity(dpad(Packet.Dpad.UP), dpad(Packet.Dpad.DOWN));
+        assertParity(dpad(Packet.Dpad.LEFT), dpad(Packet.Dpad.RIGHT));
+        assertParity(dpad(Packet.Dpad.UP), dpad(Packet.Dpad.DOWN), dpad(Packet.Dpad.UP));
+        assertParity(dpad(Packet.Dpad.UP_LEFT), dpad(Packet.Dpad.DOWN_RIGHT));
+
+        final byte[] buffer = merge(dpad(Packet.Dpad.UP), dpad(Packet.Dpad.DOWN));
+        assertEquals(Packet.Dpad.CENTER, buffer[2]);
+    }
+
+    @Test
+    void dpadDiagonals() {
+        for (byte first = Packet.Dpad.UP; first <= Packet.Dpad.UP_LEFT; first++) {
+            for (byte second = Packet.Dpad.UP; second <= Packet.Dpad.UP_LEFT; second++) {
+                assertParity(dpad(first), dpad(second));
+            }
+        }
+        assertEquals(Packet.Dpad.UP_RIGHT, merge(dpad(Packet.Dpad.UP), dpad(Packet.Dpad.RIGHT))[2]);
+        assertEquals(Packet.Dpad.UP_LEFT, merge(dpad(Packet.Dpad.LEFT), dpad(Packet.Dpad.UP))[2]);
+        assertEquals(Packet.Dpad.DOWN_LEFT, merge(dpad(Packet.Dpad.DOWN_LEFT))[2]);
+    }
+
+    @Test
+    void sticksAreClamped() {
+        final byte max = (byte) 0xFF;
+        final byte min = 0;
+        assertParity(
+                state(0, Packet.Dpad.CENTER, max, CENTER, CENTER, min),
+                state(0, Packet.Dpad.CENTER, max, CENTER, CENTER, min)
+        );
+        assertParity(
+                state(0, Packet.Dpad.CENTER, max, max, min, max),
+                state(0, Packet.Dpad.CENTER, max, max, min, max),
+                state(0, Packet.Dpad.CENTER, (byte) 0xC0, min, CENTER, CENTER)
+        );
+        // Full tilt in both axes is scaled back to the circle
+        final byte[] buffer = merge(state(0, Packet.Dpad.CENTER, max, max, CENTER, CENTER));
+        assertEquals((byte) 0xDA, buffer[3]);
+        assertEquals((byte) 0xDA, buffer[4]);
+    }
+
+    @Test
+    void weightedAddAndRemoveReturnToEmpty() {
+        final byte[] button = state(Packet.Buttons.Code.B.getValue(), Packet.Dpad.LEFT, (byte) 0xA0, CENTER,
+                CENTER, CENTER);
+        final byte[] other = state(Packet.Buttons.Code.B.getValue() | Packet.Buttons.Code.Y.getValue(),
+                Packet.Dpad.UP, CENTER, (byte) 0x10, (byte) 0x90, CENTER);
+
+        final PacketAccumulator accumulator = new PacketAccumulator();
+        accumulator.add(button, 3);
+        accumulator.add(other);
+        final byte[] buffer = new byte[8];
+        accumulator.writeTo(buffer);
+        assertArrayEquals(reference(button, button, button, other), buffer);
+
+        accumulator.remove(button, 3);
+        accumulator.writeTo(buffer);
+        assertArrayEquals(reference(other), buffer);
+
+        accumulator.remove(other);
+        accumulator.writeTo(buffer);
+        assertArrayEquals(Packet.Companion.getEMPTY_PACKET_BUFFER(), buffer);
+        assertEquals(0, accumulator.size());
+    }
+
+    @Test
+    void randomPacketsMatchReference() {
+        final Random random = new Random(0);
+        final byte[] buffer = new byte[8];
+        for (int iteration = 0; iteration < 10_000; iteration++) {
+            final PacketAccumulator accumulator = new PacketAccumulator();
+            final List<byte[]> packets = new ArrayList<>();
+            final int count = 1 + random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                final byte[] packet = randomPacket(random);
+                packets.add(packet);
+                accumulator.add(packet);
+            }
+            // Remove some of them again, in any order
+            Collections.shuffle(packets, random);
+            final int removed = random.nextInt(count);
+            for (int i = 0; i < removed; i++) {
+                accumulator.remove(packets.remove(packets.size() - 1));
+            }
+            accumulator.writeTo(buffer);
+            assertArrayEquals(reference(packets.toArray(new byte[0][])), buffer, "iteration " + iteration);
+            assertEquals(packets.size(), accumulator.size());
+        }
+    }
+
+    private static byte[] randomPacket(final Random random) {
+        final int buttons = random.nextBoolean() ? 0 : 1 << random.nextInt(14);
+        final byte dpad = random.nextBoolean() ? Packet.Dpad.CENTER : (byte) random.nextInt(8);
+        final byte[] sticks = new byte[4];
+        for (int i = 0; i < sticks.length; i++) {
+            sticks[i] = random.nextBoolean() ? CENTER : (byte) random.nextInt(256);
+        }
+        return state(buttons, dpad, sticks[0], sticks[1], sticks[2], sticks[3]);
+    }
+
+    private static byte[] dpad(final byte direction) {
+        return state(0, direction, CENTER, CENTER, CENTER, CENTER);
+    }
+
+    private static byte[] state(final int buttons, final byte dpad, final byte leftX, final byte leftY,
+                                final byte rightX, final byte rightY) {
+        return new byte[] {(byte) (buttons >>> 8), (byte) buttons, dpad, leftX, leftY, rightX, rightY,
+                Packet.VENDORSPEC};
+    }
+
+    private static byte[] merge(final byte[]... packets) {
+        final PacketAccumulator accumulator = new PacketAccumulator();
+        for (final byte[] packet : packets) {
+            accumulator.add(packet);
+        }
+        final byte[] buffer = new byte[8];
+        accumulator.writeTo(buffer);
+        return buffer;
+    }
+
+    private static void assertParity(final byte[]... packets) {
+        assertArrayEquals(reference(packets), merge(packets));
+    }
+
+    private static byte[] reference(final byte[]... packets) {
+        final byte[] buffer = new byte[8];
+        final List<byte[]> list = new ArrayList<>();
+        Collections.addAll(list, packets);
+        packetOr(list, buffer);
+        return buffer;
+    }
+
+    // Merge used by BotService before PacketAccumulator, unchanged except for the unused assertions
+
+    private static void packetOr(final List<byte[]> packets, final byte[] buffer) {
+        System.arraycopy(Packet.Companion.getEMPTY_PACKET_BUFFER(), 0, buffer, 0, 8);
+
+        int leftx = 0;
+        int lefty = 0;
+        int rightx = 0;
+        int righty = 0;
+        final int[] dpad = new int[8];
+        for (final byte[] packet : packets) {
+            // Buttons
+            buffer[0] |= packet[0];
+            buffer[1] |= packet[1];
+
+            // DPAD
+            final byte dpadValue = packet[2];
+            if (dpadValue != Packet.Dpad.CENTER) {
+                if (dpadValue % 2 == 0) {
+                    dpad[dpadValue]++;
+                } else {
+                    dpad[dpadValue-1]++;
+                    int up = dpadValue + 1;
+                    if (up == 8) {
+                        up = 0;
+                    }
+                    dpad[up]++;
+                }
+            }
+
+            // Sticks
+            final int lx = packet[3] < 0 ? packet[3] + 256 : packet[3];
+            final int ly = packet[4] < 0 ? packet[4] + 256 : packet[4];
+            final int rx = packet[5] < 0 ? packet[5] + 256 : packet[5];
+            final int ry = packet[6] < 0 ? packet[6] + 256 : packet[6];
+            leftx += (lx - Packet.Joystick.CENTER_INTEGER);
+            lefty += (ly - Packet.Joystick.CENTER_INTEGER);
+            rightx += (rx - Packet.Joystick.CENTER_INTEGER);
+            righty += (ry - Packet.Joystick.CENTER_INTEGER);
+        }
+
+        while (dpad[0] > 0 && dpad[4] > 0) {
+            dpad[0]--;
+            dpad[4]--;
+        }
+        while (dpad[2] > 0 && dpad[6] > 0) {
+            dpad[2]--;
+            dpad[6]--;
+        }
+        final int[] occurrences = new int[2];
+        int m = 0;
+        for (int i = 0; i <= 6; i += 2) {
+            if (dpad[i] > 0) {
+                dpad[i] = 1;
+                occurrences[m] = i;
+                m++;
+            }
+        }
+        switch (m) {
+            case 0:
+                buffer[2] = Packet.Dpad.CENTER;
+                break;
+            case 1:
+                buffer[2] = (byte) occurrences[0];
+                break;
+            case 2:
+                int max = maxDpad(occurrences[0], occurrences[1]);
+                max--;
+                if (max < 0) {
+                    max += 8;
+                }
+                buffer[2] = (byte) max;
+                break;
+        }
+
+        normalizeAxis(leftx, lefty, 3, buffer);
+        normalizeAxis(rightx, righty, 5, buffer);
+    }
+
+    private static void normalizeAxis(final int x, final int y, final int firstIndex, final byte[] buffer) {
+        final double maxMod = StrictMath.pow(Packet.Joystick.CENTER_INTEGER, 2);
+        final int x2 = normalizeByte(x+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
+        final int y2 = normalizeByte(y+Packet.Joystick.CENTER_INTEGER) - Packet.Joystick.CENTER_INTEGER;
+        final double modSq = StrictMath.pow(x2, 2) + StrictMath.pow(y2, 2);
+        final double k = modSq > maxMod ? maxMod/modSq : 1;
+        buffer[firstIndex] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*x2) + Packet.Joystick.CENTER_INTEGER);
+        buffer[firstIndex+1] = (byte) normalizeByte((int) (StrictMath.sqrt(k)*y2) + Packet.Joystick.CENTER_INTEGER);
+    }
+
+    private static int maxDpad(final int val1, final int val2) {
+        if (val1 == val2) {
+            return val1;
+        }
+        return Math.abs(val2-val1) > 4 ? Math.min(val1, val2) : Math.max(val1, val2);
+    }
+
+    private static int normalizeByte(final int src) {
+        return Math.max(0, Math.min(255, src));
+    }
+}
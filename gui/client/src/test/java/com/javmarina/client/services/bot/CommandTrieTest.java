@@ -0,0 +1,113 @@
+package com.javmarina.client.services.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+class CommandTrieTest {
+
+    private static final CommandProvider FIRST = new TestProvider();
+    private static final CommandProvider SECOND = new TestProvider();
+
+    @Test
+    void findsCommandsIgnoringCase() {
+        final CommandTrie trie = new CommandTrie();
+        trie.add("a", FIRST);
+        trie.add("ab", SECOND);
+        trie.add("Left", FIRST);
+
+        final CommandTrie.Node a = trie.find("A", 0, 1);
+        assertNotNull(a);
+        assertSame(FIRST, a.provider);
+        assertEquals("a", a.name);
+
+        final CommandTrie.Node ab = trie.find("xaBx", 1, 3);
+        assertNotNull(ab);
+        assertSame(SECOND, ab.provider);
+
+        final CommandTrie.Node left = trie.find("LEFT", 0, 4);
+        assertNotNull(left);
+        assertEquals("left", left.name);
+        assertEquals(2, left.index);
+        assertSame(left, trie.get(2));
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    void prefixesAndUnknownNamesAreNotFound() {
+        final CommandTrie trie = new CommandTrie();
+        trie.add("left", FIRST);
+
+        assertNull(trie.find("lef", 0, 3));
+        assertNull(trie.find("lefts", 0, 5));
+        assertNull(trie.find("right", 0, 5));
+        assertNull(trie.find("left", 0, 0));
+    }
+
+    @Test
+    void firstProviderKeepsTheName() {
+        final CommandTrie trie = new CommandTrie();
+        trie.add("a", FIRST);
+        trie.add("A", SECOND);
+
+        assertEquals(1, trie.size());
+        assertSame(FIRST, trie.find("a", 0, 1).provider);
+    }
+
+    @Test
+    void invalidNamesAreRejected() {
+        final CommandTrie trie = new CommandTrie();
+        assertThrows(IllegalArgumentException.class, () -> trie.add("", FIRST));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("a1", FIRST));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("a b", FIRST));
+        trie.add("l_stick", FIRST);
+        assertNotNull(trie.find("l_stick", 0, 7));
+    }
+
+    @Test
+    void parseDuration() {
+        assertEquals(BotService.DEFAULT_TIME_MS, BotService.parseDuration("a", 1, 1));
+        assertEquals(BotService.DEFAULT_TIME_MS, BotService.parseDuration("ax", 1, 2));
+        assertEquals(BotService.DEFAULT_TIME_MS, BotService.parseDuration("a.", 1, 2));
+        assertEquals(2000, BotService.parseDuration("a2", 1, 2));
+        assertEquals(1500, BotService.parseDuration("a1.5", 1, 4));
+        assertEquals(1500, BotService.parseDuration("a1,5", 1, 4));
+        assertEquals(100, BotService.parseDuration("a.1", 1, 3));
+        assertEquals(250, BotService.parseDuration("a0.25", 1, 5));
+        // Only milliseconds are kept
+        assertEquals(123, BotService.parseDuration("a0.1239", 1, 7));
+        // Parsing stops at the first character that can't be part of the number
+        assertEquals(1200, BotService.parseDuration("a1.2.3", 1, 6));
+        assertEquals(3000, BotService.parseDuration("a3s", 1, 3));
+        // Only the given range is read
+        assertEquals(1000, BotService.parseDuration("a12", 1, 2));
+    }
+
+    @Test
+    void parseDurationIsClamped() {
+        assertEquals(BotService.MAX_COMMAND_TIME_MS, BotService.parseDuration("a5", 1, 2));
+        assertEquals(BotService.MAX_COMMAND_TIME_MS, BotService.parseDuration("a99999999999999999999", 1, 21));
+        assertEquals(0, BotService.parseDuration("a0", 1, 2));
+    }
+
+    private static final class TestProvider implements CommandProvider {
+
+        @Override
+        public List<String> getCommandNames() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Command> createCommandList(final byte[] emptyBuffer, final String text, final long duration) {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.javmarina.client.services.bot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Runs {@link IrcService} against a {@link LocalIrcServer}. Load measurements are in {@link IrcLoadGenerator}.
+ */
+class IrcServiceTest {
+
+    private static final String CHANNEL = "#test";
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private LocalIrcServer server;
+    private IrcService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new LocalIrcServer();
+        server.start();
+        service = new IrcService("127.0.0.1", server.getPort(), "bot", null, CHANNEL);
+        service.start();
+        // The bot has joined once a message gets through
+        assertTrue(waitFor(() -> {
+            server.sendMessage(CHANNEL, "user", "hello");
+            return service.getReceivedMessages() > 0;
+        }), "the bot didn't join the channel");
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.finish();
+        server.close();
+    }
+
+    @Test
+    void chatMessagePressesButton() {
+        assertFalse(service.getControllerStatus().getButtons().getA());
+        server.sendMessage(CHANNEL, "user", "a");
+        assertTrue(waitFor(() -> service.getControllerStatus().getButtons().getA()), "button A not pressed");
+        // Released after the default duration
+        assertTrue(waitFor(() -> !service.getControllerStatus().getButtons().getA()), "button A not released");
+    }
+
+    @Test
+    void pingIsAnswered() {
+        server.sendPing("token123");
+        assertTrue(waitFor(() -> ":token123".equals(server.getLastPong())), "no PONG received");
+    }
+
+    @Test
+    void tailOfLongLineIsDropped() {
+        // Once the first 64 KiB are discarded, the rest would look like a command for button A
+        final String tail = " PRIVMSG " + CHANNEL + " :a";
+        server.sendMessages(CHANNEL, "user", List.of(":".repeat(100_000) + tail, "b"));
+        assertTrue(waitFor(() -> service.getControllerStatus().getButtons().getB()), "button B not pressed " + service.getReceivedMessages());
+        assertFalse(service.getControllerStatus().getButtons().getA());
+    }
+
+    @Test
+    void failedConnectionFinishes() {
+        final IrcService invalidPort = new IrcService("127.0.0.1", -1, "bot", null, CHANNEL);
+        invalidPort.start();
+        assertNull(invalidPort.getControllerStatus());
+
+        final int port = server.getPort();
+        server.close();
+        final IrcService refused = new IrcService("127.0.0.1", port, "bot", null, CHANNEL);
+        refused.start();
+        assertTrue(waitFor(() -> refused.getControllerStatus() == null), "service still running");
+    }
+
+    private static boolean waitFor(final BooleanSupplier condition) {
+        final long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (System.nanoTime() < deadline) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            try {
+                Thread.sleep(5);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+}
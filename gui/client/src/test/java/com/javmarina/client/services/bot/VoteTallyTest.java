@@ -0,0 +1,136 @@
+package com.javmarina.client.services.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class VoteTallyTest {
+
+    private static final String[] NAMES = {"a", "b", "x", "y", "up", "down", "left", "right"};
+
+    @Test
+    void mostVotedFirst() {
+        final VoteTally tally = createTally();
+        vote(tally, "b", 3);
+        vote(tally, "up", 5);
+        vote(tally, "a", 1);
+
+        final VoteTally.Result result = tally.close();
+        assertArrayEquals(new int[] {4, 1, 0}, result.getMostVoted(3));
+        assertArrayEquals(new int[] {4, 1, 0}, result.getMostVoted(8));
+        assertArrayEquals(new int[] {4}, result.getMostVoted(1));
+        assertArrayEquals(new int[0], result.getMostVoted(0));
+    }
+
+    @Test
+    void tiesGoToTheFirstRegisteredCommand() {
+        final VoteTally tally = createTally();
+        vote(tally, "right", 2);
+        vote(tally, "x", 2);
+        vote(tally, "b", 2);
+        vote(tally, "down", 1);
+
+        final VoteTally.Result result = tally.close();
+        assertArrayEquals(new int[] {1, 2, 7, 5}, result.getMostVoted(4));
+        assertArrayEquals(new int[] {1, 2}, result.getMostVoted(2));
+    }
+
+    @Test
+    void noVotes() {
+        final VoteTally.Result result = createTally().close();
+        assertArrayEquals(new int[0], result.getMostVoted(3));
+    }
+
+    @Test
+    void closeStartsANewWindow() {
+        final VoteTally tally = createTally();
+        final CommandTrie.Node a = find(tally, "a");
+        tally.vote(a, 1000);
+        tally.vote(a, 500);
+        tally.vote(find(tally, "b"), 300);
+
+        final VoteTally.Result result = tally.close();
+        assertEquals(2, result.votes[0]);
+        assertEquals(750, result.averageDurations[0]);
+        assertEquals(300, result.averageDurations[1]);
+        assertEquals(0, result.averageDurations[2]);
+        assertEquals("a", result.getCommand(0).name);
+
+        assertArrayEquals(new int[0], tally.close().getMostVoted(3));
+    }
+
+    @Test
+    void getVotesByName() {
+        final VoteTally tally = createTally();
+        vote(tally, "left", 1);
+        vote(tally, "y", 4);
+
+        assertEquals(List.of("y", "left"), List.copyOf(tally.getVotes().keySet()));
+        assertEquals(4, (int) tally.getVotes().get("y"));
+        tally.clear();
+        assertEquals(Collections.emptyMap(), tally.getVotes());
+    }
+
+    @Test
+    void randomVotesMatchSort() {
+        final Random random = new Random(0);
+        for (int iteration = 0; iteration < 1000; iteration++) {
+            final VoteTally tally = createTally();
+            final int[] votes = new int[NAMES.length];
+            for (int i = 0; i < NAMES.length; i++) {
+                votes[i] = random.nextInt(4);
+                vote(tally, NAMES[i], votes[i]);
+            }
+            final int count = random.nextInt(NAMES.length + 2);
+
+            final int[] expected = IntStream.range(0, NAMES.length)
+                    .filter(i -> votes[i] > 0)
+                    .boxed()
+                    // Stable sort, so ties keep the registration order
+                    .sorted(Comparator.comparingInt(i -> -votes[i]))
+                    .limit(count)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            assertArrayEquals(expected, tally.close().getMostVoted(count));
+        }
+    }
+
+    private static VoteTally createTally() {
+        final CommandTrie trie = new CommandTrie();
+        final CommandProvider provider = new CommandProvider() {
+            @Override
+            public List<String> getCommandNames() {
+                return List.of(NAMES);
+            }
+
+            @Override
+            public List<Command> createCommandList(final byte[] emptyBuffer, final String text,
+                                                   final long duration) {
+                return Collections.emptyList();
+            }
+        };
+        for (final String name : NAMES) {
+            trie.add(name, provider);
+        }
+        return new VoteTally(trie);
+    }
+
+    private static CommandTrie.Node find(final VoteTally tally, final String name) {
+        return tally.getTrie().find(name, 0, name.length());
+    }
+
+    private static void vote(final VoteTally tally, final String name, final int count) {
+        final CommandTrie.Node node = find(tally, name);
+        for (int i = 0; i < count; i++) {
+            tally.vote(node, BotService.DEFAULT_TIME_MS);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.javmarina.client.services.recording;
+
+import com.javmarina.client.services.ControllerService;
+import com.javmarina.util.Packet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class RecordingServiceTest {
+
+    private Path path;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = Files.createTempFile("recording", ".rec");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.delete(path);
+    }
+
+    @Test
+    void onlyChangesAreRecorded() throws IOException {
+        final Packet first = createPacket(1);
+        final Packet second = createPacket(2);
+        // Same state as the first one, in another packet
+        final Packet third = createPacket(1);
+        final FixedService delegate = new FixedService();
+        final RecordingService service = new RecordingService(delegate, path);
+        service.start();
+        for (final Packet packet : new Packet[] {first, first, second, second, second, third, first}) {
+            delegate.packet = packet;
+            assertEquals(packet, service.getControllerStatus());
+        }
+        service.finish();
+
+        assertEquals(0, service.getDroppedChanges());
+        // The last packet is new, but its state is the same as the one before
+        try (final Recording recording = Recording.open(path)) {
+            assertEquals(3, recording.size());
+            assertEquals(pack(first), recording.getState(0));
+            assertEquals(pack(second), recording.getState(1));
+            assertEquals(pack(third), recording.getState(2));
+            assertTrue(recording.getTimeNs(0) <= recording.getTimeNs(1));
+            assertTrue(recording.getTimeNs(2) <= recording.getDurationNs());
+        }
+    }
+
+    @Test
+    void concurrentCallersAreRecorded() throws Exception {
+        final Packet[] packets = new Packet[256];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = createPacket(i);
+        }
+        final ControllerService delegate = new ControllerService() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            protected Packet getPacket() {
+                return packets[index.getAndIncrement() & (packets.length - 1)];
+            }
+
+            @Override
+            public String toString() {
+                return "Cycle";
+            }
+        };
+        final RecordingService service = new RecordingService(delegate, path);
+        service.start();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    service.getControllerStatus();
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        service.finish();
+
+        try (final Recording recording = Recording.open(path)) {
+            assertTrue(recording.size() > 0);
+            assertTrue(recording.size() + service.getDroppedChanges() <= 40_000);
+            for (long i = 0; i < recording.size(); i++) {
+                // Every record is one of the packets, never a mix of two
+                final long state = recording.getState(i);
+                assertEquals(pack(packets[(int) (state >>> 56)]), state);
+                if (i > 0) {
+                    assertTrue(recording.getState(i - 1) != state, "record " + i + " repeated");
+                }
+            }
+        }
+    }
+
+    private static Packet createPacket(final int id) {
+        final byte[] buffer = Packet.Companion.getEMPTY_PACKET_BUFFER().clone();
+        buffer[0] = (byte) id;
+        return new Packet(buffer);
+    }
+
+    private static long pack(final Packet packet) {
+        long state = 0;
+        for (final byte b : packet.getBuffer()) {
+            state = state << 8 | (b & 0xFF);
+        }
+        return state;
+    }
+
+    private static final class FixedService extends ControllerService {
+
+        private Packet packet;
+
+        @Override
+        protected Packet getPacket() {
+            return packet;
+        }
+
+        @Override
+        public String toString() {
+            return "Fixed";
+        }
+    }
+}
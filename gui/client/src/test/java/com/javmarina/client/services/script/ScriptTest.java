@@ -0,0 +1,148 @@
+package com.javmarina.client.services.script;
+
+import com.javmarina.util.Packet;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ScriptTest {
+
+    private static final long MS = 1_000_000;
+    private static final byte CENTER = Packet.Joystick.CENTER;
+
+    @Test
+    void parsesKeyframes() throws IOException {
+        final Script script = parse(
+                "# Comment\n" +
+                "0.1    A  # trailing comment\n" +
+                "\n" +
+                "0.25   b up lstick=0,1\n" +
+                "+0.05  zl zr rstick=-1,0\n" +
+                "0.5\n");
+
+        // The initial keyframe is added at 0
+        assertEquals(5, script.size());
+        assertArrayEquals(new long[] {0, 100 * MS, 250 * MS, 300 * MS, 500 * MS}, times(script));
+        assertArrayEquals(Packet.Companion.getEMPTY_PACKET_BUFFER(), state(script, 0));
+        assertArrayEquals(state(Packet.Buttons.Code.A.getValue(), Packet.Dpad.CENTER, CENTER, CENTER, CENTER,
+                CENTER), state(script, 1));
+        assertArrayEquals(state(Packet.Buttons.Code.B.getValue(), Packet.Dpad.UP, CENTER, (byte) 0xFF, CENTER,
+                CENTER), state(script, 2));
+        assertArrayEquals(state(Packet.Buttons.Code.ZL.getValue() | Packet.Buttons.Code.ZR.getValue(),
+                Packet.Dpad.CENTER, CENTER, CENTER, (byte) 0x00, CENTER), state(script, 3));
+        assertArrayEquals(Packet.Companion.getEMPTY_PACKET_BUFFER(), state(script, 4));
+
+        assertFalse(script.hasEnd());
+        assertEquals(500 * MS, script.getDurationNs());
+    }
+
+    @Test
+    void dpadDiagonals() throws IOException {
+        final Script script = parse("0 up right\n1 down left\n2 left up\n3 right down\n");
+        assertEquals(Packet.Dpad.UP_RIGHT, state(script, 0)[2]);
+        assertEquals(Packet.Dpad.DOWN_LEFT, state(script, 1)[2]);
+        assertEquals(Packet.Dpad.UP_LEFT, state(script, 2)[2]);
+        assertEquals(Packet.Dpad.DOWN_RIGHT, state(script, 3)[2]);
+    }
+
+    @Test
+    void sameTimeReplacesKeyframe() throws IOException {
+        final Script script = parse("0 a\n1 b\n+0 x\n");
+        assertEquals(2, script.size());
+        assertEquals(Packet.Buttons.Code.A.getValue(), state(script, 0)[1]);
+        assertEquals(Packet.Buttons.Code.X.getValue(), state(script, 1)[1]);
+    }
+
+    @Test
+    void endLine() throws IOException {
+        final Script script = parse("0 a\n0.5\n1 END\n");
+        assertTrue(script.hasEnd());
+        assertEquals(1000 * MS, script.getDurationNs());
+        assertEquals(3, script.size());
+        assertArrayEquals(Packet.Companion.getEMPTY_PACKET_BUFFER(), state(script, 2));
+    }
+
+    @Test
+    void timesAreRoundedToNanoseconds() throws IOException {
+        final Script script = parse("0.0000000004 a\n0.0000000016 b\n1.5e-3 x\n");
+        // The first one rounds to 0 and replaces the initial keyframe
+        assertArrayEquals(new long[] {0, 2, 1_500_000}, times(script));
+    }
+
+    @Test
+    void findsActiveKeyframe() throws IOException {
+        final Script script = parse("0.1 a\n0.2 b\n0.4\n");
+        assertEquals(0, script.indexAt(0));
+        assertEquals(0, script.indexAt(100 * MS - 1));
+        assertEquals(1, script.indexAt(100 * MS));
+        assertEquals(2, script.indexAt(399 * MS));
+        assertEquals(3, script.indexAt(400 * MS));
+        assertEquals(3, script.indexAt(10_000 * MS));
+
+        assertTrue(script.isActive(1, 150 * MS));
+        assertFalse(script.isActive(1, 200 * MS));
+        assertFalse(script.isActive(2, 150 * MS));
+        assertTrue(script.isActive(3, 10_000 * MS));
+    }
+
+    @Test
+    void invalidScriptsReportTheLine() {
+        assertError("Line 2: time goes backwards", "1 a\n0.5 b\n");
+        assertError("Line 1: invalid time x", "x a\n");
+        assertError("Line 1: invalid time -1", "-1 a\n");
+        assertError("Line 3: unknown input jump", "0 a\n\n1 jump\n");
+        assertError("Line 1: unknown input none", "0 none\n");
+        assertError("Line 1: opposite DPAD directions", "0 up down\n");
+        assertError("Line 1: joystick out of range 2,0", "0 lstick=2,0\n");
+        assertError("Line 1: invalid joystick 1", "0 rstick=1\n");
+        assertError("Line 3: keyframe after the end of the script", "0 a\n1 end\n2 b\n");
+    }
+
+    @Test
+    void loopingRequiresEnd() throws IOException {
+        final Script withoutEnd = parse("0 a\n0.5\n");
+        assertThrows(IllegalArgumentException.class, () -> new ScriptService(withoutEnd, true, 1));
+        final Script endAtZero = parse("0 end\n");
+        assertThrows(IllegalArgumentException.class, () -> new ScriptService(endAtZero, true, 1));
+        // Playing once is fine
+        new ScriptService(withoutEnd, false, 1);
+        new ScriptService(parse("0 a\n0.5\n1 end\n"), true, 1);
+    }
+
+    private static Script parse(final String source) throws IOException {
+        return Script.parse(new StringReader(source));
+    }
+
+    private static void assertError(final String message, final String source) {
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> parse(source));
+        assertEquals(message, e.getMessage());
+    }
+
+    private static long[] times(final Script script) {
+        final long[] times = new long[script.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = script.getTimeNs(i);
+        }
+        return times;
+    }
+
+    private static byte[] state(final Script script, final int index) {
+        final byte[] buffer = new byte[Script.STATE_SIZE];
+        script.copyState(index, buffer, 0);
+        return buffer;
+    }
+
+    private static byte[] state(final int buttons, final byte dpad, final byte leftX, final byte leftY,
+                                final byte rightX, final byte rightY) {
+        return new byte[] {(byte) (buttons >>> 8), (byte) buttons, dpad, leftX, leftY, rightX, rightY,
+                Packet.VENDORSPEC};
+    }
+}
@@ -2,10 +2,15 @@ package com.javmarina.server;
 
 import com.javmarina.util.GeneralUtils;
 import com.javmarina.util.Packet;
+import com.javmarina.webrtc.FrameTimingAnalyser;
+import com.javmarina.webrtc.LatencyProfile;
 import com.javmarina.webrtc.RtcServer;
 import com.javmarina.webrtc.RtcUtils;
+import com.javmarina.webrtc.SetupTimeline;
+import com.javmarina.webrtc.SpectatorFanOut;
 import com.javmarina.webrtc.signaling.SessionId;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
+import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
 import dev.onvoid.webrtc.media.video.VideoDeviceSource;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -18,10 +23,12 @@ import javafx.scene.image.Image;
 import javafx.scene.layout.AnchorPane;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import org.jetbrains.annotations.Nullable;
 
 import java.awt.Desktop;
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 import java.util.ResourceBundle;
@@ -35,20 +42,36 @@ public class ConnectionFrame implements RtcServer.Callback {
     private final SerialAdapter serialAdapter;
     private final SessionId sessionId;
     private final VideoDeviceSource videoDeviceSource;
+    private final List<VideoCaptureCapability> videoCapabilities;
+    private final VideoCaptureCapability videoCapability;
     private final AudioDevice audioDevice;
+    private final boolean latencyStamp;
+    private final int maxSpectators;
     private final Callback callback;
 
     private PanelController panelController;
+    @Nullable
+    private volatile SpectatorFanOut spectatorFanOut;
+    @Nullable
+    private volatile SpectatorFanOut.CostReport lastCostReport;
     private Stage stage;
 
     public ConnectionFrame(final SerialAdapter serialAdapter, final SessionId sessionId,
                            final VideoDeviceSource videoDeviceSource,
+                           final List<VideoCaptureCapability> videoCapabilities,
+                           final VideoCaptureCapability videoCapability,
                            final AudioDevice audioDevice,
+                           final boolean latencyStamp,
+                           final int maxSpectators,
                            final Callback callback) {
         this.serialAdapter = serialAdapter;
         this.sessionId = sessionId;
         this.videoDeviceSource = videoDeviceSource;
+        this.videoCapabilities = videoCapabilities;
+        this.videoCapability = videoCapability;
         this.audioDevice = audioDevice;
+        this.latencyStamp = latencyStamp;
+        this.maxSpectators = maxSpectators;
         this.callback = callback;
     }
 
@@ -95,12 +118,36 @@ public class ConnectionFrame implements RtcServer.Callback {
             audioDeviceModule.setRecordingDevice(audioDevice);
             audioDeviceModule.initRecording();
 
+            // Only used if the client asks for low latency in its offer
             final RtcServer rtcServer = new RtcServer(
                     sessionId,
-                    audioDeviceModule,
                     videoDeviceSource,
+                    LatencyProfile.LOW_LATENCY,
                     this
             );
+            rtcServer.setVideoCaptureCapabilities(videoCapabilities, videoCapability);
+            if (latencyStamp) {
+                rtcServer.enableTimestampStamping();
+            }
+            if (maxSpectators > 0) {
+                spectatorFanOut = new SpectatorFanOut(rtcServer, sessionId.getSpectatorSessionId(), maxSpectators,
+                        new SpectatorFanOut.Callback() {
+                            @Override
+                            public void onViewerCountChanged(final int viewers) {
+                                updateSpectatorsInfo();
+                            }
+
+                            @Override
+                            public void onCostReport(final SpectatorFanOut.CostReport report) {
+                                lastCostReport = report;
+                                if (report.viewers > 0) {
+                                    System.out.println("Spectators: " + report);
+                                }
+                                updateSpectatorsInfo();
+                            }
+                        });
+                updateSpectatorsInfo();
+            }
             new Thread(rtcServer::start).start();
         });
 
@@ -133,10 +180,30 @@ public class ConnectionFrame implements RtcServer.Callback {
 
     @Override
     public void onSessionStarted() {
+        if (spectatorFanOut != null) {
+            spectatorFanOut.start();
+        }
+    }
+
+    @Override
+    public void onConnectionInterrupted() {
+        // Release all buttons, the last packet from the client could keep them pressed until the connection is
+        // recovered
+        serialAdapter.sendPacket(Packet.Companion.getEMPTY_PACKET());
+        panelController.setConnectionInfo(RESOURCE_BUNDLE.getString("connection.reconnecting"));
+    }
+
+    @Override
+    public void onReconnected(final long recoveryMillis) {
+        panelController.setConnectionInfo(
+                String.format(RESOURCE_BUNDLE.getString("connection.reconnected"), recoveryMillis));
     }
 
     @Override
     public void onSessionStopped() {
+        if (spectatorFanOut != null) {
+            spectatorFanOut.stop();
+        }
         Platform.runLater(() -> {
             System.out.println(RESOURCE_BUNDLE.getString("connection.sessionStopped"));
             serialAdapter.closePort();
@@ -170,6 +237,34 @@ public class ConnectionFrame implements RtcServer.Callback {
         });
     }
 
+    @Override
+    public void onSetupCompleted(final SetupTimeline timeline) {
+        System.out.println("Connection setup: " + timeline);
+    }
+
+    @Override
+    public void onCaptureTiming(final FrameTimingAnalyser.Report report) {
+        panelController.setCaptureTimingInfo(String.format(RESOURCE_BUNDLE.getString("connection.captureTiming"),
+                report.meanFps, report.p95IntervalMs, report.p99IntervalMs, report.jitterMs, report.frozenFrames));
+    }
+
+    private void updateSpectatorsInfo() {
+        final SpectatorFanOut fanOut = spectatorFanOut;
+        if (fanOut == null) {
+            return;
+        }
+        final SpectatorFanOut.CostReport report = lastCostReport;
+        final String spectatorId = fanOut.getSpectatorSessionId().toString();
+        final int viewers = fanOut.getViewerCount();
+        if (report != null && viewers > 0 && !Double.isNaN(report.cpuPercentPerViewer)) {
+            panelController.setSpectatorsInfo(String.format(RESOURCE_BUNDLE.getString("connection.spectatorsCost"),
+                    spectatorId, viewers, maxSpectators, report.cpuPercentPerViewer));
+        } else {
+            panelController.setSpectatorsInfo(String.format(RESOURCE_BUNDLE.getString("connection.spectators"),
+                    spectatorId, viewers, maxSpectators));
+        }
+    }
+
     private static void runSerialPortTests(final SerialAdapter serialAdapter) {
         final SerialAdapter.TestResults testResults = serialAdapter.testSpeed(100);
         final String msg;
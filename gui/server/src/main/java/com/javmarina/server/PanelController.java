@@ -54,6 +54,10 @@ public class PanelController {
     @FXML
     private Label connectionLabel;
     @FXML
+    private Label captureTimingLabel;
+    @FXML
+    private Label spectatorsLabel;
+    @FXML
     private Button lostConnection;
 
     public void updateUi(final Packet packet) {
@@ -104,6 +108,14 @@ public class PanelController {
         Platform.runLater(() -> connectionLabel.setText(text));
     }
 
+    public void setCaptureTimingInfo(final String text) {
+        Platform.runLater(() -> captureTimingLabel.setText(text));
+    }
+
+    public void setSpectatorsInfo(final String text) {
+        Platform.runLater(() -> spectatorsLabel.setText(text));
+    }
+
     public boolean isButtonPressed() {
         return lostConnection.isPressed();
     }
@@ -1,6 +1,7 @@
 package com.javmarina.server;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.javmarina.webrtc.PeerConnectionFactoryManager;
 import com.javmarina.webrtc.RtcUtils;
 import com.javmarina.webrtc.WebRtcLoader;
 import dev.onvoid.webrtc.media.MediaDevices;
@@ -30,6 +31,7 @@ public final class Server extends Application {
 
     public static void main(final String[] args) {
         WebRtcLoader.loadLibrary();
+        PeerConnectionFactoryManager.getInstance().prewarm();
         launch(args);
     }
 
@@ -55,7 +57,11 @@ public final class Server extends Application {
                     new SerialAdapter(serialPort, serverController.getBaudrate()),
                     serverController.getSessionId(),
                     serverController.getVideoDeviceSource(),
+                    serverController.getVideoCaptureCapabilities(),
+                    serverController.getSelectedVideoCapability(),
                     serverController.getSelectedAudioDevice(),
+                    serverController.isLatencyStampEnabled(),
+                    serverController.getMaxSpectators(),
                     () -> {
                         primaryStage.show();
                         serverController.reload();
@@ -84,6 +90,7 @@ public final class Server extends Application {
     public void stop() throws Exception {
         super.stop();
         serverController.stop();
+        PeerConnectionFactoryManager.getInstance().dispose();
         // Thread-5 prevents the app from closing gracefully
         System.exit(0);
     }
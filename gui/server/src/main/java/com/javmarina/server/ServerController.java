@@ -1,12 +1,12 @@
 package com.javmarina.server;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.javmarina.webrtc.I420Converter;
+import com.javmarina.webrtc.PeerConnectionFactoryManager;
 import com.javmarina.webrtc.signaling.SessionId;
 import dev.onvoid.webrtc.PeerConnectionFactory;
-import dev.onvoid.webrtc.media.FourCC;
 import dev.onvoid.webrtc.media.MediaDevices;
 import dev.onvoid.webrtc.media.audio.AudioDevice;
-import dev.onvoid.webrtc.media.video.VideoBufferConverter;
 import dev.onvoid.webrtc.media.video.VideoCaptureCapability;
 import dev.onvoid.webrtc.media.video.VideoDevice;
 import dev.onvoid.webrtc.media.video.VideoDeviceSource;
@@ -19,6 +19,7 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
@@ -46,6 +47,8 @@ public class ServerController {
     private static final int MAX_BAUDRATE = 1000000;
     private static final int MIN_BAUDRATE = 9600;
     private static final String KEY_BAUDRATE = "key_baudrate";
+    // Each spectator has its own encoder, so the cap depends on the CPU
+    private static final List<Integer> MAX_SPECTATORS_OPTIONS = List.of(0, 1, 2, 4, 8);
 
     private static final Comparator<VideoCaptureCapability> CAPABILITY_COMPARATOR = (o1, o2) -> {
         final int compare1 = Integer.compare(
@@ -72,13 +75,17 @@ public class ServerController {
     @FXML
     private ChoiceBox<AudioDevice> audioInput;
     @FXML
+    private CheckBox latencyStamp;
+    @FXML
+    private ChoiceBox<Integer> maxSpectators;
+    @FXML
     private Button openServerButton;
     @FXML
     private ImageView videoPreview;
     private PixelBuffer<ByteBuffer> pixelBuffer;
     private ByteBuffer byteBuffer;
 
-    private final PeerConnectionFactory factory = new PeerConnectionFactory();
+    private final PeerConnectionFactory factory = PeerConnectionFactoryManager.getInstance().getFactory();
     private VideoDevice currentVideoDevice;
     private final VideoDeviceSource videoDeviceSource = new VideoDeviceSource();
     private boolean videoDeviceSourceCaptureSet = false;
@@ -95,6 +102,9 @@ public class ServerController {
 
         baudrateField.setText(prefs.get(KEY_BAUDRATE, String.valueOf(DEFAULT_BAUDRATE)));
 
+        maxSpectators.setItems(FXCollections.observableArrayList(MAX_SPECTATORS_OPTIONS));
+        maxSpectators.setValue(0);
+
         openServerButton.disableProperty().bind(Bindings.createBooleanBinding(() -> {
             if (baudrateField.getText().length() > String.valueOf(MAX_BAUDRATE).length()) {
                 return true;
@@ -194,7 +204,7 @@ public class ServerController {
                 }
 
                 try {
-                    VideoBufferConverter.convertFromI420(buffer, byteBuffer, FourCC.ARGB);
+                    I420Converter.getDefault().convert(buffer, byteBuffer);
                 } catch (final Exception e) {
                     e.printStackTrace();
                 }
@@ -289,6 +299,30 @@ public class ServerController {
         return videoDeviceSource;
     }
 
+    public List<VideoCaptureCapability> getVideoCaptureCapabilities() {
+        return List.copyOf(videoCapability.getItems());
+    }
+
+    public VideoCaptureCapability getSelectedVideoCapability() {
+        return currentVideoCapability;
+    }
+
+    /**
+     * Whether the capture time must be drawn on the frames, so that the client can measure the video latency.
+     * @return true if enabled.
+     */
+    public boolean isLatencyStampEnabled() {
+        return latencyStamp.isSelected();
+    }
+
+    /**
+     * Maximum number of spectators connected at the same time.
+     * @return the number of spectators, or 0 if they aren't allowed.
+     */
+    public int getMaxSpectators() {
+        return maxSpectators.getValue();
+    }
+
     public AudioDevice getSelectedAudioDevice() {
         return audioInput.getValue();
     }
@@ -304,7 +338,6 @@ public class ServerController {
     }
 
     public void stop() {
-        factory.dispose();
         if (videoDeviceSourceCaptureSet) {
             videoDeviceSource.stop();
             videoDeviceSource.dispose();
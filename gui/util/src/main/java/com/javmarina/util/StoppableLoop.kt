@@ -6,6 +6,7 @@ package com.javmarina.util
  */
 abstract class StoppableLoop : Runnable {
 
+    @Volatile
     private var running: Boolean = false
     private var stoppedCallback: StoppedCallback? = null
 